@@ -0,0 +1,133 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.cache.caffeine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.configuration.MutableConfiguration;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.engine.SimpleCacheManager;
+import org.polymap.model2.test.Timer;
+
+/**
+ * Compares hit latency and memory per entry of the caches of
+ * {@link SimpleCacheManager} and {@link CaffeineCacheManager}. Number of entries
+ * and operations can be set via <code>-Dmodel2.bench.entries</code> and
+ * <code>-Dmodel2.bench.ops</code>.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class CacheManagerBenchmarkTest
+        extends TestCase {
+
+    private static final Log log = LogFactory.getLog( CacheManagerBenchmarkTest.class );
+
+    protected static final int      ENTRIES = Integer.getInteger( "model2.bench.entries", 100000 );
+
+    protected static final int      OPS = Integer.getInteger( "model2.bench.ops", 10000000 );
+
+    protected static final int      ROUNDS = 3;
+
+
+    public CacheManagerBenchmarkTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+    }
+
+
+    public void testSimple() throws Exception {
+        run( "SimpleCache", new SimpleCacheManager() );
+    }
+
+
+    public void testBounded() throws Exception {
+        run( "BoundedCache", new SimpleCacheManager( ENTRIES * 2 ) );
+    }
+
+
+    public void testCaffeine() throws Exception {
+        run( "Caffeine", new CaffeineCacheManager() );
+    }
+
+
+    public void testCaffeineBounded() throws Exception {
+        run( "Caffeine bounded", new CaffeineCacheManager( ENTRIES * 2 ) );
+    }
+
+
+    protected void run( String label, CacheManager cacheManager ) throws Exception {
+        String[] keys = new String[ENTRIES];
+        for (int i=0; i<ENTRIES; i++) {
+            keys[i] = "key" + i;
+        }
+        Object value = new Object();
+
+        // memory per entry
+        long before = usedHeap();
+        Cache<String,Object> cache = cacheManager.createCache( "benchmark", new MutableConfiguration() );
+        for (String key : keys) {
+            cache.put( key, value );
+        }
+        long after = usedHeap();
+        long perEntry = (after - before) / ENTRIES;
+
+        // hit latency
+        List<Long> nanos = new ArrayList();
+        for (int round=0; round<ROUNDS; round++) {
+            long start = System.nanoTime();
+            int hits = 0;
+            for (int i=0; i<OPS; i++) {
+                if (cache.get( keys[i % ENTRIES] ) == value) {
+                    hits ++;
+                }
+            }
+            nanos.add( (System.nanoTime() - start) / OPS );
+            assertEquals( OPS, hits );
+        }
+
+        // allocation per hit
+        Timer timer = Timer.startNow();
+        for (int i=0; i<OPS; i++) {
+            cache.get( keys[i % ENTRIES] );
+        }
+        long allocated = timer.allocatedBytes();
+
+        log.info( String.format( "%-18s hit: %s ns/op, memory: %d bytes/entry, allocated: %d bytes/1M hits",
+                label, nanos, perEntry, allocated >= 0 ? allocated / (OPS / 1000000) : -1 ) );
+        cacheManager.close();
+    }
+
+
+    protected long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i=0; i<3; i++) {
+            System.gc();
+            try { Thread.sleep( 50 ); } catch (InterruptedException e) { }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+}
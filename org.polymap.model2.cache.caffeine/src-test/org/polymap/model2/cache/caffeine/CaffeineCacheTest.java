@@ -0,0 +1,173 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.cache.caffeine;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.cache.Cache;
+import javax.cache.configuration.FactoryBuilder;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.event.CacheEntryRemovedListener;
+import javax.cache.expiry.CreatedExpiryPolicy;
+import javax.cache.expiry.Duration;
+import javax.cache.integration.CacheLoader;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import org.polymap.model2.engine.CacheStatistics;
+
+/**
+ * Test of {@link CaffeineCache} and {@link CaffeineCacheManager}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class CaffeineCacheTest
+        extends TestCase {
+
+    private static final Log log = LogFactory.getLog( CaffeineCacheTest.class );
+
+    protected CaffeineCacheManager  cacheManager;
+
+
+    public CaffeineCacheTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+    }
+
+    protected void tearDown() throws Exception {
+        cacheManager.close();
+    }
+
+
+    public void testEvictionEvents() throws Exception {
+        cacheManager = new CaffeineCacheManager( () -> Caffeine.newBuilder().maximumSize( 10 ).executor( Runnable::run ) );
+        AtomicInteger evicted = new AtomicInteger();
+        MutableConfiguration<String,String> config = new MutableConfiguration();
+        config.setStatisticsEnabled( true );
+        config.addCacheEntryListenerConfiguration( new MutableCacheEntryListenerConfiguration(
+                () -> (CacheEntryRemovedListener<String,String>)events -> events.forEach( ev -> evicted.incrementAndGet() ),
+                null, true, true ) );
+        Cache<String,String> cache = cacheManager.createCache( "eviction", config );
+        for (int i=0; i<20; i++) {
+            cache.put( "key" + i, "value" + i );
+        }
+        CacheStatistics stats = cacheManager.statistics( "eviction" );
+        assertEquals( 10, evicted.get() );
+        assertEquals( 10, stats.getCacheEvictions() );
+        assertEquals( 10, stats.getCacheSize() );
+
+        // explicit removal is not signaled
+        cache.remove( "key19" );
+        assertEquals( 10, evicted.get() );
+        assertEquals( 1, stats.getCacheRemovals() );
+    }
+
+
+    public void testExpiry() throws Exception {
+        AtomicInteger now = new AtomicInteger();
+        Ticker ticker = () -> TimeUnit.SECONDS.toNanos( now.get() );
+        cacheManager = new CaffeineCacheManager( () -> Caffeine.newBuilder().ticker( ticker ).executor( Runnable::run ) );
+        MutableConfiguration<String,String> config = new MutableConfiguration();
+        config.setExpiryPolicyFactory( CreatedExpiryPolicy.factoryOf( new Duration( TimeUnit.SECONDS, 10 ) ) );
+        Cache<String,String> cache = cacheManager.createCache( "expiry", config );
+        cache.put( "key", "value" );
+        now.set( 5 );
+        assertEquals( "value", cache.get( "key" ) );
+        now.set( 11 );
+        assertNull( cache.get( "key" ) );
+    }
+
+
+    public void testReadThrough() throws Exception {
+        cacheManager = new CaffeineCacheManager();
+        AtomicInteger loads = new AtomicInteger();
+        MutableConfiguration<String,String> config = new MutableConfiguration();
+        config.setStatisticsEnabled( true );
+        config.setCacheLoaderFactory( FactoryBuilder.factoryOf( new TestLoader( loads ) ) );
+        Cache<String,String> cache = cacheManager.createCache( "loader", config );
+
+        assertEquals( "loaded-a", cache.get( "a" ) );
+        assertEquals( "loaded-a", cache.get( "a" ) );
+        Map<String,String> all = cache.getAll( new HashSet( Arrays.asList( "a", "b", "c" ) ) );
+        assertEquals( 3, all.size() );
+        assertEquals( "loaded-c", all.get( "c" ) );
+        assertEquals( 3, loads.get() );
+
+        CacheStatistics stats = cacheManager.statistics( "loader" );
+        assertEquals( 2, stats.getCacheHits() );
+        assertEquals( 3, stats.getCacheMisses() );
+        assertEquals( 3, stats.getCacheLoads() );
+    }
+
+
+    public void testManager() throws Exception {
+        cacheManager = new CaffeineCacheManager( "maximumSize=100" );
+        Cache<String,String> cache = cacheManager.createCache( "managed", new MutableConfiguration() );
+        assertSame( cacheManager, cache.getCacheManager() );
+        assertSame( cache, cacheManager.getCache( "managed" ) );
+        assertNull( cacheManager.statistics( "managed" ) );
+        cacheManager.enableStatistics( "managed", true );
+        cache.put( "key", "value" );
+        assertEquals( 1, cacheManager.statistics( "managed" ).getCachePuts() );
+
+        cacheManager.destroyCache( "managed" );
+        assertNull( cacheManager.getCache( "managed" ) );
+        assertTrue( cache.isClosed() );
+    }
+
+
+    /**
+     *
+     */
+    protected static class TestLoader
+            implements CacheLoader<String,String>, Serializable {
+
+        private AtomicInteger   loads;
+
+        public TestLoader( AtomicInteger loads ) {
+            this.loads = loads;
+        }
+
+        @Override
+        public String load( String key ) {
+            loads.incrementAndGet();
+            return "loaded-" + key;
+        }
+
+        @Override
+        public Map<String,String> loadAll( Iterable<? extends String> keys ) {
+            Map<String,String> result = new HashMap();
+            keys.forEach( key -> result.put( key, load( key ) ) );
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,529 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.cache.caffeine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.configuration.CompleteConfiguration;
+import javax.cache.configuration.Configuration;
+import javax.cache.configuration.Factory;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryListener;
+import javax.cache.event.CacheEntryRemovedListener;
+import javax.cache.event.EventType;
+import javax.cache.expiry.Duration;
+import javax.cache.expiry.EternalExpiryPolicy;
+import javax.cache.expiry.ExpiryPolicy;
+import javax.cache.integration.CacheLoader;
+import javax.cache.integration.CompletionListener;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.EntryProcessorException;
+import javax.cache.processor.EntryProcessorResult;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import org.polymap.model2.engine.CacheStatistics;
+
+/**
+ * A {@link Cache} backed by a <a href="https://github.com/ben-manes/caffeine">Caffeine</a>
+ * cache. Size/weight bounds, refresh and executor are defined by the
+ * {@link Caffeine} builder given by the {@link CaffeineCacheManager}; the
+ * {@link ExpiryPolicy} and the {@link CacheLoader} are taken from the
+ * {@link CompleteConfiguration} of the cache.
+ * <p/>
+ * Entries that are evicted because of size, expiry or garbage collection are
+ * signaled synchronously to the {@link CacheEntryRemovedListener}s of the
+ * configuration, just like {@link org.polymap.model2.engine.BoundedCache} does.
+ * Explicitly removed entries are not signaled.
+ * <p/>
+ * <code>refreshAfterWrite</code> requires a {@link CacheLoader} in the
+ * configuration. Refresh is done asynchronously by the executor of the builder.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class CaffeineCache<K,V>
+        implements Cache<K,V> {
+
+    private static Log log = LogFactory.getLog( CaffeineCache.class );
+
+    private String                      name;
+
+    private CacheManager                cacheManager;
+
+    private CompleteConfiguration<K,V>  config;
+
+    private com.github.benmanes.caffeine.cache.Cache<K,V> cache;
+
+    /** The {@link #cache} if a {@link CacheLoader} is configured, null otherwise. */
+    private LoadingCache<K,V>           loading;
+
+    private ConcurrentMap<K,V>          entries;
+
+    private List<CacheEntryRemovedListener<K,V>> removedListeners = new ArrayList();
+
+    /** The statistics of this cache, or null if statistics are disabled. */
+    private volatile CacheStatistics    stats;
+
+    private volatile boolean            closed;
+
+
+    public CaffeineCache( CacheManager cacheManager, String name, Caffeine<Object,Object> builder, Configuration config ) {
+        this.cacheManager = cacheManager;
+        this.name = name;
+        this.config = config instanceof CompleteConfiguration
+                ? (CompleteConfiguration)config
+                : new MutableConfiguration().setTypes( config.getKeyType(), config.getValueType() );
+
+        for (CacheEntryListenerConfiguration<K,V> listenerConfig : this.config.getCacheEntryListenerConfigurations()) {
+            CacheEntryListener listener = listenerConfig.getCacheEntryListenerFactory().create();
+            if (listener instanceof CacheEntryRemovedListener) {
+                removedListeners.add( (CacheEntryRemovedListener)listener );
+            }
+        }
+        // evictionListener is called synchronously while the entry is removed
+        Caffeine<K,V> b = builder.evictionListener( (K key, V value, RemovalCause cause) -> fireEvicted( key, value ) );
+
+        Factory<ExpiryPolicy> expiryFactory = this.config.getExpiryPolicyFactory();
+        ExpiryPolicy expiry = expiryFactory != null ? expiryFactory.create() : null;
+        if (expiry != null && !(expiry instanceof EternalExpiryPolicy)) {
+            b = b.expireAfter( new JCacheExpiry( expiry ) );
+        }
+
+        Factory<CacheLoader<K,V>> loaderFactory = this.config.getCacheLoaderFactory();
+        if (loaderFactory != null) {
+            CacheLoader<K,V> loader = loaderFactory.create();
+            loading = b.build( new com.github.benmanes.caffeine.cache.CacheLoader<K,V>() {
+                @Override
+                public V load( K key ) throws Exception {
+                    return loader.load( key );
+                }
+                @Override
+                public Map<K,V> loadAll( Iterable<? extends K> keys ) throws Exception {
+                    return loader.loadAll( keys );
+                }
+            });
+            cache = loading;
+        }
+        else {
+            cache = b.build();
+        }
+        entries = cache.asMap();
+        enableStatistics( this.config.isStatisticsEnabled() );
+    }
+
+
+    /**
+     * Starts or stops recording {@link CacheStatistics} of this cache.
+     */
+    public void enableStatistics( boolean enabled ) {
+        if (enabled && stats == null) {
+            stats = new CacheStatistics( () -> cache.estimatedSize() );
+        }
+        else if (!enabled) {
+            stats = null;
+        }
+    }
+
+
+    /**
+     * The statistics of this cache, or null if statistics are disabled.
+     */
+    public CacheStatistics statistics() {
+        return stats;
+    }
+
+
+    protected void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException( "Cache is closed." );
+        }
+    }
+
+
+    protected void fireEvicted( K key, V value ) {
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.recordEviction();
+        }
+        if (!removedListeners.isEmpty() && key != null && value != null) {
+            List<CacheEntryEvent<? extends K,? extends V>> events = Collections.singletonList( new EvictedEvent( key, value ) );
+            for (CacheEntryRemovedListener<K,V> listener : removedListeners) {
+                listener.onRemoved( events );
+            }
+        }
+    }
+
+
+    @Override
+    public V get( K key ) {
+        checkOpen();
+        V value = cache.getIfPresent( key );
+        CacheStatistics s = stats;
+        if (value != null) {
+            if (s != null) {
+                s.recordHit();
+            }
+            return value;
+        }
+        if (s != null) {
+            s.recordMiss();
+        }
+        if (loading != null) {
+            long start = s != null ? System.nanoTime() : 0;
+            value = loading.get( key );
+            if (s != null) {
+                s.recordLoad( System.nanoTime() - start );
+            }
+        }
+        return value;
+    }
+
+
+    /**
+     * Loads the missing values with just one call of
+     * {@link CacheLoader#loadAll(Iterable)}.
+     */
+    @Override
+    public Map<K,V> getAll( Set<? extends K> keys ) {
+        checkOpen();
+        Map<K,V> result = cache.getAllPresent( keys );
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.recordGets( result.size(), keys.size() - result.size() );
+        }
+        if (result.size() < keys.size() && loading != null) {
+            long start = s != null ? System.nanoTime() : 0;
+            Map<K,V> all = loading.getAll( keys );
+            if (s != null) {
+                s.recordLoads( all.size() - result.size(), System.nanoTime() - start );
+            }
+            return all;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean containsKey( K key ) {
+        return entries.containsKey( key );
+    }
+
+    @Override
+    public void loadAll( Set<? extends K> keys, boolean replaceExistingValues, CompletionListener completionListener ) {
+        try {
+            if (loading == null) {
+                // nothing to load
+            }
+            else if (replaceExistingValues) {
+                keys.forEach( key -> loading.refresh( key ) );
+            }
+            else {
+                loading.getAll( keys );
+            }
+            if (completionListener != null) {
+                completionListener.onCompletion();
+            }
+        }
+        catch (Exception e) {
+            if (completionListener != null) {
+                completionListener.onException( e );
+            }
+        }
+    }
+
+    @Override
+    public void put( K key, V value ) {
+        checkOpen();
+        cache.put( key, value );
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.recordPut();
+        }
+    }
+
+    @Override
+    public V getAndPut( K key, V value ) {
+        checkOpen();
+        V result = entries.put( key, value );
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.recordPut();
+        }
+        return result;
+    }
+
+    @Override
+    public void putAll( Map<? extends K,? extends V> map ) {
+        checkOpen();
+        cache.putAll( map );
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.recordPuts( map.size() );
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent( K key, V value ) {
+        checkOpen();
+        boolean result = entries.putIfAbsent( key, value ) == null;
+        CacheStatistics s = stats;
+        if (result && s != null) {
+            s.recordPut();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean remove( K key ) {
+        return getAndRemove( key ) != null;
+    }
+
+    @Override
+    public boolean remove( K key, V oldValue ) {
+        checkOpen();
+        boolean result = entries.remove( key, oldValue );
+        CacheStatistics s = stats;
+        if (result && s != null) {
+            s.recordRemoval();
+        }
+        return result;
+    }
+
+    @Override
+    public V getAndRemove( K key ) {
+        checkOpen();
+        V result = entries.remove( key );
+        CacheStatistics s = stats;
+        if (result != null && s != null) {
+            s.recordRemoval();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean replace( K key, V oldValue, V newValue ) {
+        checkOpen();
+        return entries.replace( key, oldValue, newValue );
+    }
+
+    @Override
+    public boolean replace( K key, V value ) {
+        return getAndReplace( key, value ) != null;
+    }
+
+    @Override
+    public V getAndReplace( K key, V value ) {
+        checkOpen();
+        return entries.replace( key, value );
+    }
+
+    @Override
+    public void removeAll( Set<? extends K> keys ) {
+        checkOpen();
+        keys.forEach( key -> remove( key ) );
+    }
+
+    @Override
+    public void removeAll() {
+        checkOpen();
+        entries.keySet().forEach( key -> remove( key ) );
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public <C extends Configuration<K,V>> C getConfiguration( Class<C> clazz ) {
+        if (clazz.isInstance( config )) {
+            return clazz.cast( config );
+        }
+        throw new IllegalArgumentException( "Configuration is not of type: " + clazz.getName() );
+    }
+
+    @Override
+    public <T> T invoke( K key, EntryProcessor<K,V,T> entryProcessor, Object... arguments )
+            throws EntryProcessorException {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public <T> Map<K,EntryProcessorResult<T>> invokeAll( Set<? extends K> keys, EntryProcessor<K,V,T> entryProcessor,
+            Object... arguments ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CacheManager getCacheManager() {
+        return cacheManager;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            cache.invalidateAll();
+            cache.cleanUp();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Unwraps the {@link CacheStatistics} of this cache (null if statistics are
+     * disabled), this cache or the underlying Caffeine cache.
+     */
+    @Override
+    public <T> T unwrap( Class<T> clazz ) {
+        if (clazz.equals( CacheStatistics.class )) {
+            return clazz.cast( stats );
+        }
+        return clazz.isInstance( this ) ? clazz.cast( this ) : clazz.cast( cache );
+    }
+
+    @Override
+    public void registerCacheEntryListener( CacheEntryListenerConfiguration<K,V> cacheEntryListenerConfiguration ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public void deregisterCacheEntryListener( CacheEntryListenerConfiguration<K,V> cacheEntryListenerConfiguration ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public Iterator<Cache.Entry<K,V>> iterator() {
+        checkOpen();
+        return entries.entrySet().stream()
+            .<Cache.Entry<K,V>>map( entry -> new Cache.Entry<K,V>() {
+                @Override
+                public K getKey() { return entry.getKey(); }
+                @Override
+                public V getValue() { return entry.getValue(); }
+                @Override
+                public <T> T unwrap( Class<T> clazz ) { throw new IllegalArgumentException( "Unwrapping is not supported." ); }
+            })
+            .iterator();
+    }
+
+
+    /**
+     *
+     */
+    protected class EvictedEvent
+            extends CacheEntryEvent<K,V> {
+
+        private K       key;
+
+        private V       value;
+
+        public EvictedEvent( K key, V value ) {
+            super( CaffeineCache.this, EventType.REMOVED );
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V getOldValue() {
+            return value;
+        }
+
+        @Override
+        public boolean isOldValueAvailable() {
+            return true;
+        }
+
+        @Override
+        public <T> T unwrap( Class<T> clazz ) {
+            throw new IllegalArgumentException( "Unwrapping is not supported." );
+        }
+    }
+
+
+    /**
+     * Maps a JCache {@link ExpiryPolicy} to a Caffeine {@link Expiry}.
+     */
+    protected class JCacheExpiry
+            implements Expiry<K,V> {
+
+        private ExpiryPolicy    policy;
+
+        public JCacheExpiry( ExpiryPolicy policy ) {
+            this.policy = policy;
+        }
+
+        protected long nanos( Duration duration, long current ) {
+            if (duration == null) {
+                return current;
+            }
+            else if (duration.isEternal()) {
+                return Long.MAX_VALUE;
+            }
+            else {
+                return duration.getTimeUnit().toNanos( duration.getDurationAmount() );
+            }
+        }
+
+        @Override
+        public long expireAfterCreate( K key, V value, long currentTime ) {
+            return nanos( policy.getExpiryForCreation(), Long.MAX_VALUE );
+        }
+
+        @Override
+        public long expireAfterUpdate( K key, V value, long currentTime, long currentDuration ) {
+            return nanos( policy.getExpiryForUpdate(), currentDuration );
+        }
+
+        @Override
+        public long expireAfterRead( K key, V value, long currentTime, long currentDuration ) {
+            return nanos( policy.getExpiryForAccess(), currentDuration );
+        }
+    }
+
+}
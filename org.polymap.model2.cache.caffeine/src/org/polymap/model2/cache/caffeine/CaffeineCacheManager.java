@@ -0,0 +1,128 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.cache.caffeine;
+
+import java.util.function.Supplier;
+
+import javax.cache.Cache;
+import javax.cache.configuration.Configuration;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.CaffeineSpec;
+
+import org.polymap.model2.engine.SimpleCacheManager;
+import org.polymap.model2.runtime.EntityRepository;
+
+/**
+ * Creates {@link CaffeineCache} instances. A drop-in replacement of
+ * {@link SimpleCacheManager} to be set as
+ * {@link EntityRepository.Configuration#cacheManager}:
+ * <pre>
+ * EntityRepository.newConfiguration()
+ *         .cacheManager.set( new CaffeineCacheManager( 10000 ) )
+ *         ...
+ * </pre>
+ * Registry, statistics and management of the caches are inherited from
+ * {@link SimpleCacheManager}.
+ * <p/>
+ * The default settings are tuned for the caches of a UnitOfWork: many short-lived
+ * caches, most of them holding just a few entries, accessed by one or a few
+ * threads with a high hit rate. Hence the initial capacity is small and the
+ * maintenance (eviction) is done by the calling thread instead of being handed
+ * over to the common pool. Caches created from a spec or a builder use the
+ * executor of the builder, which is also used for asynchronous refresh.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class CaffeineCacheManager
+        extends SimpleCacheManager {
+
+    private static Log log = LogFactory.getLog( CaffeineCacheManager.class );
+
+    /** The default spec used if no other spec or builder is given. */
+    public static final String      DEFAULT_SPEC = "initialCapacity=16";
+
+    private static final CaffeineSpec   defaultSpec = CaffeineSpec.parse( DEFAULT_SPEC );
+
+    protected static Caffeine<Object,Object> defaultBuilder() {
+        return Caffeine.from( defaultSpec ).executor( Runnable::run );
+    }
+
+
+    // instance *******************************************
+
+    private Supplier<Caffeine<Object,Object>> builder;
+
+
+    /**
+     * Creates a manager of unbounded caches.
+     */
+    public CaffeineCacheManager() {
+        this( () -> defaultBuilder() );
+    }
+
+
+    /**
+     * Creates a manager of caches that evict entries if they hold more than the
+     * given number of entries.
+     */
+    public CaffeineCacheManager( long maximumSize ) {
+        this( () -> defaultBuilder().maximumSize( maximumSize ) );
+    }
+
+
+    /**
+     * Creates a manager of caches with the given settings.
+     *
+     * @param spec The {@link CaffeineSpec}, for example
+     *        <code>"maximumSize=10000,expireAfterAccess=10m"</code>.
+     */
+    public CaffeineCacheManager( String spec ) {
+        this( CaffeineSpec.parse( spec ) );
+    }
+
+
+    public CaffeineCacheManager( CaffeineSpec spec ) {
+        this( () -> Caffeine.from( spec ) );
+    }
+
+
+    /**
+     * Creates a manager of caches with the given settings. This allows to specify
+     * a weigher, an executor for asynchronous refresh, a ticker and such.
+     *
+     * @param builder Provides a new builder for every cache. The eviction
+     *        listener of the builder is set by the {@link CaffeineCache}.
+     */
+    public CaffeineCacheManager( Supplier<Caffeine<Object,Object>> builder ) {
+        this.builder = builder;
+    }
+
+
+    @Override
+    protected <K,V> Cache<K,V> newCache( String cacheName, Configuration<K,V> config ) {
+        return new CaffeineCache( this, cacheName, builder.get(), config );
+    }
+
+
+    @Override
+    protected void enableStatistics( Cache cache, boolean enabled ) {
+        ((CaffeineCache)cache).enableStatistics( enabled );
+    }
+
+}
@@ -14,11 +14,16 @@
  */
 package org.polymap.model2.store.geotools;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 
 import org.geotools.data.DataAccess;
+import org.geotools.data.DefaultTransaction;
 import org.geotools.data.FeatureSource;
 import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -70,59 +75,71 @@ public class FeatureStoreAdapter
         this.context = _context;
         EntityRepository repo = context.getRepository();
     
-        // check/create/update schemas
+        // check/create/update schemas; concurrently, one task per type
         if (createOrUpdateSchemas.get()) {
-            //        FeatureStoreUnitOfWork uow = (FeatureStoreUnitOfWork)createUnitOfWork();
+            long start = System.nanoTime();
+            List<ForkJoinTask> tasks = new ArrayList();
             for (Class<? extends Entity> entityClass : repo.getConfig().entities.get()) {
+                tasks.add( context.getBootstrapPool().submit( () -> {
+                    long typeStart = System.nanoTime();
+                    checkSchema( entityClass );
+                    context.getStartupReport().type( "schemas", entityClass, System.nanoTime() - typeStart );
+                }));
+            }
+            // wait for all, fail on first error
+            tasks.forEach( task -> task.join() );
+            context.getStartupReport().phase( "schemas", System.nanoTime() - start );
+        }
+    }
+
 
-                // is entityClass complex?
-                boolean isComplex = false;
-                Class superClass = entityClass; 
-                for (;superClass != null; superClass = superClass.getSuperclass()) {
-                    for (Field field : superClass.getDeclaredFields()) {
-                        if (CollectionProperty.class.isAssignableFrom( field.getType() )) {
-                            isComplex = true; 
-                            break;
-                        }
-                        if (Property.class.isAssignableFrom( field.getType() )) {
-                            Class binding = (Class)((ParameterizedType)field.getGenericType()).getActualTypeArguments()[0];
-                            if (Composite.class.isAssignableFrom( binding )) {
-                                isComplex = true; 
-                                break;
-                            }
-                        }
+    protected void checkSchema( Class<? extends Entity> entityClass ) {
+        // is entityClass complex?
+        boolean isComplex = false;
+        Class superClass = entityClass; 
+        for (;superClass != null; superClass = superClass.getSuperclass()) {
+            for (Field field : superClass.getDeclaredFields()) {
+                if (CollectionProperty.class.isAssignableFrom( field.getType() )) {
+                    isComplex = true; 
+                    break;
+                }
+                if (Property.class.isAssignableFrom( field.getType() )) {
+                    Class binding = (Class)((ParameterizedType)field.getGenericType()).getActualTypeArguments()[0];
+                    if (Composite.class.isAssignableFrom( binding )) {
+                        isComplex = true; 
+                        break;
                     }
                 }
+            }
+        }
 
-                // check/update schema            
-                FeatureType entitySchema = isComplex ? featureType( entityClass ) : simpleFeatureType( entityClass );
+        // check/update schema            
+        FeatureType entitySchema = isComplex ? featureType( entityClass ) : simpleFeatureType( entityClass );
+        try {
+            log.info( "Checking FeatureSource: " + entitySchema.getName().getLocalPart() + " ..." ); 
+            FeatureSource fs = store.getFeatureSource( entitySchema.getName() );
+            // update
+            if (fs != null && !entitySchema.equals( fs.getSchema() )) {
                 try {
-                    log.info( "Checking FeatureSource: " + entitySchema.getName().getLocalPart() + " ..." ); 
-                    FeatureSource fs = store.getFeatureSource( entitySchema.getName() );
-                    // update
-                    if (fs != null && !entitySchema.equals( fs.getSchema() )) {
-                        try {
-                            log.warn( "FeatureType has been changed: " + entitySchema.getName() + " !!!" );
-                            store.updateSchema( entitySchema.getName(), entitySchema );
-                        }
-                        catch (UnsupportedOperationException e) {
-                            log.warn( "", e );
-                        }
-                    }
+                    log.warn( "FeatureType has been changed: " + entitySchema.getName() + " !!!" );
+                    store.updateSchema( entitySchema.getName(), entitySchema );
                 }
-                // create schema
-                // fs.getSchema() throws RuntimeException for ShapefileDataSource
-                catch (Exception e) {
-                    try {
-                        log.info( "No feature store found: " + e.getLocalizedMessage() + ". Creating schema: " + entitySchema ); 
-                        store.createSchema( entitySchema );
-                    }
-                    catch (IOException e1) {
-                        throw new ModelRuntimeException( e1 );
-                    }
+                catch (UnsupportedOperationException e) {
+                    log.warn( "", e );
                 }
             }
         }
+        // create schema
+        // fs.getSchema() throws RuntimeException for ShapefileDataSource
+        catch (Exception e) {
+            try {
+                log.info( "No feature store found: " + e.getLocalizedMessage() + ". Creating schema: " + entitySchema ); 
+                store.createSchema( entitySchema );
+            }
+            catch (IOException e1) {
+                throw new ModelRuntimeException( e1 );
+            }
+        }
     }
 
 
@@ -145,6 +162,15 @@ public class FeatureStoreAdapter
     }
 
 
+    /**
+     * The returned UnitOfWork does not create a {@link DefaultTransaction} and
+     * does not track feature modifications.
+     */
+    public StoreUnitOfWork createReadOnlyUnitOfWork() {
+        return new FeatureStoreUnitOfWork( context, this, true );
+    }
+
+
     /**
      * Creates a new {@link FeatureType} instance for the given {@link Entity} class.
      * The returned instance does not depend on the actually type in the store.
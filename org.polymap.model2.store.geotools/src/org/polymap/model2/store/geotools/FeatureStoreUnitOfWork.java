@@ -16,6 +16,7 @@ package org.polymap.model2.store.geotools;
 
 import static java.util.Collections.singleton;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -62,6 +63,7 @@ import org.polymap.model2.query.Query;
 import org.polymap.model2.runtime.ConcurrentEntityModificationException;
 import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
 import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.PropertyInfo;
 import org.polymap.model2.store.CompositeState;
 import org.polymap.model2.store.CompositeStateReference;
 import org.polymap.model2.store.StoreResultSet;
@@ -84,17 +86,28 @@ public class FeatureStoreUnitOfWork
     
     private FeatureStoreAdapter         store;
 
-    private ConcurrentMap<FeatureId,FeatureModifications> 
-                                        modifications = new ConcurrentHashMap( 1024, 0.75f, 4 );
+    private ConcurrentMap<FeatureId,FeatureModifications> modifications;
     
     private Transaction                 tx;
     
+    /** No modifications, no {@link DefaultTransaction}. */
+    private boolean                     readOnly;
+    
     /** Never evicting cache of used {@link FeatureSource} instances. */
     private LoadingCache<Class<? extends Entity>,FeatureSource> featureSources;
     
     
     protected FeatureStoreUnitOfWork( StoreRuntimeContext context, FeatureStoreAdapter store ) {
+        this( context, store, false );
+    }
+
+    
+    protected FeatureStoreUnitOfWork( StoreRuntimeContext context, FeatureStoreAdapter store, boolean readOnly ) {
         this.store = store;
+        this.readOnly = readOnly;
+        this.modifications = readOnly 
+                ? new ConcurrentHashMap( 1, 0.75f, 1 ) 
+                : new ConcurrentHashMap( 1024, 0.75f, 4 );
 
         // XXX why use Guave cache here anyway?
         this.featureSources = CacheBuilder.newBuilder().build( new CacheLoader<Class<?>,FeatureSource>() {
@@ -143,6 +156,35 @@ public class FeatureStoreUnitOfWork
     }
 
 
+    /**
+     * Fetches all features with one {@link FilterFactory#id(Set) Id filter}.
+     */
+    @Override
+    public <T extends Entity> Map<Object,CompositeState> loadEntityStates( Collection<?> ids, Class<T> entityClass ) {
+        FeatureSource fs = featureSource( entityClass );
+        Set<FeatureId> fids = new HashSet( ids.size() * 2 );
+        for (Object id : ids) {
+            fids.add( ff.featureId( (String)id ) );
+        }
+        Map<Object,CompositeState> result = new HashMap( ids.size() * 2 );
+        FeatureIterator it = null;
+        try {
+            it = fs.getFeatures( ff.id( fids ) ).features();
+            while (it.hasNext()) {
+                Feature feature = it.next();
+                result.put( feature.getIdentifier().getID(), new FeatureCompositeState( feature, this ) );
+            }
+            return result;
+        }
+        catch (Exception e) {
+            throw new ModelRuntimeException( e );
+        }
+        finally {
+            if (it != null) { it.close(); }
+        }
+    }
+
+
     @Override
     public <T extends Entity> CompositeState adoptEntityState( Object state, Class<T> entityClass ) {
         return new FeatureCompositeState( (Feature)state, this );
@@ -242,9 +284,15 @@ public class FeatureStoreUnitOfWork
     @Override
     public void prepareCommit( Iterable<Entity> loaded )
     throws IOException, ConcurrentEntityModificationException {
-        assert tx == null;
+        assert tx != TX_FAILED;
+        if (readOnly) {
+            throw new ModelRuntimeException( "StoreUnitOfWork is read-only." );
+        }
         
-        tx = new DefaultTransaction( getClass().getName() + " Transaction" );
+        // bulkFeatureStore() might have started the transaction already
+        if (tx == null) {
+            tx = new DefaultTransaction( getClass().getName() + " Transaction" );
+        }
         try {
             apply( loaded );
         }
@@ -258,6 +306,76 @@ public class FeatureStoreUnitOfWork
     }
 
 
+    /**
+     * Removes the matching features via {@link FeatureStore#removeFeatures(Filter)}.
+     */
+    @Override
+    public boolean prepareDelete( Query query, Set<Object> excluded ) throws IOException {
+        bulkFeatureStore( query ).removeFeatures( bulkFilter( query, excluded ) );
+        return true;
+    }
+
+
+    /**
+     * Sets the values of the matching features via
+     * {@link FeatureStore#modifyFeatures(AttributeDescriptor[], Object[], Filter)}.
+     */
+    @Override
+    public boolean prepareUpdate( Query query, Map<PropertyInfo,Object> values, Set<Object> excluded ) throws IOException {
+        FeatureStore fs = bulkFeatureStore( query );
+        FeatureType schema = fs.getSchema();
+        AttributeDescriptor[] atts = new AttributeDescriptor[values.size()];
+        Object[] attValues = new Object[values.size()];
+        int i = 0;
+        for (Entry<PropertyInfo,Object> entry : values.entrySet()) {
+            atts[i] = (AttributeDescriptor)schema.getDescriptor( entry.getKey().getNameInStore() );
+            attValues[i++] = entry.getValue() instanceof Enum 
+                    ? ((Enum)entry.getValue()).toString() 
+                    : entry.getValue();
+        }
+        fs.modifyFeatures( atts, attValues, bulkFilter( query, excluded ) );
+        return true;
+    }
+
+
+    /**
+     * The {@link FeatureStore} of the result type of the given query, within the
+     * transaction that is also used by the subsequent
+     * {@link #prepareCommit(Iterable)}.
+     */
+    protected FeatureStore bulkFeatureStore( Query query ) {
+        assert tx != TX_FAILED;
+        assert query.expression == null || query.expression instanceof FilterWrapper : "Wrong query expression type: " + query.expression;
+        if (readOnly) {
+            throw new ModelRuntimeException( "StoreUnitOfWork is read-only." );
+        }
+        if (tx == null) {
+            tx = new DefaultTransaction( getClass().getName() + " Transaction" );
+        }
+        FeatureStore fs = (FeatureStore)featureSource( query.resultType() );
+        fs.setTransaction( tx );
+        return fs;
+    }
+
+
+    /**
+     * The filter of the given query, excluding the given ids.
+     */
+    protected Filter bulkFilter( Query query, Set<Object> excluded ) {
+        Filter filter = query.expression != null 
+                ? ((FilterWrapper)query.expression).filter 
+                : Filter.INCLUDE;
+        if (excluded.isEmpty()) {
+            return filter;
+        }
+        Set<FeatureId> fids = new HashSet( excluded.size() * 2 );
+        for (Object id : excluded) {
+            fids.add( ff.featureId( (String)id ) );
+        }
+        return ff.and( filter, ff.not( ff.id( fids ) ) );
+    }
+
+
     public void commit() throws ModelRuntimeException {
         assert tx != null && tx != TX_FAILED;
         try {
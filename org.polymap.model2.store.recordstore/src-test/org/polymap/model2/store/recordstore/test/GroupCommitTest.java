@@ -0,0 +1,354 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.store.recordstore.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.runtime.ConcurrentEntityModificationException;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.store.OptimisticLocking;
+import org.polymap.model2.store.recordstore.GroupCommit;
+import org.polymap.model2.store.recordstore.GroupCommit.Batch;
+import org.polymap.model2.store.recordstore.RecordStoreAdapter;
+import org.polymap.model2.test.Employee;
+import org.polymap.model2.test.Timer;
+import org.polymap.recordstore.IRecordState;
+import org.polymap.recordstore.IRecordStore;
+import org.polymap.recordstore.lucene.LuceneRecordStore;
+
+/**
+ * Test and benchmark of {@link GroupCommit}. The number of commits per writer
+ * thread can be set via <code>-Dmodel2.groupcommit.commits</code>.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class GroupCommitTest
+        extends TestCase {
+
+    private static final Log log = LogFactory.getLog( GroupCommitTest.class );
+
+    protected static final int      COMMITS = Integer.getInteger( "model2.groupcommit.commits", 200 );
+
+    protected static final int[]    THREADS = {1, 2, 4, 8, 16};
+
+    private RecordStoreAdapter      adapter;
+
+    private EntityRepository        repo;
+
+
+    public GroupCommitTest( String name ) {
+        super( name );
+    }
+
+
+    @Override
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (repo != null) {
+            repo.close();
+        }
+    }
+
+
+    protected void createRepo( boolean groupCommit ) throws Exception {
+        if (repo != null) {
+            repo.close();
+        }
+        adapter = new RecordStoreAdapter( LuceneRecordStore.newConfiguration().create() );
+        if (groupCommit) {
+            adapter.groupCommit( 1, TimeUnit.MILLISECONDS, 100 );
+        }
+        repo = EntityRepository.newConfiguration()
+                .store.set( new OptimisticLocking( adapter ) )
+                .entities.set( new Class[] {Employee.class} )
+                .create();
+    }
+
+
+    /**
+     * Commits {@link #COMMITS} UnitOfWorks in each of the given number of
+     * threads, each UnitOfWork creating one Entity.
+     *
+     * @return The commits per second.
+     */
+    protected long commitConcurrently( int threads ) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try {
+            Timer timer = Timer.startNow();
+            List<Future> futures = new ArrayList();
+            for (int thread=0; thread<threads; thread++) {
+                String prefix = "thread" + thread + ".";
+                futures.add( executor.submit( () -> {
+                    for (int i=0; i<COMMITS; i++) {
+                        UnitOfWork uow = repo.newUnitOfWork();
+                        uow.createEntity( Employee.class, prefix + i, (Employee proto) -> {
+                            proto.jap.set( 1 );
+                            return proto;
+                        });
+                        uow.commit();
+                        uow.close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future future : futures) {
+                future.get();
+            }
+            return (long)threads * COMMITS * 1000 / Math.max( 1, timer.elapsedTime() );
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+
+    public void testGroupCommit() throws Exception {
+        createRepo( true );
+        commitConcurrently( 8 );
+
+        UnitOfWork uow = repo.newUnitOfWork();
+        for (int thread=0; thread<8; thread++) {
+            for (int i=0; i<COMMITS; i++) {
+                assertEquals( 1, (int)uow.entity( Employee.class, "thread" + thread + "." + i ).jap.get() );
+            }
+        }
+        GroupCommit groupCommit = adapter.groupCommit();
+        log.info( groupCommit );
+        assertEquals( 8 * COMMITS, groupCommit.commitCount() );
+        assertTrue( groupCommit.groupCount() < groupCommit.commitCount() );
+    }
+
+
+    public void testConflictPerUnitOfWork() throws Exception {
+        createRepo( true );
+        UnitOfWork uow = repo.newUnitOfWork();
+        Object id = uow.createEntity( Employee.class, null ).id();
+        uow.commit();
+
+        UnitOfWork uow1 = repo.newUnitOfWork();
+        UnitOfWork uow2 = repo.newUnitOfWork();
+        uow1.entity( Employee.class, id ).jap.set( 1 );
+        uow2.entity( Employee.class, id ).jap.set( 2 );
+        uow1.commit();
+        try {
+            uow2.commit();
+            fail( "Concurrent modification must fail." );
+        }
+        catch (ConcurrentEntityModificationException e) {
+            // ok
+        }
+        assertEquals( 1, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+    }
+
+
+    /**
+     * UnitOfWorks that modify the same Entity commit at the same time, together
+     * with a UnitOfWork modifying another Entity. Exactly one of the conflicting
+     * UnitOfWorks wins; the other UnitOfWork of the group is not affected.
+     */
+    public void testConcurrentConflictInGroup() throws Exception {
+        createRepo( true );
+        UnitOfWork uow = repo.newUnitOfWork();
+        Object id = uow.createEntity( Employee.class, null ).id();
+        Object otherId = uow.createEntity( Employee.class, null ).id();
+        uow.commit();
+
+        int writers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool( writers + 1 );
+        CyclicBarrier barrier = new CyclicBarrier( writers + 1 );
+        try {
+            List<Future<Integer>> futures = new ArrayList();
+            for (int i=1; i<=writers+1; i++) {
+                int jap = i;
+                Object target = i <= writers ? id : otherId;
+                futures.add( executor.submit( (Callable<Integer>)() -> {
+                    UnitOfWork writer = repo.newUnitOfWork();
+                    try {
+                        writer.entity( Employee.class, target ).jap.set( jap );
+                        barrier.await( 10, TimeUnit.SECONDS );
+                        writer.commit();
+                        return jap;
+                    }
+                    catch (ConcurrentEntityModificationException e) {
+                        return null;
+                    }
+                    finally {
+                        writer.close();
+                    }
+                }));
+            }
+            List<Integer> winners = new ArrayList();
+            for (int i=0; i<writers; i++) {
+                Integer jap = futures.get( i ).get( 10, TimeUnit.SECONDS );
+                if (jap != null) {
+                    winners.add( jap );
+                }
+            }
+            assertEquals( (Integer)(writers + 1), futures.get( writers ).get( 10, TimeUnit.SECONDS ) );
+            assertEquals( 1, winners.size() );
+
+            UnitOfWork check = repo.newUnitOfWork();
+            assertEquals( winners.get( 0 ), check.entity( Employee.class, id ).jap.get() );
+            assertEquals( writers + 1, (int)check.entity( Employee.class, otherId ).jap.get() );
+            log.info( "winner: " + winners.get( 0 ) + ", " + adapter.groupCommit() );
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * One batch of a group fails. The group is applied one by one then, so that
+     * just the failing batch gets an exception.
+     */
+    public void testGroupFailureFallback() throws Exception {
+        IRecordStore store = LuceneRecordStore.newConfiguration().create();
+        int size = 4;
+        List<Batch> batches = new ArrayList();
+        List<IRecordState> states = new ArrayList();
+        for (int i=0; i<size; i++) {
+            IRecordState state = store.newRecord().put( "name", "batch" + i );
+            Batch batch = new Batch();
+            batch.store( state );
+            batches.add( batch );
+            states.add( state );
+        }
+        Batch poisoned = batches.get( 0 );
+        // the leader waits until all batches have joined the group
+        GroupCommit groupCommit = new GroupCommit( store, 10, TimeUnit.SECONDS, size ) {
+            @Override
+            protected void applyBatches( List<Batch> group ) throws Exception {
+                if (group.contains( poisoned )) {
+                    throw new Exception( "Poisoned batch." );
+                }
+                super.applyBatches( group );
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool( size );
+        try {
+            List<Future> futures = new ArrayList();
+            for (Batch batch : batches) {
+                futures.add( executor.submit( () -> {
+                    groupCommit.commit( batch );
+                    return null;
+                }));
+            }
+            try {
+                futures.get( 0 ).get( 20, TimeUnit.SECONDS );
+                fail( "Poisoned batch must fail." );
+            }
+            catch (ExecutionException e) {
+                assertTrue( e.getCause() instanceof ModelRuntimeException );
+            }
+            for (int i=1; i<size; i++) {
+                futures.get( i ).get( 20, TimeUnit.SECONDS );
+                assertNotNull( store.get( states.get( i ).id() ) );
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        log.info( groupCommit );
+        assertEquals( size, groupCommit.commitCount() );
+        // one failed group, then one store commit per healthy batch
+        assertEquals( size - 1, groupCommit.groupCount() );
+        assertNull( store.get( states.get( 0 ).id() ) );
+    }
+
+
+    /**
+     * An {@link Error} while applying a group must be reported to every batch,
+     * none of them must be reported as committed.
+     */
+    public void testGroupError() throws Exception {
+        IRecordStore store = LuceneRecordStore.newConfiguration().create();
+        int size = 4;
+        List<Batch> batches = new ArrayList();
+        List<IRecordState> states = new ArrayList();
+        for (int i=0; i<size; i++) {
+            IRecordState state = store.newRecord().put( "name", "batch" + i );
+            Batch batch = new Batch();
+            batch.store( state );
+            batches.add( batch );
+            states.add( state );
+        }
+        GroupCommit groupCommit = new GroupCommit( store, 10, TimeUnit.SECONDS, size ) {
+            @Override
+            protected void applyBatches( List<Batch> group ) throws Exception {
+                throw new AssertionError( "Failing store." );
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool( size );
+        try {
+            List<Future> futures = new ArrayList();
+            for (Batch batch : batches) {
+                futures.add( executor.submit( () -> {
+                    groupCommit.commit( batch );
+                    return null;
+                }));
+            }
+            for (int i=0; i<size; i++) {
+                try {
+                    futures.get( i ).get( 20, TimeUnit.SECONDS );
+                    fail( "Batch must fail." );
+                }
+                catch (ExecutionException e) {
+                    assertTrue( e.getCause() instanceof ModelRuntimeException );
+                }
+                assertNull( store.get( states.get( i ).id() ) );
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertEquals( 0, groupCommit.groupCount() );
+    }
+
+
+    public void testThroughput() throws Exception {
+        for (int threads : THREADS) {
+            createRepo( false );
+            long single = commitConcurrently( threads );
+            createRepo( true );
+            long grouped = commitConcurrently( threads );
+            log.info( String.format( "threads: %2d, commits/s: %6d (single), %6d (group), %s",
+                    threads, single, grouped, adapter.groupCommit() ) );
+        }
+    }
+
+}
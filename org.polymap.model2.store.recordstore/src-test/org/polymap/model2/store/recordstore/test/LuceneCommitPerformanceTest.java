@@ -0,0 +1,62 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.store.recordstore.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.polymap.model2.store.StoreSPI;
+import org.polymap.model2.store.recordstore.RecordStoreAdapter;
+import org.polymap.model2.test.CommitPerformanceTest;
+import org.polymap.recordstore.IRecordStore;
+import org.polymap.recordstore.lucene.LuceneRecordStore;
+
+/**
+ * The {@link CommitPerformanceTest} with {@link IRecordStore}/Lucene backend.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class LuceneCommitPerformanceTest
+        extends CommitPerformanceTest {
+
+    /** The stores created by {@link #newStore()}. */
+    protected List<RecordStoreAdapter> stores = new ArrayList();
+
+
+    public LuceneCommitPerformanceTest( String name ) {
+        super( name );
+    }
+
+    @Override
+    protected StoreSPI newStore() throws Exception {
+        RecordStoreAdapter store = new RecordStoreAdapter( LuceneRecordStore.newConfiguration().create() );
+        stores.add( store );
+        return store;
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            super.tearDown();
+        }
+        finally {
+            for (RecordStoreAdapter store : stores) {
+                store.close();
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,179 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.store.recordstore.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.store.recordstore.RecordStoreAdapter;
+import org.polymap.model2.test.Company;
+import org.polymap.model2.test.Employee;
+import org.polymap.recordstore.IRecordState;
+import org.polymap.recordstore.lucene.LuceneRecordStore;
+
+/**
+ * Test of the overlay states of nested {@link UnitOfWork}s: a nested UnitOfWork
+ * reads through to the state of its parent and writes back just its
+ * modifications.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class NestedOverlayTest
+        extends TestCase {
+
+    private static final Log log = LogFactory.getLog( NestedOverlayTest.class );
+
+    private EntityRepository        repo;
+
+    private UnitOfWork              uow;
+
+
+    public NestedOverlayTest( String name ) {
+        super( name );
+    }
+
+
+    @Override
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        repo = EntityRepository.newConfiguration()
+                .store.set( new RecordStoreAdapter( LuceneRecordStore.newConfiguration().create() ) )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .create();
+        uow = repo.newUnitOfWork();
+    }
+
+
+    @Override
+    protected void tearDown() throws Exception {
+        uow.close();
+        repo.close();
+    }
+
+
+    protected Employee createEmployee() {
+        Employee employee = uow.createEntity( Employee.class, null, (Employee proto) -> {
+            proto.name.set( "init" );
+            proto.jap.set( 0 );
+            return proto;
+        });
+        uow.commit();
+        return employee;
+    }
+
+
+    public void testMergesJustModifications() throws Exception {
+        Employee employee = createEmployee();
+
+        UnitOfWork nested = uow.newUnitOfWork();
+        Employee nestedEmployee = nested.entity( Employee.class, employee.id() );
+        nestedEmployee.name.set( "nested" );
+
+        // parent modifies another property after the nested UnitOfWork has loaded
+        employee.jap.set( 1 );
+        assertEquals( "init", employee.name.get() );
+
+        nested.commit();
+        assertEquals( EntityStatus.MODIFIED, employee.status() );
+        assertEquals( "nested", employee.name.get() );
+        assertEquals( 1, (int)employee.jap.get() );
+
+        uow.commit();
+        Employee reloaded = repo.newUnitOfWork().entity( Employee.class, employee.id() );
+        assertEquals( "nested", reloaded.name.get() );
+        assertEquals( 1, (int)reloaded.jap.get() );
+    }
+
+
+    public void testCollection() throws Exception {
+        Company company = uow.createEntity( Company.class, null, (Company proto) -> {
+            proto.docs.add( "first" );
+            proto.docs.add( "second" );
+            return proto;
+        });
+        uow.commit();
+
+        UnitOfWork nested = uow.newUnitOfWork();
+        Company nestedCompany = nested.entity( Company.class, company.id() );
+        nestedCompany.docs.add( "third" );
+        assertEquals( 2, company.docs.size() );
+        nested.commit();
+        assertEquals( 3, company.docs.size() );
+
+        uow.commit();
+        List<String> docs = new ArrayList( repo.newUnitOfWork().entity( Company.class, company.id() ).docs );
+        assertEquals( Arrays.asList( "first", "second", "third" ), docs );
+    }
+
+
+    public void testNestedNested() throws Exception {
+        Employee employee = createEmployee();
+
+        UnitOfWork nested = uow.newUnitOfWork();
+        UnitOfWork nested2 = nested.newUnitOfWork();
+        nested2.entity( Employee.class, employee.id() ).name.set( "nested2" );
+        nested2.commit();
+        assertEquals( "nested2", nested.entity( Employee.class, employee.id() ).name.get() );
+        assertEquals( "init", employee.name.get() );
+
+        nested.commit();
+        assertEquals( "nested2", employee.name.get() );
+        assertEquals( 0, (int)employee.jap.get() );
+    }
+
+
+    public void testUnderlying() throws Exception {
+        Employee employee = createEmployee();
+
+        UnitOfWork nested = uow.newUnitOfWork();
+        Employee nestedEmployee = nested.entity( Employee.class, employee.id() );
+        nestedEmployee.name.set( "nested" );
+        try {
+            nestedEmployee.state();
+            fail( "Overlay state must not expose the record of the parent." );
+        }
+        catch (UnsupportedOperationException e) {
+            // ok
+        }
+        String key = employee.name.info().getNameInStore();
+        assertEquals( "init", ((IRecordState)employee.state()).get( key ) );
+
+        nested.commit();
+        assertEquals( "nested", ((IRecordState)employee.state()).get( key ) );
+    }
+
+
+    public void testRemoved() throws Exception {
+        Employee employee = createEmployee();
+
+        UnitOfWork nested = uow.newUnitOfWork();
+        nested.removeEntity( nested.entity( Employee.class, employee.id() ) );
+        nested.commit();
+        assertEquals( EntityStatus.REMOVED, employee.status() );
+
+        uow.commit();
+        assertNull( repo.newUnitOfWork().entity( Employee.class, employee.id() ) );
+    }
+
+}
@@ -110,6 +110,12 @@ abstract class FieldnameBuilder {
             this.compositeName = compositeName;
         }
 
+        @Override
+        public String get() {
+            // top level property: no need to build and cache a copy of the name
+            return parent == EMPTY ? compositeName : super.get();
+        }
+
         @Override
         protected StringBuilder build() {
             StringBuilder buf = parent.build();
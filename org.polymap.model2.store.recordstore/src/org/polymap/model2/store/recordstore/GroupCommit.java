@@ -0,0 +1,295 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.store.recordstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.recordstore.IRecordState;
+import org.polymap.recordstore.IRecordStore;
+import org.polymap.recordstore.IRecordStore.Updater;
+
+/**
+ * Merges the updates of concurrently committing {@link RecordStoreUnitOfWork}s
+ * into one {@link Updater} and one commit of the underlying {@link IRecordStore}.
+ * See {@link RecordStoreAdapter#groupCommit(long, TimeUnit, int)}.
+ * <p/>
+ * The first committing UnitOfWork becomes the leader of a group. It waits up to
+ * the max delay or until the group has max size UnitOfWorks, and then applies
+ * the updates of the group. UnitOfWorks committing meanwhile wait for the result
+ * and form the next group. With a max delay of 0 a group consists of the
+ * UnitOfWorks that committed while the previous group was applied.
+ * <p/>
+ * If the update of a group fails, then the updates of its UnitOfWorks are
+ * applied one by one, so that just the failing UnitOfWorks get an exception.
+ * Conflict checks, like {@link org.polymap.model2.store.OptimisticLocking}, are
+ * done per UnitOfWork before they get here.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class GroupCommit {
+
+    private static Log log = LogFactory.getLog( GroupCommit.class );
+
+    /**
+     * The prepared updates of one UnitOfWork.
+     */
+    public static class Batch {
+
+        protected List<IRecordState>    stored = new ArrayList();
+
+        protected List<IRecordState>    removed = new ArrayList();
+
+        protected boolean               done;
+
+        protected Throwable             failure;
+
+        public void store( IRecordState state ) {
+            stored.add( state );
+        }
+
+        public void remove( IRecordState state ) {
+            removed.add( state );
+        }
+
+        protected void addTo( Updater tx ) throws Exception {
+            for (IRecordState state : stored) {
+                tx.store( state );
+            }
+            for (IRecordState state : removed) {
+                tx.remove( state );
+            }
+        }
+    }
+
+
+    // instance *******************************************
+
+    private IRecordStore        store;
+
+    private long                maxDelayNanos;
+
+    private int                 maxSize;
+
+    private ReentrantLock       lock = new ReentrantLock();
+
+    /** Signals new waiting batches to the leader and results to the followers. */
+    private Condition           changed = lock.newCondition();
+
+    private List<Batch>         waiting = new ArrayList();
+
+    private boolean             leaderActive;
+
+    private LongAdder           commits = new LongAdder();
+
+    private LongAdder           groups = new LongAdder();
+
+
+    /**
+     * Creates a new instance.
+     *
+     * @param store The store to apply the updates to.
+     * @param maxDelay The max time the leader waits for other UnitOfWorks to join
+     *        the group.
+     * @param unit The unit of maxDelay.
+     * @param maxSize The max number of UnitOfWorks in one group.
+     */
+    public GroupCommit( IRecordStore store, long maxDelay, TimeUnit unit, int maxSize ) {
+        assert maxSize > 0 : "maxSize must be > 0";
+        this.store = store;
+        this.maxDelayNanos = unit.toNanos( maxDelay );
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * The number of committed UnitOfWorks.
+     */
+    public long commitCount() {
+        return commits.sum();
+    }
+
+
+    /**
+     * The number of commits of the underlying store.
+     */
+    public long groupCount() {
+        return groups.sum();
+    }
+
+
+    @Override
+    public String toString() {
+        return "GroupCommit[commits=" + commitCount() + ", groups=" + groupCount() + "]";
+    }
+
+
+    /**
+     * Applies the given batch together with the batches of concurrently
+     * committing UnitOfWorks. Blocks until the batch is applied.
+     *
+     * @throws ModelRuntimeException If the given batch could not be applied.
+     */
+    public void commit( Batch batch ) throws ModelRuntimeException {
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            waiting.add( batch );
+            changed.signalAll();
+            // follower: wait for the result or to become the leader
+            while (!batch.done && leaderActive) {
+                try {
+                    changed.await();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (!batch.done) {
+                leaderActive = true;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        // leader: collect and apply the group
+        if (!batch.done) {
+            List<Batch> group = awaitGroup( batch );
+            try {
+                apply( group );
+            }
+            finally {
+                lock.lock();
+                try {
+                    for (Batch b : group) {
+                        b.done = true;
+                    }
+                    leaderActive = false;
+                    changed.signalAll();
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        commits.increment();
+        if (batch.failure != null) {
+            throw batch.failure instanceof ModelRuntimeException
+                    ? (ModelRuntimeException)batch.failure
+                    : new ModelRuntimeException( batch.failure );
+        }
+    }
+
+
+    /**
+     * Waits for other UnitOfWorks to join the group and removes the group from
+     * {@link #waiting}.
+     *
+     * @param leader The batch of the leader, always part of the group.
+     */
+    protected List<Batch> awaitGroup( Batch leader ) {
+        lock.lock();
+        try {
+            long remaining = maxDelayNanos;
+            while (waiting.size() < maxSize && remaining > 0) {
+                try {
+                    remaining = changed.awaitNanos( remaining );
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            waiting.remove( leader );
+            List<Batch> result = new ArrayList( Math.min( maxSize, waiting.size() + 1 ) );
+            result.add( leader );
+            int count = Math.min( maxSize - 1, waiting.size() );
+            result.addAll( waiting.subList( 0, count ) );
+            waiting = new ArrayList( waiting.subList( count, waiting.size() ) );
+            return result;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Applies the given group with one {@link Updater}. If this fails, then the
+     * batches are applied one by one. Every {@link Throwable}, including
+     * {@link Error}s, is reported as the failure of the batches, so that no
+     * batch is reported as committed if it was not applied.
+     */
+    protected void apply( List<Batch> group ) {
+        try {
+            applyBatches( group );
+        }
+        catch (Throwable e) {
+            if (group.size() == 1) {
+                group.get( 0 ).failure = e;
+                return;
+            }
+            try {
+                log.warn( "Group of " + group.size() + " failed, applying one by one. (" + e + ")" );
+                for (Batch batch : group) {
+                    try {
+                        applyBatches( Collections.singletonList( batch ) );
+                    }
+                    catch (Throwable e2) {
+                        batch.failure = e2;
+                    }
+                }
+            }
+            catch (Throwable e3) {
+                // failed before the batches were applied one by one
+                for (Batch batch : group) {
+                    if (batch.failure == null) {
+                        batch.failure = e3;
+                    }
+                }
+            }
+        }
+    }
+
+
+    protected void applyBatches( List<Batch> batches ) throws Exception {
+        Updater tx = store.prepareUpdate();
+        try {
+            for (Batch batch : batches) {
+                batch.addTo( tx );
+            }
+            tx.apply();
+            groups.increment();
+        }
+        catch (Throwable e) {
+            tx.discard();
+            throw e;
+        }
+    }
+
+}
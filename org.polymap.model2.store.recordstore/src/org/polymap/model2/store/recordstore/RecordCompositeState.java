@@ -14,8 +14,11 @@
  */
 package org.polymap.model2.store.recordstore;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -39,6 +42,9 @@ class RecordCompositeState
 //    public static final String      KEY_DELIMITER = "/";
 
     public static final String      TYPE_KEY = "_type_";
+
+    /** Marks a removed key in {@link #written}. */
+    private static final Object     REMOVED = new Object();
     
 //    public static String buildKey( String... parts ) {
 //        // Joiner.on( KEY_DELIMITER ).skipNulls().join( baseKey, info.getNameInStore() );
@@ -60,6 +66,12 @@ class RecordCompositeState
     
     protected FieldnameBuilder      basename;
 
+    /** The state this overlay reads through to, or null if this is not an overlay. */
+    protected RecordCompositeState  base;
+
+    /** The keys written to this overlay; {@link #REMOVED} marks removed keys. */
+    protected Map<String,Object>    written;
+
     
     public RecordCompositeState( IRecordState state ) {
         assert state != null;
@@ -67,13 +79,124 @@ class RecordCompositeState
         this.basename = FieldnameBuilder.EMPTY;
     }
 
-    private RecordCompositeState( IRecordState state, FieldnameBuilder basename ) {
-        assert state != null;
+    private RecordCompositeState( RecordCompositeState root, FieldnameBuilder basename ) {
+        assert root != null;
         assert basename != null;
-        this.state = state;
+        this.state = root.state;
+        this.base = root.base;
+        this.written = root.written;
         this.basename = basename;
     }
 
+    /**
+     * Creates an overlay of the given Entity state. The overlay reads through to
+     * the given state and records just the written keys. The given state is never
+     * modified.
+     *
+     * @see #mergeInto(RecordCompositeState)
+     */
+    public static RecordCompositeState overlay( RecordCompositeState base ) {
+        assert base.basename == FieldnameBuilder.EMPTY;
+        RecordCompositeState result = new RecordCompositeState( base.state );
+        result.base = base;
+        result.written = new HashMap( 32 );
+        return result;
+    }
+
+    
+    public boolean isOverlay() {
+        return base != null;
+    }
+
+
+    /**
+     * Writes the keys written to this overlay into the given state.
+     */
+    public void mergeInto( RecordCompositeState target ) {
+        assert isOverlay();
+        for (Entry<String,Object> entry : written.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                target.removeValue( entry.getKey() );
+            }
+            else {
+                target.putValue( entry.getKey(), entry.getValue() );
+            }
+        }
+    }
+
+
+    protected <T> T getValue( String key ) {
+        if (base == null) {
+            return state.get( key );
+        }
+        Object value = written.get( key );
+        if (value == null && !written.containsKey( key )) {
+            return base.getValue( key );
+        }
+        return value != REMOVED ? (T)value : null;
+    }
+
+
+    protected void putValue( String key, Object value ) {
+        if (base == null) {
+            state.put( key, value );
+        }
+        else {
+            written.put( key, value );
+        }
+    }
+
+
+    protected void removeValue( String key ) {
+        if (base == null) {
+            state.remove( key );
+        }
+        else {
+            written.put( key, REMOVED );
+        }
+    }
+
+
+    /**
+     * All keys and values of this state. Removing via the returned iterator
+     * removes the key from this state.
+     */
+    protected Iterator<Entry<String,Object>> entries() {
+        if (base == null) {
+            return state.iterator();
+        }
+        // copy, as the caller may modify while iterating
+        List<Entry<String,Object>> entries = new ArrayList( 128 );
+        for (Iterator<Entry<String,Object>> it=base.entries(); it.hasNext(); ) {
+            Entry<String,Object> entry = it.next();
+            if (!written.containsKey( entry.getKey() )) {
+                entries.add( new SimpleImmutableEntry( entry.getKey(), entry.getValue() ) );
+            }
+        }
+        for (Entry<String,Object> entry : written.entrySet()) {
+            if (entry.getValue() != REMOVED) {
+                entries.add( new SimpleImmutableEntry( entry.getKey(), entry.getValue() ) );
+            }
+        }
+        return new Iterator<Entry<String,Object>>() {
+            private Iterator<Entry<String,Object>> it = entries.iterator();
+            private Entry<String,Object> current;
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+            @Override
+            public Entry<String,Object> next() {
+                return current = it.next();
+            }
+            @Override
+            public void remove() {
+                removeValue( current.getKey() );
+            }
+        };
+    }
+
+
     @Override
     public Object id() {
         // a non-Entity Composite property does not have an id 
@@ -85,10 +208,20 @@ class RecordCompositeState
         }
     }
 
+    /**
+     * The underlying {@link IRecordState}.
+     *
+     * @throws UnsupportedOperationException If this is an overlay of a nested
+     *         UnitOfWork. Its record is the record of the parent, without the
+     *         modifications of the nested UnitOfWork.
+     */
     @Override
     public Object getUnderlying() {
         // a non-Entity Composite property does not have an underlying representation 
         assert basename == FieldnameBuilder.EMPTY;
+        if (isOverlay()) {
+            throw new UnsupportedOperationException( "The state of an Entity of a nested UnitOfWork has no underlying record. Commit the nested UnitOfWork and use the Entity of the parent." );
+        }
         return state;
     }
 
@@ -132,7 +265,7 @@ class RecordCompositeState
         }
 
         public Object get() {
-            Object value = state.get( fieldname.get() );
+            Object value = getValue( fieldname.get() );
             if (value != null && info.getType().isEnum()) {
                 value = Enum.valueOf( info.getType(), (String)value );
             }
@@ -141,13 +274,13 @@ class RecordCompositeState
 
         public void set( Object value ) {
             if (value == null) {
-                state.remove( fieldname.get() );
+                removeValue( fieldname.get() );
             }
             else if (value instanceof Enum) {
-                state.put( fieldname.get(), ((Enum)value).toString() );
+                putValue( fieldname.get(), ((Enum)value).toString() );
             }
             else {
-                state.put( fieldname.get(), value );
+                putValue( fieldname.get(), value );
             }
         }
 
@@ -174,14 +307,14 @@ class RecordCompositeState
         
         @Override
         public CompositeState get() {
-            Object id = state.get( fieldname.composite( "_id_" ).get() );
-            return id != null ? new RecordCompositeState( state, fieldname ) : null;
+            Object id = getValue( fieldname.composite( "_id_" ).get() );
+            return id != null ? new RecordCompositeState( RecordCompositeState.this, fieldname ) : null;
         }
         
         @Override
         public CompositeState createValue() {
-            state.put( fieldname.composite( "_id_" ).get(), "created" );
-            return new RecordCompositeState( state, fieldname );
+            putValue( fieldname.composite( "_id_" ).get(), "created" );
+            return new RecordCompositeState( RecordCompositeState.this, fieldname );
         }
 
         @Override
@@ -210,7 +343,7 @@ class RecordCompositeState
 
         @Override
         public int size() {
-            Integer result = state.get( fieldname.arraySize().get() );
+            Integer result = getValue( fieldname.arraySize().get() );
             return result != null ? result : 0;
         }
 
@@ -227,7 +360,7 @@ class RecordCompositeState
 
                 @Override
                 public Object next() {
-                    return state.get( fieldname.arrayElement( index++ ).get() );
+                    return getValue( fieldname.arrayElement( index++ ).get() );
                 }
 
                 @Override
@@ -243,7 +376,7 @@ class RecordCompositeState
                 String targetPrefix = fieldname.arrayElement( i ).get();
                 String srcPrefix = fieldname.arrayElement( i+1 ).get();
 
-                Iterator<Entry<String,Object>> it = state.iterator();
+                Iterator<Entry<String,Object>> it = entries();
                 Map<String,Object> newEntries = new HashMap();
                 
                 // create new keys/values and remove old values (don't modify while iterate)
@@ -257,12 +390,12 @@ class RecordCompositeState
                 }
                 // add new entries
                 for (Entry<String,Object> entry : newEntries.entrySet()) {
-                    state.put( entry.getKey(), entry.getValue() );
+                    putValue( entry.getKey(), entry.getValue() );
                 }
             }
             // delete last element's/Composite's fields
             String lastPrefix = fieldname.arrayElement( size()-1 ).get();
-            Iterator<Entry<String,Object>> it = state.iterator();
+            Iterator<Entry<String,Object>> it = entries();
             while (it.hasNext()) {
                 Entry<String,Object> entry = it.next();
                 if (entry.getKey().startsWith( lastPrefix )) {
@@ -270,13 +403,13 @@ class RecordCompositeState
                 }
             }
             // adjust size field
-            state.put( fieldname.arraySize().get(), size() - 1 );            
+            putValue( fieldname.arraySize().get(), size() - 1 );            
         }
         
         @Override
         public boolean add( Object o ) {
-            state.put( fieldname.arrayElement( size() ).get(), o );
-            state.put( fieldname.arraySize().get(), size() + 1 );
+            putValue( fieldname.arrayElement( size() ).get(), o );
+            putValue( fieldname.arraySize().get(), size() + 1 );
             return true;
         }
 
@@ -295,8 +428,8 @@ class RecordCompositeState
 
         @Override
         public Object createValue() {
-            RecordCompositeState result = new RecordCompositeState( state, fieldname.arrayElement( size() ) );
-            state.put( fieldname.arraySize().get(), size() + 1 );
+            RecordCompositeState result = new RecordCompositeState( RecordCompositeState.this, fieldname.arrayElement( size() ) );
+            putValue( fieldname.arraySize().get(), size() + 1 );
             return result;
         }
 
@@ -314,7 +447,7 @@ class RecordCompositeState
                 @Override
                 public Object next() {
                     assert Composite.class.isAssignableFrom( info().getType() );
-                    return new RecordCompositeState( state, fieldname.arrayElement( index++ ) );
+                    return new RecordCompositeState( RecordCompositeState.this, fieldname.arrayElement( index++ ) );
                 }
 
                 @Override
@@ -14,6 +14,8 @@
  */
 package org.polymap.model2.store.recordstore;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.logging.LogFactory;import org.apache.commons.logging.Log;
 
 import org.polymap.model2.runtime.EntityRepository;
@@ -39,12 +41,43 @@ public class RecordStoreAdapter
 
     private StoreRuntimeContext     context;
     
+    /** Null if group commit is not enabled. */
+    protected GroupCommit           groupCommit;
+    
     
     public RecordStoreAdapter( IRecordStore store ) {
         this.store = store;
     }
 
 
+    /**
+     * Enables group commit: the updates of concurrently committing UnitOfWorks
+     * are merged into one update and commit of the underlying store. This
+     * reduces the number of store commits of many small, concurrent UnitOfWorks.
+     * The changes are sent to the store on commit instead of on prepare then.
+     * See {@link GroupCommit}.
+     *
+     * @param maxDelay The max time to wait for other UnitOfWorks to join a group.
+     *        0 groups just the UnitOfWorks that committed while the previous group
+     *        was applied.
+     * @param unit The unit of maxDelay.
+     * @param maxSize The max number of UnitOfWorks in one group.
+     * @return this
+     */
+    public RecordStoreAdapter groupCommit( long maxDelay, TimeUnit unit, int maxSize ) {
+        this.groupCommit = new GroupCommit( store, maxDelay, unit, maxSize );
+        return this;
+    }
+
+
+    /**
+     * The {@link GroupCommit}, or null if group commit is not enabled.
+     */
+    public GroupCommit groupCommit() {
+        return groupCommit;
+    }
+
+
     @SuppressWarnings("hiding")
     public void init( StoreRuntimeContext context ) {
         this.context = context;
@@ -52,9 +85,14 @@ public class RecordStoreAdapter
     }
 
 
+    /**
+     * Closes the underlying store. Subsequent calls do nothing.
+     */
     public void close() {
-        store.close();
-        store = null;
+        if (store != null) {
+            store.close();
+            store = null;
+        }
     }
 
 
@@ -67,4 +105,9 @@ public class RecordStoreAdapter
         return new RecordStoreUnitOfWork( context, this );
     }
 
+
+    public StoreUnitOfWork createReadOnlyUnitOfWork() {
+        return new RecordStoreUnitOfWork( context, this, true );
+    }
+
 }
@@ -16,19 +16,26 @@ package org.polymap.model2.store.recordstore;
 
 import static org.polymap.model2.store.recordstore.RecordCompositeState.TYPE_KEY;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
 import java.io.IOException;
 
+import org.apache.lucene.search.BooleanQuery;
+
 import org.polymap.model2.Entity;
 import org.polymap.model2.query.Query;
 import org.polymap.model2.query.grammar.BooleanExpression;
 import org.polymap.model2.runtime.ConcurrentEntityModificationException;
 import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.PropertyInfo;
 import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
 import org.polymap.model2.store.CloneCompositeStateSupport;
 import org.polymap.model2.store.CompositeState;
@@ -56,11 +63,27 @@ public class RecordStoreUnitOfWork
 
     private Updater                     tx;
 
+    /** Null if group commit is not enabled. */
+    private GroupCommit                 groupCommit;
+
+    /** The prepared updates if group commit is enabled. */
+    private GroupCommit.Batch           batch;
+
     private boolean                     prepareFailed;
     
+    /** No {@link IRecordStore#prepareUpdate()}. */
+    private boolean                     readOnly;
+    
     
     public RecordStoreUnitOfWork( StoreRuntimeContext context, RecordStoreAdapter rsa ) {
+        this( context, rsa, false );
+    }
+
+    
+    public RecordStoreUnitOfWork( StoreRuntimeContext context, RecordStoreAdapter rsa, boolean readOnly ) {
         this.store = rsa.store;
+        this.groupCommit = rsa.groupCommit;
+        this.readOnly = readOnly;
     }
 
     
@@ -76,6 +99,46 @@ public class RecordStoreUnitOfWork
     }
 
 
+    /**
+     * Fetches the records with one query per {@link BooleanQuery#getMaxClauseCount()}
+     * ids.
+     */
+    @Override
+    public <T extends Entity> Map<Object,CompositeState> loadEntityStates( Collection<?> ids, Class<T> entityClass ) {
+        Map<Object,CompositeState> result = new HashMap( ids.size() * 2 );
+        int chunkSize = BooleanQuery.getMaxClauseCount();
+        List<Object> chunk = new ArrayList( Math.min( ids.size(), chunkSize ) );
+        for (Iterator<?> it=ids.iterator(); it.hasNext(); ) {
+            chunk.add( it.next() );
+            if (chunk.size() == chunkSize || !it.hasNext()) {
+                loadRecords( chunk, result );
+                chunk.clear();
+            }
+        }
+        return result;
+    }
+
+
+    protected void loadRecords( List<Object> ids, Map<Object,CompositeState> result ) {
+        try {
+            RecordQuery query = new LuceneQueryBuilder( (LuceneRecordStore)store ).createIdQuery( ids );
+            query.setMaxResults( ids.size() );
+            ResultSet rs = store.find( query );
+            try {
+                for (IRecordState state : rs) {
+                    result.put( state.id(), new RecordCompositeState( state ) );
+                }
+            }
+            finally {
+                rs.close();
+            }
+        }
+        catch (Exception e) {
+            throw new ModelRuntimeException( e );
+        }
+    }
+
+
     @Override
     public <T extends Entity> CompositeState newEntityState( Object id, Class<T> entityClass ) {
 //        if (id != null) {
@@ -90,25 +153,38 @@ public class RecordStoreUnitOfWork
     @Override
     public CompositeState cloneEntityState( CompositeState state ) {
         IRecordState clonedState = store.newRecord();
-        for (Map.Entry<String,Object> entry : ((RecordCompositeState)state).state) {
+        for (Iterator<Entry<String,Object>> it=((RecordCompositeState)state).entries(); it.hasNext(); ) {
+            Entry<String,Object> entry = it.next();
             clonedState.put( entry.getKey(), entry.getValue() );
         }
         return new RecordCompositeState( clonedState );
     }
 
 
+    @Override
+    public CompositeState overlayEntityState( CompositeState state ) {
+        return RecordCompositeState.overlay( (RecordCompositeState)state );
+    }
+
+
     @Override
     public void reincorparateEntityState( CompositeState state, CompositeState clonedState ) {
-        // just replacing the IRecordState is not possible out-of-the-box as it was newly created (wrong id) ??
+        // overlay: just the written keys
+        if (((RecordCompositeState)clonedState).isOverlay()) {
+            ((RecordCompositeState)clonedState).mergeInto( (RecordCompositeState)state );
+            return;
+        }
         
+        // just replacing the IRecordState is not possible out-of-the-box as it was newly created (wrong id) ??
         Set<String> keys = new HashSet( 128 );
         // cloned -> state
-        for (Map.Entry<String,Object> entry : ((RecordCompositeState)clonedState).state) {
-            ((RecordCompositeState)state).state.put( entry.getKey(), entry.getValue() );
+        for (Iterator<Entry<String,Object>> it=((RecordCompositeState)clonedState).entries(); it.hasNext(); ) {
+            Entry<String,Object> entry = it.next();
+            ((RecordCompositeState)state).putValue( entry.getKey(), entry.getValue() );
             keys.add( entry.getKey() );
         }
         // check removed
-        Iterator<Map.Entry<String,Object>> it = ((RecordCompositeState)state).state.iterator();
+        Iterator<Map.Entry<String,Object>> it = ((RecordCompositeState)state).entries();
         while (it.hasNext()) {
             Entry<String,Object> entry = it.next();
             if (!keys.contains( entry.getKey() )) {
@@ -125,26 +201,30 @@ public class RecordStoreUnitOfWork
     }
 
 
+    protected RecordQuery recordQuery( Query query ) throws Exception {
+        RecordQuery recordQuery = null;
+        if (query.expression == null) {
+            recordQuery = new SimpleQuery().eq( TYPE_KEY, query.resultType().getName() );
+        }
+        else if (query.expression instanceof BooleanExpression) {
+            // FIXME
+            recordQuery = new LuceneQueryBuilder( (LuceneRecordStore)store )
+                    .createQuery( query.resultType, query.expression );
+        }
+        else {
+            throw new UnsupportedOperationException( "Query expression type is not supported: " 
+                    + query.expression.getClass().getSimpleName() );
+        }
+        recordQuery.setFirstResult( query.firstResult );
+        recordQuery.setMaxResults( query.maxResults );
+        return recordQuery;
+    }
+
+
     @Override
     public StoreResultSet executeQuery( Query query ) {
         try {
-            RecordQuery recordQuery = null;
-            if (query.expression == null) {
-                recordQuery = new SimpleQuery().eq( TYPE_KEY, query.resultType().getName() );
-            }
-            else if (query.expression instanceof BooleanExpression) {
-                // FIXME
-                recordQuery = new LuceneQueryBuilder( (LuceneRecordStore)store )
-                        .createQuery( query.resultType, query.expression );
-            }
-            else {
-                throw new UnsupportedOperationException( "Query expression type is not supported: " 
-                        + query.expression.getClass().getSimpleName() );
-            }
-
-            recordQuery.setFirstResult( query.firstResult );
-            recordQuery.setMaxResults( query.maxResults );
-            final ResultSet results = store.find( recordQuery );
+            final ResultSet results = store.find( recordQuery( query ) );
             
             return new StoreResultSet() {
                 Iterator<IRecordState> it = results.iterator();
@@ -187,6 +267,79 @@ public class RecordStoreUnitOfWork
     }
 
 
+    /**
+     * Removes the matching records inside the store, without building
+     * {@link RecordCompositeState}s.
+     */
+    @Override
+    public boolean prepareDelete( Query query, Set<Object> excluded ) throws Exception {
+        prepareBulk( query, excluded, record -> tx.remove( record ) );
+        return true;
+    }
+
+
+    /**
+     * Sets the values of the matching records inside the store, without building
+     * Entities.
+     */
+    @Override
+    public boolean prepareUpdate( Query query, Map<PropertyInfo,Object> values, Set<Object> excluded ) throws Exception {
+        prepareBulk( query, excluded, record -> {
+            RecordCompositeState state = new RecordCompositeState( record );
+            for (Entry<PropertyInfo,Object> entry : values.entrySet()) {
+                state.loadProperty( entry.getKey() ).set( entry.getValue() );
+            }
+            tx.store( record );
+        });
+        return true;
+    }
+
+
+    /**
+     * Calls the given task for every matching record, within one {@link Updater}.
+     * The subsequent {@link #prepareCommit(Iterable)} uses the same Updater, so
+     * that all changes are applied by one commit. Group commit is not used as it
+     * would keep all records in memory.
+     */
+    protected void prepareBulk( Query query, Set<Object> excluded, RecordTask task ) throws Exception {
+        assert batch == null;
+        if (readOnly) {
+            throw new ModelRuntimeException( "StoreUnitOfWork is read-only." );
+        }
+        prepareFailed = false;
+        if (tx == null) {
+            tx = store.prepareUpdate();
+        }
+        try {
+            ResultSet results = store.find( recordQuery( query ) );
+            try {
+                for (IRecordState record : results) {
+                    if (!excluded.contains( record.id() )) {
+                        task.apply( record );
+                    }
+                }
+            }
+            finally {
+                results.close();
+            }
+        }
+        catch (Exception e) {
+            tx.discard();
+            tx = null;
+            throw e;
+        }
+    }
+
+
+    /**
+     * Changes a record within {@link #prepareBulk(Query, Set, RecordTask)}.
+     */
+    @FunctionalInterface
+    protected interface RecordTask {
+        public void apply( IRecordState record ) throws Exception;
+    }
+
+
     @Override
     public boolean evaluate( Object entityState, Object expression ) {
         throw new RuntimeException( "Query expressions not yet supported: " + expression );
@@ -196,10 +349,31 @@ public class RecordStoreUnitOfWork
     @Override
     public void prepareCommit( Iterable<Entity> loaded )
             throws IOException, ConcurrentEntityModificationException {
-        assert tx == null;
+        assert batch == null;
+        if (readOnly) {
+            throw new ModelRuntimeException( "StoreUnitOfWork is read-only." );
+        }
         prepareFailed = false;
-        tx = store.prepareUpdate();
         
+        // group commit: collect states, sent to the store on commit;
+        // not if prepareBulk() has started an Updater already
+        if (groupCommit != null && tx == null) {
+            batch = new GroupCommit.Batch();
+            for (Entity entity : loaded) {
+                if (entity.status() == EntityStatus.CREATED
+                        || entity.status() == EntityStatus.MODIFIED) {
+                    batch.store( (IRecordState)entity.state() );
+                }
+                else if (entity.status() == EntityStatus.REMOVED) {
+                    batch.remove( (IRecordState)entity.state() );
+                }
+            }
+            return;
+        }
+        
+        if (tx == null) {
+            tx = store.prepareUpdate();
+        }
         try {
             for (Entity entity : loaded) {
                 IRecordState state = (IRecordState)entity.state();
@@ -235,8 +409,17 @@ public class RecordStoreUnitOfWork
     
     @Override
     public void commit() {
-        assert tx != null;
         assert !prepareFailed : "Previous prepareCommit() failed.";
+        if (batch != null) {
+            try {
+                groupCommit.commit( batch );
+            }
+            finally {
+                batch = null;
+            }
+            return;
+        }
+        assert tx != null;
 
         tx.apply();
         tx = null;
@@ -245,6 +428,7 @@ public class RecordStoreUnitOfWork
 
     @Override
     public void rollback() {
+        batch = null;
         if (tx != null) {
             tx.discard();
             tx = null;
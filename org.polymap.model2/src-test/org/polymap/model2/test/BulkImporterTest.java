@@ -0,0 +1,134 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.runtime.BulkImporter;
+import org.polymap.model2.runtime.BulkImporter.Progress;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.runtime.ValueInitializer;
+
+/**
+ * Test for {@link BulkImporter}. The number of imported Entities of
+ * {@link #testThroughput()} can be set via <code>-Dmodel2.bulkimport.count</code>.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class BulkImporterTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( BulkImporterTest.class );
+
+    protected static final int      COUNT = Integer.getInteger( "model2.bulkimport.count", 100000 );
+
+    protected EntityRepository      repo;
+
+
+    public BulkImporterTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        repo = EntityRepository.newConfiguration()
+                .store.set( newStore() )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .create();
+    }
+
+    protected void tearDown() throws Exception {
+        repo.close();
+    }
+
+
+    protected Stream<ValueInitializer<Employee>> employees( int count ) {
+        return IntStream.range( 0, count ).mapToObj( i -> (Employee proto) -> {
+            proto.jap.set( i );
+            proto.name.set( "employee" + i );
+            return proto;
+        });
+    }
+
+
+    public void testImport() throws Exception {
+        List<Progress> progress = new ArrayList();
+        long count = repo.bulkImporter( Employee.class )
+                .batchSize( 10 )
+                .onProgress( p -> progress.add( p ) )
+                .importAll( employees( 25 ) );
+        
+        assertEquals( 25, count );
+        assertEquals( 3, progress.size() );
+        assertEquals( 10, progress.get( 0 ).count() );
+        assertEquals( 25, progress.get( 2 ).count() );
+        assertEquals( 3, progress.get( 2 ).batches() );
+
+        UnitOfWork uow = repo.newUnitOfWork();
+        assertEquals( 25, uow.query( Employee.class ).execute().size() );
+        int japSum = 0;
+        for (Employee employee : uow.query( Employee.class ).execute()) {
+            assertEquals( "employee" + employee.jap.get(), employee.name.get() );
+            japSum += employee.jap.get();
+        }
+        assertEquals( 24 * 25 / 2, japSum );
+    }
+
+
+    public void testEmpty() throws Exception {
+        assertEquals( 0, repo.bulkImporter( Employee.class ).importAll( employees( 0 ) ) );
+        assertEquals( 0, repo.newUnitOfWork().query( Employee.class ).execute().size() );
+    }
+
+
+    public void testFailureKeepsCommittedBatches() throws Exception {
+        Stream<ValueInitializer<Employee>> initializers = employees( 25 ).map( initializer -> {
+            return (Employee proto) -> {
+                initializer.initialize( proto );
+                if (proto.jap.get() == 15) {
+                    throw new IllegalStateException( "Failure at 15." );
+                }
+                return proto;
+            };
+        });
+        try {
+            repo.bulkImporter( Employee.class ).batchSize( 10 ).importAll( initializers );
+            fail( "Import must fail." );
+        }
+        catch (ModelRuntimeException e) {
+            // ok
+        }
+        assertEquals( 10, repo.newUnitOfWork().query( Employee.class ).execute().size() );
+    }
+
+
+    public void testThroughput() throws Exception {
+        Timer timer = Timer.startNow();
+        repo.bulkImporter( Employee.class )
+                .onProgress( p -> log.info( p ) )
+                .importAll( employees( COUNT ) );
+        log.info( "Imported " + COUNT + " in " + timer.elapsedTime() + "ms" );
+        assertEquals( COUNT, repo.newUnitOfWork().query( Employee.class ).execute().size() );
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import java.util.Arrays;
+
+import java.lang.management.ManagementFactory;
+
+import javax.cache.CacheManager;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Lists;
+
+import org.polymap.model2.engine.CacheStatistics;
+import org.polymap.model2.engine.RepositoryCacheStatistics;
+import org.polymap.model2.engine.SimpleCacheManager;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.UnitOfWork;
+
+/**
+ * Test for {@link RepositoryCacheStatistics} and the statistics and management of
+ * {@link SimpleCacheManager}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class CacheStatisticsTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( CacheStatisticsTest.class );
+
+    protected static final int      CACHE_SIZE = 10;
+
+    protected EntityRepository      repo;
+
+
+    public CacheStatisticsTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        repo = EntityRepository.newConfiguration()
+                .store.set( newStore() )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .unitOfWorkCacheSize.set( CACHE_SIZE )
+                .cacheStatistics.set( true )
+                .create();
+    }
+
+    protected void tearDown() throws Exception {
+        repo.close();
+    }
+
+
+    protected void fill( int count ) {
+        UnitOfWork uow = repo.newUnitOfWork();
+        for (int i=0; i<count; i++) {
+            uow.createEntity( Employee.class, "stats." + i );
+        }
+        uow.commit();
+        uow.close();
+    }
+
+
+    public void testEntityStatistics() throws Exception {
+        fill( 2 );
+        RepositoryCacheStatistics stats = repo.cacheStatistics();
+        assertEquals( 2, stats.of( Employee.class ).getCachePuts() );
+        assertEquals( 0, stats.total().getCacheSize() );
+
+        UnitOfWork uow = repo.newUnitOfWork();
+        uow.entity( Employee.class, "stats.0" );
+        uow.entity( Employee.class, "stats.0" );
+        uow.entity( Employee.class, "stats.1" );
+        uow.entities( Employee.class, Arrays.asList( "stats.0", "stats.1", "missing" ) );
+
+        RepositoryCacheStatistics snapshot = stats.snapshot();
+        CacheStatistics employees = snapshot.of( Employee.class );
+        assertEquals( 3, employees.getCacheHits() );
+        assertEquals( 3, employees.getCacheMisses() );
+        assertEquals( 2, employees.getCacheLoads() );
+        assertEquals( 2, employees.getCacheSize() );
+        assertEquals( 0, snapshot.of( Company.class ).getCacheGets() );
+        assertEquals( employees.getCacheHits(), snapshot.total().getCacheHits() );
+        log.info( "Employee: " + employees );
+
+        // snapshot does not change
+        uow.entity( Employee.class, "stats.1" );
+        assertEquals( 3, employees.getCacheHits() );
+        assertEquals( 4, stats.of( Employee.class ).getCacheHits() );
+
+        uow.close();
+        assertEquals( 0, stats.total().getCacheSize() );
+    }
+
+
+    public void testEvictions() throws Exception {
+        fill( CACHE_SIZE * 2 );
+        CacheStatistics employees = repo.cacheStatistics().of( Employee.class );
+        long evictions = employees.getCacheEvictions();
+        UnitOfWork uow = repo.newUnitOfWork();
+        for (int i=0; i<CACHE_SIZE * 2; i++) {
+            uow.entity( Employee.class, "stats." + i );
+        }
+        assertEquals( CACHE_SIZE, employees.getCacheEvictions() - evictions );
+        assertEquals( CACHE_SIZE, employees.getCacheSize() );
+        uow.close();
+    }
+
+
+    public void testMXBeans() throws Exception {
+        fill( 1 );
+        UnitOfWork uow = repo.newUnitOfWork();
+        uow.entity( Employee.class, "stats.0" );
+        uow.entity( Employee.class, "stats.0" );
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String name = repo.cacheStatistics().name();
+        String prefix = "javax.cache:type=CacheStatistics,CacheManager=model2,Cache=" + name;
+        ObjectName total = new ObjectName( prefix + ".entities" );
+        ObjectName employees = new ObjectName( prefix + ".entities.Employee" );
+        assertEquals( 1L, server.getAttribute( total, "CacheHits" ) );
+        assertEquals( 1L, server.getAttribute( employees, "CacheMisses" ) );
+        assertEquals( 1L, server.getAttribute( employees, "CacheLoads" ) );
+        uow.close();
+
+        repo.close();
+        assertFalse( server.isRegistered( total ) );
+        assertFalse( server.isRegistered( employees ) );
+    }
+
+
+    public void testCacheManager() throws Exception {
+        fill( 1 );
+        SimpleCacheManager cacheManager = (SimpleCacheManager)repo.getConfig().cacheManager.get();
+        UnitOfWork uow = repo.newUnitOfWork();
+        uow.entity( Employee.class, "stats.0" );
+        uow.entity( Employee.class, "stats.0" );
+
+        String cacheName = Lists.newArrayList( cacheManager.getCacheNames() ).stream()
+                .filter( n -> n.endsWith( ".entities" ) ).findAny().get();
+        CacheStatistics stats = cacheManager.statistics( cacheName );
+        assertEquals( 1, stats.getCacheHits() );
+        assertEquals( 1, stats.getCacheLoads() );
+        assertEquals( 1, stats.getCacheSize() );
+
+        // MXBeans
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        cacheManager.enableStatistics( cacheName, true );
+        cacheManager.enableManagement( cacheName, true );
+        ObjectName statsName = SimpleCacheManager.objectName( cacheManager, cacheName, "CacheStatistics" );
+        ObjectName configName = SimpleCacheManager.objectName( cacheManager, cacheName, "CacheConfiguration" );
+        assertEquals( 1L, server.getAttribute( statsName, "CacheHits" ) );
+        assertEquals( true, server.getAttribute( configName, "StatisticsEnabled" ) );
+
+        // closing the UnitOfWork destroys its caches
+        uow.close();
+        assertNull( ((CacheManager)cacheManager).getCache( cacheName ) );
+        assertFalse( server.isRegistered( statsName ) );
+        assertFalse( server.isRegistered( configName ) );
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.runtime.CommitLockStrategy.Striped;
+import org.polymap.model2.runtime.CommitLockStrategy.Stripes;
+import org.polymap.model2.runtime.ConcurrentEntityModificationException;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.store.OptimisticLocking;
+
+/**
+ * Test for {@link UnitOfWork#commitAsync(Executor)}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class CommitAsyncTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( CommitAsyncTest.class );
+
+    protected EntityRepository      repo;
+
+    /** Queues the store commits until {@link #runTasks()}. */
+    protected List<Runnable>        tasks = new ArrayList();
+
+    protected Executor              executor = tasks::add;
+
+
+    public CommitAsyncTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        repo = EntityRepository.newConfiguration()
+                .store.set( new OptimisticLocking( newStore() ) )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .create();
+    }
+
+    protected void tearDown() throws Exception {
+        repo.close();
+    }
+
+
+    protected Object createEmployee() {
+        UnitOfWork uow = repo.newUnitOfWork();
+        Employee employee = uow.createEntity( Employee.class, null, (Employee proto) -> {
+            proto.jap.set( 0 );
+            return proto;
+        });
+        uow.commit();
+        uow.close();
+        return employee.id();
+    }
+
+
+    protected int runTasks() {
+        int count = 0;
+        while (!tasks.isEmpty()) {
+            tasks.remove( 0 ).run();
+            count ++;
+        }
+        return count;
+    }
+
+
+    public void testCommitAsync() throws Exception {
+        Object id = createEmployee();
+        UnitOfWork uow = repo.newUnitOfWork();
+        Employee employee = uow.entity( Employee.class, id );
+        employee.jap.set( 1 );
+
+        CompletableFuture<UnitOfWork> future = uow.commitAsync( executor );
+        assertFalse( future.isDone() );
+        assertEquals( EntityStatus.MODIFIED, employee.status() );
+
+        assertEquals( 1, runTasks() );
+        assertSame( uow, future.get() );
+        assertEquals( EntityStatus.LOADED, employee.status() );
+        assertEquals( 1, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+
+        // UnitOfWork can be used after commit
+        employee.jap.set( 2 );
+        uow.commit();
+        assertEquals( 2, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+        uow.close();
+    }
+
+
+    public void testPipelinedInOrder() throws Exception {
+        Object id1 = createEmployee();
+        Object id2 = createEmployee();
+        List<Object> order = new ArrayList();
+
+        UnitOfWork uow1 = repo.newUnitOfWork();
+        uow1.entity( Employee.class, id1 ).jap.set( 1 );
+        CompletableFuture<UnitOfWork> future1 = uow1.commitAsync( executor )
+                .whenComplete( (uow, e) -> order.add( id1 ) );
+
+        // prepare while the first commit is pending
+        UnitOfWork uow2 = repo.newUnitOfWork();
+        uow2.entity( Employee.class, id2 ).jap.set( 2 );
+        CompletableFuture<UnitOfWork> future2 = uow2.commitAsync( executor )
+                .whenComplete( (uow, e) -> order.add( id2 ) );
+
+        // second commit is queued after the first has completed
+        assertEquals( 1, tasks.size() );
+        assertEquals( 2, runTasks() );
+        future1.get();
+        future2.get();
+        assertEquals( id1, order.get( 0 ) );
+        assertEquals( id2, order.get( 1 ) );
+        uow1.close();
+        uow2.close();
+    }
+
+
+    public void testFailureRollsBack() throws Exception {
+        Object id = createEmployee();
+        UnitOfWork uow1 = repo.newUnitOfWork();
+        uow1.entity( Employee.class, id ).jap.set( 1 );
+        UnitOfWork uow2 = repo.newUnitOfWork();
+        Employee employee2 = uow2.entity( Employee.class, id );
+        employee2.jap.set( 2 );
+
+        CompletableFuture<UnitOfWork> future1 = uow1.commitAsync( executor );
+        CompletableFuture<UnitOfWork> future2 = uow2.commitAsync( executor );
+        runTasks();
+        future1.get();
+        try {
+            future2.get();
+            fail( "Concurrent modification must fail." );
+        }
+        catch (ExecutionException e) {
+            assertTrue( e.getCause() instanceof ConcurrentEntityModificationException );
+        }
+
+        // uow2 is rolled back and can be used again
+        Employee reloaded = uow2.entity( Employee.class, id );
+        assertNotSame( employee2, reloaded );
+        assertEquals( 1, (int)reloaded.jap.get() );
+        reloaded.jap.set( 3 );
+        uow2.commit();
+        assertEquals( 3, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+        uow1.close();
+        uow2.close();
+    }
+
+
+    public void testModifyWhilePending() throws Exception {
+        Object id = createEmployee();
+        UnitOfWork uow = repo.newUnitOfWork();
+        Employee employee = uow.entity( Employee.class, id );
+        employee.jap.set( 1 );
+
+        CompletableFuture<UnitOfWork> future = uow.commitAsync( executor );
+        try {
+            employee.jap.set( 2 );
+            fail( "Entity must not be modified while the commit is pending." );
+        }
+        catch (ModelRuntimeException e) {
+            // ok
+        }
+        assertEquals( 1, (int)employee.jap.get() );
+
+        runTasks();
+        future.get();
+        employee.jap.set( 2 );
+        uow.commit();
+        assertEquals( 2, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+        uow.close();
+    }
+
+
+    public void testLockHeldWhilePending() throws Exception {
+        repo.close();
+        Stripes stripes = new Stripes( 16, 100, TimeUnit.MILLISECONDS );
+        repo = EntityRepository.newConfiguration()
+                .store.set( new OptimisticLocking( newStore() ) )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .commitLockStrategy.set( () -> new Striped( stripes ) )
+                .create();
+        Object id = createEmployee();
+
+        UnitOfWork uow1 = repo.newUnitOfWork();
+        uow1.entity( Employee.class, id ).jap.set( 1 );
+        CompletableFuture<UnitOfWork> future1 = uow1.commitAsync( executor );
+
+        // the stripe of the Entity is held until the store commit is completed
+        UnitOfWork uow2 = repo.newUnitOfWork();
+        uow2.entity( Employee.class, id ).jap.set( 2 );
+        try {
+            uow2.prepare();
+            fail( "Commit lock must be held while the commit is pending." );
+        }
+        catch (RuntimeException e) {
+            // ok
+        }
+
+        runTasks();
+        future1.get();
+        UnitOfWork uow3 = repo.newUnitOfWork();
+        uow3.entity( Employee.class, id ).jap.set( 3 );
+        uow3.commit();
+        assertEquals( 3, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+        uow1.close();
+        uow2.close();
+        uow3.close();
+    }
+
+
+    public void testWriterExecutor() throws Exception {
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            List<Object> ids = new ArrayList();
+            List<CompletableFuture<UnitOfWork>> futures = new ArrayList();
+            for (int i=0; i<10; i++) {
+                Object id = createEmployee();
+                ids.add( id );
+                UnitOfWork uow = repo.newUnitOfWork();
+                uow.entity( Employee.class, id ).jap.set( i );
+                futures.add( uow.commitAsync( writer ) );
+            }
+            CompletableFuture.allOf( futures.toArray( new CompletableFuture[futures.size()] ) )
+                    .get( 10, TimeUnit.SECONDS );
+
+            UnitOfWork uow = repo.newUnitOfWork();
+            for (int i=0; i<10; i++) {
+                assertEquals( i, (int)uow.entity( Employee.class, ids.get( i ) ).jap.get() );
+                futures.get( i ).get().close();
+            }
+            uow.close();
+        }
+        finally {
+            writer.shutdown();
+        }
+    }
+
+}
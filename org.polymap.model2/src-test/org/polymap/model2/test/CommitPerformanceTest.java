@@ -0,0 +1,125 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.UnitOfWork;
+
+/**
+ * Commits a few modified Entities in a {@link UnitOfWork} that has loaded a
+ * growing number of Entities. The commit latency must not depend on the number of
+ * loaded Entities. The maximum number of loaded Entities defaults to 100000; run
+ * with <code>-Dmodel2.commit.loaded=1000000</code> for the full benchmark.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class CommitPerformanceTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( CommitPerformanceTest.class );
+
+    protected static final int      LOADED = Integer.getInteger( "model2.commit.loaded", 100000 );
+
+    protected static final int      BATCH = 10000;
+
+    protected static final int      MODIFIED = 3;
+
+    protected static final int      COMMITS = 50;
+
+    protected EntityRepository      repo;
+
+
+    public CommitPerformanceTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        repo = EntityRepository.newConfiguration()
+                .store.set( newStore() )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .create();
+        for (int batch=0; batch<LOADED; batch+=BATCH) {
+            UnitOfWork uow = repo.newUnitOfWork();
+            for (int i=batch; i<Math.min( LOADED, batch+BATCH ); i++) {
+                uow.createEntity( Employee.class, "commit." + i, (Employee proto) -> {
+                    proto.jap.set( 0 );
+                    return proto;
+                });
+            }
+            uow.commit();
+            uow.close();
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        if (repo != null) {
+            repo.close();
+        }
+    }
+
+
+    public void testCommitLatency() throws Exception {
+        // warm up
+        commitLatency( LOADED / 100 );
+
+        long small = commitLatency( LOADED / 100 );
+        commitLatency( LOADED / 10 );
+        long large = commitLatency( LOADED );
+
+        // allow some noise of the store and the GC
+        assertTrue( String.format( "Commit latency grows with loaded Entities: %.3fms -> %.3fms", small/1e6, large/1e6 ),
+                large < small * 3 + 1000000 );
+    }
+
+
+    /**
+     * Loads the given number of Entities and measures the commit of
+     * {@link #MODIFIED} Entities.
+     *
+     * @return The median commit latency in nanoseconds.
+     */
+    protected long commitLatency( int loaded ) {
+        UnitOfWork uow = repo.newUnitOfWork();
+        Employee[] employees = new Employee[loaded];
+        for (int i=0; i<loaded; i++) {
+            employees[i] = uow.entity( Employee.class, "commit." + i );
+        }
+
+        long[] latencies = new long[COMMITS];
+        for (int commit=0; commit<COMMITS; commit++) {
+            for (int i=0; i<MODIFIED; i++) {
+                employees[(commit * MODIFIED + i) % loaded].jap.set( commit + 1 );
+            }
+            long start = System.nanoTime();
+            uow.commit();
+            latencies[commit] = System.nanoTime() - start;
+        }
+        assertEquals( EntityStatus.LOADED, employees[0].status() );
+        uow.close();
+
+        Arrays.sort( latencies );
+        long median = latencies[COMMITS / 2];
+        log.info( String.format( "loaded: %d, commit: %.3fms (median), %.3fms (max)", loaded, median/1e6, latencies[COMMITS-1]/1e6 ) );
+        return median;
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import static org.polymap.model2.query.Expressions.eq;
+import static org.polymap.model2.query.Expressions.set;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.Entity;
+import org.polymap.model2.query.Expressions;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.store.CompositeState;
+import org.polymap.model2.store.CompositeStateCache;
+import org.polymap.model2.store.CompositeStateCache.Policy;
+import org.polymap.model2.store.StoreDecorator;
+import org.polymap.model2.store.StoreSPI;
+import org.polymap.model2.store.StoreUnitOfWork;
+
+/**
+ * Test for {@link CompositeStateCache}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class CompositeStateCacheTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( CompositeStateCacheTest.class );
+
+    protected EntityRepository      repo;
+
+    protected CompositeStateCache   cache;
+
+    protected UnitOfWork            uow;
+
+
+    public CompositeStateCacheTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        Map<Class<? extends Entity>,Policy> policies = new HashMap();
+        policies.put( Company.class, Policy.DISABLED );
+        cache = new CompositeStateCache( newStore() );
+        repo = EntityRepository.newConfiguration()
+                .store.set( cache )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .stateCachePolicies.set( policies )
+                .create();
+        uow = repo.newUnitOfWork();
+    }
+
+    protected void tearDown() throws Exception {
+        uow.close();
+        repo.close();
+    }
+
+
+    protected Object createEmployee() {
+        Employee employee = uow.createEntity( Employee.class, null, (Employee proto) -> {
+            proto.jap.set( 1 );
+            return proto;
+        });
+        uow.commit();
+        return employee.id();
+    }
+
+
+    public void testHitMiss() throws Exception {
+        Object id = createEmployee();
+        assertEquals( 1, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+        assertEquals( 1, cache.statistics( Employee.class ).misses() );
+        assertEquals( 0, cache.statistics( Employee.class ).hits() );
+
+        assertEquals( 1, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+        assertEquals( 1, (int)repo.newReadOnlyUnitOfWork().entity( Employee.class, id ).jap.get() );
+        assertEquals( 2, cache.statistics( Employee.class ).hits() );
+        log.info( cache.statistics() );
+    }
+
+
+    public void testModificationsAreIsolated() throws Exception {
+        Object id = createEmployee();
+        Employee employee1 = repo.newUnitOfWork().entity( Employee.class, id );
+        employee1.jap.set( 2 );
+
+        Employee employee2 = repo.newUnitOfWork().entity( Employee.class, id );
+        assertEquals( 1, (int)employee2.jap.get() );
+        employee2.jap.set( 3 );
+
+        assertEquals( 1, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+        assertEquals( 2, cache.statistics( Employee.class ).hits() );
+    }
+
+
+    public void testInvalidateOnCommit() throws Exception {
+        Object id = createEmployee();
+        UnitOfWork uow2 = repo.newUnitOfWork();
+        uow2.entity( Employee.class, id ).jap.set( 2 );
+        uow2.commit();
+
+        assertEquals( 2, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+        assertEquals( 2, cache.statistics( Employee.class ).misses() );
+
+        uow2.removeEntity( uow2.entity( Employee.class, id ) );
+        uow2.commit();
+        assertNull( repo.newUnitOfWork().entity( Employee.class, id ) );
+    }
+
+
+    public void testInvalidateOnUpdateQuery() throws Exception {
+        Object id = createEmployee();
+        assertEquals( 1, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+
+        Employee wanted = Expressions.template( Employee.class, repo );
+        uow.query( Employee.class ).where( eq( wanted.jap, 1 ) ).update( set( wanted.jap, 2 ) );
+        uow.commit();
+        assertEquals( 2, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+
+        uow.query( Employee.class ).where( eq( wanted.jap, 2 ) ).delete();
+        uow.commit();
+        assertNull( repo.newUnitOfWork().entity( Employee.class, id ) );
+    }
+
+
+    /**
+     * A state loaded before a concurrent commit must not be cached after the
+     * commit has invalidated it.
+     */
+    public void testLoadInterleavedWithCommit() throws Exception {
+        BlockingStore blocking = new BlockingStore( newStore() );
+        uow.close();
+        repo.close();
+        cache = new CompositeStateCache( blocking );
+        repo = EntityRepository.newConfiguration()
+                .store.set( cache )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .create();
+        uow = repo.newUnitOfWork();
+        Object id = createEmployee();
+
+        // load the old state; block before it is put into the cache
+        blocking.armed.set( true );
+        Thread loader = new Thread( () -> repo.newUnitOfWork().entity( Employee.class, id ) );
+        loader.start();
+        assertTrue( blocking.blocked.await( 10, TimeUnit.SECONDS ) );
+
+        // commit and invalidate while the loader is blocked
+        Thread committer = new Thread( () -> {
+            UnitOfWork uow2 = repo.newUnitOfWork();
+            uow2.entity( Employee.class, id ).jap.set( 2 );
+            uow2.commit();
+            uow2.close();
+        });
+        committer.start();
+        committer.join( 500 );
+
+        blocking.release.countDown();
+        loader.join( 10000 );
+        committer.join( 10000 );
+        assertEquals( 2, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+    }
+
+
+    /**
+     * Blocks the first {@link #cloneEntityState(CompositeState)} after
+     * {@link #armed} is set, until {@link #release} is counted down.
+     */
+    protected static class BlockingStore
+            extends StoreDecorator {
+
+        public AtomicBoolean        armed = new AtomicBoolean();
+
+        public CountDownLatch       blocked = new CountDownLatch( 1 );
+
+        public CountDownLatch       release = new CountDownLatch( 1 );
+
+        public BlockingStore( StoreSPI store ) {
+            super( store );
+        }
+
+        @Override
+        public StoreUnitOfWork createUnitOfWork() {
+            return new UnitOfWorkDecorator2( store.createUnitOfWork() ) {
+                @Override
+                public CompositeState cloneEntityState( CompositeState state ) {
+                    if (armed.compareAndSet( true, false )) {
+                        blocked.countDown();
+                        try {
+                            release.await( 10, TimeUnit.SECONDS );
+                        }
+                        catch (InterruptedException e) {
+                            throw new RuntimeException( e );
+                        }
+                    }
+                    return super.cloneEntityState( state );
+                }
+            };
+        }
+
+        @Override
+        public StoreUnitOfWork createReadOnlyUnitOfWork() {
+            return createUnitOfWork();
+        }
+    }
+
+
+    public void testDisabled() throws Exception {
+        Company company = uow.createEntity( Company.class, null );
+        uow.commit();
+        assertFalse( cache.policy( Company.class ).isEnabled() );
+
+        repo.newUnitOfWork().entity( Company.class, company.id() );
+        repo.newUnitOfWork().entity( Company.class, company.id() );
+        assertEquals( 0, cache.statistics( Company.class ).hits() );
+        assertEquals( 0, cache.statistics( Company.class ).misses() );
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.Entity;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.store.CloneCompositeStateSupport;
+import org.polymap.model2.store.EntityChangeSet;
+import org.polymap.model2.store.EntityChangeSet.PropertyChange;
+import org.polymap.model2.store.StoreDecorator;
+import org.polymap.model2.store.StoreSPI;
+import org.polymap.model2.store.StoreUnitOfWork;
+
+/**
+ * Test for {@link EntityChangeSet}s passed to
+ * {@link StoreUnitOfWork#prepareCommit(Iterable, Map)}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class EntityChangeSetTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( EntityChangeSetTest.class );
+
+    protected EntityRepository      repo;
+
+    protected UnitOfWork            uow;
+
+    /** The Entities passed to the store by the last commit. */
+    protected List<Entity>          written = new ArrayList();
+
+    /** The change sets passed to the store by the last commit. */
+    protected Map<Object,EntityChangeSet> changes = new HashMap();
+
+
+    public EntityChangeSetTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        repo = EntityRepository.newConfiguration()
+                .store.set( new RecordingStore( newStore() ) )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .create();
+        uow = repo.newUnitOfWork();
+    }
+
+    protected void tearDown() throws Exception {
+        uow.close();
+        repo.close();
+    }
+
+
+    protected Employee createEmployee() {
+        Employee employee = uow.createEntity( Employee.class, null, (Employee proto) -> {
+            proto.jap.set( 1 );
+            proto.name.set( "Ulli" );
+            return proto;
+        });
+        uow.commit();
+        assertTrue( written.contains( employee ) );
+        assertTrue( changes.isEmpty() );
+        return employee;
+    }
+
+
+    protected Company createCompany() {
+        Company company = uow.createEntity( Company.class, null, (Company proto) -> {
+            proto.docs.add( "first" );
+            return proto;
+        });
+        uow.commit();
+        return company;
+    }
+
+
+    public void testPropertySet() throws Exception {
+        Employee employee = createEmployee();
+        employee.jap.set( 2 );
+        employee.jap.set( 3 );
+        employee.name.set( "Ulli" );
+        assertEquals( EntityStatus.MODIFIED, employee.status() );
+        uow.commit();
+
+        assertEquals( Arrays.asList( employee ), written );
+        EntityChangeSet changeSet = changes.get( employee.id() );
+        assertTrue( changeSet.isComplete() );
+        assertEquals( 1, changeSet.changes().size() );
+        PropertyChange change = changeSet.change( employee.jap.info() );
+        assertTrue( change.isSet() );
+        assertEquals( 1, change.oldValue() );
+        assertEquals( 3, change.newValue() );
+
+        assertEquals( 3, (int)repo.newUnitOfWork().entity( Employee.class, employee.id() ).jap.get() );
+    }
+
+
+    public void testSetBackIsNotWritten() throws Exception {
+        Employee employee = createEmployee();
+        employee.jap.set( 2 );
+        employee.jap.set( 1 );
+        assertEquals( EntityStatus.MODIFIED, employee.status() );
+        uow.commit();
+
+        assertTrue( written.isEmpty() );
+        assertEquals( EntityStatus.LOADED, employee.status() );
+
+        // change set starts over after commit
+        employee.jap.set( 2 );
+        uow.commit();
+        assertEquals( Arrays.asList( employee ), written );
+        assertEquals( 1, changes.get( employee.id() ).change( employee.jap.info() ).oldValue() );
+    }
+
+
+    public void testCollection() throws Exception {
+        Company company = createCompany();
+        company.docs.add( "second" );
+        company.docs.remove( "second" );
+        uow.commit();
+        assertTrue( written.isEmpty() );
+
+        company.docs.add( "third" );
+        company.docs.remove( "first" );
+        uow.commit();
+        PropertyChange change = changes.get( company.id() ).change( company.docs.info() );
+        assertFalse( change.isSet() );
+        assertEquals( Collections.singletonList( "third" ), change.added() );
+        assertEquals( Collections.singletonList( "first" ), change.removed() );
+    }
+
+
+    public void testAssociations() throws Exception {
+        Employee employee = createEmployee();
+        Company company = createCompany();
+        company.chief.set( employee );
+        company.employees.add( employee );
+        uow.commit();
+
+        EntityChangeSet changeSet = changes.get( company.id() );
+        assertTrue( changeSet.isComplete() );
+        assertNull( changeSet.change( company.chief.info() ).oldValue() );
+        assertEquals( employee.id(), changeSet.change( company.chief.info() ).newValue() );
+        assertEquals( Collections.singletonList( employee.id() ), changeSet.change( company.employees.info() ).added() );
+    }
+
+
+    public void testIncomplete() throws Exception {
+        Company company = createCompany();
+        company.docs.retainAll( Collections.EMPTY_LIST );
+        uow.commit();
+
+        assertEquals( Arrays.asList( company ), written );
+        assertFalse( changes.get( company.id() ).isComplete() );
+        assertEquals( 0, repo.newUnitOfWork().entity( Company.class, company.id() ).docs.size() );
+    }
+
+
+    /**
+     * A decorator that overrides just {@link StoreUnitOfWork#prepareCommit(Iterable)}
+     * is called, and the change sets still reach the underlying store.
+     */
+    public void testDecoratorPrepareCommit() throws Exception {
+        uow.close();
+        repo.close();
+        List<Iterable<Entity>> decorated = new ArrayList();
+        repo = EntityRepository.newConfiguration()
+                .store.set( new StoreDecorator( new RecordingStore( newStore() ) ) {
+                    @Override
+                    public StoreUnitOfWork createUnitOfWork() {
+                        return new UnitOfWorkDecorator( store.createUnitOfWork() ) {
+                            @Override
+                            public void prepareCommit( Iterable<Entity> loaded ) throws Exception {
+                                decorated.add( loaded );
+                                super.prepareCommit( loaded );
+                            }
+                        };
+                    }
+                })
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .create();
+        uow = repo.newUnitOfWork();
+
+        Employee employee = createEmployee();
+        employee.jap.set( 2 );
+        uow.commit();
+        assertEquals( 2, decorated.size() );
+        assertEquals( 2, changes.get( employee.id() ).change( employee.jap.info() ).newValue() );
+    }
+
+
+    /**
+     * Records the Entities and change sets passed to
+     * {@link StoreUnitOfWork#prepareCommit(Iterable, Map)}.
+     */
+    protected class RecordingStore
+            extends StoreDecorator {
+
+        public RecordingStore( StoreSPI store ) {
+            super( store );
+        }
+
+        @Override
+        public StoreUnitOfWork createUnitOfWork() {
+            StoreUnitOfWork suow = store.createUnitOfWork();
+            return suow instanceof CloneCompositeStateSupport
+                    ? new UnitOfWorkDecorator2( suow ) {
+                        @Override
+                        public void prepareCommit( Iterable<Entity> loaded, Map<Object,EntityChangeSet> changeSets ) throws Exception {
+                            record( loaded, changeSets );
+                            super.prepareCommit( loaded, changeSets );
+                        }
+                    }
+                    : new UnitOfWorkDecorator( suow ) {
+                        @Override
+                        public void prepareCommit( Iterable<Entity> loaded, Map<Object,EntityChangeSet> changeSets ) throws Exception {
+                            record( loaded, changeSets );
+                            super.prepareCommit( loaded, changeSets );
+                        }
+                    };
+        }
+
+        protected void record( Iterable<Entity> loaded, Map<Object,EntityChangeSet> changeSets ) {
+            written.clear();
+            loaded.forEach( entity -> written.add( entity ) );
+            changes = new HashMap( changeSets );
+            log.info( "prepareCommit(): " + written.size() + " entities, " + changes.values() );
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import java.util.stream.Stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.query.Query.StreamMode;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.UnitOfWork;
+
+/**
+ * Scans a large number of Entities in one {@link UnitOfWork} with a bounded
+ * cache, or via a {@link StreamMode#TRANSIENT} query. The used heap must not grow
+ * with the number of scanned Entities. The number of Entities defaults to
+ * 100000; run with <code>-Dmodel2.scan.entities=10000000</code> (and a store
+ * that does not hold its data in memory) for the full benchmark.
+ *
+ * @see EntityRepository.Configuration#unitOfWorkCacheSize
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class EntityScanPerformanceTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( EntityScanPerformanceTest.class );
+
+    protected static final int      ENTITIES = Integer.getInteger( "model2.scan.entities", 100000 );
+
+    protected static final int      BATCH = 10000;
+
+    protected static final int      CACHE_SIZE = 1000;
+
+    protected static final int      SAMPLES = 10;
+
+    protected EntityRepository      repo;
+
+
+    public EntityScanPerformanceTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        repo = EntityRepository.newConfiguration()
+                .store.set( newStore() )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .unitOfWorkCacheSize.set( CACHE_SIZE )
+                .create();
+    }
+
+    protected void tearDown() throws Exception {
+        if (repo != null) {
+            repo.close();
+        }
+    }
+
+
+    protected void fill( int count ) {
+        for (int batch=0; batch<count; batch+=BATCH) {
+            UnitOfWork uow = repo.newUnitOfWork();
+            for (int i=batch; i<Math.min( count, batch+BATCH ); i++) {
+                uow.createEntity( Employee.class, "scan." + i, (Employee proto) -> {
+                    proto.jap.set( 1 );
+                    return proto;
+                });
+            }
+            uow.commit();
+            uow.close();
+        }
+    }
+
+
+    public void testEviction() throws Exception {
+        fill( CACHE_SIZE * 3 );
+
+        UnitOfWork uow = repo.newUnitOfWork();
+        Employee first = uow.entity( Employee.class, "scan.0" );
+        Employee modified = uow.entity( Employee.class, "scan.1" );
+        modified.jap.set( 2 );
+        for (int i=2; i<CACHE_SIZE * 3; i++) {
+            uow.entity( Employee.class, "scan." + i ).jap.get();
+        }
+
+        // stale handle fails
+        try {
+            first.status();
+            fail( "Evicted Entity must not be accessible." );
+        }
+        catch (IllegalStateException e) {
+        }
+        try {
+            first.jap.set( 3 );
+            fail( "Evicted Entity must not be modifiable." );
+        }
+        catch (IllegalStateException e) {
+        }
+        try {
+            first.jap.get();
+            fail( "Evicted Entity must not be readable." );
+        }
+        catch (IllegalStateException e) {
+        }
+        Employee reloaded = uow.entity( Employee.class, "scan.0" );
+        assertNotSame( first, reloaded );
+        assertEquals( EntityStatus.LOADED, reloaded.status() );
+
+        // modified Entity is never evicted
+        for (int i=2; i<CACHE_SIZE * 3; i++) {
+            uow.entity( Employee.class, "scan." + i ).jap.get();
+        }
+        assertEquals( EntityStatus.MODIFIED, modified.status() );
+        uow.commit();
+
+        // ...and stays valid after commit
+        assertEquals( EntityStatus.LOADED, modified.status() );
+        assertEquals( 2, (int)modified.jap.get() );
+        assertSame( modified, uow.entity( Employee.class, "scan.1" ) );
+
+        UnitOfWork uow2 = repo.newUnitOfWork();
+        assertEquals( 2, (int)uow2.entity( Employee.class, "scan.1" ).jap.get() );
+        uow2.close();
+        uow.close();
+    }
+
+
+    public void testScanMemory() throws Exception {
+        fill( ENTITIES );
+
+        UnitOfWork uow = repo.newReadOnlyUnitOfWork();
+        long[] usedHeap = new long[SAMPLES];
+        int sample = 0;
+        Timer timer = Timer.startNow();
+        int count = 0;
+        for (int i=0; i<ENTITIES; i++) {
+            count += uow.entity( Employee.class, "scan." + i ).jap.get();
+
+            if ((i+1) % (ENTITIES / SAMPLES) == 0 && sample < SAMPLES) {
+                usedHeap[sample] = usedHeap();
+                log.info( "scanned: " + (i+1) + ", used heap: " + usedHeap[sample] / 1024 + "KB" );
+                sample ++;
+            }
+        }
+        long elapsed = Math.max( 1, timer.elapsedTime() );
+        assertEquals( ENTITIES, count );
+        log.info( "scan: " + (count * 1000L / elapsed) + " entities/s" );
+
+        // the heap does not grow with the number of scanned Entities
+        assertHeapFlat( usedHeap );
+        uow.close();
+    }
+
+
+    public void testStreamMemory() throws Exception {
+        fill( ENTITIES );
+
+        UnitOfWork uow = repo.newReadOnlyUnitOfWork();
+        long[] usedHeap = new long[SAMPLES];
+        int[] sample = {0}, count = {0};
+        Timer timer = Timer.startNow();
+        try (Stream<Employee> stream = uow.query( Employee.class ).stream( StreamMode.TRANSIENT )) {
+            stream.forEach( employee -> {
+                count[0] += employee.jap.get();
+                if (count[0] % (ENTITIES / SAMPLES) == 0 && sample[0] < SAMPLES) {
+                    usedHeap[sample[0]++] = usedHeap();
+                }
+            });
+        }
+        long elapsed = Math.max( 1, timer.elapsedTime() );
+        assertEquals( ENTITIES, count[0] );
+        log.info( "stream: " + (count[0] * 1000L / elapsed) + " entities/s" );
+        assertHeapFlat( usedHeap );
+        uow.close();
+    }
+
+
+    protected void assertHeapFlat( long[] usedHeap ) {
+        // allow some noise of the GC
+        long first = usedHeap[0], max = first;
+        for (long used : usedHeap) {
+            max = Math.max( max, used );
+        }
+        assertTrue( "Used heap grows: " + first/1024 + "KB -> " + max/1024 + "KB",
+                max - first < Math.max( first / 4, 16*1024*1024 ) );
+    }
+
+
+    protected long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i=0; i<3; i++) {
+            System.gc();
+            try { Thread.sleep( 50 ); } catch (InterruptedException e) { }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+}
@@ -16,32 +16,32 @@ package org.polymap.model2.test;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.polymap.model2.PropertyConcern;
-import org.polymap.model2.PropertyConcernAdapter;
+import org.polymap.model2.Property;
+import org.polymap.model2.StatelessPropertyConcern;
+import org.polymap.model2.runtime.EntityRuntimeContext;
 
 /**
- * 
+ * Counts invocations. Also tests {@link StatelessPropertyConcern}.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
 public class InvocationCountConcern
-        extends PropertyConcernAdapter
-        implements PropertyConcern {
+        implements StatelessPropertyConcern {
 
     public static AtomicInteger     getCount = new AtomicInteger();
     
     public static AtomicInteger     setCount = new AtomicInteger();
 
     @Override
-    public Object get() {
+    public Object get( EntityRuntimeContext context, Property delegate ) {
         getCount.incrementAndGet();
-        return delegate().get();
+        return delegate.get();
     }
 
     @Override
-    public void set( Object value ) {
+    public void set( EntityRuntimeContext context, Property delegate, Object value ) {
         setCount.incrementAndGet();
-        delegate().set( value );
+        delegate.set( value );
     }
 
 }
@@ -0,0 +1,168 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.cache.configuration.MutableConfiguration;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.engine.LoadingCache;
+import org.polymap.model2.engine.LoadingCache.Loader;
+import org.polymap.model2.engine.SimpleCacheManager;
+
+/**
+ * Multi-threaded contention benchmark and single-flight test of
+ * {@link LoadingCache}. Threads and number of operations can be set via
+ * <code>-Dmodel2.bench.threads</code> and <code>-Dmodel2.bench.ops</code>.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class LoadingCacheContentionTest
+        extends TestCase {
+
+    private static final Log log = LogFactory.getLog( LoadingCacheContentionTest.class );
+
+    protected static final int      THREADS = Integer.getInteger( "model2.bench.threads", Runtime.getRuntime().availableProcessors() * 2 );
+
+    protected static final int      OPS = Integer.getInteger( "model2.bench.ops", 1000000 );
+
+    protected static final int      KEYS = 1000;
+
+    protected LoadingCache<String,Object> cache;
+
+    protected AtomicInteger         loads = new AtomicInteger();
+
+    protected ExecutorService       executor;
+
+
+    public LoadingCacheContentionTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        cache = LoadingCache.create( new SimpleCacheManager(), new MutableConfiguration() );
+        executor = Executors.newFixedThreadPool( THREADS );
+    }
+
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+
+    public void testSingleFlight() throws Exception {
+        CountDownLatch start = new CountDownLatch( 1 );
+        Loader<String,Object> loader = key -> {
+            loads.incrementAndGet();
+            try { Thread.sleep( 100 ); } catch (InterruptedException e) { }
+            return new Object();
+        };
+        List<Future<Object>> results = new ArrayList();
+        for (int i=0; i<THREADS; i++) {
+            results.add( executor.submit( () -> {
+                start.await();
+                return cache.get( "hot", loader );
+            }));
+        }
+        start.countDown();
+        Object first = results.get( 0 ).get();
+        for (Future<Object> result : results) {
+            assertSame( first, result.get() );
+        }
+        assertEquals( 1, loads.get() );
+    }
+
+
+    public void testLoaderException() throws Exception {
+        try {
+            cache.get( "failing", key -> { throw new IllegalStateException( "expected" ); } );
+            fail();
+        }
+        catch (IllegalStateException e) {
+        }
+        // not cached, not in-flight
+        assertEquals( "ok", cache.get( "failing", key -> "ok" ) );
+    }
+
+
+    public void testHitAllocation() throws Exception {
+        Loader<String,Object> loader = key -> new Object();
+        String[] keys = keys();
+        for (String key : keys) {
+            cache.get( key, loader );
+        }
+        Timer timer = Timer.startNow();
+        for (int i=0; i<OPS; i++) {
+            cache.get( keys[i % KEYS], loader );
+        }
+        long allocated = timer.allocatedBytes();
+        log.info( "hits: " + OPS + " in " + timer.elapsedTime() + "ms, allocated: " + allocated + " bytes" );
+        if (allocated >= 0) {
+            assertTrue( "Cache hits allocate: " + allocated + " bytes", allocated < OPS / 10 );
+        }
+    }
+
+
+    public void testContention() throws Exception {
+        Loader<String,Object> loader = key -> {
+            loads.incrementAndGet();
+            return new Object();
+        };
+        String[] keys = keys();
+        CountDownLatch start = new CountDownLatch( 1 );
+        List<Future<?>> results = new ArrayList();
+        for (int t=0; t<THREADS; t++) {
+            int offset = t * 7;
+            results.add( executor.submit( () -> {
+                start.await();
+                for (int i=0; i<OPS; i++) {
+                    cache.get( keys[(i + offset) % KEYS], loader );
+                }
+                return null;
+            }));
+        }
+        Timer timer = Timer.startNow();
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get( 5, TimeUnit.MINUTES );
+        }
+        long elapsed = Math.max( 1, timer.elapsedTime() );
+        log.info( "threads: " + THREADS + ", ops: " + (long)THREADS * OPS
+                + ", " + ((long)THREADS * OPS * 1000L / elapsed) + " ops/s, loads: " + loads.get() );
+        assertEquals( KEYS, loads.get() );
+    }
+
+
+    protected String[] keys() {
+        String[] result = new String[KEYS];
+        for (int i=0; i<KEYS; i++) {
+            result[i] = "key" + i;
+        }
+        return result;
+    }
+
+}
@@ -112,8 +112,8 @@ public class LogConcern
 
     @Override
     public boolean remove( Object o ) {
-        // XXX Auto-generated method stub
-        throw new RuntimeException( "not yet implemented." );
+        log( "remove" );
+        return super.remove( o );
     }
 
     @Override
@@ -130,14 +130,14 @@ public class LogConcern
 
     @Override
     public boolean removeAll( Collection c ) {
-        // XXX Auto-generated method stub
-        throw new RuntimeException( "not yet implemented." );
+        log( "removeAll" );
+        return super.removeAll( c );
     }
 
     @Override
     public boolean retainAll( Collection c ) {
-        // XXX Auto-generated method stub
-        throw new RuntimeException( "not yet implemented." );
+        log( "retainAll" );
+        return super.retainAll( c );
     }
 
     @Override
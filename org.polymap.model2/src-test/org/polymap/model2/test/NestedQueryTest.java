@@ -0,0 +1,199 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import static org.polymap.model2.query.Expressions.eq;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Iterables;
+
+import org.polymap.model2.engine.CacheStatistics;
+import org.polymap.model2.query.Expressions;
+import org.polymap.model2.query.ResultSet;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.UnitOfWork;
+
+/**
+ * Test for queries of nested {@link UnitOfWork}s.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class NestedQueryTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( NestedQueryTest.class );
+
+    protected static final int      COUNT = 10;
+
+    protected EntityRepository      repo;
+
+    protected UnitOfWork            uow;
+
+    protected UnitOfWork            nested;
+
+
+    public NestedQueryTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        repo = EntityRepository.newConfiguration()
+                .store.set( newStore() )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .cacheStatistics.set( true )
+                .create();
+        UnitOfWork init = repo.newUnitOfWork();
+        for (int i=0; i<COUNT; i++) {
+            int jap = i;
+            init.createEntity( Employee.class, "q." + i, (Employee proto) -> {
+                proto.jap.set( jap );
+                return proto;
+            });
+        }
+        init.commit();
+        init.close();
+
+        uow = repo.newUnitOfWork();
+        nested = uow.newUnitOfWork();
+    }
+
+    protected void tearDown() throws Exception {
+        nested.close();
+        uow.close();
+        repo.close();
+    }
+
+
+    protected Set<Object> ids( Iterable<Employee> employees ) {
+        Set<Object> result = new HashSet();
+        for (Employee employee : employees) {
+            assertTrue( "Duplicate result: " + employee.id(), result.add( employee.id() ) );
+        }
+        return result;
+    }
+
+
+    public void testNoParentMaterialization() throws Exception {
+        CacheStatistics stats = repo.cacheStatistics().of( Employee.class );
+        long loads = stats.getCacheLoads();
+
+        ResultSet<Employee> rs = nested.query( Employee.class ).execute();
+        assertEquals( COUNT, rs.size() );
+        assertEquals( COUNT, Iterables.size( rs ) );
+
+        // loaded by the nested UnitOfWork only
+        assertEquals( COUNT, stats.getCacheLoads() - loads );
+    }
+
+
+    public void testModifyNotLoadedByParent() throws Exception {
+        // loaded by the nested UnitOfWork only, via query and via id
+        for (Employee employee : nested.query( Employee.class ).where( eq( Expressions.template( Employee.class, repo ).jap, 3 ) ).execute()) {
+            employee.jap.set( 300 );
+        }
+        nested.entity( Employee.class, "q.4" ).jap.set( 400 );
+        nested.commit();
+
+        assertEquals( 300, (int)uow.entity( Employee.class, "q.3" ).jap.get() );
+        assertEquals( 400, (int)uow.entity( Employee.class, "q.4" ).jap.get() );
+        assertEquals( 5, (int)uow.entity( Employee.class, "q.5" ).jap.get() );
+
+        // not written to the store before the parent commits
+        UnitOfWork uow2 = repo.newUnitOfWork();
+        assertEquals( 3, (int)uow2.entity( Employee.class, "q.3" ).jap.get() );
+        uow2.close();
+
+        uow.commit();
+        uow2 = repo.newUnitOfWork();
+        assertEquals( 300, (int)uow2.entity( Employee.class, "q.3" ).jap.get() );
+        assertEquals( 400, (int)uow2.entity( Employee.class, "q.4" ).jap.get() );
+        uow2.close();
+    }
+
+
+    public void testModifiedInParentAndNested() throws Exception {
+        // parent: remove one, create one, modify one
+        uow.removeEntity( uow.entity( Employee.class, "q.1" ) );
+        uow.createEntity( Employee.class, "q.new", (Employee proto) -> {
+            proto.jap.set( 100 );
+            return proto;
+        });
+        uow.entity( Employee.class, "q.2" ).jap.set( 200 );
+        // nested: modify one
+        nested.entity( Employee.class, "q.3" ).jap.set( 300 );
+
+        Set<Object> ids = ids( nested.query( Employee.class ).execute() );
+        assertEquals( COUNT, ids.size() );
+        assertFalse( ids.contains( "q.1" ) );
+        assertTrue( ids.contains( "q.new" ) );
+
+        // results are the Entities of the nested UnitOfWork
+        for (Employee employee : nested.query( Employee.class ).execute()) {
+            assertSame( nested.entity( Employee.class, employee.id() ), employee );
+        }
+        assertEquals( 200, (int)nested.query( Employee.class ).execute().stream()
+                .filter( e -> e.id().equals( "q.2" ) ).findAny().get().jap.get() );
+        assertEquals( 300, (int)nested.query( Employee.class ).execute().stream()
+                .filter( e -> e.id().equals( "q.3" ) ).findAny().get().jap.get() );
+    }
+
+
+    public void testPaging() throws Exception {
+        uow.removeEntity( uow.entity( Employee.class, "q.1" ) );
+        uow.createEntity( Employee.class, "q.new" );
+        nested.entity( Employee.class, "q.3" ).jap.set( 300 );
+        nested.createEntity( Employee.class, "q.nested" );
+
+        List<Object> all = new ArrayList();
+        for (int first=0; first<COUNT+1; first+=3) {
+            ResultSet<Employee> page = nested.query( Employee.class ).firstResult( first ).maxResults( 3 ).execute();
+            Set<Object> ids = ids( page );
+            assertEquals( Math.min( 3, COUNT + 1 - first ), ids.size() );
+            assertEquals( ids.size(), page.size() );
+            all.addAll( ids );
+        }
+        assertEquals( COUNT + 1, all.size() );
+        assertEquals( COUNT + 1, new HashSet( all ).size() );
+        assertTrue( all.contains( "q.3" ) );
+        assertTrue( all.contains( "q.new" ) );
+        assertTrue( all.contains( "q.nested" ) );
+    }
+
+
+    public void testExpression() throws Exception {
+        Employee wanted = Expressions.template( Employee.class, repo );
+        // modified in nested: matches now
+        nested.entity( Employee.class, "q.3" ).jap.set( 5 );
+        // modified in parent: does not match anymore
+        uow.entity( Employee.class, "q.5" ).jap.set( 500 );
+
+        Set<Object> ids = ids( nested.query( Employee.class ).where( eq( wanted.jap, 5 ) ).execute() );
+        assertEquals( 1, ids.size() );
+        assertTrue( ids.contains( "q.3" ) );
+
+        // parent is not affected by nested
+        ids = ids( uow.query( Employee.class ).where( eq( wanted.jap, 5 ) ).execute() );
+        assertEquals( 0, ids.size() );
+    }
+
+}
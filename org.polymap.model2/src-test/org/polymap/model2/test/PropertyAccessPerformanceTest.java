@@ -0,0 +1,105 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.query.ResultSet;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.UnitOfWork;
+
+/**
+ * Iterates a large {@link ResultSet} and reads just one property of every
+ * Entity. Compares eager and lazy property materialization.
+ *
+ * @see EntityRepository.Configuration#lazyProperties
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class PropertyAccessPerformanceTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( PropertyAccessPerformanceTest.class );
+    
+    protected static final int      ENTITIES = 10000;
+    
+    protected static final int      ROUNDS = 5;
+    
+    protected EntityRepository      repo;
+
+    
+    public PropertyAccessPerformanceTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+    }
+
+    protected void tearDown() throws Exception {
+        if (repo != null) {
+            repo.close();
+        }
+    }
+
+    
+    public void testEagerProperties() throws Exception {
+        readOneProperty( false );
+    }
+    
+    
+    public void testLazyProperties() throws Exception {
+        readOneProperty( true );
+    }
+    
+    
+    protected void readOneProperty( boolean lazyProperties ) throws Exception {
+        repo = EntityRepository.newConfiguration()
+                .store.set( newStore() )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .lazyProperties.set( lazyProperties )
+                .create();
+        
+        // fill
+        UnitOfWork uow = repo.newUnitOfWork();
+        for (int i=0; i<ENTITIES; i++) {
+            uow.createEntity( Employee.class, null, (Employee proto) -> {
+                proto.jap.set( 0 );
+                return proto;
+            });
+        }
+        uow.commit();
+        uow.close();
+        
+        // read
+        Timer timer = new Timer();
+        for (int round=0; round<ROUNDS; round++) {
+            UnitOfWork uow2 = repo.newUnitOfWork();
+            timer.start();
+            int count = 0;
+            for (Employee employee : uow2.query( Employee.class ).execute()) {
+                count += employee.jap.get() + 1;
+            }
+            long elapsed = Math.max( 1, timer.elapsedTime() );
+            long allocated = timer.allocatedBytes();
+            assertEquals( ENTITIES, count );
+            log.info( (lazyProperties ? "lazy" : "eager") + " round " + round + ": " 
+                    + (count * 1000L / elapsed) + " entities/s, "
+                    + (allocated >= 0 ? allocated / count : "n/a") + " bytes/entity" );
+            uow2.close();
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import static org.polymap.model2.query.Expressions.eq;
+import static org.polymap.model2.query.Expressions.eqAny;
+import static org.polymap.model2.query.Expressions.set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.query.Expressions;
+import org.polymap.model2.query.Query;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.store.OptimisticLocking;
+import org.polymap.model2.store.StoreSPI;
+import org.polymap.model2.test.Employee.Rating;
+
+/**
+ * Test for {@link Query#delete()} and {@link Query#update(org.polymap.model2.query.Assignment...)}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class QueryUpdateTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( QueryUpdateTest.class );
+
+    protected static final int      COUNT = 10;
+
+    protected EntityRepository      repo;
+
+    protected UnitOfWork            uow;
+
+    protected Employee              wanted;
+
+
+    public QueryUpdateTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        createRepo( newStore(), COUNT );
+    }
+
+    protected void tearDown() throws Exception {
+        uow.close();
+        repo.close();
+    }
+
+
+    /**
+     * Creates the repository with the given number of Employees "q.&lt;jap&gt;".
+     */
+    protected void createRepo( StoreSPI store, int count ) {
+        if (repo != null) {
+            uow.close();
+            repo.close();
+        }
+        repo = EntityRepository.newConfiguration()
+                .store.set( store )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .create();
+        UnitOfWork init = repo.newUnitOfWork();
+        for (int i=0; i<count; i++) {
+            int jap = i;
+            init.createEntity( Employee.class, "q." + i, (Employee proto) -> {
+                proto.jap.set( jap );
+                proto.name.set( "init" );
+                return proto;
+            });
+        }
+        init.commit();
+        init.close();
+
+        uow = repo.newUnitOfWork();
+        wanted = Expressions.template( Employee.class, repo );
+    }
+
+
+    protected Employee reload( Object id ) {
+        return repo.newUnitOfWork().entity( Employee.class, id );
+    }
+
+
+    public void testDelete() throws Exception {
+        uow.query( Employee.class ).where( eqAny( wanted.jap, 0, 1, 2 ) ).delete();
+
+        // not before commit
+        assertEquals( COUNT, repo.newUnitOfWork().query( Employee.class ).execute().size() );
+        
+        uow.commit();
+        assertEquals( COUNT - 3, repo.newUnitOfWork().query( Employee.class ).execute().size() );
+        assertEquals( COUNT - 3, uow.query( Employee.class ).execute().size() );
+        assertNull( uow.entity( Employee.class, "q.1" ) );
+        assertNotNull( uow.entity( Employee.class, "q.3" ) );
+    }
+
+
+    public void testDeleteAll() throws Exception {
+        uow.query( Employee.class ).delete();
+        uow.commit();
+        assertEquals( 0, repo.newUnitOfWork().query( Employee.class ).execute().size() );
+    }
+
+
+    public void testRollback() throws Exception {
+        uow.query( Employee.class ).where( eqAny( wanted.jap, 0, 1, 2 ) ).delete();
+        uow.query( Employee.class ).update( set( wanted.name, "updated" ) );
+        uow.prepare();
+        uow.rollback();
+        
+        uow.commit();
+        assertEquals( COUNT, repo.newUnitOfWork().query( Employee.class ).execute().size() );
+        assertEquals( "init", reload( "q.1" ).name.get() );
+    }
+
+
+    public void testUpdate() throws Exception {
+        uow.query( Employee.class )
+                .where( eqAny( wanted.jap, 1, 2 ) )
+                .update( set( wanted.name, "updated" ), set( wanted.rating, Rating.topNotch ) );
+        uow.commit();
+
+        assertEquals( "updated", reload( "q.1" ).name.get() );
+        assertEquals( Rating.topNotch, reload( "q.2" ).rating.get() );
+        assertEquals( "init", reload( "q.3" ).name.get() );
+        assertNull( reload( "q.3" ).rating.get() );
+        assertEquals( 2, repo.newUnitOfWork().query( Employee.class )
+                .where( eq( wanted.name, "updated" ) ).execute().size() );
+    }
+
+
+    public void testUpdateConsumer() throws Exception {
+        uow.query( Employee.class ).update( (Employee employee) -> {
+            employee.jap.set( employee.jap.get() * 10 );
+        });
+        uow.commit();
+        for (int i=0; i<COUNT; i++) {
+            assertEquals( i * 10, (int)reload( "q." + i ).jap.get() );
+        }
+    }
+
+
+    public void testUpdateNotNullable() throws Exception {
+        try {
+            uow.query( Employee.class ).update( set( wanted.nonNullable, null ) );
+            fail( "Property is not @Nullable." );
+        }
+        catch (ModelRuntimeException e) {
+            // ok
+        }
+    }
+
+
+    public void testMaxResults() throws Exception {
+        try {
+            uow.query( Employee.class ).maxResults( 2 ).delete();
+            fail( "maxResults is not supported." );
+        }
+        catch (ModelRuntimeException e) {
+            // ok
+        }
+        assertEquals( COUNT, repo.newUnitOfWork().query( Employee.class ).execute().size() );
+    }
+
+
+    public void testModifiedInUnitOfWork() throws Exception {
+        // does not match anymore
+        uow.entity( Employee.class, "q.1" ).jap.set( 100 );
+        // matches now
+        uow.entity( Employee.class, "q.5" ).jap.set( 0 );
+
+        uow.query( Employee.class ).where( eqAny( wanted.jap, 0, 1, 2 ) ).delete();
+
+        // UnitOfWork: in memory
+        assertNotNull( uow.entity( Employee.class, "q.1" ) );
+        assertNull( uow.entity( Employee.class, "q.5" ) );
+
+        uow.commit();
+        UnitOfWork other = repo.newUnitOfWork();
+        assertNull( other.entity( Employee.class, "q.0" ) );
+        assertNull( other.entity( Employee.class, "q.2" ) );
+        assertEquals( 100, (int)other.entity( Employee.class, "q.1" ).jap.get() );
+        assertNull( other.entity( Employee.class, "q.5" ) );
+        assertEquals( COUNT - 3, other.query( Employee.class ).execute().size() );
+    }
+
+
+    public void testCreatedInUnitOfWork() throws Exception {
+        Employee created = uow.createEntity( Employee.class, "q.new", (Employee proto) -> {
+            proto.jap.set( 2 );
+            return proto;
+        });
+        uow.query( Employee.class ).where( eq( wanted.jap, 2 ) ).update( set( wanted.name, "updated" ) );
+
+        assertEquals( "updated", created.name.get() );
+        assertNull( reload( "q.new" ) );
+
+        uow.commit();
+        assertEquals( "updated", reload( "q.2" ).name.get() );
+        assertEquals( "updated", reload( "q.new" ).name.get() );
+    }
+
+
+    public void testLoadedIsEvicted() throws Exception {
+        Employee old = uow.entity( Employee.class, "q.3" );
+        assertEquals( "init", old.name.get() );
+        uow.query( Employee.class ).where( eq( wanted.jap, 3 ) ).update( set( wanted.name, "updated" ) );
+        uow.commit();
+
+        try {
+            old.status();
+            fail( "Reference to evicted Entity must fail." );
+        }
+        catch (IllegalStateException e) {
+            // ok
+        }
+
+        assertEquals( "updated", uow.entity( Employee.class, "q.3" ).name.get() );
+        uow.entity( Employee.class, "q.3" ).jap.set( 30 );
+        uow.commit();
+        assertEquals( "updated", reload( "q.3" ).name.get() );
+        assertEquals( 30, (int)reload( "q.3" ).jap.get() );
+    }
+
+
+    /**
+     * {@link OptimisticLocking} does not support update/delete inside the store,
+     * so the Entities are loaded and changed in chunks.
+     */
+    public void testChunked() throws Exception {
+        int count = 2500;
+        createRepo( new OptimisticLocking( newStore() ), count );
+
+        uow.query( Employee.class ).update( (Employee employee) -> {
+            employee.name.set( employee.jap.get() % 2 == 0 ? "even" : "odd" );
+        });
+        uow.commit();
+        uow.query( Employee.class ).where( eq( wanted.name, "even" ) ).delete();
+        uow.query( Employee.class ).where( eq( wanted.name, "odd" ) ).update( set( wanted.name, "updated" ) );
+        uow.commit();
+
+        UnitOfWork other = repo.newUnitOfWork();
+        assertEquals( count / 2, other.query( Employee.class ).execute().size() );
+        assertEquals( count / 2, other.query( Employee.class ).where( eq( wanted.name, "updated" ) ).execute().size() );
+    }
+
+
+    /**
+     * A failure in a chunk discards all chunks.
+     */
+    public void testChunkedFailure() throws Exception {
+        int count = 2500;
+        createRepo( new OptimisticLocking( newStore() ), count );
+
+        uow.query( Employee.class ).update( (Employee employee) -> {
+            if (employee.jap.get() == count - 1) {
+                throw new IllegalStateException( "Failure in last chunk." );
+            }
+            employee.name.set( "updated" );
+        });
+        try {
+            uow.commit();
+            fail( "Failure of the updater must fail commit." );
+        }
+        catch (RuntimeException e) {
+            // ok
+        }
+        assertEquals( 0, repo.newUnitOfWork().query( Employee.class ).where( eq( wanted.name, "updated" ) ).execute().size() );
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.runtime.ConcurrentEntityModificationException;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.store.OptimisticLocking;
+import org.polymap.model2.store.StoreSPI;
+
+/**
+ * Test for {@link EntityRepository.Configuration#sharedSnapshots}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class SharedSnapshotsTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( SharedSnapshotsTest.class );
+
+    // instance *******************************************
+
+    protected EntityRepository      repo;
+
+    protected UnitOfWork            uow;
+
+    protected Object                companyId;
+
+
+    public SharedSnapshotsTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+        repo = createRepo( newStore() );
+        uow = repo.newUnitOfWork();
+    }
+
+    /**
+     * Creates the repository with shared snapshots enabled.
+     */
+    protected EntityRepository createRepo( StoreSPI store ) {
+        return EntityRepository.newConfiguration()
+                .store.set( store )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .sharedSnapshots.set( true )
+                .create();
+    }
+
+    protected void tearDown() throws Exception {
+        uow.close();
+        repo.close();
+    }
+
+
+    protected void createCompany() {
+        Company company = uow.createEntity( Company.class, null, proto -> {
+            proto.name.set( "company" );
+            proto.address.createValue( address -> {
+                address.street.set( "street" );
+                return address;
+            });
+            proto.moreAddresses.createElement( address -> {
+                address.street.set( "more" );
+                return address;
+            });
+            return proto;
+        });
+        uow.commit();
+        companyId = company.id();
+    }
+
+
+    public void testShared() throws Exception {
+        createCompany();
+        Company company1 = repo.newUnitOfWork().entity( Company.class, companyId );
+        Company company2 = repo.newUnitOfWork().entity( Company.class, companyId );
+        assertNotSame( company1, company2 );
+        assertSame( company1.state(), company2.state() );
+        assertEquals( "street", company2.address.get().street.get() );
+    }
+
+
+    public void testCopyOnWrite() throws Exception {
+        createCompany();
+        Company company1 = repo.newUnitOfWork().entity( Company.class, companyId );
+        Company company2 = repo.newUnitOfWork().entity( Company.class, companyId );
+        Company company3 = repo.newUnitOfWork().entity( Company.class, companyId );
+
+        // simple property
+        company1.name.set( "modified" );
+        assertEquals( "modified", company1.name.get() );
+        assertEquals( "company", company2.name.get() );
+        assertNotSame( company1.state(), company2.state() );
+
+        // Composite property that was accessed before the fork
+        Address address2 = company2.address.get();
+        address2.street.set( "modified" );
+        assertEquals( "modified", address2.street.get() );
+        assertEquals( "modified", company2.address.get().street.get() );
+        assertEquals( "street", company3.address.get().street.get() );
+
+        // element of a Composite collection
+        for (Address address : company3.moreAddresses) {
+            address.street.set( "modified" );
+        }
+        assertEquals( "modified", company3.moreAddresses.iterator().next().street.get() );
+
+        Company company4 = repo.newUnitOfWork().entity( Company.class, companyId );
+        assertEquals( "company", company4.name.get() );
+        assertEquals( "street", company4.address.get().street.get() );
+        assertEquals( "more", company4.moreAddresses.iterator().next().street.get() );
+    }
+
+
+    public void testInvalidateOnCommit() throws Exception {
+        createCompany();
+        UnitOfWork uow1 = repo.newUnitOfWork();
+        Company company1 = uow1.entity( Company.class, companyId );
+        company1.name.set( "committed" );
+        uow1.commit();
+
+        Company company2 = repo.newUnitOfWork().entity( Company.class, companyId );
+        assertEquals( "committed", company2.name.get() );
+    }
+
+
+
+    /**
+     * The version checked by {@link OptimisticLocking} is the version of the
+     * snapshot that was read, not the version when the Entity is modified.
+     */
+    public void testOptimisticLocking() throws Exception {
+        uow.close();
+        repo.close();
+        repo = createRepo( new OptimisticLocking( newStore() ) );
+        uow = repo.newUnitOfWork();
+        Employee employee = uow.createEntity( Employee.class, null, (Employee proto) -> {
+            proto.jap.set( 1 );
+            return proto;
+        });
+        uow.commit();
+        Object id = employee.id();
+        // snapshot loaded by another UnitOfWork
+        assertEquals( 1, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+
+        UnitOfWork uowA = repo.newUnitOfWork();
+        Employee employeeA = uowA.entity( Employee.class, id );
+        int read = employeeA.jap.get();
+
+        UnitOfWork uowB = repo.newUnitOfWork();
+        Employee employeeB = uowB.entity( Employee.class, id );
+        employeeB.jap.set( employeeB.jap.get() + 1 );
+        uowB.commit();
+
+        try {
+            employeeA.jap.set( read + 1 );
+            uowA.commit();
+            fail( "Concurrent modification must fail." );
+        }
+        catch (ConcurrentEntityModificationException e) {
+            // ok
+        }
+        assertEquals( 2, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+
+        // no conflict: snapshot read after the last commit
+        UnitOfWork uowC = repo.newUnitOfWork();
+        Employee employeeC = uowC.entity( Employee.class, id );
+        employeeC.jap.set( employeeC.jap.get() + 1 );
+        uowC.commit();
+        assertEquals( 3, (int)repo.newUnitOfWork().entity( Employee.class, id ).jap.get() );
+        uowA.close();
+        uowB.close();
+        uowC.close();
+    }
+
+}
@@ -14,6 +14,9 @@
  */
 package org.polymap.model2.test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
@@ -22,6 +25,7 @@ import org.apache.commons.logging.LogFactory;
 import org.polymap.model2.query.ResultSet;
 import org.polymap.model2.runtime.EntityRepository;
 import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.StartupReport;
 import org.polymap.model2.runtime.UnitOfWork;
 import org.polymap.model2.test.Employee.Rating;
 
@@ -230,4 +234,65 @@ public abstract class SimpleModelTest
         assertEquals( setCount+1, InvocationCountConcern.setCount.get() );        
     }
     
+    
+    public void testReadOnly() throws Exception {
+        Employee employee = uow.createEntity( Employee.class, null, proto -> {
+            proto.name.set( "Mufu" );
+            return proto;
+        });
+        uow.commit();
+        
+        UnitOfWork readOnly = repo.newReadOnlyUnitOfWork();
+        assertTrue( readOnly.isReadOnly() );
+        Employee loaded = readOnly.entity( Employee.class, employee.id() );
+        assertEquals( "Mufu", loaded.name.get() );
+        assertEquals( 1, readOnly.query( Employee.class ).execute().size() );
+        
+        Exception thrown = null;
+        try { 
+            loaded.name.set( "Kaska" );
+        } 
+        catch (Exception e) { thrown = e; }        
+        assertTrue( thrown instanceof ModelRuntimeException );
+        assertEquals( "Mufu", loaded.name.get() );
+
+        thrown = null;
+        try { 
+            readOnly.createEntity( Employee.class, null );
+        } 
+        catch (Exception e) { thrown = e; }        
+        assertTrue( thrown instanceof ModelRuntimeException );
+        readOnly.close();
+    }
+    
+    
+    public void testEntities() throws Exception {
+        List<Object> ids = new ArrayList();
+        for (int i=0; i<5; i++) {
+            ids.add( uow.createEntity( Employee.class, null ).id() );
+        }
+        uow.commit();
+        
+        UnitOfWork uow2 = repo.newUnitOfWork();
+        Employee loaded = uow2.entity( Employee.class, ids.get( 1 ) );
+        uow2.removeEntity( uow2.entity( Employee.class, ids.get( 3 ) ) );
+        ids.add( 2, "unknown" );
+        
+        List<Employee> employees = uow2.entities( Employee.class, ids );
+        assertEquals( 4, employees.size() );
+        assertEquals( ids.get( 0 ), employees.get( 0 ).id() );
+        assertSame( loaded, employees.get( 1 ) );
+        assertEquals( ids.get( 3 ), employees.get( 2 ).id() );
+        assertSame( employees.get( 3 ), uow2.entity( Employee.class, ids.get( 5 ) ) );
+    }
+    
+    
+    public void testStartupReport() throws Exception {
+        StartupReport report = repo.startupReport();
+        log.info( report );
+        assertTrue( report.phases().containsKey( "metadata" ) );
+        assertTrue( report.types( "metadata" ).containsKey( Employee.class ) );
+        assertTrue( report.phases().containsKey( "templates" ) );
+    }
+    
 }
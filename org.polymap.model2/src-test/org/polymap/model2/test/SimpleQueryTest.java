@@ -24,6 +24,7 @@ import static org.polymap.model2.query.Expressions.or;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import junit.framework.TestCase;
 
@@ -35,6 +36,7 @@ import com.google.common.collect.Iterators;
 
 import org.polymap.model2.Entity;
 import org.polymap.model2.query.Expressions;
+import org.polymap.model2.query.Query.StreamMode;
 import org.polymap.model2.query.ResultSet;
 import org.polymap.model2.query.grammar.BooleanExpression;
 import org.polymap.model2.runtime.EntityRepository;
@@ -107,6 +109,34 @@ public abstract class SimpleQueryTest
     }
 
     
+    public void testStreamTransient() throws Exception {
+        createEntities();
+        uow.commit();
+        ulli.name.set( "Philipp2" );
+
+        // modified and loaded Entities are returned as is
+        Employee wanted = Expressions.template( Employee.class, repo );
+        try (Stream<Employee> stream = uow.query( Employee.class ).stream( StreamMode.TRANSIENT )) {
+            List<Employee> results = stream.collect( Collectors.toList() );
+            assertEquals( 2, results.size() );
+            assertTrue( results.stream().anyMatch( e -> e == ulli ) );
+            assertTrue( results.stream().anyMatch( e -> e == az ) );
+        }
+        try (Stream<Employee> stream = uow.query( Employee.class ).where( eq( wanted.name, "Philipp2" ) ).stream( StreamMode.TRANSIENT )) {
+            assertEquals( 1, stream.count() );
+        }
+
+        // Entities are not kept in the UnitOfWork
+        UnitOfWork uow2 = repo.newUnitOfWork();
+        try (Stream<Employee> stream = uow2.query( Employee.class ).where( eq( wanted.firstname, "AZ" ) ).stream( StreamMode.TRANSIENT )) {
+            Employee transientAz = stream.findAny().get();
+            assertEquals( "Zimmermann", transientAz.name.get() );
+            assertNotSame( transientAz, uow2.entity( Employee.class, az.id() ) );
+        }
+        uow2.close();
+    }
+
+
     protected void createEntities() {
         ulli = uow.createEntity( Employee.class, null, new ValueInitializer<Employee>() {
             public Employee initialize( Employee proto ) throws Exception {
@@ -0,0 +1,39 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import junit.framework.TestCase;
+
+import org.polymap.model2.store.StoreSPI;
+
+/**
+ * Base of tests that run against different store backends. A backend provides
+ * a concrete subclass of every test that creates its stores.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class StoreTestCase
+        extends TestCase {
+
+    public StoreTestCase( String name ) {
+        super( name );
+    }
+
+    /**
+     * Creates a new, empty store for the test repository.
+     */
+    protected abstract StoreSPI newStore() throws Exception;
+
+}
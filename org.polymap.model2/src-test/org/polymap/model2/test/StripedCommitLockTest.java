@@ -0,0 +1,216 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.runtime.CommitLockStrategy.Striped;
+import org.polymap.model2.runtime.CommitLockStrategy.Stripes;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.UnitOfWork;
+
+/**
+ * Test for {@link Striped} commit locking.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public abstract class StripedCommitLockTest
+        extends StoreTestCase {
+
+    private static final Log log = LogFactory.getLog( StripedCommitLockTest.class );
+
+    protected EntityRepository      repo;
+
+    protected Stripes               stripes;
+
+    protected ExecutorService       executor = Executors.newCachedThreadPool();
+
+
+    public StripedCommitLockTest( String name ) {
+        super( name );
+    }
+
+    protected void setUp() throws Exception {
+        log.info( " --------------------------------------- " + getClass().getSimpleName() + " : " + getName() );
+    }
+
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        if (repo != null) {
+            repo.close();
+        }
+    }
+
+
+    protected void createRepo( Stripes newStripes ) throws Exception {
+        stripes = newStripes;
+        repo = EntityRepository.newConfiguration()
+                .store.set( newStore() )
+                .entities.set( new Class[] {Employee.class, Company.class} )
+                .commitLockStrategy.set( () -> new Striped( stripes ) )
+                .create();
+    }
+
+
+    /**
+     * Creates Employees with the given ids.
+     */
+    protected void createEmployees( Object... ids ) {
+        UnitOfWork uow = repo.newUnitOfWork();
+        for (Object id : ids) {
+            uow.createEntity( Employee.class, id, (Employee proto) -> {
+                proto.jap.set( 0 );
+                return proto;
+            });
+        }
+        uow.commit();
+        uow.close();
+    }
+
+
+    protected UnitOfWork modify( Object id, int jap ) {
+        UnitOfWork uow = repo.newUnitOfWork();
+        uow.entity( Employee.class, id ).jap.set( jap );
+        return uow;
+    }
+
+
+    public void testDisjointCommitConcurrently() throws Exception {
+        createRepo( new Stripes( 64 ) );
+        String id1 = "e1", id2 = "e2";
+        assertTrue( stripes.indexOf( id1 ) != stripes.indexOf( id2 ) );
+        createEmployees( id1, id2 );
+
+        UnitOfWork uow1 = modify( id1, 1 );
+        uow1.prepare();
+
+        // uow2 does not wait for the prepared uow1
+        UnitOfWork uow2 = modify( id2, 2 );
+        executor.submit( () -> uow2.commit() ).get( 5, TimeUnit.SECONDS );
+        uow1.commit();
+
+        assertEquals( 0, stripes.contentionCount() );
+        UnitOfWork uow = repo.newUnitOfWork();
+        assertEquals( 1, (int)uow.entity( Employee.class, id1 ).jap.get() );
+        assertEquals( 2, (int)uow.entity( Employee.class, id2 ).jap.get() );
+    }
+
+
+    public void testOverlappingWaitsForCommit() throws Exception {
+        createRepo( new Stripes( 64 ) );
+        createEmployees( "e1" );
+
+        UnitOfWork uow1 = modify( "e1", 1 );
+        uow1.prepare();
+
+        UnitOfWork uow2 = modify( "e1", 2 );
+        Future<?> future = executor.submit( () -> uow2.commit() );
+        try {
+            future.get( 200, TimeUnit.MILLISECONDS );
+            fail( "uow2 must wait for uow1." );
+        }
+        catch (TimeoutException e) {
+            // ok
+        }
+        uow1.commit();
+        future.get( 5, TimeUnit.SECONDS );
+
+        log.info( stripes );
+        assertEquals( 1, stripes.contentionCount() );
+        assertTrue( stripes.waitTime( TimeUnit.MILLISECONDS ) >= 150 );
+        assertEquals( 2, (int)repo.newUnitOfWork().entity( Employee.class, "e1" ).jap.get() );
+    }
+
+
+    public void testTimeout() throws Exception {
+        createRepo( new Stripes( 64, 100, TimeUnit.MILLISECONDS ) );
+        createEmployees( "e1" );
+
+        UnitOfWork uow1 = modify( "e1", 1 );
+        uow1.prepare();
+        UnitOfWork uow2 = modify( "e1", 2 );
+        try {
+            uow2.prepare();
+            fail( "Prepare must time out." );
+        }
+        catch (RuntimeException e) {
+            // ok
+        }
+        uow1.commit();
+
+        // stripe is free again
+        uow2.commit();
+        assertEquals( 2, (int)repo.newUnitOfWork().entity( Employee.class, "e1" ).jap.get() );
+    }
+
+
+    public void testRollbackReleases() throws Exception {
+        createRepo( new Stripes( 64, 100, TimeUnit.MILLISECONDS ) );
+        createEmployees( "e1" );
+
+        UnitOfWork uow1 = modify( "e1", 1 );
+        uow1.prepare();
+        uow1.rollback();
+
+        UnitOfWork uow2 = modify( "e1", 2 );
+        uow2.commit();
+        assertEquals( 0, stripes.contentionCount() );
+    }
+
+
+    public void testNoDeadlock() throws Exception {
+        createRepo( new Stripes( 16 ) );
+        String[] ids = new String[32];
+        for (int i=0; i<ids.length; i++) {
+            ids[i] = "e" + i;
+        }
+        createEmployees( (Object[])ids );
+
+        List<Future> futures = new ArrayList();
+        for (int thread=0; thread<8; thread++) {
+            Random random = new Random( thread );
+            futures.add( executor.submit( () -> {
+                for (int i=0; i<100; i++) {
+                    UnitOfWork uow = repo.newUnitOfWork();
+                    // modify a few Entities in random order
+                    for (int j=0; j<4; j++) {
+                        uow.entity( Employee.class, ids[random.nextInt( ids.length )] ).jap.set( i );
+                    }
+                    uow.commit();
+                    uow.close();
+                }
+                return null;
+            }));
+        }
+        for (Future future : futures) {
+            future.get( 30, TimeUnit.SECONDS );
+        }
+        log.info( stripes );
+        // 1-4 stripes per commit
+        assertTrue( stripes.lockCount() >= 8 * 100 );
+        assertTrue( stripes.lockCount() <= 8 * 100 * 4 );
+    }
+
+}
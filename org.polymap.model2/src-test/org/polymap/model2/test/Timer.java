@@ -16,6 +16,9 @@ package org.polymap.model2.test;
 
 import java.util.concurrent.TimeUnit;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -40,6 +43,8 @@ public class Timer {
     
     private Stopwatch       watch = Stopwatch.createUnstarted();
     
+    private long            startAllocated;
+    
     public void start() {
         if (watch.isRunning()) {
             watch.reset().start();
@@ -47,6 +52,24 @@ public class Timer {
         else {
             watch.start();
         }
+        startAllocated = currentThreadAllocated();
+    }
+
+    /**
+     * The number of bytes allocated by the current thread since {@link #start()},
+     * or -1 if the JVM does not support allocation measurement.
+     */
+    public long allocatedBytes() {
+        long current = currentThreadAllocated();
+        return current >= 0 && startAllocated >= 0 ? current - startAllocated : -1;
+    }
+    
+    protected static long currentThreadAllocated() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        return -1;
     }
 
     public long elapsedTime() {
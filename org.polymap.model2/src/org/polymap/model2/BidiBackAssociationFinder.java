@@ -21,6 +21,7 @@ import java.util.stream.Collectors;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.polymap.model2.query.Expressions;
 import org.polymap.model2.runtime.EntityRuntimeContext;
 import org.polymap.model2.runtime.PropertyInfo;
 
@@ -33,6 +34,23 @@ public class BidiBackAssociationFinder {
 
     private static Log log = LogFactory.getLog( BidiBackAssociationFinder.class );
     
+    /**
+     * Finds the back association in the (shared) query template of the given
+     * target type.
+     *
+     * @param context The runtime context of the host entity.
+     * @param propInfo The property of the host {@link Association}.
+     * @param targetType The type of the target {@link Entity}.
+     * @return The {@link Association} or {@link ManyAssociation} of the query
+     *         template of the target type.
+     */
+    public static <T extends Entity> PropertyBase<T> findBackAssociation( 
+            EntityRuntimeContext context, PropertyInfo propInfo, Class<T> targetType ) {
+        T template = Expressions.template( targetType, context.getRepository() );
+        return findBackAssociation( context, propInfo, template );
+    }
+    
+    
     /**
      * 
      *
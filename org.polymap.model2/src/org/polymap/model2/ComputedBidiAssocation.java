@@ -21,7 +21,6 @@ import org.apache.commons.logging.LogFactory;
 
 import org.polymap.model2.query.Expressions;
 import org.polymap.model2.query.ResultSet;
-import org.polymap.model2.runtime.EntityRepository;
 import org.polymap.model2.runtime.UnitOfWork;
 
 /**
@@ -40,9 +39,7 @@ public class ComputedBidiAssocation<T extends Entity>
     
     @Override
     public T get() {
-        EntityRepository repo = composite.context.getRepository();
-        Entity template = (Entity)Expressions.template( info.getType(), repo );
-        PropertyBase<Entity> backAssoc = findBackAssociation( composite.context, info, template );
+        PropertyBase<Entity> backAssoc = findBackAssociation( composite.context, info, (Class<Entity>)info.getType() );
         
         UnitOfWork uow = composite.context.getUnitOfWork();
         // ManyAssociation
@@ -29,7 +29,12 @@ import org.polymap.model2.runtime.ModelRuntimeException;
  * A concern must implement {@link Property} and/or {@link CollectionProperty},
  * depending on what kind of property it is a concern of. Wrong type of concern
  * results in a {@link ModelRuntimeException}.
+ * <p/>
+ * Concerns of a {@link Property} can also be a {@link StatelessPropertyConcern}.
+ * Just one instance of such a concern is created and shared by all properties.
  * 
+ * @see PropertyConcernBase
+ * @see StatelessPropertyConcern
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
 @Retention( RetentionPolicy.RUNTIME )
@@ -37,6 +42,9 @@ import org.polymap.model2.runtime.ModelRuntimeException;
 @Documented
 public @interface Concerns {
 
-    public Class<? extends PropertyConcernBase>[] value();
+    /**
+     * Subclasses of {@link PropertyConcernBase} or {@link StatelessPropertyConcern}.
+     */
+    public Class<?>[] value();
     
 }
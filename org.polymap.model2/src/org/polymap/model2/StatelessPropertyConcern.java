@@ -0,0 +1,46 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2;
+
+import org.polymap.model2.runtime.EntityRuntimeContext;
+import org.polymap.model2.runtime.ValueInitializer;
+
+/**
+ * A concern intercepting a {@link Property} value, without any state. In contrast
+ * to {@link PropertyConcern} just one instance of a stateless concern is created per
+ * concern type. This instance is shared by all properties the concern is declared
+ * for. The context and the delegate of the call are passed as arguments. Loading
+ * an Entity does not allocate anything for stateless concerns.
+ * <p/>
+ * Implementations must be thread save and must have a default constructor.
+ *
+ * @see Concerns
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public interface StatelessPropertyConcern<T> {
+
+    public default T get( EntityRuntimeContext context, Property<T> delegate ) {
+        return delegate.get();
+    }
+
+    public default T createValue( EntityRuntimeContext context, Property<T> delegate, ValueInitializer<T> initializer ) {
+        return delegate.createValue( initializer );
+    }
+
+    public default void set( EntityRuntimeContext context, Property<T> delegate, T value ) {
+        delegate.set( value );
+    }
+
+}
@@ -32,10 +32,10 @@ class AssociationImpl<T extends Entity>
 
     private static Log log = LogFactory.getLog( AssociationImpl.class );
     
-    private EntityRuntimeContext        context;
+    protected EntityRuntimeContext      context;
     
     /** Holding the id of the associated Entity. */
-    private StoreProperty<Object>       storeProp;
+    protected StoreProperty<Object>     storeProp;
     
     
     /**
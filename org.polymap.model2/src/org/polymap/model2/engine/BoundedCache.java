@@ -0,0 +1,669 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntBiFunction;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.configuration.CompleteConfiguration;
+import javax.cache.configuration.Configuration;
+import javax.cache.configuration.Factory;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryListener;
+import javax.cache.event.CacheEntryRemovedListener;
+import javax.cache.event.EventType;
+import javax.cache.integration.CacheLoader;
+import javax.cache.integration.CompletionListener;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.EntryProcessorException;
+import javax.cache.processor.EntryProcessorResult;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache with a maximum size/weight, based on {@link ConcurrentHashMap} and a
+ * segmented LRU eviction policy. New entries go to the probation segment, entries
+ * that are accessed again are promoted to the protected segment (80% of the
+ * maximum). Victims are taken from the end of the probation segment first. So
+ * one-time accesses of a scan do not flush the frequently used entries.
+ * <p/>
+ * Accesses are recorded only if the lock of the LRU lists can be acquired without
+ * waiting; under contention the order is approximated.
+ * <p/>
+ * Evicted entries are signaled to the {@link CacheEntryRemovedListener}s of the
+ * {@link CompleteConfiguration} of the cache.
+ *
+ * @see SimpleCacheManager#SimpleCacheManager(long)
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class BoundedCache<K,V>
+        implements Cache<K,V> {
+
+    private static Log log = LogFactory.getLog( BoundedCache.class );
+
+    public static final double          PROTECTED_RATIO = 0.8;
+
+    /**
+     * An entry of the cache and the list of its segment.
+     */
+    protected static final class Node<K,V> {
+
+        public final K          key;
+
+        public final V          value;
+
+        public final int        weight;
+
+        /** Guarded by {@link BoundedCache#lock}. */
+        protected Node<K,V>     prev, next;
+
+        /** Guarded by {@link BoundedCache#lock}. */
+        protected boolean       isProtected;
+
+        protected Node( K key, V value, int weight ) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+
+        protected boolean isLinked() {
+            return prev != null;
+        }
+    }
+
+
+    // instance *******************************************
+
+    private ConcurrentMap<K,Node<K,V>>  entries = new ConcurrentHashMap( 1024 );
+
+    private CacheLoader<K,V>            loader;
+
+    private List<CacheEntryRemovedListener<K,V>> removedListeners = new ArrayList();
+
+    private long                        maximumWeight;
+
+    private ToIntBiFunction<K,V>        weigher;
+
+    private ReentrantLock               lock = new ReentrantLock();
+
+    /** Sentinels of the segments; head.next is the most recently used entry. */
+    private Node<K,V>                   probation = sentinel(), protect = sentinel();
+
+    private long                        probationWeight, protectedWeight;
+
+    private CompleteConfiguration<K,V>  config;
+
+    private String                      name;
+
+    private CacheManager                cacheManager;
+
+    /** The statistics of this cache, or null if statistics are disabled. */
+    private volatile CacheStatistics    stats;
+
+
+    /**
+     * Creates a cache that holds up to the given number of entries.
+     */
+    public BoundedCache( Configuration config, long maximumSize ) {
+        this( config, maximumSize, (key,value) -> 1 );
+    }
+
+
+    /**
+     * Creates a cache whose entries weigh up to the given maximum weight.
+     *
+     * @param weigher Computes the weight of an entry; called once when the entry
+     *        is added.
+     */
+    public BoundedCache( Configuration config, long maximumWeight, ToIntBiFunction<K,V> weigher ) {
+        assert maximumWeight > 0 : "maximumWeight must be > 0";
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.config = config instanceof CompleteConfiguration
+                ? (CompleteConfiguration)config
+                : new MutableConfiguration().setTypes( config.getKeyType(), config.getValueType() );
+        if (config instanceof CompleteConfiguration) {
+            Factory<CacheLoader<K,V>> factory = ((CompleteConfiguration)config).getCacheLoaderFactory();
+            if (factory != null) {
+                loader = factory.create();
+            }
+            for (Object listenerConfig : ((CompleteConfiguration)config).getCacheEntryListenerConfigurations()) {
+                CacheEntryListener listener = (CacheEntryListener)((CacheEntryListenerConfiguration)listenerConfig).getCacheEntryListenerFactory().create();
+                if (listener instanceof CacheEntryRemovedListener) {
+                    removedListeners.add( (CacheEntryRemovedListener)listener );
+                }
+            }
+            enableStatistics( ((CompleteConfiguration)config).isStatisticsEnabled() );
+        }
+    }
+
+
+    /**
+     * Called by the {@link SimpleCacheManager} that has created this cache.
+     */
+    void registered( CacheManager manager, String cacheName ) {
+        this.cacheManager = manager;
+        this.name = cacheName;
+    }
+
+
+    /**
+     * Starts or stops recording {@link CacheStatistics} of this cache.
+     */
+    public void enableStatistics( boolean enabled ) {
+        if (enabled && stats == null) {
+            stats = new CacheStatistics( () -> entries != null ? entries.size() : 0 );
+        }
+        else if (!enabled) {
+            stats = null;
+        }
+    }
+
+
+    /**
+     * The statistics of this cache, or null if statistics are disabled.
+     */
+    public CacheStatistics statistics() {
+        return stats;
+    }
+
+
+    protected Node<K,V> sentinel() {
+        Node<K,V> result = new Node( null, null, 0 );
+        result.prev = result.next = result;
+        return result;
+    }
+
+
+    protected void checkOpen() {
+        if (entries == null) {
+            throw new IllegalStateException( "Cache is closed." );
+        }
+    }
+
+
+    public long weight() {
+        return probationWeight + protectedWeight;
+    }
+
+
+    public int size() {
+        return entries.size();
+    }
+
+
+    @Override
+    public V get( K key ) {
+        checkOpen();
+        Node<K,V> node = entries.get( key );
+        CacheStatistics s = stats;
+        if (node != null) {
+            afterRead( node );
+            if (s != null) {
+                s.recordHit();
+            }
+            return node.value;
+        }
+        if (s != null) {
+            s.recordMiss();
+        }
+        if (loader != null) {
+            // we do not prevent threads from concurrently creating a value for the
+            // same key! but we make sure that just one value is returned to all threads
+            long start = s != null ? System.nanoTime() : 0;
+            V value = loader.load( key );
+            if (s != null) {
+                s.recordLoad( System.nanoTime() - start );
+            }
+            if (value != null) {
+                node = new Node( key, value, weigher.applyAsInt( key, value ) );
+                Node<K,V> previous = entries.putIfAbsent( key, node );
+                if (previous != null) {
+                    return previous.value;
+                }
+                afterWrite( node, null );
+            }
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * Loads the missing values with just one call of
+     * {@link CacheLoader#loadAll(Iterable)}.
+     */
+    @Override
+    public Map<K,V> getAll( Set<? extends K> keys ) {
+        checkOpen();
+        Map<K,V> result = new HashMap( keys.size() * 2 );
+        Set<K> missing = new HashSet();
+        for (K key : keys) {
+            Node<K,V> node = entries.get( key );
+            if (node != null) {
+                afterRead( node );
+                result.put( key, node.value );
+            }
+            else {
+                missing.add( key );
+            }
+        }
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.hits.add( result.size() );
+            s.misses.add( missing.size() );
+        }
+        if (!missing.isEmpty() && loader != null) {
+            long start = s != null ? System.nanoTime() : 0;
+            Map<K,V> loaded = loader.loadAll( missing );
+            if (s != null) {
+                s.loads.add( loaded.size() );
+                s.loadNanos.add( System.nanoTime() - start );
+            }
+            for (Map.Entry<K,V> entry : loaded.entrySet()) {
+                if (entry.getValue() != null) {
+                    Node<K,V> node = new Node( entry.getKey(), entry.getValue(), weigher.applyAsInt( entry.getKey(), entry.getValue() ) );
+                    Node<K,V> previous = entries.putIfAbsent( entry.getKey(), node );
+                    if (previous == null) {
+                        afterWrite( node, null );
+                    }
+                    result.put( entry.getKey(), previous != null ? previous.value : entry.getValue() );
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean containsKey( K key ) {
+        return entries.containsKey( key );
+    }
+
+    @Override
+    public void put( K key, V value ) {
+        checkOpen();
+        Node<K,V> node = new Node( key, value, weigher.applyAsInt( key, value ) );
+        afterWrite( node, entries.put( key, node ) );
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.recordPut();
+        }
+    }
+
+    @Override
+    public void putAll( Map<? extends K,? extends V> map ) {
+        map.forEach( (key,value) -> put( key, value ) );
+    }
+
+    @Override
+    public boolean putIfAbsent( K key, V value ) {
+        checkOpen();
+        Node<K,V> node = new Node( key, value, weigher.applyAsInt( key, value ) );
+        if (entries.putIfAbsent( key, node ) == null) {
+            afterWrite( node, null );
+            CacheStatistics s = stats;
+            if (s != null) {
+                s.recordPut();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean remove( K key ) {
+        checkOpen();
+        Node<K,V> node = entries.remove( key );
+        if (node != null) {
+            lock.lock();
+            try {
+                unlink( node );
+            }
+            finally {
+                lock.unlock();
+            }
+            CacheStatistics s = stats;
+            if (s != null) {
+                s.recordRemoval();
+            }
+        }
+        return node != null;
+    }
+
+    @Override
+    public void removeAll( Set<? extends K> keys ) {
+        keys.forEach( key -> remove( key ) );
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            probation = sentinel();
+            protect = sentinel();
+            probationWeight = protectedWeight = 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public <C extends Configuration<K,V>> C getConfiguration( Class<C> clazz ) {
+        if (clazz.isInstance( config )) {
+            return clazz.cast( config );
+        }
+        throw new IllegalArgumentException( "Configuration is not of type: " + clazz.getName() );
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CacheManager getCacheManager() {
+        return cacheManager;
+    }
+
+
+    // LRU ************************************************
+
+    /**
+     * Records the access of the given node if the lock is available.
+     */
+    protected void afterRead( Node<K,V> node ) {
+        if (lock.tryLock()) {
+            try {
+                if (node.isLinked()) {
+                    if (node.isProtected) {
+                        unlink( node );
+                        link( protect, node );
+                    }
+                    else {
+                        // promote
+                        unlink( node );
+                        node.isProtected = true;
+                        link( protect, node );
+                        demote();
+                    }
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Links the newly added node and evicts entries if the maximum weight is
+     * exceeded.
+     */
+    protected void afterWrite( Node<K,V> node, Node<K,V> replaced ) {
+        List<Node<K,V>> evicted = Collections.EMPTY_LIST;
+        lock.lock();
+        try {
+            if (replaced != null) {
+                unlink( replaced );
+            }
+            // might be removed concurrently
+            if (entries.get( node.key ) == node) {
+                link( probation, node );
+            }
+            evicted = evict();
+        }
+        finally {
+            lock.unlock();
+        }
+        if (!evicted.isEmpty()) {
+            fireEvicted( evicted );
+        }
+    }
+
+
+    protected List<Node<K,V>> evict() {
+        assert lock.isHeldByCurrentThread();
+        List<Node<K,V>> result = Collections.EMPTY_LIST;
+        while (weight() > maximumWeight) {
+            Node<K,V> victim = probation.prev != probation ? probation.prev : protect.prev;
+            if (victim == protect) {
+                break;
+            }
+            unlink( victim );
+            entries.remove( victim.key, victim );
+            result = result.isEmpty() ? new ArrayList() : result;
+            result.add( victim );
+        }
+        return result;
+    }
+
+
+    /**
+     * Moves the least recently used entries of the protected segment to the
+     * probation segment until the protected segment fits its maximum.
+     */
+    protected void demote() {
+        long maxProtected = (long)(maximumWeight * PROTECTED_RATIO);
+        while (protectedWeight > maxProtected && protect.prev != protect) {
+            Node<K,V> node = protect.prev;
+            unlink( node );
+            node.isProtected = false;
+            link( probation, node );
+        }
+    }
+
+
+    protected void link( Node<K,V> head, Node<K,V> node ) {
+        node.next = head.next;
+        node.prev = head;
+        head.next.prev = node;
+        head.next = node;
+        if (node.isProtected) {
+            protectedWeight += node.weight;
+        }
+        else {
+            probationWeight += node.weight;
+        }
+    }
+
+
+    protected void unlink( Node<K,V> node ) {
+        if (node.isLinked()) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = node.next = null;
+            if (node.isProtected) {
+                protectedWeight -= node.weight;
+            }
+            else {
+                probationWeight -= node.weight;
+            }
+        }
+    }
+
+
+    protected void fireEvicted( List<Node<K,V>> evicted ) {
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.evictions.add( evicted.size() );
+        }
+        if (!removedListeners.isEmpty()) {
+            List<CacheEntryEvent<? extends K,? extends V>> events = new ArrayList( evicted.size() );
+            for (Node<K,V> node : evicted) {
+                events.add( new EvictedEvent( node ) );
+            }
+            for (CacheEntryRemovedListener<K,V> listener : removedListeners) {
+                listener.onRemoved( events );
+            }
+        }
+    }
+
+
+    /**
+     *
+     */
+    protected class EvictedEvent
+            extends CacheEntryEvent<K,V> {
+
+        private Node<K,V>       node;
+
+        public EvictedEvent( Node<K,V> node ) {
+            super( BoundedCache.this, EventType.REMOVED );
+            this.node = node;
+        }
+
+        @Override
+        public K getKey() {
+            return node.key;
+        }
+
+        @Override
+        public V getValue() {
+            return node.value;
+        }
+
+        @Override
+        public V getOldValue() {
+            return node.value;
+        }
+
+        @Override
+        public boolean isOldValueAvailable() {
+            return true;
+        }
+
+        @Override
+        public <T> T unwrap( Class<T> clazz ) {
+            throw new IllegalArgumentException( "Unwrapping is not supported." );
+        }
+    }
+
+
+    // not supported **************************************
+
+    @Override
+    public void loadAll( Set<? extends K> keys, boolean replaceExistingValues, CompletionListener completionListener ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public V getAndPut( K key, V value ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public boolean remove( K key, V oldValue ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public V getAndRemove( K key ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public boolean replace( K key, V oldValue, V newValue ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public boolean replace( K key, V value ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public V getAndReplace( K key, V value ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public void removeAll() {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public <T> T invoke( K key, EntryProcessor<K,V,T> entryProcessor, Object... arguments )
+            throws EntryProcessorException {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public <T> Map<K,EntryProcessorResult<T>> invokeAll( Set<? extends K> keys, EntryProcessor<K,V,T> entryProcessor,
+            Object... arguments ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+
+    @Override
+    public void close() {
+        entries = null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return entries == null;
+    }
+
+    /**
+     * Unwraps the {@link CacheStatistics} of this cache (null if statistics are
+     * disabled) or this cache.
+     */
+    @Override
+    public <T> T unwrap( Class<T> clazz ) {
+        return clazz.equals( CacheStatistics.class ) ? clazz.cast( stats ) : clazz.cast( this );
+    }
+
+    @Override
+    public void registerCacheEntryListener( CacheEntryListenerConfiguration<K,V> cacheEntryListenerConfiguration ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public void deregisterCacheEntryListener( CacheEntryListenerConfiguration<K,V> cacheEntryListenerConfiguration ) {
+        throw new RuntimeException( "not yet implemented." );
+    }
+
+    @Override
+    public Iterator<Cache.Entry<K,V>> iterator() {
+        return entries.values().stream()
+            .<Cache.Entry<K,V>>map( node -> new Cache.Entry<K,V>() {
+                @Override
+                public K getKey() { return node.key; }
+                @Override
+                public V getValue() { return node.value; }
+                @Override
+                public <T> T unwrap( Class<T> clazz ) { throw new IllegalArgumentException( "Unwrapping is not supported." ); }
+            })
+            .iterator();
+    }
+
+}
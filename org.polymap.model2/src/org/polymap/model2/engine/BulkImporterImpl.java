@@ -0,0 +1,147 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.Entity;
+import org.polymap.model2.runtime.BulkImporter;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.ValueInitializer;
+import org.polymap.model2.store.CompositeState;
+
+/**
+ * Builds the Entities on states of {@link StoreUnitOfWork#newEntityState(Object, Class)}
+ * of an internal {@link UnitOfWorkImpl} but does not register them in the
+ * UnitOfWork. Each batch is written by one prepare/commit of the store.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+class BulkImporterImpl<T extends Entity>
+        implements BulkImporter<T> {
+
+    private static Log log = LogFactory.getLog( BulkImporterImpl.class );
+
+    private EntityRepositoryImpl    repo;
+
+    private Class<T>                entityClass;
+
+    private int                     batchSize = DEFAULT_BATCH_SIZE;
+
+    private Consumer<Progress>      onProgress;
+
+
+    public BulkImporterImpl( EntityRepositoryImpl repo, Class<T> entityClass ) {
+        this.repo = repo;
+        this.entityClass = entityClass;
+    }
+
+
+    @Override
+    public BulkImporter<T> batchSize( @SuppressWarnings("hiding") int batchSize ) {
+        assert batchSize > 0 : "batchSize must be > 0";
+        this.batchSize = batchSize;
+        return this;
+    }
+
+
+    @Override
+    public BulkImporter<T> onProgress( Consumer<Progress> callback ) {
+        this.onProgress = callback;
+        return this;
+    }
+
+
+    @Override
+    public long importAll( Stream<? extends ValueInitializer<T>> initializers ) throws ModelRuntimeException {
+        UnitOfWorkImpl uow = (UnitOfWorkImpl)repo.newUnitOfWork();
+        try {
+            long start = System.nanoTime();
+            long batchStart = start;
+            long count = 0, batches = 0;
+            List<Entity> batch = new ArrayList( batchSize );
+            Iterator<? extends ValueInitializer<T>> it = initializers.iterator();
+            while (it.hasNext()) {
+                batch.add( createEntity( uow, it.next() ) );
+                
+                if (batch.size() >= batchSize || !it.hasNext()) {
+                    flush( uow, batch );
+                    count += batch.size();
+                    batches ++;
+                    // release references
+                    batch = new ArrayList( batchSize );
+                    
+                    long now = System.nanoTime();
+                    Progress progress = new Progress( count, batches, now - start, now - batchStart );
+                    log.debug( progress );
+                    if (onProgress != null) {
+                        onProgress.accept( progress );
+                    }
+                    batchStart = now;
+                }
+            }
+            return count;
+        }
+        finally {
+            uow.close();
+        }
+    }
+
+
+    protected T createEntity( UnitOfWorkImpl uow, ValueInitializer<T> initializer ) {
+        String id = UnitOfWorkImpl.newId( entityClass );
+        CompositeState state = uow.storeUow.newEntityState( id, entityClass );
+        T result = repo.buildEntity( state, entityClass, uow );
+        repo.contextOfEntity( result ).raiseStatus( EntityStatus.CREATED );
+        try {
+            initializer.initialize( result );
+        }
+        catch (Exception e) {
+            throw new ModelRuntimeException( "Error while initializing.", e );
+        }
+        return result;
+    }
+
+
+    protected void flush( UnitOfWorkImpl uow, List<Entity> batch ) {
+        List<Object> ids = new ArrayList( batch.size() );
+        for (Entity entity : batch) {
+            ids.add( entity.id() );
+        }
+        uow.commitLock.lock( ids );
+        try {
+            uow.storeUow.prepareCommit( batch );
+            uow.storeUow.commit();
+        }
+        catch (Exception e) {
+            uow.storeUow.rollback();
+            throw e instanceof ModelRuntimeException 
+                    ? (ModelRuntimeException)e 
+                    : new ModelRuntimeException( e );
+        }
+        finally {
+            uow.commitLock.unlock( true );
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import javax.cache.Cache.Entry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.Composite;
+import org.polymap.model2.Entity;
+import org.polymap.model2.query.Assignment;
+import org.polymap.model2.query.Query;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.PropertyInfo;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.store.StoreResultSet;
+import org.polymap.model2.store.StoreUnitOfWork;
+
+/**
+ * Executes {@link Query#delete()} and {@link Query#update(Assignment...)} of a
+ * {@link UnitOfWorkImpl}. The modified Entities of the UnitOfWork are changed in
+ * memory immediately. All other Entities are changed by {@link #prepare()},
+ * called by {@link UnitOfWorkImpl#prepare()} within the store UnitOfWork and the
+ * commit lock of the UnitOfWork. They are changed by
+ * {@link StoreUnitOfWork#prepareDelete(Query, Set)} and
+ * {@link StoreUnitOfWork#prepareUpdate(Query, Map, Set)} if the store supports
+ * this, or loaded into the UnitOfWork in chunks of {@link #CHUNK_SIZE} and
+ * changed there otherwise.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+class BulkOperation<T extends Entity> {
+
+    private static Log log = LogFactory.getLog( BulkOperation.class );
+
+    public static final int         CHUNK_SIZE = 1000;
+
+    /**
+     * Prepares the operation in the given {@link StoreUnitOfWork}.
+     */
+    @FunctionalInterface
+    interface Pushdown {
+        public boolean prepare( StoreUnitOfWork suow, Set<Object> excluded ) throws Exception;
+    }
+
+    /**
+     * Applies the operation to an Entity of the given {@link UnitOfWork}.
+     */
+    @FunctionalInterface
+    interface ChunkOperation<T> {
+        public void apply( UnitOfWork uow, T entity );
+    }
+
+    // instance *******************************************
+
+    private UnitOfWorkImpl          uow;
+
+    private Query<T>                query;
+
+    private Pushdown                pushdown;
+
+    private ChunkOperation<T>       op;
+
+    /** True if {@link #prepare()} has changed the Entities inside the store. */
+    private boolean                 pushedDown;
+
+
+    public BulkOperation( UnitOfWorkImpl uow, Query<T> query ) {
+        if (query.firstResult != 0 || query.maxResults != Integer.MAX_VALUE) {
+            throw new ModelRuntimeException( "firstResult/maxResults are not supported for update/delete." );
+        }
+        this.uow = uow;
+        this.query = query;
+    }
+
+
+    public void delete() {
+        execute(
+                (suow, excluded) -> suow.prepareDelete( query, excluded ),
+                (chunkUow, entity) -> chunkUow.removeEntity( entity ) );
+    }
+
+
+    public void update( Assignment<?>[] assignments ) {
+        Map<PropertyInfo,Object> values = new HashMap();
+        boolean simple = true;
+        for (Assignment<?> assignment : assignments) {
+            PropertyInfo info = assignment.info();
+            if (info.isComputed()) {
+                throw new ModelRuntimeException( "Property is @Computed: " + info.getName() );
+            }
+            if (info.isImmutable()) {
+                throw new ModelRuntimeException( "Property is @Immutable: " + info.getName() );
+            }
+            if (!info.isNullable() && assignment.value == null) {
+                throw new ModelRuntimeException( "Property is not @Nullable: " + info.getName() );
+            }
+            simple &= !info.isAssociation() && info.getMaxOccurs() == 1
+                    && !Composite.class.isAssignableFrom( info.getType() );
+            values.put( info, assignment.value );
+        }
+        boolean simpleValues = simple;
+        execute(
+                (suow, excluded) -> simpleValues && suow.prepareUpdate( query, values, excluded ),
+                (chunkUow, entity) -> {
+                    for (Assignment<?> assignment : assignments) {
+                        assignment.apply( entity );
+                    }
+                });
+    }
+
+
+    public void update( Consumer<T> updater ) {
+        execute(
+                (suow, excluded) -> false,
+                (chunkUow, entity) -> updater.accept( entity ) );
+    }
+
+
+    /**
+     * Applies the operation to the modified Entities of the UnitOfWork and
+     * registers this operation for the next {@link UnitOfWorkImpl#prepare()}.
+     *
+     * @param pushdown Prepares the operation inside the store.
+     * @param op Applies the operation to an Entity of the given UnitOfWork.
+     */
+    protected void execute( Pushdown pushdown, ChunkOperation<T> op ) {
+        uow.checkOpen();
+        uow.checkWritable();
+        uow.checkNoPendingCommit();
+        this.pushdown = pushdown;
+        this.op = op;
+
+        // modified Entities of the UnitOfWork: in memory
+        List<T> matching = new ArrayList();
+        uow.modifiedResults( query.resultType, query.expression ).forEachRemaining( matching::add );
+        for (T entity : matching) {
+            op.apply( uow, entity );
+        }
+        uow.bulkOperations.add( this );
+    }
+
+
+    /**
+     * Applies the operation to all Entities that are not modified in the
+     * UnitOfWork, inside the store or in chunks if the store does not support
+     * this. Called by {@link UnitOfWorkImpl#prepare()} within the commit lock,
+     * before the modified Entities are prepared.
+     */
+    protected void prepare() throws Exception {
+        Set<Object> excluded = new HashSet();
+        for (Entity entity : uow.modified.values()) {
+            if (entity.getClass().equals( query.resultType )) {
+                excluded.add( entity.id() );
+            }
+        }
+        pushedDown = pushdown.prepare( uow.storeUow, excluded );
+        if (!pushedDown) {
+            prepareChunked( excluded );
+        }
+    }
+
+
+    /**
+     * Loads the matching Entities into the UnitOfWork in chunks of
+     * {@link #CHUNK_SIZE} and applies the operation. The changed Entities are
+     * written by the same commit as all other modified Entities, so that the
+     * operation is done completely or not at all. The ids are collected first,
+     * so that the operation does not interfere with the query.
+     */
+    protected void prepareChunked( Set<Object> excluded ) {
+        List<Object> ids = new ArrayList( 1024 );
+        StoreResultSet rs = uow.storeUow.executeQuery( query );
+        try {
+            rs.forEachRemaining( ref -> {
+                if (!excluded.contains( ref.id() )) {
+                    ids.add( ref.id() );
+                }
+            });
+        }
+        finally {
+            rs.close();
+        }
+        log.debug( "Chunked: " + query.resultType.getSimpleName() + " : " + ids.size() );
+
+        for (int i=0; i<ids.size(); i+=CHUNK_SIZE) {
+            List<Object> chunk = ids.subList( i, Math.min( i + CHUNK_SIZE, ids.size() ) );
+            for (T entity : uow.entities( query.resultType, chunk )) {
+                if (entity != null) {
+                    op.apply( uow, entity );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Evicts the loaded but unmodified Entities of the type from the UnitOfWork,
+     * and their shared snapshots, so that subsequent access loads the new states.
+     * The evicted instances are marked {@link EntityStatus#EVICTED}, so that
+     * references held by the client fail instead of returning stale states.
+     * Called by {@link UnitOfWorkImpl#afterCommit()} before the status of the
+     * modified Entities is reset. Nothing to do if the Entities were changed
+     * in chunks; they are modified Entities of the UnitOfWork then.
+     */
+    protected void afterCommit() {
+        if (!pushedDown) {
+            return;
+        }
+        Map<Object,Entity> evict = new HashMap();
+        for (Entry<Object,Entity> entry : uow.loaded) {
+            if (entry.getValue().getClass().equals( query.resultType )
+                    && !uow.modified.containsKey( entry.getKey() )) {
+                evict.put( entry.getKey(), entry.getValue() );
+            }
+        }
+        evict.forEach( (id, entity) -> {
+            uow.loaded.remove( id );
+            uow.repo.contextOfEntity( entity ).evicted();
+        });
+        if (uow.stats != null) {
+            uow.stats.recordSize( query.resultType, -evict.size() );
+        }
+        if (uow.repo.snapshots() != null) {
+            uow.repo.snapshots().invalidate( query.resultType );
+        }
+    }
+
+}
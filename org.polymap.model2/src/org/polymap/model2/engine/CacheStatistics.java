@@ -0,0 +1,239 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.cache.management.CacheStatisticsMXBean;
+
+/**
+ * Thread-safe statistics of a cache. Implements the JCache
+ * {@link CacheStatisticsMXBean} plus the number and time of loads and the size of
+ * the cache ({@link ExtendedCacheStatisticsMXBean}). Times of get, put and remove
+ * operations are not tracked; the corresponding averages are always 0.
+ *
+ * @see SimpleCacheManager#enableStatistics(String, boolean)
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class CacheStatistics
+        implements ExtendedCacheStatisticsMXBean {
+
+    // instance *******************************************
+
+    protected LongAdder         hits = new LongAdder();
+
+    protected LongAdder         misses = new LongAdder();
+
+    protected LongAdder         puts = new LongAdder();
+
+    protected LongAdder         removals = new LongAdder();
+
+    protected LongAdder         evictions = new LongAdder();
+
+    protected LongAdder         loads = new LongAdder();
+
+    protected LongAdder         loadNanos = new LongAdder();
+
+    /** Provides the current size of the cache, or null if the size is tracked. */
+    protected LongSupplier      size;
+
+    protected LongAdder         trackedSize = new LongAdder();
+
+
+    /**
+     * Creates statistics whose size is tracked via {@link #recordSize(long)}.
+     */
+    public CacheStatistics() {
+    }
+
+
+    /**
+     * Creates statistics whose size is provided by the cache.
+     */
+    public CacheStatistics( LongSupplier size ) {
+        this.size = size;
+    }
+
+
+    public void recordHit() {
+        hits.increment();
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    public void recordPut() {
+        puts.increment();
+    }
+
+    public void recordRemoval() {
+        removals.increment();
+    }
+
+    public void recordEviction() {
+        evictions.increment();
+    }
+
+    public void recordLoad( long nanos ) {
+        loads.increment();
+        loadNanos.add( nanos );
+    }
+
+    /**
+     * Records the given number of hits and misses of a bulk get.
+     */
+    public void recordGets( long hitCount, long missCount ) {
+        hits.add( hitCount );
+        misses.add( missCount );
+    }
+
+    public void recordPuts( long count ) {
+        puts.add( count );
+    }
+
+    /**
+     * Records the given number of values loaded in bulk and the time it took.
+     */
+    public void recordLoads( long count, long nanos ) {
+        loads.add( count );
+        loadNanos.add( nanos );
+    }
+
+    public void recordSize( long delta ) {
+        trackedSize.add( delta );
+    }
+
+
+    /**
+     * Adds the values of the given statistics to this statistics.
+     *
+     * @return this
+     */
+    public CacheStatistics add( CacheStatistics other ) {
+        hits.add( other.getCacheHits() );
+        misses.add( other.getCacheMisses() );
+        puts.add( other.getCachePuts() );
+        removals.add( other.getCacheRemovals() );
+        evictions.add( other.getCacheEvictions() );
+        loads.add( other.getCacheLoads() );
+        loadNanos.add( other.loadNanos.sum() );
+        trackedSize.add( other.getCacheSize() );
+        return this;
+    }
+
+
+    /**
+     * A copy of the current values.
+     */
+    public CacheStatistics snapshot() {
+        return new CacheStatistics().add( this );
+    }
+
+
+    @Override
+    public void clear() {
+        hits.reset();
+        misses.reset();
+        puts.reset();
+        removals.reset();
+        evictions.reset();
+        loads.reset();
+        loadNanos.reset();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public float getCacheHitPercentage() {
+        long gets = getCacheGets();
+        return gets > 0 ? getCacheHits() * 100f / gets : 0;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public float getCacheMissPercentage() {
+        long gets = getCacheGets();
+        return gets > 0 ? getCacheMisses() * 100f / gets : 0;
+    }
+
+    @Override
+    public long getCacheGets() {
+        return getCacheHits() + getCacheMisses();
+    }
+
+    @Override
+    public long getCachePuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getCacheRemovals() {
+        return removals.sum();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getCacheLoads() {
+        return loads.sum();
+    }
+
+    @Override
+    public float getAverageLoadTime() {
+        long count = getCacheLoads();
+        return count > 0 ? (float)TimeUnit.NANOSECONDS.toMicros( loadNanos.sum() ) / count : 0;
+    }
+
+    @Override
+    public long getCacheSize() {
+        return size != null ? size.getAsLong() : trackedSize.sum();
+    }
+
+    @Override
+    public float getAverageGetTime() {
+        return 0;
+    }
+
+    @Override
+    public float getAveragePutTime() {
+        return 0;
+    }
+
+    @Override
+    public float getAverageRemoveTime() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatistics[hits=" + getCacheHits() + ",misses=" + getCacheMisses()
+                + ",loads=" + getCacheLoads() + ",avgLoad=" + getAverageLoadTime() + "µs"
+                + ",evictions=" + getCacheEvictions() + ",size=" + getCacheSize() + "]";
+    }
+
+}
@@ -46,6 +46,9 @@ public class CompositeCollectionPropertyImpl<T extends Composite>
     // XXX make it a Cache!?
     private ArrayList<T>                    cache;
 
+    /** The plan of the Composite element type; resolved on first access. */
+    private InstancePlan                    plan;
+
     
     public CompositeCollectionPropertyImpl( EntityRuntimeContext entityContext, StoreCollectionProperty storeProp ) {
         super( entityContext, storeProp );
@@ -55,8 +58,7 @@ public class CompositeCollectionPropertyImpl<T extends Composite>
     @Override
     public T createElement( ValueInitializer<T> initializer ) {
         CompositeState state = (CompositeState)storeProp.createValue();
-        InstanceBuilder builder = new InstanceBuilder( entityContext );
-        Composite value = builder.newComposite( state, info().getType() );
+        Composite value = newComposite( state );
         
         if (initializer != null) {
             try {
@@ -79,6 +81,14 @@ public class CompositeCollectionPropertyImpl<T extends Composite>
     }
 
 
+    protected T newComposite( CompositeState state ) {
+        if (plan == null) {
+            plan = InstanceBuilder.compositeInfo( entityContext, info().getType() ).plan();
+        }
+        return new InstanceBuilder( entityContext ).newComposite( state, plan );
+    }
+
+
     @Override
     public Iterator<T> iterator() {
         // XXX is there any kind of thread safety needed here?
@@ -122,8 +132,7 @@ public class CompositeCollectionPropertyImpl<T extends Composite>
                 @Override
                 public T next() {
                     CompositeState state = (CompositeState)storeIt.next();
-                    InstanceBuilder builder = new InstanceBuilder( entityContext );
-                    T result = (T)builder.newComposite( state, info().getType() );
+                    T result = newComposite( state );
                     cache.add( result );
                     return result;
                 }
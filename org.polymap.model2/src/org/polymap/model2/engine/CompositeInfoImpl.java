@@ -18,7 +18,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import java.lang.reflect.Field;
 
@@ -39,16 +42,52 @@ import org.polymap.model2.runtime.PropertyInfo;
 public final class CompositeInfoImpl
         implements CompositeInfo {
 
+    /** Infos of Composite types that are not declared in any repository. */
+    private static ConcurrentMap<Class,CompositeInfoImpl> undeclared = new ConcurrentHashMap();
+
+    /**
+     * Returns the info of a Composite type that is not declared in the repository
+     * (Mixin types for example). The info is created once and then cached.
+     */
+    public static CompositeInfoImpl undeclared( Class<? extends Composite> compositeClass ) {
+        return undeclared.computeIfAbsent( compositeClass, k -> new CompositeInfoImpl( compositeClass ) );
+    }
+
+    // instance *******************************************
+
     private Class<? extends Composite>      compositeClass;
     
     /** Maps property name into PropertyInfo. */
     private Map<String,PropertyInfo>        propertyInfos = new HashMap();
     
+    /** The PropertyInfos by ordinal. */
+    private PropertyInfo[]                  ordered;
+    
+    private String                          name;
+    
+    private String                          nameInStore;
+    
+    private boolean                         isImmutable;
+    
+    private Collection<Class<? extends Composite>> mixins;
+    
+    /** Lazily created, see {@link #plan()}. */
+    private volatile InstancePlan           plan;
+    
 //    private Lazy<Composite>                 template = new LockedLazyInit();
     
     
     public CompositeInfoImpl( Class<? extends Composite> compositeClass ) {
         this.compositeClass = compositeClass;
+        this.name = compositeClass.getSimpleName();
+        this.nameInStore = compositeClass.getAnnotation( NameInStore.class ) != null
+                ? compositeClass.getAnnotation( NameInStore.class ).value()
+                : name;
+        this.isImmutable = compositeClass.getAnnotation( Immutable.class ) != null;
+        Mixins a = compositeClass.getAnnotation( Mixins.class );
+        this.mixins = a != null 
+                ? Collections.unmodifiableList( Arrays.asList( a.value() ) )
+                : Collections.EMPTY_LIST;
         try {
             initPropertyInfos();
         }
@@ -62,29 +101,46 @@ public final class CompositeInfoImpl
      * propertyInfos.
      */
     protected void initPropertyInfos() throws Exception {
+        // collect fields; fields of super classes win (as before)
+        Map<String,Field> fields = new LinkedHashMap();
         Class superClass = compositeClass;
         while (superClass != null) {
             for (Field field : superClass.getDeclaredFields()) {
                 if (PropertyBase.class.isAssignableFrom( field.getType() )) {
-                    
-                    PropertyInfoImpl info = new PropertyInfoImpl( field );
-                    propertyInfos.put( info.getName(), info );
+                    fields.put( field.getName(), field );
                 }
             }
             superClass = superClass.getSuperclass();
         }
+        // assign ordinals
+        ordered = new PropertyInfo[fields.size()];
+        int ordinal = 0;
+        for (Field field : fields.values()) {
+            PropertyInfoImpl info = new PropertyInfoImpl( field, this, ordinal );
+            propertyInfos.put( info.getName(), info );
+            ordered[ordinal++] = info;
+        }
+    }
+
+    /**
+     * The instantiation plan of the Composite type. Created on first access.
+     */
+    InstancePlan plan() {
+        // no synchronization, concurrent init is ok
+        if (plan == null) {
+            plan = new InstancePlan( this );
+        }
+        return plan;
     }
 
     @Override
     public String getName() {
-        return compositeClass.getSimpleName();
+        return name;
     }
 
     @Override
     public String getNameInStore() {
-        return compositeClass.getAnnotation( NameInStore.class ) != null
-                ? compositeClass.getAnnotation( NameInStore.class ).value()
-                : getName();
+        return nameInStore;
     }
 
     @Override
@@ -121,15 +177,17 @@ public final class CompositeInfoImpl
 
     @Override
     public Collection<Class<? extends Composite>> getMixins() {
-        Mixins mixins = compositeClass.getAnnotation( Mixins.class );
-        return mixins != null 
-                ? Arrays.asList( mixins.value() )
-                : Collections.EMPTY_LIST;
+        return mixins;
     }
 
     @Override
     public Collection<PropertyInfo> getProperties() {
-        return Collections.unmodifiableCollection( propertyInfos.values() );
+        return Collections.unmodifiableList( Arrays.asList( ordered ) );
+    }
+
+    @Override
+    public PropertyInfo getProperty( int ordinal ) {
+        return ordered[ordinal];
     }
 
     @Override
@@ -139,7 +197,7 @@ public final class CompositeInfoImpl
 
     @Override
     public boolean isImmutable() {
-        return compositeClass.getAnnotation( Immutable.class ) != null;
+        return isImmutable;
     }
 
 }
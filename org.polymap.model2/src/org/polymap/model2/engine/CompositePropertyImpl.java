@@ -45,6 +45,9 @@ class CompositePropertyImpl<T extends Composite>
      */
     private Object                          value;
 
+    /** The plan of the Composite value type; resolved on first access. */
+    private InstancePlan                    plan;
+
 
     protected CompositePropertyImpl( EntityRuntimeContext entityContext, 
             StoreProperty<CompositeState> underlying ) {
@@ -60,8 +63,7 @@ class CompositePropertyImpl<T extends Composite>
         if (value == null) {
             CompositeState state = storeProp.get();
             if (state != null) {
-                InstanceBuilder builder = new InstanceBuilder( entityContext );
-                value = builder.newComposite( state, info().getType() );
+                value = newComposite( state );
             }
             else {
                 value = NULL_VALUE;
@@ -85,8 +87,7 @@ class CompositePropertyImpl<T extends Composite>
             synchronized (this) {
                 CompositeState state = storeProp.createValue();
                 assert state != null : "Store must not return null as newValue().";
-                InstanceBuilder builder = new InstanceBuilder( entityContext );
-                result = (T)builder.newComposite( state, info().getType() );
+                result = newComposite( state );
 
                 if (initializer != null) {
                     try {
@@ -106,6 +107,14 @@ class CompositePropertyImpl<T extends Composite>
     }
 
 
+    protected T newComposite( CompositeState state ) {
+        if (plan == null) {
+            plan = InstanceBuilder.compositeInfo( entityContext, info().getType() ).plan();
+        }
+        return new InstanceBuilder( entityContext ).newComposite( state, plan );
+    }
+
+
     @Override
     public PropertyInfo info() {
         return storeProp.info();
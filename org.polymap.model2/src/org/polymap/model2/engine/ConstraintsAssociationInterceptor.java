@@ -18,7 +18,6 @@ import org.polymap.model2.Association;
 import org.polymap.model2.Entity;
 import org.polymap.model2.engine.EntityRepositoryImpl.EntityRuntimeContextImpl;
 import org.polymap.model2.runtime.ModelRuntimeException;
-import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
 
 /**
  *
@@ -41,6 +40,7 @@ final class ConstraintsAssociationInterceptor<T extends Entity>
     
     @Override
     public T get() {
+        context.checkEviction();
         T value = delegate().get();
         // check Nullable
         if (value == null && !isNullable) {
@@ -52,7 +52,7 @@ final class ConstraintsAssociationInterceptor<T extends Entity>
     
     @Override
     public void set( T value ) {
-        context.checkEviction();
+        context.checkModifiable();
         
         // XXX this should always fail outside a ValueInitializer
         if (isImmutable && delegate().get() != null) {
@@ -61,9 +61,10 @@ final class ConstraintsAssociationInterceptor<T extends Entity>
         if (!isNullable && value == null) {
             throw new ModelRuntimeException( "Property is not @Nullable: " + fullPropName() );
         }
+        Object oldId = context.tracksChanges() ? ((AssociationImpl)delegate).storeProp.get() : null;
         delegate().set( value );
         
-        context.raiseStatus( EntityStatus.MODIFIED );
+        context.propertyChanged( info(), oldId, value != null ? value.id() : null );
     }
 
 }
@@ -36,6 +36,7 @@ final class ConstraintsCollectionInterceptor<T>
     }
 
     protected CollectionProperty<T> coll() {
+        context.checkEviction();
         return (CollectionProperty<T>)delegate;
     }
 
@@ -54,12 +55,12 @@ final class ConstraintsCollectionInterceptor<T>
 
     @Override
     public int hashCode() {
-        return coll().hashCode();
+        return delegate.hashCode();
     }
 
     @Override
     public String toString() {
-        return coll().toString();
+        return delegate.toString();
     }
 
     @Override
@@ -80,7 +81,7 @@ final class ConstraintsCollectionInterceptor<T>
             throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
         }
         if (coll().add( e )) {
-            context.raiseStatus( EntityStatus.MODIFIED );
+            context.collectionChanged( info(), e, true );
             return true;
         }
         else {
@@ -93,13 +94,11 @@ final class ConstraintsCollectionInterceptor<T>
         if (isImmutable) {
             throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
         }
-        if (coll().addAll( c )) {
-            context.raiseStatus( EntityStatus.MODIFIED );
-            return true;
-        }
-        else {
-            return false;
+        boolean result = false;
+        for (T e : c) {
+            result |= add( e );
         }
+        return result;
     }
 
     @Override
@@ -108,7 +107,7 @@ final class ConstraintsCollectionInterceptor<T>
             throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
         }
         if (coll().remove( o )) {
-            context.raiseStatus( EntityStatus.MODIFIED );
+            context.collectionChanged( info(), o, false );
             return true;
         }
         else {
@@ -37,6 +37,7 @@ final class ConstraintsManyAssociationInterceptor<T extends Entity>
     }
 
     protected ManyAssociation<T> coll() {
+        context.checkEviction();
         return (ManyAssociation<T>)delegate;
     }
 
@@ -55,12 +56,12 @@ final class ConstraintsManyAssociationInterceptor<T extends Entity>
 
     @Override
     public int hashCode() {
-        return coll().hashCode();
+        return delegate.hashCode();
     }
 
     @Override
     public String toString() {
-        return coll().toString();
+        return delegate.toString();
     }
 
 
@@ -72,7 +73,7 @@ final class ConstraintsManyAssociationInterceptor<T extends Entity>
             throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
         }
         if (coll().add( e )) {
-            context.raiseStatus( EntityStatus.MODIFIED );
+            context.collectionChanged( info(), e instanceof Entity ? ((Entity)e).id() : e, true );
             return true;
         }
         else {
@@ -85,13 +86,11 @@ final class ConstraintsManyAssociationInterceptor<T extends Entity>
         if (isImmutable) {
             throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
         }
-        if (coll().addAll( c )) {
-            context.raiseStatus( EntityStatus.MODIFIED );
-            return true;
-        }
-        else {
-            return false;
+        boolean result = false;
+        for (T e : c) {
+            result |= add( e );
         }
+        return result;
     }
 
     @Override
@@ -100,7 +99,7 @@ final class ConstraintsManyAssociationInterceptor<T extends Entity>
             throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
         }
         if (coll().remove( o )) {
-            context.raiseStatus( EntityStatus.MODIFIED );
+            context.collectionChanged( info(), o instanceof Entity ? ((Entity)o).id() : o, false );
             return true;
         }
         else {
@@ -18,7 +18,6 @@ import org.polymap.model2.Property;
 import org.polymap.model2.engine.EntityRepositoryImpl.EntityRuntimeContextImpl;
 import org.polymap.model2.runtime.ModelRuntimeException;
 import org.polymap.model2.runtime.ValueInitializer;
-import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
 
 /**
  * 
@@ -40,6 +39,7 @@ final class ConstraintsPropertyInterceptor<T>
     
     @Override
     public T get() {
+        context.checkEviction();
         T value = delegate().get();
         
         // check/init default value
@@ -60,7 +60,7 @@ final class ConstraintsPropertyInterceptor<T>
     
     @Override
     public void set( T value ) {
-        context.checkEviction();
+        context.checkModifiable();
         
         // XXX this should always fail outside a ValueInitializer
         if (isImmutable && delegate().get() != null) {
@@ -69,9 +69,10 @@ final class ConstraintsPropertyInterceptor<T>
         if (!isNullable && value == null) {
             throw new ModelRuntimeException( "Property is not @Nullable: " + fullPropName() );
         }
+        T oldValue = context.tracksChanges() ? delegate().get() : null;
         delegate().set( value );
         
-        context.raiseStatus( EntityStatus.MODIFIED );
+        context.propertyChanged( info(), oldValue, value );
     }
 
     
@@ -0,0 +1,351 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.PropertyInfo;
+import org.polymap.model2.store.CompositeState;
+import org.polymap.model2.store.StoreCollectionProperty;
+import org.polymap.model2.store.StoreProperty;
+
+/**
+ * Copy-on-write view of a shared snapshot state. All reads are served by the
+ * snapshot until the first write. The first write forks a private copy of the
+ * entire Entity state. From then on reads and writes go to this copy. The
+ * snapshot is never modified.
+ * <p/>
+ * The {@link StoreProperty} instances returned by this state, including the
+ * states of Composite properties and collections, resolve their backend on
+ * access. So property instances that were created before the fork see the
+ * private copy afterwards.
+ *
+ * @see SharedSnapshots
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+abstract class CopyOnWriteState
+        implements CompositeState {
+
+    /**
+     * The current backend of the given state, or the state itself if it is not a
+     * {@link CopyOnWriteState}.
+     */
+    public static CompositeState unwrap( CompositeState state ) {
+        return state instanceof CopyOnWriteState ? ((CopyOnWriteState)state).state( false ) : state;
+    }
+
+    /**
+     * The private, writable backend of the given state; forks the snapshot if not
+     * yet done.
+     */
+    public static CompositeState forWrite( CompositeState state ) {
+        return state instanceof CopyOnWriteState ? ((CopyOnWriteState)state).state( true ) : state;
+    }
+
+
+    /**
+     * Creates the copy-on-write state of an Entity.
+     *
+     * @param snapshot The shared snapshot.
+     * @param fork Provides the private copy of the state on first write.
+     */
+    public static CopyOnWriteState of( CompositeState snapshot, Supplier<CompositeState> fork ) {
+        return new Root( snapshot, fork );
+    }
+
+
+    /**
+     * A resolved value and the backend it was resolved from. Immutable, so that
+     * it can be read/replaced atomically.
+     */
+    protected static final class Resolved<K,V> {
+
+        public final K      key;
+
+        public final V      value;
+
+        public Resolved( K key, V value ) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+
+    // instance *******************************************
+
+    protected Root              root;
+
+
+    protected CopyOnWriteState( Root root ) {
+        this.root = root != null ? root : (Root)this;
+    }
+
+
+    /**
+     * The current backend of this state.
+     *
+     * @param write True if the backend is about to be modified; forks the
+     *        snapshot if not yet done.
+     */
+    protected abstract CompositeState state( boolean write );
+
+
+    @Override
+    public Object id() {
+        return state( false ).id();
+    }
+
+
+    @Override
+    public Object getUnderlying() {
+        return state( false ).getUnderlying();
+    }
+
+
+    @Override
+    public StoreProperty loadProperty( PropertyInfo info ) {
+        return info.getMaxOccurs() > 1
+                ? new CollectionProperty( this, info )
+                : new Property( this, info );
+    }
+
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[forked=" + root.isForked() + ",state=" + state( false ) + "]";
+    }
+
+
+    /**
+     * The state of the Entity.
+     */
+    protected static final class Root
+            extends CopyOnWriteState {
+
+        private CompositeState              snapshot;
+
+        private Supplier<CompositeState>    fork;
+
+        private volatile CompositeState     forked;
+
+        protected Root( CompositeState snapshot, Supplier<CompositeState> fork ) {
+            super( null );
+            this.snapshot = snapshot;
+            this.fork = fork;
+        }
+
+        public boolean isForked() {
+            return forked != null;
+        }
+
+        @Override
+        protected CompositeState state( boolean write ) {
+            if (write && forked == null) {
+                synchronized (this) {
+                    if (forked == null) {
+                        CompositeState copy = fork.get();
+                        if (copy == null) {
+                            throw new ModelRuntimeException( "Entity has been removed concurrently: " + snapshot.id() );
+                        }
+                        forked = copy;
+                        fork = null;
+                    }
+                }
+            }
+            CompositeState result = forked;
+            return result != null ? result : snapshot;
+        }
+    }
+
+
+    /**
+     * The state of the value of a Composite property.
+     */
+    protected static final class Nested
+            extends CopyOnWriteState {
+
+        private Property                    parent;
+
+        private volatile Resolved<StoreProperty,CompositeState> resolved;
+
+        protected Nested( Root root, Property parent ) {
+            super( root );
+            this.parent = parent;
+        }
+
+        @Override
+        protected CompositeState state( boolean write ) {
+            StoreProperty backend = parent.delegate( write );
+            Resolved<StoreProperty,CompositeState> r = resolved;
+            if (r == null || r.key != backend) {
+                resolved = r = new Resolved( backend, (CompositeState)backend.get() );
+            }
+            return r.value;
+        }
+    }
+
+
+    /**
+     * The state of an element of a Composite collection.
+     */
+    protected static final class Element
+            extends CopyOnWriteState {
+
+        private CollectionProperty          parent;
+
+        private int                         index;
+
+        private volatile Resolved<StoreProperty,CompositeState> resolved;
+
+        protected Element( Root root, CollectionProperty parent, int index ) {
+            super( root );
+            this.parent = parent;
+            this.index = index;
+        }
+
+        @Override
+        protected CompositeState state( boolean write ) {
+            StoreProperty backend = parent.delegate( write );
+            Resolved<StoreProperty,CompositeState> r = resolved;
+            if (r == null || r.key != backend) {
+                Iterator it = ((StoreCollectionProperty)backend).iterator();
+                for (int i=0; i<index; i++) {
+                    it.next();
+                }
+                resolved = r = new Resolved( backend, (CompositeState)it.next() );
+            }
+            return r.value;
+        }
+    }
+
+
+    /**
+     *
+     */
+    protected static class Property
+            implements StoreProperty {
+
+        protected CopyOnWriteState          owner;
+
+        protected PropertyInfo              info;
+
+        private volatile Resolved<CompositeState,StoreProperty> resolved;
+
+        protected Property( CopyOnWriteState owner, PropertyInfo info ) {
+            this.owner = owner;
+            this.info = info;
+        }
+
+        /**
+         * The property of the current backend of the owner.
+         */
+        protected StoreProperty delegate( boolean write ) {
+            CompositeState backend = owner.state( write );
+            Resolved<CompositeState,StoreProperty> r = resolved;
+            if (r == null || r.key != backend) {
+                resolved = r = new Resolved( backend, backend.loadProperty( info ) );
+            }
+            return r.value;
+        }
+
+        @Override
+        public Object get() {
+            Object value = delegate( false ).get();
+            return value instanceof CompositeState ? new Nested( owner.root, this ) : value;
+        }
+
+        @Override
+        public void set( Object value ) {
+            delegate( true ).set( value );
+        }
+
+        @Override
+        public Object createValue() {
+            return delegate( true ).createValue();
+        }
+
+        @Override
+        public PropertyInfo info() {
+            return info;
+        }
+    }
+
+
+    /**
+     *
+     */
+    protected static final class CollectionProperty
+            extends Property
+            implements StoreCollectionProperty {
+
+        protected CollectionProperty( CopyOnWriteState owner, PropertyInfo info ) {
+            super( owner, info );
+        }
+
+        protected StoreCollectionProperty collection( boolean write ) {
+            return (StoreCollectionProperty)delegate( write );
+        }
+
+        @Override
+        public int size() {
+            return collection( false ).size();
+        }
+
+        @Override
+        public boolean add( Object elm ) {
+            return collection( true ).add( elm );
+        }
+
+        @Override
+        public Iterator iterator() {
+            return new Iterator() {
+                /** The backend iterator; replaced by an iterator of the fork on remove. */
+                private Iterator    it = collection( false ).iterator();
+                private boolean     isPrivate = owner.root.isForked();
+                private int         index;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Object next() {
+                    Object value = it.next();
+                    int elementIndex = index++;
+                    return value instanceof CompositeState
+                            ? new Element( owner.root, CollectionProperty.this, elementIndex )
+                            : value;
+                }
+
+                @Override
+                public void remove() {
+                    if (!isPrivate) {
+                        // position an iterator of the fork at the same element
+                        it = collection( true ).iterator();
+                        for (int i=0; i<index; i++) {
+                            it.next();
+                        }
+                        isPrivate = true;
+                    }
+                    it.remove();
+                }
+            };
+        }
+    }
+
+}
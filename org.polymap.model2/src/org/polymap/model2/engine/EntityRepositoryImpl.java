@@ -14,13 +14,22 @@
  */
 package org.polymap.model2.engine;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,14 +37,17 @@ import org.apache.commons.logging.LogFactory;
 import org.polymap.model2.Composite;
 import org.polymap.model2.Entity;
 import org.polymap.model2.query.Expressions;
+import org.polymap.model2.runtime.BulkImporter;
 import org.polymap.model2.runtime.CompositeInfo;
 import org.polymap.model2.runtime.EntityRepository;
 import org.polymap.model2.runtime.EntityRuntimeContext;
 import org.polymap.model2.runtime.ModelRuntimeException;
 import org.polymap.model2.runtime.PropertyInfo;
+import org.polymap.model2.runtime.StartupReport;
 import org.polymap.model2.runtime.UnitOfWork;
 import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
 import org.polymap.model2.store.CompositeState;
+import org.polymap.model2.store.EntityChangeSet;
 import org.polymap.model2.store.StoreRuntimeContext;
 import org.polymap.model2.store.StoreSPI;
 import org.polymap.model2.store.StoreUnitOfWork;
@@ -52,53 +64,133 @@ public class EntityRepositoryImpl
     private Configuration               config;
     
     /** Infos of Entities, Mixins, Composite properties. */
-    private Map<Class<? extends Composite>,CompositeInfo> infos = new HashMap();
+    private Map<Class<? extends Composite>,CompositeInfo> infos = new ConcurrentHashMap();
+    
+    /** Store in variable for fast access. */
+    private boolean                     lazyProperties;
+
+    /** Shared query templates, see {@link #template(Class)}. */
+    private ConcurrentMap<Class<? extends Composite>,Composite> templates = new ConcurrentHashMap();
+    
+    private StartupReport               startupReport = new StartupReport();
+    
+    /** Null if {@link Configuration#sharedSnapshots} is not set. */
+    private SharedSnapshots             snapshots;
+    
+    private static final AtomicInteger  instanceCount = new AtomicInteger();
+    
+    /** Null if {@link Configuration#cacheStatistics} is not set. */
+    private RepositoryCacheStatistics   cacheStatistics;
+    
+    /** The last store commit of {@link #commitAsync(Runnable, Executor)}. */
+    private CompletableFuture<Void>     lastCommit = CompletableFuture.completedFuture( null );
     
     
     public EntityRepositoryImpl( final Configuration config ) {
         this.config = config;
+        this.lazyProperties = config.lazyProperties.get();
+        this.snapshots = config.sharedSnapshots.get() 
+                ? new SharedSnapshots( config.cacheManager.get() ) : null;
+        this.cacheStatistics = config.cacheStatistics.get()
+                ? new RepositoryCacheStatistics( "EntityRepository-" + instanceCount.incrementAndGet(), true ) : null;
+        ForkJoinPool pool = config.bootstrapPool.get();
         
         // init store
+        long start = System.nanoTime();
         getStore().init( new StoreRuntimeContextImpl() );
+        startupReport.phase( "store", System.nanoTime() - start );
         
         // init infos
         log.debug( "Initialializing Composite types:" );
-        Queue<Class<? extends Composite>> queue = new LinkedList();
-        queue.addAll( Arrays.asList( config.entities.get() ) );
+        start = System.nanoTime();
+        Set<Class> seen = ConcurrentHashMap.newKeySet();
+        List<InitInfoTask> tasks = Arrays.stream( config.entities.get() )
+                .filter( type -> seen.add( type ) )
+                .map( type -> new InitInfoTask( type, seen ) )
+                .collect( Collectors.toList() );
+        pool.invoke( new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll( tasks );
+            }
+        });
+        startupReport.phase( "metadata", System.nanoTime() - start );
         
-        while (!queue.isEmpty()) {
-            Class<? extends Composite> type = queue.poll();
-            if (!infos.containsKey( type )) {
-                log.debug( "    Composite type: " + type );
-                CompositeInfoImpl info = new CompositeInfoImpl( type );
-                infos.put( type, info );
-
-                // init static TYPE variable
-                try {
-                    Field field = type.getDeclaredField( "TYPE" );
-                    field.setAccessible( true );
-                    field.set( null, Expressions.template( type, this ) );
-                }
-                catch (NoSuchFieldException e) {
-                }
-                catch (SecurityException|IllegalAccessException e) {
-                    throw new ModelRuntimeException( e );
+        // init templates and static TYPE variables
+        start = System.nanoTime();
+        pool.submit( () -> infos.keySet().parallelStream().forEach( type -> initTemplate( type ) ) ).join();
+        startupReport.phase( "templates", System.nanoTime() - start );
+        
+        log.debug( startupReport );
+    }
+
+    
+    /**
+     * Builds the {@link CompositeInfo} of one Composite type and forks tasks for
+     * its mixins and Composite properties.
+     */
+    protected class InitInfoTask
+            extends RecursiveAction {
+        
+        private Class<? extends Composite>  type;
+        
+        /** The types that are already handled by a task. */
+        private Set<Class>                  seen;
+        
+        public InitInfoTask( Class<? extends Composite> type, Set<Class> seen ) {
+            this.type = type;
+            this.seen = seen;
+        }
+
+        @Override
+        protected void compute() {
+            log.debug( "    Composite type: " + type );
+            long start = System.nanoTime();
+            CompositeInfoImpl info = new CompositeInfoImpl( type );
+            infos.put( type, info );
+
+            List<InitInfoTask> subtasks = new ArrayList();
+            // mixins
+            for (Class<? extends Composite> mixin : info.getMixins()) {
+                if (seen.add( mixin )) {
+                    subtasks.add( new InitInfoTask( mixin, seen ) );
                 }
-                
-                // mixins
-                queue.addAll( info.getMixins() );
-
-                // Composite properties
-                for (PropertyInfo propInfo : info.getProperties()) {
-                    if (Composite.class.isAssignableFrom( propInfo.getType() )) {
-                        queue.offer( propInfo.getType() );
-                    }
+            }
+            // Composite properties
+            for (PropertyInfo propInfo : info.getProperties()) {
+                if (Composite.class.isAssignableFrom( propInfo.getType() ) && seen.add( propInfo.getType() )) {
+                    subtasks.add( new InitInfoTask( propInfo.getType(), seen ) );
                 }
             }
+            startupReport.type( "metadata", type, System.nanoTime() - start );
+            invokeAll( subtasks );
         }
     }
 
     
+    /**
+     * Builds the shared template of the given type if it is needed to init the
+     * static TYPE variable or if it is a concrete {@link Entity} type.
+     */
+    protected void initTemplate( Class<? extends Composite> type ) {
+        long start = System.nanoTime();
+        try {
+            Field field = type.getDeclaredField( "TYPE" );
+            field.setAccessible( true );
+            field.set( null, Expressions.template( type, this ) );
+        }
+        catch (NoSuchFieldException e) {
+            if (Entity.class.isAssignableFrom( type ) && !Modifier.isAbstract( type.getModifiers() )) {
+                template( type );
+            }
+        }
+        catch (SecurityException|IllegalAccessException e) {
+            throw new ModelRuntimeException( e );
+        }
+        startupReport.type( "templates", type, System.nanoTime() - start );
+    }
+
+    
     public StoreSPI getStore() {
         checkOpen();
         return config.store.get();
@@ -110,6 +202,42 @@ public class EntityRepositoryImpl
         return config;
     }
 
+    /**
+     * 
+     * @see EntityRepository.Configuration#lazyProperties
+     */
+    public boolean isLazyProperties() {
+        return lazyProperties;
+    }
+
+    /**
+     * The Entity states shared by all UnitOfWork instances, or null if
+     * {@link Configuration#sharedSnapshots} is not set.
+     */
+    public SharedSnapshots snapshots() {
+        return snapshots;
+    }
+
+    @Override
+    public RepositoryCacheStatistics cacheStatistics() {
+        return cacheStatistics;
+    }
+
+    /**
+     * Executes the given store commit after all previously given commits have
+     * completed, no matter if they failed or not. This guarantees that the store
+     * commits of {@link UnitOfWork#commitAsync(Executor)} are executed one after the
+     * other, in the order of the calls.
+     *
+     * @param commit The store commit.
+     * @param executor The executor to run the commit.
+     * @return The future of the store commit.
+     */
+    protected synchronized CompletableFuture<Void> commitAsync( Runnable commit, Executor executor ) {
+        lastCommit = lastCommit.exceptionally( e -> null ).thenRunAsync( commit, executor );
+        return lastCommit;
+    }
+
     public boolean isOpen() {
         return config != null;
     }
@@ -126,21 +254,57 @@ public class EntityRepositoryImpl
                 getStore().close();
             }
             finally {
+                if (cacheStatistics != null) {
+                    cacheStatistics.close();
+                }
                 config = null;
             }
         }
     }
 
+    /**
+     * The query template of the given Composite type. Templates are immutable, so
+     * just one instance per type is created and shared.
+     *
+     * @see Expressions#template(Class, EntityRepository)
+     */
+    public <T extends Composite> T template( Class<T> compositeClass ) {
+        Composite result = templates.get( compositeClass );
+        if (result == null) {
+            // not synchronized; concurrent inits are ok, first one wins
+            Composite newTemplate = new TemplateInstanceBuilder( this ).newComposite( compositeClass );
+            result = templates.putIfAbsent( compositeClass, newTemplate );
+            result = result != null ? result : newTemplate;
+        }
+        return (T)result;
+    }
+    
     @Override
     public <T extends Composite> CompositeInfo infoOf( Class<T> compositeClass ) {
         return infos.get( compositeClass );
     }
     
+    @Override
+    public StartupReport startupReport() {
+        return startupReport;
+    }
+    
     @Override    
     public UnitOfWork newUnitOfWork() {
         return new UnitOfWorkImpl( this, getStore().createUnitOfWork() );
     }
     
+    @Override    
+    public UnitOfWork newReadOnlyUnitOfWork() {
+        return new UnitOfWorkImpl( this, getStore().createReadOnlyUnitOfWork(), true );
+    }
+    
+    @Override    
+    public <T extends Entity> BulkImporter<T> bulkImporter( Class<T> entityClass ) {
+        checkOpen();
+        return new BulkImporterImpl( this, entityClass );
+    }
+    
     
     protected <T extends Entity> T buildEntity( CompositeState state, Class<T> entityClass, UnitOfWork uow ) {
         try {
@@ -177,15 +341,7 @@ public class EntityRepositoryImpl
     
     protected EntityRuntimeContextImpl contextOfEntity( Entity entity ) {
         assert entity != null;
-        try {
-            return (EntityRuntimeContextImpl)InstanceBuilder.contextField.get( entity );
-        }
-        catch (RuntimeException e) {
-            throw e;
-        }
-        catch (Exception e) {
-            throw new ModelRuntimeException( e );
-        }
+        return (EntityRuntimeContextImpl)InstancePlan.contextOf( entity );
     }
     
     
@@ -204,6 +360,14 @@ public class EntityRepositoryImpl
             return EntityRepositoryImpl.this.contextOfEntity( entity );
         }
 
+        public ForkJoinPool getBootstrapPool() {
+            return config.bootstrapPool.get();
+        }
+
+        public StartupReport getStartupReport() {
+            return startupReport;
+        }
+
     }
 
 
@@ -221,6 +385,9 @@ public class EntityRepositoryImpl
         
         private UnitOfWork              uow;
 
+        /** The changes of a {@link EntityStatus#MODIFIED} Entity, lazily created. */
+        private EntityChangeSet         changes;
+
         
         EntityRuntimeContextImpl( CompositeState state, EntityStatus status, UnitOfWork uow ) {
             assert state != null;
@@ -247,6 +414,34 @@ public class EntityRepositoryImpl
             }
         }
         
+        /**
+         * Marks the Entity as {@link EntityStatus#EVICTED} if it is not modified.
+         * Called by {@link UnitOfWorkImpl} when the Entity was evicted from its
+         * cache.
+         *
+         * @return True if the Entity was marked as evicted.
+         */
+        protected boolean evicted() {
+            if (status == EntityStatus.LOADED) {
+                status = EntityStatus.EVICTED;
+                return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Checks that the Entity can be modified: it is not evicted and its
+         * UnitOfWork has no pending commit. Called before the state is changed.
+         */
+        protected void checkModifiable() {
+            checkEviction();
+            ((UnitOfWorkImpl)uow).checkNoPendingCommit();
+        }
+
+        protected boolean isEvicted() {
+            return status == EntityStatus.EVICTED;
+        }
+        
         @Override
         public CompositeInfo getInfo() {
             return getRepository().infoOf( entity.getClass() );
@@ -283,9 +478,31 @@ public class EntityRepositoryImpl
             return status;
         }
 
+        /**
+         * True if the Entity belongs to a read-only {@link UnitOfWorkImpl}.
+         */
+        protected boolean isReadOnly() {
+            return ((UnitOfWorkImpl)uow).isReadOnly();
+        }
+
+        /**
+         * Raises the status to {@link EntityStatus#MODIFIED}. The modification is
+         * not recorded in the {@link #changes()}, so they are not complete anymore.
+         */
         @Override
         public void raiseStatus( EntityStatus newStatus ) {
+            doRaiseStatus( newStatus );
+            if (status == EntityStatus.MODIFIED) {
+                changes().incomplete();
+            }
+        }
+
+        protected void doRaiseStatus( EntityStatus newStatus ) {
+            checkModifiable();
             assert newStatus.status >= status.status;
+            if (isReadOnly()) {
+                throw new ModelRuntimeException( "UnitOfWork is read-only. Entity cannot be modified: " + entity.id() );
+            }
             // keep created if modified after creation
             if (status != EntityStatus.CREATED) {
                 status = newStatus;
@@ -297,6 +514,63 @@ public class EntityRepositoryImpl
         public void resetStatus( EntityStatus newStatus ) {
             checkEviction();
             this.status = newStatus;
+            this.changes = null;
+        }
+
+        /**
+         * True if modifications of properties are recorded in the {@link #changes()}.
+         * This is the case if the Entity is loaded or modified, but not for created
+         * or removed Entities, as those are written entirely anyway.
+         */
+        protected boolean tracksChanges() {
+            return status == EntityStatus.LOADED || status == EntityStatus.MODIFIED;
+        }
+
+        /**
+         * The changes of this Entity since it was loaded or last committed.
+         */
+        protected EntityChangeSet changes() {
+            if (changes == null) {
+                changes = new EntityChangeSet( entity, getInfo() );
+            }
+            return changes;
+        }
+
+        /**
+         * The changes of this Entity, or null if it is not modified.
+         */
+        protected EntityChangeSet changesIfModified() {
+            return status == EntityStatus.MODIFIED ? changes : null;
+        }
+
+        /**
+         * Records that the given property was set and raises the status.
+         *
+         * @param oldValue The value before the property was set.
+         */
+        protected void propertyChanged( PropertyInfo info, Object oldValue, Object newValue ) {
+            boolean tracked = tracksChanges();
+            doRaiseStatus( EntityStatus.MODIFIED );
+            if (tracked) {
+                changes().recordSet( info, oldValue, newValue );
+            }
+        }
+
+        /**
+         * Records that the given element was added to or removed from a collection
+         * property and raises the status.
+         */
+        protected void collectionChanged( PropertyInfo info, Object element, boolean added ) {
+            boolean tracked = tracksChanges();
+            doRaiseStatus( EntityStatus.MODIFIED );
+            if (tracked) {
+                if (added) {
+                    changes().recordAdd( info, element );
+                }
+                else {
+                    changes().recordRemove( info, element );
+                }
+            }
         }
 
         @Override
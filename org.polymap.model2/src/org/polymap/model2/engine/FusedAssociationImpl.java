@@ -0,0 +1,76 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import org.polymap.model2.Entity;
+import org.polymap.model2.engine.EntityRepositoryImpl.EntityRuntimeContextImpl;
+import org.polymap.model2.engine.InstancePlan.Slot;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.store.StoreProperty;
+
+/**
+ * {@link AssociationImpl} and {@link ConstraintsAssociationInterceptor} fused into
+ * one object. Used for associations without concerns.
+ * 
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class FusedAssociationImpl<T extends Entity>
+        extends AssociationImpl<T> {
+
+    private Slot                        slot;
+    
+    
+    public FusedAssociationImpl( EntityRuntimeContextImpl context, StoreProperty storeProp, Slot slot ) {
+        super( context, storeProp );
+        this.slot = slot;
+    }
+
+    
+    protected String fullPropName() {
+        return context.getInfo().getName() + "." + slot.info.getName();
+    }
+
+    
+    @Override
+    public T get() {
+        ((EntityRuntimeContextImpl)context).checkEviction();
+        T value = super.get();
+        // check Nullable
+        if (value == null && !slot.isNullable) {
+            throw new ModelRuntimeException( "Property is not @Nullable: " + fullPropName() );
+        }
+        return value;
+    }
+
+    
+    @Override
+    public void set( T value ) {
+        ((EntityRuntimeContextImpl)context).checkModifiable();
+        
+        // XXX this should always fail outside a ValueInitializer
+        if (slot.isImmutable && super.get() != null) {
+            throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
+        }
+        if (!slot.isNullable && value == null) {
+            throw new ModelRuntimeException( "Property is not @Nullable: " + fullPropName() );
+        }
+        EntityRuntimeContextImpl entityContext = (EntityRuntimeContextImpl)context;
+        Object oldId = entityContext.tracksChanges() ? storeProp.get() : null;
+        super.set( value );
+        
+        entityContext.propertyChanged( slot.info, oldId, value != null ? value.id() : null );
+    }
+
+}
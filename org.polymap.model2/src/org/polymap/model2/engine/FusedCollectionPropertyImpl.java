@@ -0,0 +1,170 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.polymap.model2.CollectionProperty;
+import org.polymap.model2.engine.EntityRepositoryImpl.EntityRuntimeContextImpl;
+import org.polymap.model2.engine.InstancePlan.Slot;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.ValueInitializer;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.store.StoreCollectionProperty;
+
+/**
+ * {@link CollectionPropertyImpl} and {@link ConstraintsCollectionInterceptor} fused into
+ * one object. Used for collections of primitive values without concerns.
+ * 
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class FusedCollectionPropertyImpl<T>
+        extends CollectionPropertyImpl<T> {
+
+    private Slot                        slot;
+    
+    
+    public FusedCollectionPropertyImpl( EntityRuntimeContextImpl context, StoreCollectionProperty storeProp, Slot slot ) {
+        super( context, storeProp );
+        this.slot = slot;
+    }
+
+    
+    protected String fullPropName() {
+        return entityContext.getInfo().getName() + "." + slot.info.getName();
+    }
+
+    
+    protected void checkImmutable() {
+        if (slot.isImmutable) {
+            throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
+        }
+    }
+
+    
+    protected boolean modified( boolean modified ) {
+        if (modified) {
+            entityContext.raiseStatus( EntityStatus.MODIFIED );
+        }
+        return modified;
+    }
+
+    
+    /**
+     * Records the given added or removed element in the change set of the Entity.
+     */
+    protected boolean changed( boolean modified, Object element, boolean added ) {
+        if (modified) {
+            ((EntityRuntimeContextImpl)entityContext).collectionChanged( slot.info, element, added );
+        }
+        return modified;
+    }
+
+    
+    @Override
+    public boolean equals( Object o ) {
+        if (o instanceof CollectionProperty) {
+            return info() == ((CollectionProperty)o).info();
+        }
+        else if (o instanceof Collection) {
+            return ((Collection)o).containsAll( this );
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode( this );
+    }
+
+    @Override
+    public T createElement( ValueInitializer<T> initializer ) {
+        checkImmutable();
+        entityContext.raiseStatus( EntityStatus.MODIFIED );
+        return super.createElement( initializer );
+    }
+
+
+    // Collection *****************************************
+    
+    @Override
+    public boolean add( T e ) {
+        checkImmutable();
+        return changed( super.add( e ), e, true );
+    }
+
+    @Override
+    public boolean addAll( Collection<? extends T> c ) {
+        checkImmutable();
+        boolean result = false;
+        for (T e : c) {
+            result |= add( e );
+        }
+        return result;
+    }
+
+    @Override
+    public boolean remove( Object o ) {
+        checkImmutable();
+        return changed( super.remove( o ), o, false );
+    }
+
+    @Override
+    public boolean removeAll( Collection<?> c ) {
+        checkImmutable();
+        return modified( super.removeAll( c ) );
+    }
+
+    @Override
+    public boolean retainAll( Collection<?> c ) {
+        checkImmutable();
+        return modified( super.retainAll( c ) );
+    }
+
+    @Override
+    public int size() {
+        ((EntityRuntimeContextImpl)entityContext).checkEviction();
+        return super.size();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        ((EntityRuntimeContextImpl)entityContext).checkEviction();
+        if (!slot.isImmutable) {
+            return super.iterator();
+        }
+        else {
+            return new Iterator<T>() {
+                private Iterator<T> it = FusedCollectionPropertyImpl.super.iterator();
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+                @Override
+                public T next() {
+                    return it.next();
+                }
+                @Override
+                public void remove() {
+                    throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import org.polymap.model2.engine.EntityRepositoryImpl.EntityRuntimeContextImpl;
+import org.polymap.model2.engine.InstancePlan.Slot;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.store.StoreProperty;
+
+/**
+ * {@link PropertyImpl} and {@link ConstraintsPropertyInterceptor} fused into one
+ * object. Used for properties without concerns.
+ * 
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class FusedPropertyImpl<T>
+        extends PropertyImpl<T> {
+
+    private EntityRuntimeContextImpl    context;
+    
+    private Slot                        slot;
+    
+    
+    public FusedPropertyImpl( StoreProperty<T> storeProp, Slot slot, EntityRuntimeContextImpl context ) {
+        super( storeProp );
+        this.slot = slot;
+        this.context = context;
+    }
+
+    
+    protected String fullPropName() {
+        return context.getInfo().getName() + "." + slot.info.getName();
+    }
+
+    
+    @Override
+    public T get() {
+        context.checkEviction();
+        T value = delegate().get();
+        
+        // check/init default value
+        if (value == null) {
+            value = (T)slot.defaultValue();
+        }
+        // check Nullable
+        if (value == null && !slot.isNullable) {
+            throw new ModelRuntimeException( "Property is not @Nullable: " + fullPropName() );
+        }
+        return value;
+    }
+
+    
+    @Override
+    public void set( T value ) {
+        context.checkModifiable();
+        
+        // XXX this should always fail outside a ValueInitializer
+        if (slot.isImmutable && delegate().get() != null) {
+            throw new ModelRuntimeException( "Property is @Immutable: " + fullPropName() );
+        }
+        if (!slot.isNullable && value == null) {
+            throw new ModelRuntimeException( "Property is not @Nullable: " + fullPropName() );
+        }
+        T oldValue = context.tracksChanges() ? delegate().get() : null;
+        delegate().set( value );
+        
+        context.propertyChanged( slot.info, oldValue, value );
+    }
+
+    
+    @Override
+    public String toString() {
+        T value = delegate().get();
+        return "Property[name:" + info().getName() + ",value=" + (value != null ? value.toString() : "null") + "]";
+    }
+
+}
@@ -14,40 +14,19 @@
  */
 package org.polymap.model2.engine;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-
-import javax.cache.configuration.MutableConfiguration;
-
 import org.apache.commons.logging.LogFactory;import org.apache.commons.logging.Log;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
-
 import org.polymap.model2.Association;
-import org.polymap.model2.AssociationConcern;
 import org.polymap.model2.CollectionProperty;
-import org.polymap.model2.CollectionPropertyConcern;
 import org.polymap.model2.Composite;
-import org.polymap.model2.Computed;
-import org.polymap.model2.ComputedProperty;
-import org.polymap.model2.Concerns;
 import org.polymap.model2.ManyAssociation;
 import org.polymap.model2.Property;
 import org.polymap.model2.PropertyBase;
-import org.polymap.model2.PropertyConcern;
-import org.polymap.model2.PropertyConcernBase;
 import org.polymap.model2.engine.EntityRepositoryImpl.EntityRuntimeContextImpl;
-import org.polymap.model2.engine.LoadingCache.Loader;
+import org.polymap.model2.engine.InstancePlan.Slot;
 import org.polymap.model2.runtime.CompositeInfo;
 import org.polymap.model2.runtime.EntityRuntimeContext;
 import org.polymap.model2.runtime.ModelRuntimeException;
-import org.polymap.model2.runtime.PropertyInfo;
 import org.polymap.model2.store.CompositeState;
 import org.polymap.model2.store.StoreCollectionProperty;
 import org.polymap.model2.store.StoreProperty;
@@ -61,37 +40,17 @@ public final class InstanceBuilder {
 
     private static Log log = LogFactory.getLog( InstanceBuilder.class );
 
-    protected static Field                      contextField;
-    
-    private static Field                        concernContextField;
-
-    private static Field                        concernDelegateField;
-    
-    private static Method                       computedPropertyInitMethod;
-    
-    protected static LoadingCache<Field,List<Class>>   concerns;
-
-    static {
-        try {
-            SimpleCacheManager cacheManager = new SimpleCacheManager();
-            concerns = LoadingCache.create( cacheManager, new MutableConfiguration() );
-                    
-            contextField = Composite.class.getDeclaredField( "context" );
-            contextField.setAccessible( true );
-
-            concernContextField = PropertyConcernBase.class.getDeclaredField( "context" );
-            concernContextField.setAccessible( true );
-            
-            concernDelegateField = PropertyConcernBase.class.getDeclaredField( "delegate" );
-            concernDelegateField.setAccessible( true );
-            
-            computedPropertyInitMethod = ComputedProperty.class.getDeclaredMethod( "init", PropertyInfo.class, Composite.class );
-            computedPropertyInitMethod.setAccessible( true );
-        }
-        catch (Exception e) {
-            log.error( "", e );
-            throw new RuntimeException( e );
+    /**
+     * The {@link CompositeInfoImpl} of the given type, either declared in the
+     * repository of the given context or {@link CompositeInfoImpl#undeclared(Class)}.
+     */
+    protected static CompositeInfoImpl compositeInfo( EntityRuntimeContext context, Class<? extends Composite> type ) {
+        CompositeInfo result = context.getRepository().infoOf( type );
+        if (result == null) {
+            log.debug( "Mixin type not declared on Entity type: " + type.getName() );
+            result = CompositeInfoImpl.undeclared( type );
         }
+        return (CompositeInfoImpl)result;
     }
     
     
@@ -99,32 +58,32 @@ public final class InstanceBuilder {
     
     private EntityRuntimeContext    context;
     
+    /** Wrap store properties with {@link ReadOnlyStoreProperties}. */
+    private boolean                 readOnly;
+    
     
     public InstanceBuilder( EntityRuntimeContext context ) {
         this.context = context;
+        this.readOnly = context instanceof EntityRuntimeContextImpl 
+                && ((EntityRuntimeContextImpl)context).isReadOnly();
     }
     
     
     public <T extends Composite> T newComposite( CompositeState state, Class<T> entityClass ) { 
+        return newComposite( state, compositeInfo( context, entityClass ).plan() );
+    }
+    
+    
+    /**
+     * Builds a new instance as defined by the given, already resolved plan. 
+     */
+    protected <T extends Composite> T newComposite( CompositeState state, InstancePlan plan ) { 
         try {
-            // new instance
-            Constructor<?> ctor = entityClass.getConstructor( new Class[] {} );
-            T instance = (T)ctor.newInstance( new Object[] {} );
+            // new instance, set context
+            T instance = plan.newInstance( context );
             
-            // set context
-            contextField.set( instance, context );
-            
-//            // init concerns
-//            List<PropertyConcern> concerns = new ArrayList();
-//            Concerns concernsAnnotation = entityClass.getAnnotation( Concerns.class );
-//            if (concernsAnnotation != null) {
-//                for (Class<? extends PropertyConcern> concernClass : concernsAnnotation.value()) {
-//                    concerns.add( concernClass.newInstance() );
-//                }
-//            }
-
             // init properties
-            initProperties( instance, state );
+            initProperties( instance, plan, state );
             
             return instance;
         }
@@ -132,191 +91,127 @@ public final class InstanceBuilder {
             throw e;
         }
         catch (Exception e) {
-            throw new ModelRuntimeException( "Error while creating an instance of: " + entityClass, e );
+            throw new ModelRuntimeException( "Error while creating an instance of: " + plan.compositeClass(), e );
         }
     }
     
     
     /**
-     * Initializes all properties of the given Composite, including all super classes.
-     * Composite properties are init with {@link CompositePropertyImpl} which comes back to 
+     * Initializes all properties of the given Composite, including all super classes,
+     * as defined by the slots of the given {@link InstancePlan}. Composite properties
+     * are init with {@link CompositePropertyImpl} which comes back to
      * {@link InstanceBuilder} when the value is accessed.
      */
-    protected void initProperties( Composite instance, CompositeState state ) throws Exception {
-//        StoreSPI store = context.getRepository().getStore();
-        CompositeInfo compositeInfo = context.getRepository().infoOf( instance.getClass() );
-        if (compositeInfo == null) {
-            log.info( "Mixin type not declared on Entity type: " + instance.getClass().getName() );
-            compositeInfo = new CompositeInfoImpl( instance.getClass() );
-        }
-        assert compositeInfo != null : "No info for Composite type: " + instance.getClass().getName();
-        
-        Class superClass = instance.getClass();
-        while (superClass != null) {
-            // XXX cache fields
-            for (Field field : superClass.getDeclaredFields()) {
-                if (PropertyBase.class.isAssignableFrom( field.getType() )) {
-                    field.setAccessible( true );
-                    
-                    if (field.get( instance ) != null) {
-                        log.info( "Property already inistialized, skipping: " + field.getName() );
-                        continue;
-                    }
-
-                    PropertyInfo info = compositeInfo.getProperty( field.getName() );
-                    PropertyBase prop = null;
-
-                    // single property
-                    if (Property.class.isAssignableFrom( field.getType() )) {
-                        // Computed
-                        if (info.isComputed()) {
-                            Computed a = ((PropertyInfoImpl)info).getField().getAnnotation( Computed.class );
-                            prop = a.value().newInstance();
-                            computedPropertyInitMethod.invoke( prop, info, instance );
-                            // always check modifications, default value, immutable, nullable
-                            prop = new ConstraintsPropertyInterceptor( (Property)prop, (EntityRuntimeContextImpl)context );
-                        }
-                        else {
-                            StoreProperty storeProp = state.loadProperty( info );
-                            // Composite
-                            if (Composite.class.isAssignableFrom( info.getType() )) {
-                                prop = new CompositePropertyImpl( context, storeProp );
-                                prop = new ConstraintsPropertyInterceptor( (Property)prop, (EntityRuntimeContextImpl)context );
-                            }
-                            // primitive type
-                            else {
-                                prop = new PropertyImpl( storeProp );
-                                prop = new ConstraintsPropertyInterceptor( (Property)prop, (EntityRuntimeContextImpl)context );
-                            }
-                        }
-                        // concerns
-                        for (PropertyConcernBase concern : fieldConcerns( field, prop )) {
-                            prop = concern;
-                        }
-                    }
-
-                    // Association
-                    else if (Association.class.isAssignableFrom( field.getType() )) {
-                        assert info.isAssociation();
-                        // check Computed
-                        if (info.isComputed()) {
-                            throw new UnsupportedOperationException( "Computed Association is not supported yet: " + propName( field ));
-                        }
-                        StoreProperty storeProp = state.loadProperty( info );
-                        prop = new AssociationImpl( context, storeProp );
-                        prop = new ConstraintsAssociationInterceptor( (Association)prop, (EntityRuntimeContextImpl)context );
-                        // concerns
-                        for (PropertyConcernBase concern : fieldConcerns( field, prop )) {
-                            prop = concern;
-                        }
-                    }
-
-                    // ManyAssociation
-                    else if (ManyAssociation.class.isAssignableFrom( field.getType() )) {
-                        assert info.isAssociation();
-                        assert info.getMaxOccurs() > 1 : "Field has improper @MaxOccurs: " + propName( field );
-                        // check Computed
-                        if (info.isComputed()) {
-                            throw new UnsupportedOperationException( "Computed ManyAssociation is not supported yet: " + propName( field ));
-                        }
-                        StoreCollectionProperty storeProp = (StoreCollectionProperty)state.loadProperty( info );
-                        prop = new ManyAssociationImpl( context, storeProp );
-                        prop = new ConstraintsManyAssociationInterceptor( (ManyAssociation)prop, (EntityRuntimeContextImpl)context );
-                        // concerns
-                        for (PropertyConcernBase concern : fieldConcerns( field, prop )) {
-                            prop = concern;
-                        }
-                    }
-
-                    // Collection
-                    else if (CollectionProperty.class.isAssignableFrom( field.getType() )) {
-                        assert info.getMaxOccurs() > 1 : "Field has improper @MaxOccurs: " + propName( field );
-                        StoreCollectionProperty storeProp = (StoreCollectionProperty)state.loadProperty( info );
-                        // Composite
-                        if (Composite.class.isAssignableFrom( info.getType() )) {
-                            prop = new CompositeCollectionPropertyImpl( context, storeProp );                            
-                        }
-                        // primitive type
-                        else {
-                            prop = new CollectionPropertyImpl( context, storeProp );
-                        }
-                        if (info.isNullable()) {
-                            throw new ModelRuntimeException( "CollectionProperty cannot be @Nullable." );
-                        }
-                        prop = new ConstraintsCollectionInterceptor( (CollectionProperty)prop, (EntityRuntimeContextImpl)context );
-                        // concerns
-                        for (PropertyConcernBase concern : fieldConcerns( field, prop )) {
-                            prop = concern;
-                        }
-                    }
-
-                    // set field
-                    assert prop != null : "Unable to build property instance for: " + field;
-                    field.set( instance, prop );                    
-                }
+    protected void initProperties( Composite instance, InstancePlan plan, CompositeState state ) throws Exception {
+        boolean lazy = ((EntityRepositoryImpl)context.getRepository()).isLazyProperties();
+        LazyProperties lazyProperties = lazy ? new LazyProperties( this, instance, state ) : null;
+
+        for (Slot slot : plan.slots()) {
+            if (slot.get( instance ) != null) {
+                log.info( "Property already inistialized, skipping: " + slot.field.getName() );
+                continue;
             }
-            superClass = superClass.getSuperclass();
-        }
-    }
+            PropertyBase prop = lazy
+                    ? lazyProperties.newProperty( slot ) 
+                    : newProperty( instance, slot, state );
 
-
-    protected String propName( Field field ) {
-        return field.getDeclaringClass().getSimpleName() + "#" + field.getName();
+            // set field
+            assert prop != null : "Unable to build property instance for: " + slot.field;
+            slot.set( instance, prop );
+        }
     }
-
     
-    protected Iterable<PropertyConcernBase> fieldConcerns( final Field field, final PropertyBase prop ) throws Exception {
-        List<Class> concernTypes = concerns.get( field, new Loader<Field,List<Class>>() {
-            public List<Class> load( Field key ) {
-                List<Class> result = new ArrayList();
-                // Class concerns
-                Concerns ca = field.getDeclaringClass().getAnnotation( Concerns.class );
-                if (ca != null) {
-                    result.addAll( Arrays.asList( ca.value() ) );
+    
+    /**
+     * Builds the property instance for the given slot, including constraints
+     * and concerns. Properties without concerns are build as one single
+     * Fused* object if possible.
+     */
+    protected PropertyBase newProperty( Composite instance, Slot slot, CompositeState state ) {
+        EntityRuntimeContextImpl contextImpl = (EntityRuntimeContextImpl)context;
+        PropertyBase prop = null;
+        switch (slot.kind) {
+            case COMPUTED_PROPERTY: {
+                prop = slot.newComputed( instance );
+                // always check modifications, default value, immutable, nullable
+                prop = new ConstraintsPropertyInterceptor( (Property)prop, contextImpl );
+                break;
+            }
+            case COMPOSITE_PROPERTY: {
+                StoreProperty storeProp = loadProperty( state, slot );
+                prop = new CompositePropertyImpl( context, storeProp );
+                prop = new ConstraintsPropertyInterceptor( (Property)prop, contextImpl );
+                break;
+            }
+            case PROPERTY: {
+                StoreProperty storeProp = loadProperty( state, slot );
+                if (!slot.hasConcerns()) {
+                    return new FusedPropertyImpl( storeProp, slot, contextImpl );
+                }
+                prop = new PropertyImpl( storeProp );
+                prop = new ConstraintsPropertyInterceptor( (Property)prop, contextImpl );
+                break;
+            }
+            case ASSOCIATION: {
+                assert slot.info.isAssociation();
+                // check Computed
+                if (slot.info.isComputed()) {
+                    throw new UnsupportedOperationException( "Computed Association is not supported yet: " + slot.propName() );
                 }
-                // Field concerns
-                Concerns fa = field.getAnnotation( Concerns.class );
-                if (fa != null) {
-                    for (Class<? extends PropertyConcernBase> concern : fa.value()) {
-                        result.add( concern );
-                    }
+                StoreProperty storeProp = loadProperty( state, slot );
+                if (!slot.hasConcerns()) {
+                    return new FusedAssociationImpl( contextImpl, storeProp, slot );
                 }
-                return result;
+                prop = new AssociationImpl( context, storeProp );
+                prop = new ConstraintsAssociationInterceptor( (Association)prop, contextImpl );
+                break;
             }
-        });
-        
-        return Iterables.transform( concernTypes, new Function<Class,PropertyConcernBase>() {
-            public PropertyConcernBase apply( Class concernType ) {
-                try {
-                    // early check concern type
-                    if (Property.class.isAssignableFrom( field.getType() )
-                            && !PropertyConcern.class.isAssignableFrom( concernType )) {
-                        throw new ModelRuntimeException( "Concerns of Property have to extend PropertyConcern: " + concernType.getName() + " @ " + field.getName() );
-                    }
-                    else if (CollectionProperty.class.isAssignableFrom( field.getType() )
-                            && !CollectionPropertyConcern.class.isAssignableFrom( concernType )) {
-                        throw new ModelRuntimeException( "Concerns of CollectionProperty have to extend CollectionPropertyConcern: " + concernType.getName() + " @ " + field.getName() );
-                    }
-                    else if (Association.class.isAssignableFrom( field.getType() )
-                            && !AssociationConcern.class.isAssignableFrom( concernType )) {
-                        throw new ModelRuntimeException( "Concerns of Association have to extend AssociationConcern: " + concernType.getName() + " @ " + field.getName() );
-                    }
-
-                    // create concern
-                    PropertyConcernBase concern = (PropertyConcernBase)concernType.newInstance();
-                    concernContextField.set( concern, context );
-                    concernDelegateField.set( concern, prop );
-                    
-                    return concern;
-                } 
-                catch (ModelRuntimeException e) {
-                    throw e;
+            case MANY_ASSOCIATION: {
+                assert slot.info.isAssociation();
+                assert slot.info.getMaxOccurs() > 1 : "Field has improper @MaxOccurs: " + slot.propName();
+                // check Computed
+                if (slot.info.isComputed()) {
+                    throw new UnsupportedOperationException( "Computed ManyAssociation is not supported yet: " + slot.propName() );
+                }
+                StoreCollectionProperty storeProp = loadCollectionProperty( state, slot );
+                if (!slot.hasConcerns()) {
+                    return new FusedManyAssociationImpl( contextImpl, storeProp, slot );
+                }
+                prop = new ManyAssociationImpl( context, storeProp );
+                prop = new ConstraintsManyAssociationInterceptor( (ManyAssociation)prop, contextImpl );
+                break;
+            }
+            case COMPOSITE_COLLECTION: 
+            case COLLECTION: {
+                assert slot.info.getMaxOccurs() > 1 : "Field has improper @MaxOccurs: " + slot.propName();
+                StoreCollectionProperty storeProp = loadCollectionProperty( state, slot );
+                if (slot.isNullable) {
+                    throw new ModelRuntimeException( "CollectionProperty cannot be @Nullable." );
                 }
-                catch (Exception e) {
-                    throw new ModelRuntimeException( "Error while initializing concern: " + concernType + " (" + e.getLocalizedMessage() + ")", e );
+                if (slot.kind == InstancePlan.Kind.COLLECTION && !slot.hasConcerns()) {
+                    return new FusedCollectionPropertyImpl( contextImpl, storeProp, slot );
                 }
+                prop = slot.kind == InstancePlan.Kind.COMPOSITE_COLLECTION
+                        ? new CompositeCollectionPropertyImpl( context, storeProp )
+                        : new CollectionPropertyImpl( context, storeProp );
+                prop = new ConstraintsCollectionInterceptor( (CollectionProperty)prop, contextImpl );
+                break;
             }
-        });
+        }
+        // concerns
+        return slot.withConcerns( prop, context );
+    }
+    
+    
+    protected StoreProperty loadProperty( CompositeState state, Slot slot ) {
+        StoreProperty result = state.loadProperty( slot.info );
+        return readOnly ? ReadOnlyStoreProperties.of( result ) : result;
+    }
+
+    
+    protected StoreCollectionProperty loadCollectionProperty( CompositeState state, Slot slot ) {
+        StoreCollectionProperty result = (StoreCollectionProperty)state.loadProperty( slot.info );
+        return readOnly ? ReadOnlyStoreProperties.of( result ) : result;
     }
     
 }
@@ -0,0 +1,453 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.Association;
+import org.polymap.model2.AssociationConcern;
+import org.polymap.model2.CollectionProperty;
+import org.polymap.model2.CollectionPropertyConcern;
+import org.polymap.model2.Composite;
+import org.polymap.model2.Computed;
+import org.polymap.model2.ComputedProperty;
+import org.polymap.model2.Concerns;
+import org.polymap.model2.ManyAssociation;
+import org.polymap.model2.Property;
+import org.polymap.model2.PropertyBase;
+import org.polymap.model2.PropertyConcern;
+import org.polymap.model2.PropertyConcernBase;
+import org.polymap.model2.StatelessPropertyConcern;
+import org.polymap.model2.runtime.CompositeInfo;
+import org.polymap.model2.runtime.EntityRuntimeContext;
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.PropertyInfo;
+
+/**
+ * The instantiation plan of a {@link Composite} class. All the reflection that is
+ * needed to build an instance (constructor, property fields, {@link PropertyInfo},
+ * concerns) is done once when the plan is created. {@link InstanceBuilder} and
+ * {@link TemplateInstanceBuilder} just execute the plan via {@link MethodHandle}s.
+ * <p/>
+ * Plans are cached in the {@link CompositeInfoImpl} of the Composite type, see
+ * {@link CompositeInfoImpl#plan()}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class InstancePlan {
+
+    private static Log log = LogFactory.getLog( InstancePlan.class );
+
+    private static final MethodType     CTOR_TYPE = MethodType.methodType( Object.class );
+
+    private static final MethodType     GETTER_TYPE = MethodType.methodType( Object.class, Object.class );
+
+    private static final MethodType     SETTER_TYPE = MethodType.methodType( void.class, Object.class, Object.class );
+
+    private static final MethodType     INIT_TYPE = MethodType.methodType( void.class, Object.class, Object.class, Object.class );
+
+    private static final Object         UNINITIALIZED = new Object();
+
+    private static final MethodHandle   compositeContextSetter;
+
+    private static final MethodHandle   compositeContextGetter;
+
+    private static final MethodHandle   concernContextSetter;
+
+    private static final MethodHandle   concernDelegateSetter;
+
+    private static final MethodHandle   computedPropertyInit;
+
+    /** Shared instances of {@link StatelessPropertyConcern}s. */
+    private static final ConcurrentMap<Class,StatelessPropertyConcern> statelessConcerns = new ConcurrentHashMap();
+
+    static {
+        try {
+            compositeContextSetter = setter( Composite.class.getDeclaredField( "context" ) );
+            compositeContextGetter = getter( Composite.class.getDeclaredField( "context" ) );
+            concernContextSetter = setter( PropertyConcernBase.class.getDeclaredField( "context" ) );
+            concernDelegateSetter = setter( PropertyConcernBase.class.getDeclaredField( "delegate" ) );
+
+            Method m = ComputedProperty.class.getDeclaredMethod( "init", PropertyInfo.class, Composite.class );
+            m.setAccessible( true );
+            computedPropertyInit = MethodHandles.lookup().unreflect( m ).asType( INIT_TYPE );
+        }
+        catch (Exception e) {
+            log.error( "", e );
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    /**
+     * The kind of a property slot. Decides what implementation is build for the
+     * property.
+     */
+    enum Kind {
+        PROPERTY, COMPUTED_PROPERTY, COMPOSITE_PROPERTY,
+        ASSOCIATION, MANY_ASSOCIATION,
+        COLLECTION, COMPOSITE_COLLECTION
+    }
+
+
+    // instance *******************************************
+
+    private Class<? extends Composite>  compositeClass;
+
+    private MethodHandle                ctor;
+
+    private Slot[]                      slots;
+
+
+    InstancePlan( CompositeInfo compositeInfo ) {
+        this.compositeClass = compositeInfo.getType();
+        try {
+            Constructor<?> c = compositeClass.getConstructor( new Class[] {} );
+            ctor = MethodHandles.lookup().unreflectConstructor( c ).asType( CTOR_TYPE );
+
+            List<Slot> result = new ArrayList( compositeInfo.getProperties().size() );
+            Class superClass = compositeClass;
+            while (superClass != null) {
+                for (Field field : superClass.getDeclaredFields()) {
+                    if (PropertyBase.class.isAssignableFrom( field.getType() )) {
+                        PropertyInfo info = compositeInfo.getProperty( field.getName() );
+                        result.add( new Slot( field, info ) );
+                    }
+                }
+                superClass = superClass.getSuperclass();
+            }
+            slots = result.toArray( new Slot[result.size()] );
+        }
+        catch (ModelRuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new ModelRuntimeException( "Error while creating instantiation plan of: " + compositeClass, e );
+        }
+    }
+
+
+    public Class<? extends Composite> compositeClass() {
+        return compositeClass;
+    }
+
+
+    public Slot[] slots() {
+        return slots;
+    }
+
+
+    /**
+     * Creates a new, uninitialized instance of the Composite type and sets its
+     * {@link EntityRuntimeContext}.
+     */
+    public <T extends Composite> T newInstance( EntityRuntimeContext context ) {
+        try {
+            Object instance = ctor.invokeExact();
+            compositeContextSetter.invokeExact( instance, (Object)context );
+            return (T)instance;
+        }
+        catch (Throwable e) {
+            throw rethrow( e, "Error while creating an instance of: " + compositeClass );
+        }
+    }
+
+
+    /**
+     * The {@link EntityRuntimeContext} of the given Composite instance.
+     */
+    public static EntityRuntimeContext contextOf( Composite composite ) {
+        try {
+            Object result = compositeContextGetter.invokeExact( (Object)composite );
+            return (EntityRuntimeContext)result;
+        }
+        catch (Throwable e) {
+            throw rethrow( e, "Error while accessing context of: " + composite.getClass() );
+        }
+    }
+
+
+    protected static RuntimeException rethrow( Throwable e, String msg ) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException)e;
+        }
+        else if (e instanceof Error) {
+            throw (Error)e;
+        }
+        else {
+            return new ModelRuntimeException( msg, e );
+        }
+    }
+
+
+    /**
+     * The shared instance of the given {@link StatelessPropertyConcern} type.
+     */
+    protected static StatelessPropertyConcern statelessConcern( Class<?> concernType ) {
+        return statelessConcerns.computeIfAbsent( concernType, k -> {
+            try {
+                return (StatelessPropertyConcern)concernType.newInstance();
+            }
+            catch (Exception e) {
+                throw new ModelRuntimeException( "Error while initializing concern: " + concernType + " (" + e.getLocalizedMessage() + ")", e );
+            }
+        });
+    }
+
+
+    protected static MethodHandle getter( Field field ) throws IllegalAccessException {
+        field.setAccessible( true );
+        return MethodHandles.lookup().unreflectGetter( field ).asType( GETTER_TYPE );
+    }
+
+
+    protected static MethodHandle setter( Field field ) throws IllegalAccessException {
+        field.setAccessible( true );
+        return MethodHandles.lookup().unreflectSetter( field ).asType( SETTER_TYPE );
+    }
+
+
+    /**
+     * A property field of the Composite type with all its resolved infos.
+     */
+    static final class Slot {
+
+        public final Kind               kind;
+
+        public final PropertyInfo       info;
+
+        public final Field              field;
+
+        /** Store in variable for fast access. */
+        public final boolean            isImmutable;
+        
+        public final boolean            isNullable;
+
+        private Object                  defaultValue = UNINITIALIZED;
+
+        private MethodHandle            getter;
+
+        private MethodHandle            setter;
+
+        private MethodHandle            computedCtor;
+
+        /**
+         * The concerns of this slot, innermost first. Either the constructor
+         * {@link MethodHandle} of a {@link PropertyConcernBase}, or a run of
+         * shared {@link StatelessPropertyConcern}s (outermost first).
+         */
+        private Object[]                concernStages;
+
+
+        protected Slot( Field field, PropertyInfo info ) throws Exception {
+            this.field = field;
+            this.info = info;
+            this.isImmutable = info.isImmutable();
+            this.isNullable = info.isNullable();
+            this.setter = setter( field );
+            this.getter = MethodHandles.lookup().unreflectGetter( field ).asType( GETTER_TYPE );
+
+            Class<?> fieldType = field.getType();
+            boolean composite = Composite.class.isAssignableFrom( info.getType() );
+            if (Property.class.isAssignableFrom( fieldType )) {
+                if (info.isComputed()) {
+                    kind = Kind.COMPUTED_PROPERTY;
+                    Class<?> computedType = field.getAnnotation( Computed.class ).value();
+                    computedCtor = MethodHandles.lookup()
+                            .unreflectConstructor( computedType.getConstructor( new Class[] {} ) )
+                            .asType( CTOR_TYPE );
+                }
+                else {
+                    kind = composite ? Kind.COMPOSITE_PROPERTY : Kind.PROPERTY;
+                }
+            }
+            else if (Association.class.isAssignableFrom( fieldType )) {
+                kind = Kind.ASSOCIATION;
+            }
+            else if (ManyAssociation.class.isAssignableFrom( fieldType )) {
+                kind = Kind.MANY_ASSOCIATION;
+            }
+            else if (CollectionProperty.class.isAssignableFrom( fieldType )) {
+                kind = composite ? Kind.COMPOSITE_COLLECTION : Kind.COLLECTION;
+            }
+            else {
+                throw new ModelRuntimeException( "Unhandled property type: " + propName() );
+            }
+
+            List<Object> stages = new ArrayList();
+            LinkedList<StatelessPropertyConcern> run = new LinkedList();
+            for (Class concernType : concernTypes()) {
+                checkConcernType( concernType );
+                if (StatelessPropertyConcern.class.isAssignableFrom( concernType )) {
+                    run.addFirst( statelessConcern( concernType ) );
+                }
+                else {
+                    if (!run.isEmpty()) {
+                        stages.add( run.toArray( new StatelessPropertyConcern[run.size()] ) );
+                        run.clear();
+                    }
+                    stages.add( MethodHandles.lookup()
+                            .unreflectConstructor( concernType.getConstructor( new Class[] {} ) )
+                            .asType( CTOR_TYPE ) );
+                }
+            }
+            if (!run.isEmpty()) {
+                stages.add( run.toArray( new StatelessPropertyConcern[run.size()] ) );
+            }
+            concernStages = stages.toArray();
+        }
+
+
+        public String propName() {
+            return field.getDeclaringClass().getSimpleName() + "#" + field.getName();
+        }
+
+
+        /**
+         * The default value of the property; lazily initialized on first access.
+         */
+        public Object defaultValue() {
+            if (defaultValue == UNINITIALIZED) {
+                // not synchronized; concurrent inits are ok here 
+                defaultValue = info.getDefaultValue();
+            }
+            return defaultValue;
+        }
+
+
+        public boolean hasConcerns() {
+            return concernStages.length > 0;
+        }
+
+
+        public Object get( Composite instance ) {
+            try {
+                return getter.invokeExact( (Object)instance );
+            }
+            catch (Throwable e) {
+                throw rethrow( e, "Error while reading property: " + propName() );
+            }
+        }
+
+
+        public void set( Composite instance, PropertyBase prop ) {
+            try {
+                setter.invokeExact( (Object)instance, (Object)prop );
+            }
+            catch (Throwable e) {
+                throw rethrow( e, "Error while setting property: " + propName() );
+            }
+        }
+
+
+        /**
+         * Creates and initializes the {@link ComputedProperty} of this slot.
+         */
+        public ComputedProperty newComputed( Composite instance ) {
+            assert kind == Kind.COMPUTED_PROPERTY;
+            try {
+                Object result = computedCtor.invokeExact();
+                computedPropertyInit.invokeExact( result, (Object)info, (Object)instance );
+                return (ComputedProperty)result;
+            }
+            catch (Throwable e) {
+                throw rethrow( e, "Error while initializing computed property: " + propName() );
+            }
+        }
+
+
+        /**
+         * Wraps the given property with the concerns declared for this slot.
+         *
+         * @return The outermost concern, or the given property if no concerns are declared.
+         */
+        public PropertyBase withConcerns( PropertyBase prop, EntityRuntimeContext context ) {
+            for (Object stage : concernStages) {
+                if (stage instanceof StatelessPropertyConcern[]) {
+                    prop = new StatelessConcernsProperty( context, (Property)prop, (StatelessPropertyConcern[])stage );
+                    continue;
+                }
+                try {
+                    Object concern = ((MethodHandle)stage).invokeExact();
+                    concernContextSetter.invokeExact( concern, (Object)context );
+                    concernDelegateSetter.invokeExact( concern, (Object)prop );
+                    prop = (PropertyBase)concern;
+                }
+                catch (Throwable e) {
+                    throw rethrow( e, "Error while initializing concern of: " + propName()
+                            + " (" + e.getLocalizedMessage() + ")" );
+                }
+            }
+            return prop;
+        }
+
+
+        protected List<Class> concernTypes() {
+            List<Class> result = new ArrayList();
+            // Class concerns
+            Concerns ca = field.getDeclaringClass().getAnnotation( Concerns.class );
+            if (ca != null) {
+                result.addAll( Arrays.asList( ca.value() ) );
+            }
+            // Field concerns
+            Concerns fa = field.getAnnotation( Concerns.class );
+            if (fa != null) {
+                result.addAll( Arrays.asList( fa.value() ) );
+            }
+            return result.isEmpty() ? Collections.EMPTY_LIST : result;
+        }
+
+
+        protected void checkConcernType( Class concernType ) {
+            if (StatelessPropertyConcern.class.isAssignableFrom( concernType )) {
+                if (!Property.class.isAssignableFrom( field.getType() )) {
+                    throw new ModelRuntimeException( "StatelessPropertyConcern is supported for Property only: " + concernType.getName() + " @ " + field.getName() );
+                }
+            }
+            else if (!PropertyConcernBase.class.isAssignableFrom( concernType )) {
+                throw new ModelRuntimeException( "Concerns have to extend PropertyConcernBase or StatelessPropertyConcern: " + concernType.getName() + " @ " + field.getName() );
+            }
+            else if (Property.class.isAssignableFrom( field.getType() )
+                    && !PropertyConcern.class.isAssignableFrom( concernType )) {
+                throw new ModelRuntimeException( "Concerns of Property have to extend PropertyConcern: " + concernType.getName() + " @ " + field.getName() );
+            }
+            else if (CollectionProperty.class.isAssignableFrom( field.getType() )
+                    && !CollectionPropertyConcern.class.isAssignableFrom( concernType )) {
+                throw new ModelRuntimeException( "Concerns of CollectionProperty have to extend CollectionPropertyConcern: " + concernType.getName() + " @ " + field.getName() );
+            }
+            else if (Association.class.isAssignableFrom( field.getType() )
+                    && !AssociationConcern.class.isAssignableFrom( concernType )) {
+                throw new ModelRuntimeException( "Concerns of Association have to extend AssociationConcern: " + concernType.getName() + " @ " + field.getName() );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.polymap.model2.Association;
+import org.polymap.model2.CollectionProperty;
+import org.polymap.model2.Composite;
+import org.polymap.model2.Entity;
+import org.polymap.model2.ManyAssociation;
+import org.polymap.model2.Property;
+import org.polymap.model2.PropertyBase;
+import org.polymap.model2.engine.InstancePlan.Slot;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.PropertyInfo;
+import org.polymap.model2.runtime.ValueInitializer;
+import org.polymap.model2.store.CompositeState;
+
+/**
+ * Lazy property materialization of one {@link Composite} instance. The fields of
+ * the Composite are initialized with lightweight placeholders that build the
+ * actual property instance (store property, constraints, concerns) on first
+ * access and memoize it.
+ * <p/>
+ * So building a Composite still costs one placeholder per property. It saves the
+ * store property, the constraints and the concerns of the properties that are
+ * never accessed.
+ * <p/>
+ * Enabled by {@link EntityRepository.Configuration#lazyProperties}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class LazyProperties {
+
+    private InstanceBuilder         builder;
+
+    private Composite               instance;
+
+    private CompositeState          state;
+
+
+    public LazyProperties( InstanceBuilder builder, Composite instance, CompositeState state ) {
+        this.builder = builder;
+        this.instance = instance;
+        this.state = state;
+    }
+
+
+    /**
+     * Creates the placeholder for the given slot.
+     */
+    public PropertyBase newProperty( Slot slot ) {
+        switch (slot.kind) {
+            case PROPERTY:
+            case COMPOSITE_PROPERTY:
+            case COMPUTED_PROPERTY: return new LazyProperty( slot );
+            case ASSOCIATION: return new LazyAssociation( slot );
+            case MANY_ASSOCIATION: return new LazyManyAssociation( slot );
+            case COLLECTION:
+            case COMPOSITE_COLLECTION: return new LazyCollectionProperty( slot );
+            default: throw new IllegalStateException( "Unhandled slot kind: " + slot.kind );
+        }
+    }
+
+
+    /**
+     * Synchronized so that just one property instance is created per slot, even if
+     * it is accessed concurrently for the first time.
+     */
+    protected synchronized PropertyBase materialize( LazyPropertyBase lazy ) {
+        if (lazy.delegate == null) {
+            lazy.delegate = builder.newProperty( instance, lazy.slot, state );
+        }
+        return lazy.delegate;
+    }
+
+
+    /**
+     *
+     */
+    abstract class LazyPropertyBase<T>
+            implements PropertyBase<T> {
+
+        protected Slot                  slot;
+
+        /** Volatile: read without lock by {@link #delegate()}, set by {@link LazyProperties#materialize(LazyPropertyBase)}. */
+        protected volatile PropertyBase<T> delegate;
+
+
+        protected LazyPropertyBase( Slot slot ) {
+            this.slot = slot;
+        }
+
+        protected PropertyBase<T> delegate() {
+            PropertyBase<T> result = delegate;
+            return result != null ? result : materialize( this );
+        }
+
+        @Override
+        public PropertyInfo info() {
+            return slot.info;
+        }
+
+        @Override
+        public int hashCode() {
+            return delegate().hashCode();
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            return delegate().equals( obj );
+        }
+
+        @Override
+        public String toString() {
+            return delegate().toString();
+        }
+    }
+
+
+    /**
+     *
+     */
+    class LazyProperty<T>
+            extends LazyPropertyBase<T>
+            implements Property<T> {
+
+        protected LazyProperty( Slot slot ) {
+            super( slot );
+        }
+
+        @Override
+        public T get() {
+            return ((Property<T>)delegate()).get();
+        }
+
+        @Override
+        public T createValue( ValueInitializer<T> initializer ) {
+            return ((Property<T>)delegate()).createValue( initializer );
+        }
+
+        @Override
+        public void set( T value ) {
+            ((Property<T>)delegate()).set( value );
+        }
+    }
+
+
+    /**
+     *
+     */
+    class LazyAssociation<T extends Entity>
+            extends LazyPropertyBase<T>
+            implements Association<T> {
+
+        protected LazyAssociation( Slot slot ) {
+            super( slot );
+        }
+
+        @Override
+        public T get() {
+            return ((Association<T>)delegate()).get();
+        }
+
+        @Override
+        public void set( T value ) {
+            ((Association<T>)delegate()).set( value );
+        }
+    }
+
+
+    /**
+     *
+     */
+    abstract class LazyCollection<T>
+            extends LazyPropertyBase<T>
+            implements Collection<T> {
+
+        protected LazyCollection( Slot slot ) {
+            super( slot );
+        }
+
+        protected Collection<T> collection() {
+            return (Collection<T>)delegate();
+        }
+
+        @Override
+        public int size() {
+            return collection().size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return collection().isEmpty();
+        }
+
+        @Override
+        public boolean contains( Object o ) {
+            return collection().contains( o );
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return collection().iterator();
+        }
+
+        @Override
+        public Object[] toArray() {
+            return collection().toArray();
+        }
+
+        @Override
+        public <V> V[] toArray( V[] a ) {
+            return collection().toArray( a );
+        }
+
+        @Override
+        public boolean add( T e ) {
+            return collection().add( e );
+        }
+
+        @Override
+        public boolean remove( Object o ) {
+            return collection().remove( o );
+        }
+
+        @Override
+        public boolean containsAll( Collection<?> c ) {
+            return collection().containsAll( c );
+        }
+
+        @Override
+        public boolean addAll( Collection<? extends T> c ) {
+            return collection().addAll( c );
+        }
+
+        @Override
+        public boolean removeAll( Collection<?> c ) {
+            return collection().removeAll( c );
+        }
+
+        @Override
+        public boolean retainAll( Collection<?> c ) {
+            return collection().retainAll( c );
+        }
+
+        @Override
+        public void clear() {
+            collection().clear();
+        }
+    }
+
+
+    /**
+     *
+     */
+    class LazyCollectionProperty<T>
+            extends LazyCollection<T>
+            implements CollectionProperty<T> {
+
+        protected LazyCollectionProperty( Slot slot ) {
+            super( slot );
+        }
+
+        @Override
+        public T createElement( ValueInitializer<T> initializer ) {
+            return ((CollectionProperty<T>)delegate()).createElement( initializer );
+        }
+    }
+
+
+    /**
+     *
+     */
+    class LazyManyAssociation<T extends Entity>
+            extends LazyCollection<T>
+            implements ManyAssociation<T> {
+
+        protected LazyManyAssociation( Slot slot ) {
+            super( slot );
+        }
+    }
+
+}
@@ -14,18 +14,22 @@
  */
 package org.polymap.model2.engine;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.cache.Cache;
 import javax.cache.CacheManager;
 import javax.cache.configuration.CacheEntryListenerConfiguration;
 import javax.cache.configuration.CompleteConfiguration;
 import javax.cache.configuration.Configuration;
-import javax.cache.configuration.MutableConfiguration;
-import javax.cache.integration.CacheLoader;
-import javax.cache.integration.CacheLoaderException;
 import javax.cache.integration.CompletionListener;
 import javax.cache.processor.EntryProcessor;
 import javax.cache.processor.EntryProcessorException;
@@ -34,8 +38,15 @@ import javax.cache.processor.EntryProcessorResult;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.base.Throwables;
+
+import org.polymap.model2.runtime.ModelRuntimeException;
+
 /**
- * 
+ * Wraps a {@link Cache} created by a {@link CacheManager} and loads missing values
+ * via the {@link Loader} given to {@link #get(Object, Loader)}. Just one thread
+ * loads a given key; other threads requesting the same key concurrently wait for
+ * its result. Lookups of cached values do not allocate anything.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -50,14 +61,41 @@ public class LoadingCache<K,V>
      * 
      */
     public static <K,V> LoadingCache<K,V> create( CacheManager cacheManager, CompleteConfiguration config ) {
-        return new LoadingCache( cacheManager, config ); 
+        return new LoadingCache( cacheManager, "LoadingCache-" + nameCount.incrementAndGet(), config ); 
     }
 
+    /**
+     * Creates a cache with the given name. The name has to be unique within the
+     * given {@link CacheManager}.
+     */
+    public static <K,V> LoadingCache<K,V> create( CacheManager cacheManager, String name, CompleteConfiguration config ) {
+        return new LoadingCache( cacheManager, name, config ); 
+    }
+    
+    private static final AtomicLong     nameCount = new AtomicLong();
+
     // Loader interface ***********************************
     
     public interface Loader<K,V> {
         
         public V load( K key );
+        
+        /**
+         * Loads the values of several keys at once. The default implementation
+         * calls {@link #load(Object)} for every key.
+         *
+         * @return The loaded values; keys without value may be missing.
+         */
+        public default Map<K,V> loadAll( Iterable<? extends K> keys ) {
+            Map<K,V> result = new HashMap();
+            for (K key : keys) {
+                V value = load( key );
+                if (value != null) {
+                    result.put( key, value );
+                }
+            }
+            return result;
+        }
     }
     
     
@@ -65,35 +103,140 @@ public class LoadingCache<K,V>
 
     private Cache<K,V>                  delegate;
     
-    private ThreadLocal<Loader<K,V>>    threadLoader = new ThreadLocal();
+    /** The keys currently loaded and the future of their value. */
+    private ConcurrentMap<K,InFlight<V>> inFlight = new ConcurrentHashMap( 32 );
     
+    /** False if the delegate does not provide {@link CacheStatistics}. */
+    private boolean                     statisticsSupported = true;
     
-    public LoadingCache( CacheManager cacheManager, CompleteConfiguration config ) {
-        MutableConfiguration newConfig = config instanceof MutableConfiguration 
-                ? (MutableConfiguration)config : new MutableConfiguration( config );
-                
-        newConfig.setCacheLoaderFactory( () -> new CacheLoader<K,V>() {
-            @Override
-            public V load( K key ) throws CacheLoaderException {
-                return threadLoader.get().load( key );
+    
+    public LoadingCache( CacheManager cacheManager, String name, CompleteConfiguration config ) {
+        delegate = cacheManager.createCache( name, config );
+    }
+
+
+    /**
+     * The statistics of the underlying cache, or null if statistics are disabled
+     * or not supported by the underlying cache.
+     */
+    public CacheStatistics statistics() {
+        if (statisticsSupported) {
+            try {
+                return delegate.unwrap( CacheStatistics.class );
             }
-            @Override
-            public Map<K,V> loadAll( Iterable<? extends K> keys ) throws CacheLoaderException {
-                throw new RuntimeException( "not yet implemented." );
+            catch (IllegalArgumentException|ClassCastException e) {
+                statisticsSupported = false;
             }
-        });
-        
-        delegate = cacheManager.createCache( "LoadingCache-" + hashCode(), newConfig );
+        }
+        return null;
     }
 
 
+    /**
+     * Gets the value of the given key, or loads it with the given loader if it is
+     * not cached. Only one thread loads a given key at a time.
+     *
+     * @return The cached or loaded value, or null if the loader returned null.
+     */
     public V get( K key, Loader<K,V> loader ) {
-        threadLoader.set( loader );
+        V value = delegate.get( key );
+        return value != null ? value : load( key, loader );
+    }
+
+
+    protected V load( K key, Loader<K,V> loader ) {
+        InFlight<V> future = new InFlight();
+        InFlight<V> other = inFlight.putIfAbsent( key, future );
+        if (other != null) {
+            if (other.thread == Thread.currentThread()) {
+                throw new IllegalStateException( "Recursive load of key: " + key );
+            }
+            return other.await();
+        }
         try {
-            return get( key );
+            // another thread might have finished loading right before;
+            // containsKey() does not count as a (second) miss
+            V value = delegate.containsKey( key ) ? delegate.get( key ) : null;
+            if (value == null) {
+                CacheStatistics s = statistics();
+                long start = s != null ? System.nanoTime() : 0;
+                value = loader.load( key );
+                if (s != null) {
+                    s.recordLoad( System.nanoTime() - start );
+                }
+                if (value != null && !delegate.putIfAbsent( key, value )) {
+                    V previous = delegate.get( key );
+                    value = previous != null ? previous : value;
+                }
+            }
+            future.complete( value );
+            return value;
+        }
+        catch (Throwable e) {
+            future.completeExceptionally( e );
+            throw e;
         }
         finally {
-            threadLoader.remove();
+            inFlight.remove( key, future );
+        }
+    }
+
+
+    /**
+     * Gets the values of the given keys. Values that are not cached are loaded
+     * with one call of {@link Loader#loadAll(Iterable)}. Keys that are loaded
+     * concurrently by another thread might be loaded twice, but just one value is
+     * returned to all threads.
+     */
+    public Map<K,V> getAll( Set<? extends K> keys, Loader<K,V> loader ) {
+        Map<K,V> result = new HashMap( keys.size() * 2 );
+        Set<K> missing = new HashSet();
+        for (K key : keys) {
+            V value = delegate.get( key );
+            if (value != null) {
+                result.put( key, value );
+            }
+            else {
+                missing.add( key );
+            }
+        }
+        if (!missing.isEmpty()) {
+            CacheStatistics s = statistics();
+            long start = s != null ? System.nanoTime() : 0;
+            Map<K,V> loaded = loader.loadAll( missing );
+            if (s != null) {
+                s.loads.add( loaded.size() );
+                s.loadNanos.add( System.nanoTime() - start );
+            }
+            for (Map.Entry<K,V> entry : loaded.entrySet()) {
+                V value = entry.getValue();
+                if (value != null && !delegate.putIfAbsent( entry.getKey(), value )) {
+                    V previous = delegate.get( entry.getKey() );
+                    value = previous != null ? previous : value;
+                }
+                result.put( entry.getKey(), value );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * The future value of a key that is loaded by {@link #thread}.
+     */
+    protected static class InFlight<V>
+            extends CompletableFuture<V> {
+        
+        public final Thread     thread = Thread.currentThread();
+        
+        public V await() {
+            try {
+                return join();
+            }
+            catch (CompletionException e) {
+                Throwables.propagateIfPossible( e.getCause() );
+                throw new ModelRuntimeException( e.getCause() );
+            }
         }
     }
 
@@ -199,8 +342,17 @@ public class LoadingCache<K,V>
         return delegate.getCacheManager();
     }
 
+    /**
+     * Closes the underlying cache and destroys it in its {@link CacheManager}.
+     */
     public void close() {
-        delegate.close();
+        CacheManager cacheManager = delegate.getCacheManager();
+        if (cacheManager != null && !cacheManager.isClosed()) {
+            cacheManager.destroyCache( delegate.getName() );
+        }
+        else {
+            delegate.close();
+        }
     }
 
     public boolean isClosed() {
@@ -36,10 +36,10 @@ class ManyAssociationImpl<T extends Entity>
         extends AbstractCollection<T>
         implements ManyAssociation<T> {
 
-    private EntityRuntimeContext            context;
+    protected EntityRuntimeContext          context;
 
     /** Holding the ids of the associated Entities. */
-    private StoreCollectionProperty<Object> storeProp;
+    protected StoreCollectionProperty<Object> storeProp;
     
 
     public ManyAssociationImpl( EntityRuntimeContext context, StoreCollectionProperty storeProp ) {
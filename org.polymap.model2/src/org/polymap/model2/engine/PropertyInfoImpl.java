@@ -15,6 +15,9 @@
 package org.polymap.model2.engine;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 
@@ -29,6 +32,8 @@ import org.polymap.model2.NameInStore;
 import org.polymap.model2.Nullable;
 import org.polymap.model2.PropertyBase;
 import org.polymap.model2.Queryable;
+import org.polymap.model2.runtime.CompositeInfo;
+import org.polymap.model2.runtime.ModelRuntimeException;
 import org.polymap.model2.runtime.PropertyInfo;
 
 /**
@@ -39,22 +44,104 @@ import org.polymap.model2.runtime.PropertyInfo;
 public class PropertyInfoImpl<T>
         implements PropertyInfo<T> {
 
+    private static final Object     UNINITIALIZED = new Object();
+    
     private Field                   field;
 
+    private CompositeInfo           composite;
+    
+    private int                     ordinal;
+    
+    private MethodHandle            getter;
+    
+    // precomputed attributes *****************************
+    
+    private Class                   type;
+    
+    private String                  nameInStore;
+    
+    private boolean                 isAssociation;
+    
+    private boolean                 isNullable;
+    
+    private boolean                 isImmutable;
+    
+    private boolean                 isComputed;
+    
+    private boolean                 isQueryable;
+    
+    private int                     maxOccurs;
+    
+    /** Lazily init as {@link DefaultValues} may fail for unsupported types. */
+    private Object                  defaultValue = UNINITIALIZED;
+    
     
+    /**
+     * Creates an info that is not part of a {@link CompositeInfo}.
+     */
     public PropertyInfoImpl( Field field ) {
+        this( field, null, -1 );
+    }
+    
+    
+    public PropertyInfoImpl( Field field, CompositeInfo composite, int ordinal ) {
         assert PropertyBase.class.isAssignableFrom( field.getType() );
         this.field = field;
+        this.composite = composite;
+        this.ordinal = ordinal;
+
+        ParameterizedType declaredType = (ParameterizedType)field.getGenericType();
+        this.type = (Class)declaredType.getActualTypeArguments()[0];
+        
+        this.nameInStore = field.getAnnotation( NameInStore.class ) != null
+                ? field.getAnnotation( NameInStore.class ).value()
+                : field.getName();
+        
+        this.isAssociation = Association.class.isAssignableFrom( field.getType() )
+                || ManyAssociation.class.isAssignableFrom( field.getType() );
+        this.isNullable = field.getAnnotation( Nullable.class ) != null;
+        this.isImmutable = field.getAnnotation( Immutable.class ) != null;
+        this.isComputed = field.getAnnotation( Computed.class ) != null;
+        this.isQueryable = field.getAnnotation( Queryable.class ) != null;
+        
+        if (CollectionProperty.class.isAssignableFrom( field.getType() )
+                || ManyAssociation.class.isAssignableFrom( field.getType() )) {
+            this.maxOccurs = field.getAnnotation( MaxOccurs.class ) != null
+                    ? field.getAnnotation( MaxOccurs.class ).value()
+                    : Integer.MAX_VALUE;
+        }
+        else {
+            assert field.getAnnotation( MaxOccurs.class ) == null : "@MaxOccurs is not allowed on single value properties.";
+            this.maxOccurs = 1;
+        }
+        
+        try {
+            field.setAccessible( true );
+            this.getter = MethodHandles.lookup().unreflectGetter( field )
+                    .asType( MethodType.methodType( Object.class, Object.class ) );
+        }
+        catch (IllegalAccessException e) {
+            throw new ModelRuntimeException( e );
+        }
     }
 
     Field getField() {
         return field;
     }
 
+    @Override
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    @Override
+    public CompositeInfo getDeclaringComposite() {
+        return composite;
+    }
+
     @Override
     public Class getType() {
-        ParameterizedType declaredType = (ParameterizedType)field.getGenericType();
-        return (Class)declaredType.getActualTypeArguments()[0];
+        return type;
     }
     
     @Override
@@ -64,66 +151,59 @@ public class PropertyInfoImpl<T>
 
     @Override
     public String getNameInStore() {
-        return field.getAnnotation( NameInStore.class ) != null
-                ? field.getAnnotation( NameInStore.class ).value()
-                : field.getName();
+        return nameInStore;
     }
 
     @Override
     public boolean isAssociation() {
-        return Association.class.isAssignableFrom( field.getType() )
-                || ManyAssociation.class.isAssignableFrom( field.getType() );
+        return isAssociation;
     }
 
     @Override
     public boolean isNullable() {
-        return field.getAnnotation( Nullable.class ) != null;
+        return isNullable;
     }
 
     @Override
     public boolean isImmutable() {
-        return field.getAnnotation( Immutable.class ) != null;
+        return isImmutable;
     }
 
     @Override
     public boolean isComputed() {
-        return field.getAnnotation( Computed.class ) != null;
+        return isComputed;
     }
 
     @Override
     public boolean isQueryable() {
-        return field.getAnnotation( Queryable.class ) != null;
+        return isQueryable;
     }
 
     @Override
     public int getMaxOccurs() {
-        if (CollectionProperty.class.isAssignableFrom( field.getType() )
-                || ManyAssociation.class.isAssignableFrom( field.getType() )) {
-            return field.getAnnotation( MaxOccurs.class ) != null
-                    ? field.getAnnotation( MaxOccurs.class ).value()
-                    : Integer.MAX_VALUE;
-        }
-        else {
-            assert field.getAnnotation( MaxOccurs.class ) == null : "@MaxOccurs is not allowed on single value properties.";
-            return 1;
-        }
+        return maxOccurs;
     }
 
     @Override
     public T getDefaultValue() {
-        return (T)DefaultValues.valueOf( field );
+        if (defaultValue == UNINITIALIZED) {
+            // not synchronized; concurrent inits are ok here 
+            defaultValue = DefaultValues.valueOf( field );
+        }
+        return (T)defaultValue;
     }
 
     @Override    
     public <P extends PropertyBase<T>> P get( Composite composite ) {
-        if (!field.isAccessible()) { 
-            field.setAccessible( true ); 
-        }
         try {
-            return (P)field.get( composite );
+            Object result = getter.invokeExact( (Object)composite );
+            return (P)result;
         }
-        catch (IllegalAccessException e) {
-            throw new RuntimeException( e );
+        catch (RuntimeException|Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new ModelRuntimeException( e );
         }
     }
 
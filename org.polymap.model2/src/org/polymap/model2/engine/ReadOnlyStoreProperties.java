@@ -0,0 +1,134 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.Iterator;
+
+import org.polymap.model2.runtime.ModelRuntimeException;
+import org.polymap.model2.runtime.PropertyInfo;
+import org.polymap.model2.store.StoreCollectionProperty;
+import org.polymap.model2.store.StoreProperty;
+
+/**
+ * Store properties of the Entities of a read-only {@link UnitOfWorkImpl}. All
+ * modifications are rejected before they reach the underlying store.
+ *
+ * @see EntityRepositoryImpl#newReadOnlyUnitOfWork()
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class ReadOnlyStoreProperties {
+
+    public static StoreProperty of( StoreProperty delegate ) {
+        return new ReadOnlyProperty( delegate );
+    }
+
+
+    public static StoreCollectionProperty of( StoreCollectionProperty delegate ) {
+        return new ReadOnlyCollectionProperty( delegate );
+    }
+
+
+    protected static ModelRuntimeException readOnly( PropertyInfo info ) {
+        return new ModelRuntimeException( "UnitOfWork is read-only. Property cannot be modified: " + info.getName() );
+    }
+
+
+    /**
+     *
+     */
+    static final class ReadOnlyProperty<T>
+            implements StoreProperty<T> {
+
+        private StoreProperty<T>    delegate;
+
+        protected ReadOnlyProperty( StoreProperty<T> delegate ) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public T get() {
+            return delegate.get();
+        }
+
+        @Override
+        public void set( Object value ) {
+            throw readOnly( delegate.info() );
+        }
+
+        @Override
+        public T createValue() {
+            throw readOnly( delegate.info() );
+        }
+
+        @Override
+        public PropertyInfo info() {
+            return delegate.info();
+        }
+    }
+
+
+    /**
+     *
+     */
+    static final class ReadOnlyCollectionProperty<T>
+            implements StoreCollectionProperty<T> {
+
+        private StoreCollectionProperty<T> delegate;
+
+        protected ReadOnlyCollectionProperty( StoreCollectionProperty<T> delegate ) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            Iterator<T> it = delegate.iterator();
+            return new Iterator<T>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+                @Override
+                public T next() {
+                    return it.next();
+                }
+                @Override
+                public void remove() {
+                    throw readOnly( delegate.info() );
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return delegate.size();
+        }
+
+        @Override
+        public boolean add( T elm ) {
+            throw readOnly( delegate.info() );
+        }
+
+        @Override
+        public T createValue() {
+            throw readOnly( delegate.info() );
+        }
+
+        @Override
+        public PropertyInfo info() {
+            return delegate.info();
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.Entity;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.UnitOfWork;
+
+/**
+ * The statistics of the Entity caches of all {@link UnitOfWork} instances of an
+ * {@link EntityRepository}, accumulated in total and per Entity type. The size is
+ * the number of Entities currently held by open UnitOfWork instances.
+ * <p/>
+ * If registered, the statistics are exposed as MXBeans named
+ * <code>javax.cache:type=CacheStatistics,CacheManager=model2,Cache=&lt;repository&gt;.entities[.&lt;type&gt;]</code>.
+ *
+ * @see EntityRepository.Configuration#cacheStatistics
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class RepositoryCacheStatistics {
+
+    private static Log log = LogFactory.getLog( RepositoryCacheStatistics.class );
+
+    public static final String              CACHE_MANAGER_NAME = "model2";
+
+    private String                          name;
+
+    private CacheStatistics                 total = new CacheStatistics();
+
+    private ConcurrentMap<Class,CacheStatistics> types = new ConcurrentHashMap( 32 );
+
+    private boolean                         registerMXBeans;
+
+
+    /**
+     *
+     * @param name The name of the repository.
+     * @param registerMXBeans True if the statistics are to be registered as MXBeans
+     *        with the platform MBeanServer.
+     */
+    public RepositoryCacheStatistics( String name, boolean registerMXBeans ) {
+        this.name = name;
+        this.registerMXBeans = registerMXBeans;
+        if (registerMXBeans) {
+            register( name + ".entities", total );
+        }
+    }
+
+
+    /**
+     * Unregisters all MXBeans.
+     */
+    public void close() {
+        if (registerMXBeans) {
+            unregister( name + ".entities" );
+            for (Class type : types.keySet()) {
+                unregister( name + ".entities." + type.getSimpleName() );
+            }
+            registerMXBeans = false;
+        }
+    }
+
+
+    public String name() {
+        return name;
+    }
+
+
+    /**
+     * The accumulated statistics of all Entity types.
+     */
+    public CacheStatistics total() {
+        return total;
+    }
+
+
+    /**
+     * The statistics of the given Entity type.
+     */
+    public CacheStatistics of( Class<? extends Entity> entityClass ) {
+        CacheStatistics result = types.get( entityClass );
+        if (result == null) {
+            result = types.computeIfAbsent( entityClass, cl -> {
+                CacheStatistics stats = new CacheStatistics();
+                if (registerMXBeans) {
+                    register( name + ".entities." + cl.getSimpleName(), stats );
+                }
+                return stats;
+            });
+        }
+        return result;
+    }
+
+
+    /**
+     * The statistics of all Entity types that were accessed so far.
+     */
+    public Map<Class<? extends Entity>,CacheStatistics> types() {
+        return Collections.unmodifiableMap( (Map)types );
+    }
+
+
+    /**
+     * A copy of the current statistics.
+     */
+    public RepositoryCacheStatistics snapshot() {
+        RepositoryCacheStatistics result = new RepositoryCacheStatistics( name, false );
+        result.total = total.snapshot();
+        Map<Class,CacheStatistics> copy = new HashMap( types.size() * 2 );
+        types.forEach( (type,stats) -> copy.put( type, stats.snapshot() ) );
+        result.types.putAll( copy );
+        return result;
+    }
+
+
+    public void recordHit( Class<? extends Entity> entityClass, int count ) {
+        total.hits.add( count );
+        of( entityClass ).hits.add( count );
+    }
+
+
+    public void recordMiss( Class<? extends Entity> entityClass, int count ) {
+        total.misses.add( count );
+        of( entityClass ).misses.add( count );
+    }
+
+
+    /**
+     * Records the given number of loaded Entities and the time it took to load
+     * them. The Entities are added to the size.
+     */
+    public void recordLoad( Class<? extends Entity> entityClass, int count, long nanos ) {
+        CacheStatistics type = of( entityClass );
+        total.loads.add( count );
+        total.loadNanos.add( nanos );
+        type.loads.add( count );
+        type.loadNanos.add( nanos );
+        recordSize( entityClass, count );
+    }
+
+
+    public void recordPut( Class<? extends Entity> entityClass ) {
+        total.recordPut();
+        of( entityClass ).recordPut();
+        recordSize( entityClass, 1 );
+    }
+
+
+    public void recordEviction( Class<? extends Entity> entityClass ) {
+        total.recordEviction();
+        of( entityClass ).recordEviction();
+        recordSize( entityClass, -1 );
+    }
+
+
+    public void recordSize( Class<? extends Entity> entityClass, long delta ) {
+        total.recordSize( delta );
+        of( entityClass ).recordSize( delta );
+    }
+
+
+    @Override
+    public String toString() {
+        return "RepositoryCacheStatistics[" + name + ": " + total + "]";
+    }
+
+
+    // MXBeans ********************************************
+
+    protected ObjectName objectName( String cacheName ) throws Exception {
+        return new ObjectName( "javax.cache:type=CacheStatistics,CacheManager=" + CACHE_MANAGER_NAME
+                + ",Cache=" + cacheName.replaceAll( ",|:|=", "." ) );
+    }
+
+
+    protected void register( String cacheName, CacheStatistics stats ) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName( cacheName );
+            if (!server.isRegistered( objectName )) {
+                server.registerMBean( stats, objectName );
+            }
+        }
+        catch (Exception e) {
+            log.warn( "Unable to register MXBean: " + cacheName + " (" + e + ")" );
+        }
+    }
+
+
+    protected void unregister( String cacheName ) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName( cacheName );
+            if (server.isRegistered( objectName )) {
+                server.unregisterMBean( objectName );
+            }
+        }
+        catch (Exception e) {
+            log.warn( "Unable to unregister MXBean: " + cacheName + " (" + e + ")" );
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.cache.Cache;
+import javax.cache.CacheManager;
+import javax.cache.configuration.MutableConfiguration;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.Entity;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.UnitOfWork;
+import org.polymap.model2.store.CompositeState;
+import org.polymap.model2.store.OptimisticLocking;
+import org.polymap.model2.store.StoreUnitOfWork;
+
+/**
+ * Entity states shared by all {@link UnitOfWork} instances of one repository.
+ * Loading an Entity in a UnitOfWork gets the shared snapshot of its state and
+ * wraps it into a {@link CopyOnWriteState}. The UnitOfWork loads its private copy
+ * of the state not until the Entity is modified. The {@link StoreUnitOfWork} is
+ * notified about snapshot reads and forks, so that version checks like
+ * {@link OptimisticLocking} check against the version that was read.
+ * <p/>
+ * Snapshots are invalidated when modifications of the Entity are committed.
+ * Changes of the backend store that are not done via this repository have to be
+ * signaled via {@link #invalidate(Object)} or {@link #invalidate(Class)}.
+ *
+ * @see EntityRepository.Configuration#sharedSnapshots
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class SharedSnapshots {
+
+    private static Log log = LogFactory.getLog( SharedSnapshots.class );
+
+    /**
+     *
+     */
+    protected static final class Snapshot {
+
+        public final Class<? extends Entity>    type;
+
+        public final CompositeState             state;
+
+        public Snapshot( Class<? extends Entity> type, CompositeState state ) {
+            this.type = type;
+            this.state = state;
+        }
+    }
+
+
+    // instance *******************************************
+
+    private Cache<Object,Snapshot>      snapshots;
+
+    /**
+     * Incremented on every invalidation. Snapshots loaded while an invalidation
+     * happened are not cached, as they might be loaded before the corresponding
+     * commit.
+     */
+    private AtomicLong                  invalidations = new AtomicLong();
+
+
+    protected SharedSnapshots( CacheManager cacheManager ) {
+        snapshots = cacheManager.createCache( "SharedSnapshots-" + hashCode(), new MutableConfiguration() );
+    }
+
+
+    /**
+     * The copy-on-write state of the given Entity, backed by the shared snapshot.
+     *
+     * @param id The id of the Entity.
+     * @param type The type of the Entity.
+     * @param loader Loads the snapshot if it is not yet cached.
+     * @param fork Loads the private copy of the UnitOfWork on first write.
+     * @return Newly created {@link CopyOnWriteState}, or null if the loader
+     *         returned null.
+     */
+    protected CompositeState state( Object id, Class<? extends Entity> type,
+            Supplier<CompositeState> loader, Supplier<CompositeState> fork ) {
+        Snapshot snapshot = snapshots.get( id );
+        if (snapshot == null) {
+            long generation = invalidations.get();
+            CompositeState state = loader.get();
+            if (state == null) {
+                return null;
+            }
+            snapshot = new Snapshot( type, state );
+            if (generation == invalidations.get()) {
+                if (!snapshots.putIfAbsent( id, snapshot )) {
+                    snapshot = snapshots.get( id );
+                    snapshot = snapshot != null ? snapshot : new Snapshot( type, state );
+                }
+            }
+        }
+        return CopyOnWriteState.of( snapshot.state, fork );
+    }
+
+
+    /**
+     * Invalidates the snapshot of the Entity with the given id.
+     */
+    public void invalidate( Object id ) {
+        invalidations.incrementAndGet();
+        snapshots.remove( id );
+    }
+
+
+    /**
+     * Invalidates the snapshots of all Entities of the given type.
+     */
+    public void invalidate( Class<? extends Entity> type ) {
+        invalidations.incrementAndGet();
+        Set<Object> ids = new HashSet();
+        for (Cache.Entry<Object,Snapshot> entry : snapshots) {
+            if (type.isAssignableFrom( entry.getValue().type )) {
+                ids.add( entry.getKey() );
+            }
+        }
+        snapshots.removeAll( ids );
+    }
+
+
+    /**
+     * Invalidates all snapshots.
+     */
+    public void clear() {
+        invalidations.incrementAndGet();
+        snapshots.clear();
+    }
+
+}
@@ -14,6 +14,8 @@
  */
 package org.polymap.model2.engine;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -26,6 +28,7 @@ import javax.cache.configuration.CacheEntryListenerConfiguration;
 import javax.cache.configuration.CompleteConfiguration;
 import javax.cache.configuration.Configuration;
 import javax.cache.configuration.Factory;
+import javax.cache.configuration.MutableConfiguration;
 import javax.cache.integration.CacheLoader;
 import javax.cache.integration.CompletionListener;
 import javax.cache.processor.EntryProcessor;
@@ -50,16 +53,56 @@ public class SimpleCache<K,V>
     
     private CacheLoader<K,V>        loader;
     
+    private CompleteConfiguration<K,V> config;
+    
+    private String                  name;
+    
+    private CacheManager            cacheManager;
+    
+    /** The statistics of this cache, or null if statistics are disabled. */
+    private volatile CacheStatistics stats;
+    
     
     public SimpleCache( Configuration config ) {
+        this.config = config instanceof CompleteConfiguration
+                ? (CompleteConfiguration)config
+                : new MutableConfiguration().setTypes( config.getKeyType(), config.getValueType() );
         if (config instanceof CompleteConfiguration) {
             Factory<CacheLoader<K,V>> factory = ((CompleteConfiguration)config).getCacheLoaderFactory();
             if (factory != null) {
                 loader = factory.create();
             }
+            enableStatistics( ((CompleteConfiguration)config).isStatisticsEnabled() );
+        }
+    }
+
+    /**
+     * Called by the {@link SimpleCacheManager} that has created this cache.
+     */
+    void registered( CacheManager manager, String cacheName ) {
+        this.cacheManager = manager;
+        this.name = cacheName;
+    }
+
+    /**
+     * Starts or stops recording {@link CacheStatistics} of this cache.
+     */
+    public void enableStatistics( boolean enabled ) {
+        if (enabled && stats == null) {
+            stats = new CacheStatistics( () -> entries != null ? entries.size() : 0 );
+        }
+        else if (!enabled) {
+            stats = null;
         }
     }
 
+    /**
+     * The statistics of this cache, or null if statistics are disabled.
+     */
+    public CacheStatistics statistics() {
+        return stats;
+    }
+
     protected void checkOpen() {
         if (entries == null) {
             throw new IllegalStateException( "Cache is closed." );
@@ -70,13 +113,24 @@ public class SimpleCache<K,V>
     public V get( K key ) {
         checkOpen();
         V value = entries.get( key );
+        CacheStatistics s = stats;
         if (value != null) {
+            if (s != null) {
+                s.recordHit();
+            }
             return value;
         }
-        else if (loader != null) {
+        if (s != null) {
+            s.recordMiss();
+        }
+        if (loader != null) {
             // we do not prevent threads from concurrently creating a value for the
             // same key! but we make sure that just one value is returned to all threads
+            long start = s != null ? System.nanoTime() : 0;
             value = loader.load( key );
+            if (s != null) {
+                s.recordLoad( System.nanoTime() - start );
+            }
             if (value != null) {
                 V previous = entries.putIfAbsent( key, value );
                 value = previous != null ? previous : value;
@@ -86,10 +140,44 @@ public class SimpleCache<K,V>
         return null;
     }
 
+    /**
+     * Loads the missing values with just one call of
+     * {@link CacheLoader#loadAll(Iterable)}.
+     */
     @Override
     public Map<K,V> getAll( Set<? extends K> keys ) {
-        // XXX Auto-generated method stub
-        throw new RuntimeException( "not yet implemented." );
+        checkOpen();
+        Map<K,V> result = new HashMap( keys.size() * 2 );
+        Set<K> missing = new HashSet();
+        for (K key : keys) {
+            V value = entries.get( key );
+            if (value != null) {
+                result.put( key, value );
+            }
+            else {
+                missing.add( key );
+            }
+        }
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.hits.add( result.size() );
+            s.misses.add( missing.size() );
+        }
+        if (!missing.isEmpty() && loader != null) {
+            long start = s != null ? System.nanoTime() : 0;
+            Map<K,V> loaded = loader.loadAll( missing );
+            if (s != null) {
+                s.loads.add( loaded.size() );
+                s.loadNanos.add( System.nanoTime() - start );
+            }
+            for (Map.Entry<K,V> entry : loaded.entrySet()) {
+                if (entry.getValue() != null) {
+                    V previous = entries.putIfAbsent( entry.getKey(), entry.getValue() );
+                    result.put( entry.getKey(), previous != null ? previous : entry.getValue() );
+                }
+            }
+        }
+        return result;
     }
 
     @Override
@@ -106,6 +194,10 @@ public class SimpleCache<K,V>
     @Override
     public void put( K key, V value ) {
         entries.put( key, value );
+        CacheStatistics s = stats;
+        if (s != null) {
+            s.recordPut();
+        }
     }
 
     @Override
@@ -121,12 +213,22 @@ public class SimpleCache<K,V>
 
     @Override
     public boolean putIfAbsent( K key, V value ) {
-        return entries.putIfAbsent( key, value ) == null;
+        boolean result = entries.putIfAbsent( key, value ) == null;
+        CacheStatistics s = stats;
+        if (result && s != null) {
+            s.recordPut();
+        }
+        return result;
     }
 
     @Override
     public boolean remove( K key ) {
-        return entries.remove( key ) != null;
+        boolean result = entries.remove( key ) != null;
+        CacheStatistics s = stats;
+        if (result && s != null) {
+            s.recordRemoval();
+        }
+        return result;
     }
 
     @Override
@@ -178,8 +280,10 @@ public class SimpleCache<K,V>
 
     @Override
     public <C extends Configuration<K,V>> C getConfiguration( Class<C> clazz ) {
-        // XXX Auto-generated method stub
-        throw new RuntimeException( "not yet implemented." );
+        if (clazz.isInstance( config )) {
+            return clazz.cast( config );
+        }
+        throw new IllegalArgumentException( "Configuration is not of type: " + clazz.getName() );
     }
 
     @Override
@@ -198,14 +302,12 @@ public class SimpleCache<K,V>
 
     @Override
     public String getName() {
-        // XXX Auto-generated method stub
-        throw new RuntimeException( "not yet implemented." );
+        return name;
     }
 
     @Override
     public CacheManager getCacheManager() {
-        // XXX Auto-generated method stub
-        throw new RuntimeException( "not yet implemented." );
+        return cacheManager;
     }
 
     @Override
@@ -215,12 +317,19 @@ public class SimpleCache<K,V>
 
     @Override
     public boolean isClosed() {
-        return entries != null;
+        return entries == null;
     }
 
+    /**
+     * Unwraps the {@link CacheStatistics} of this cache (null if statistics are
+     * disabled), this cache or the underlying {@link ConcurrentMap}.
+     */
     @Override
     public <T> T unwrap( Class<T> clazz ) {
-        return clazz.cast( entries );
+        if (clazz.equals( CacheStatistics.class )) {
+            return clazz.cast( stats );
+        }
+        return clazz.isInstance( this ) ? clazz.cast( this ) : clazz.cast( entries );
     }
 
     @Override
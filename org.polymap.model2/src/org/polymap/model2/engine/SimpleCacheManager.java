@@ -14,21 +14,39 @@
  */
 package org.polymap.model2.engine;
 
+import java.util.ArrayList;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.URI;
 
 import javax.cache.Cache;
+import javax.cache.CacheException;
 import javax.cache.CacheManager;
+import javax.cache.configuration.CompleteConfiguration;
 import javax.cache.configuration.Configuration;
+import javax.cache.management.CacheMXBean;
 import javax.cache.spi.CachingProvider;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-
 /**
- * 
+ * Creates {@link SimpleCache} instances, or {@link BoundedCache} instances if a
+ * maximum size is given.
+ * <p/>
+ * Statistics of a cache are recorded if they are enabled in its
+ * {@link CompleteConfiguration} or via {@link #enableStatistics(String, boolean)}.
+ * The latter also registers the {@link CacheStatistics} as MXBean with the
+ * platform MBeanServer; {@link #enableManagement(String, boolean)} registers the
+ * {@link CacheMXBean} of a cache.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -37,75 +55,352 @@ public class SimpleCacheManager
 
     private static Log log = LogFactory.getLog( SimpleCacheManager.class );
 
-    @Override
-    public <K,V,C extends Configuration<K,V>> Cache<K,V> createCache( String cacheName, C config )
-            throws IllegalArgumentException {
-        return new SimpleCache( config );
+    private static final AtomicInteger  instanceCount = new AtomicInteger();
+
+    /**
+     * The {@link ObjectName} of an MXBean of a cache, as specified by JCache.
+     *
+     * @param type "CacheStatistics" or "CacheConfiguration"
+     */
+    public static ObjectName objectName( CacheManager cacheManager, String cacheName, String type ) {
+        try {
+            return new ObjectName( "javax.cache:type=" + type
+                    + ",CacheManager=" + sanitize( cacheManager.getURI().toString() )
+                    + ",Cache=" + sanitize( cacheName ) );
+        }
+        catch (Exception e) {
+            throw new CacheException( e );
+        }
     }
 
-    @Override
-    public void destroyCache( String cacheName ) {
-        // XXX Auto-generated method stub
-        throw new RuntimeException( "not yet implemented." );
+    protected static String sanitize( String s ) {
+        return s == null ? "" : s.replaceAll( ",|:|=|\\n", "." );
     }
 
-    @Override
-    public CachingProvider getCachingProvider() {
-        throw new RuntimeException( "not yet implemented." );
+
+    /**
+     * A cache created by this manager. The cache is weakly referenced, so caches
+     * that are not closed/destroyed by their owner are reclaimed by the GC.
+     */
+    protected static class Registration
+            extends WeakReference<Cache> {
+
+        public final String                 name;
+
+        public volatile boolean             statisticsRegistered;
+
+        public volatile boolean             managementRegistered;
+
+        public Registration( Cache cache, ReferenceQueue<Cache> queue ) {
+            super( cache, queue );
+            this.name = cache.getName();
+        }
     }
 
-    @Override
-    public URI getURI() {
-        throw new RuntimeException( "not yet implemented." );
+
+    // instance *******************************************
+
+    private long                        maximumSize;
+
+    private URI                         uri;
+
+    private ConcurrentMap<String,Registration> caches = new ConcurrentHashMap( 64 );
+
+    private ReferenceQueue<Cache>       reclaimed = new ReferenceQueue();
+
+    private volatile boolean            closed;
+
+
+    /**
+     * Creates a manager of unbounded caches.
+     */
+    public SimpleCacheManager() {
+        this( 0 );
+    }
+
+
+    /**
+     * Creates a manager of caches that evict entries if they hold more than the
+     * given number of entries.
+     *
+     * @param maximumSize The maximum number of entries per cache, or 0 for
+     *        unbounded caches.
+     */
+    public SimpleCacheManager( long maximumSize ) {
+        assert maximumSize >= 0 : "maximumSize must be >= 0";
+        this.maximumSize = maximumSize;
+        this.uri = URI.create( "model2:" + getClass().getSimpleName() + "-" + instanceCount.incrementAndGet() );
+    }
+
+
+    protected void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException( "CacheManager is closed." );
+        }
+        for (Registration r = (Registration)reclaimed.poll(); r != null; r = (Registration)reclaimed.poll()) {
+            caches.remove( r.name, r );
+        }
     }
 
+
     @Override
-    public ClassLoader getClassLoader() {
-        throw new RuntimeException( "not yet implemented." );
+    public <K,V,C extends Configuration<K,V>> Cache<K,V> createCache( String cacheName, C config )
+            throws IllegalArgumentException {
+        checkOpen();
+        Cache<K,V> cache = newCache( cacheName, config );
+        if (caches.putIfAbsent( cacheName, new Registration( cache, reclaimed ) ) != null) {
+            throw new CacheException( "Cache already exists: " + cacheName );
+        }
+        return cache;
+    }
+
+    /**
+     * Creates the cache instance for {@link #createCache(String, Configuration)}.
+     * Sub-classes may override in order to provide another cache implementation.
+     * The {@link Cache#getName()} and {@link Cache#getCacheManager()} of the
+     * result have to reflect the given name and this manager.
+     */
+    protected <K,V> Cache<K,V> newCache( String cacheName, Configuration<K,V> config ) {
+        if (maximumSize > 0) {
+            BoundedCache<K,V> bounded = new BoundedCache( config, maximumSize );
+            bounded.registered( this, cacheName );
+            return bounded;
+        }
+        else {
+            SimpleCache<K,V> simple = new SimpleCache( config );
+            simple.registered( this, cacheName );
+            return simple;
+        }
     }
 
     @Override
-    public Properties getProperties() {
-        throw new RuntimeException( "not yet implemented." );
+    public void destroyCache( String cacheName ) {
+        checkOpen();
+        Registration registration = caches.remove( cacheName );
+        if (registration != null) {
+            unregister( registration, "CacheStatistics" );
+            unregister( registration, "CacheConfiguration" );
+            Cache cache = registration.get();
+            if (cache != null) {
+                cache.clear();
+                cache.close();
+            }
+        }
     }
 
     @Override
     public <K, V> Cache<K,V> getCache( String cacheName, Class<K> keyType, Class<V> valueType ) {
-        throw new RuntimeException( "not yet implemented." );
+        return getCache( cacheName );
     }
 
     @Override
     public <K, V> Cache<K,V> getCache( String cacheName ) {
-        throw new RuntimeException( "not yet implemented." );
+        checkOpen();
+        Registration registration = caches.get( cacheName );
+        return registration != null ? registration.get() : null;
     }
 
+    /**
+     * The names of the caches of this manager. Caches that are no longer
+     * referenced might be reported until they are reclaimed by the GC.
+     */
     @Override
     public Iterable<String> getCacheNames() {
-        throw new RuntimeException( "not yet implemented." );
+        checkOpen();
+        return new ArrayList( caches.keySet() );
+    }
+
+    /**
+     * The statistics of the given cache, or null if there is no such cache or its
+     * statistics are disabled.
+     */
+    public CacheStatistics statistics( String cacheName ) {
+        Cache cache = getCache( cacheName );
+        return cache != null ? (CacheStatistics)cache.unwrap( CacheStatistics.class ) : null;
     }
 
     @Override
     public void enableManagement( String cacheName, boolean enabled ) {
-        throw new RuntimeException( "not yet implemented." );
+        checkOpen();
+        Registration registration = registration( cacheName );
+        if (enabled && !registration.managementRegistered) {
+            register( registration, "CacheConfiguration", new Management( cache( registration ) ) );
+            registration.managementRegistered = true;
+        }
+        else if (!enabled && registration.managementRegistered) {
+            unregister( registration, "CacheConfiguration" );
+        }
     }
 
     @Override
     public void enableStatistics( String cacheName, boolean enabled ) {
-        throw new RuntimeException( "not yet implemented." );
+        checkOpen();
+        Registration registration = registration( cacheName );
+        enableStatistics( cache( registration ), enabled );
+        if (enabled && !registration.statisticsRegistered) {
+            register( registration, "CacheStatistics", statistics( cacheName ) );
+            registration.statisticsRegistered = true;
+        }
+        else if (!enabled && registration.statisticsRegistered) {
+            unregister( registration, "CacheStatistics" );
+        }
+    }
+
+    /**
+     * Starts or stops recording the {@link CacheStatistics} of the given cache,
+     * which was created by {@link #newCache(String, Configuration)}.
+     */
+    protected void enableStatistics( Cache cache, boolean enabled ) {
+        if (cache instanceof SimpleCache) {
+            ((SimpleCache)cache).enableStatistics( enabled );
+        }
+        else {
+            ((BoundedCache)cache).enableStatistics( enabled );
+        }
+    }
+
+    protected Registration registration( String cacheName ) {
+        Registration result = caches.get( cacheName );
+        if (result == null || result.get() == null) {
+            throw new IllegalArgumentException( "No such cache: " + cacheName );
+        }
+        return result;
+    }
+
+    protected Cache cache( Registration registration ) {
+        Cache result = registration.get();
+        if (result == null) {
+            throw new IllegalArgumentException( "No such cache: " + registration.name );
+        }
+        return result;
+    }
+
+    protected void register( Registration registration, String type, Object mxbean ) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName( this, registration.name, type );
+            if (!server.isRegistered( name )) {
+                server.registerMBean( mxbean, name );
+            }
+        }
+        catch (Exception e) {
+            throw new CacheException( e );
+        }
+    }
+
+    protected void unregister( Registration registration, String type ) {
+        boolean registered = type.equals( "CacheStatistics" )
+                ? registration.statisticsRegistered : registration.managementRegistered;
+        if (registered) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = objectName( this, registration.name, type );
+                if (server.isRegistered( name )) {
+                    server.unregisterMBean( name );
+                }
+            }
+            catch (Exception e) {
+                log.warn( "Unable to unregister MXBean: " + e );
+            }
+            if (type.equals( "CacheStatistics" )) {
+                registration.statisticsRegistered = false;
+            }
+            else {
+                registration.managementRegistered = false;
+            }
+        }
     }
 
     @Override
     public void close() {
-        throw new RuntimeException( "not yet implemented." );
+        if (!closed) {
+            for (String cacheName : getCacheNames()) {
+                destroyCache( cacheName );
+            }
+            closed = true;
+        }
     }
 
     @Override
     public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public URI getURI() {
+        return uri;
+    }
+
+    @Override
+    public CachingProvider getCachingProvider() {
         throw new RuntimeException( "not yet implemented." );
     }
 
+    @Override
+    public ClassLoader getClassLoader() {
+        return getClass().getClassLoader();
+    }
+
+    @Override
+    public Properties getProperties() {
+        return new Properties();
+    }
+
     @Override
     public <T> T unwrap( Class<T> clazz ) {
-        throw new RuntimeException( "not yet implemented." );
+        return clazz.cast( this );
     }
+
+
+    /**
+     * The {@link CacheMXBean} of a cache.
+     */
+    protected static class Management
+            implements CacheMXBean {
+
+        private Cache                   cache;
+
+        private CompleteConfiguration   config;
+
+        public Management( Cache cache ) {
+            this.cache = cache;
+            this.config = (CompleteConfiguration)cache.getConfiguration( CompleteConfiguration.class );
+        }
+
+        @Override
+        public String getKeyType() {
+            return config.getKeyType().getName();
+        }
+
+        @Override
+        public String getValueType() {
+            return config.getValueType().getName();
+        }
+
+        @Override
+        public boolean isReadThrough() {
+            return config.isReadThrough();
+        }
+
+        @Override
+        public boolean isWriteThrough() {
+            return config.isWriteThrough();
+        }
+
+        @Override
+        public boolean isStoreByValue() {
+            return config.isStoreByValue();
+        }
+
+        @Override
+        public boolean isStatisticsEnabled() {
+            return cache.unwrap( CacheStatistics.class ) != null;
+        }
+
+        @Override
+        public boolean isManagementEnabled() {
+            return true;
+        }
+    }
+
 }
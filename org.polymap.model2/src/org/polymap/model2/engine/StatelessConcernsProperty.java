@@ -0,0 +1,99 @@
+/* 
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.engine;
+
+import org.polymap.model2.Property;
+import org.polymap.model2.StatelessPropertyConcern;
+import org.polymap.model2.runtime.EntityRuntimeContext;
+import org.polymap.model2.runtime.PropertyInfo;
+import org.polymap.model2.runtime.ValueInitializer;
+
+/**
+ * Applies a run of shared {@link StatelessPropertyConcern}s to a {@link Property}.
+ * One instance handles all concerns of the run. If the run has more than one
+ * concern then the inner links of the chain are created on first access.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+final class StatelessConcernsProperty<T>
+        implements Property<T> {
+
+    private EntityRuntimeContext            context;
+    
+    private Property<T>                     delegate;
+    
+    /** The shared concerns, outermost first. */
+    private StatelessPropertyConcern<T>[]   concerns;
+    
+    private int                             index;
+    
+    /** The link to concerns[index+1], lazily created. */
+    private Property<T>                     next;
+    
+    
+    public StatelessConcernsProperty( EntityRuntimeContext context, Property<T> delegate,
+            StatelessPropertyConcern<T>[] concerns ) {
+        this( context, delegate, concerns, 0 );
+    }
+
+    
+    protected StatelessConcernsProperty( EntityRuntimeContext context, Property<T> delegate,
+            StatelessPropertyConcern<T>[] concerns, int index ) {
+        assert concerns.length > index;
+        this.context = context;
+        this.delegate = delegate;
+        this.concerns = concerns;
+        this.index = index;
+    }
+
+    
+    protected Property<T> next() {
+        if (index + 1 == concerns.length) {
+            return delegate;
+        }
+        // no synchronization, concurrent init is ok
+        if (next == null) {
+            next = new StatelessConcernsProperty( context, delegate, concerns, index + 1 );
+        }
+        return next;
+    }
+    
+    
+    @Override
+    public T get() {
+        return concerns[index].get( context, next() );
+    }
+
+    @Override
+    public T createValue( ValueInitializer<T> initializer ) {
+        return concerns[index].createValue( context, next(), initializer );
+    }
+
+    @Override
+    public void set( T value ) {
+        concerns[index].set( context, next(), value );
+    }
+
+    @Override
+    public PropertyInfo info() {
+        return delegate.info();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+    
+}
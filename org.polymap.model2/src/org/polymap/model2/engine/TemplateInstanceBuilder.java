@@ -17,9 +17,6 @@ package org.polymap.model2.engine;
 import java.util.AbstractCollection;
 import java.util.Iterator;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -30,6 +27,7 @@ import org.polymap.model2.Entity;
 import org.polymap.model2.ManyAssociation;
 import org.polymap.model2.Property;
 import org.polymap.model2.PropertyBase;
+import org.polymap.model2.engine.InstancePlan.Slot;
 import org.polymap.model2.runtime.CompositeInfo;
 import org.polymap.model2.runtime.EntityRepository;
 import org.polymap.model2.runtime.EntityRuntimeContext;
@@ -64,20 +62,17 @@ public final class TemplateInstanceBuilder {
             // composite info
             compositeInfo = repo.infoOf( entityClass );
             if (compositeInfo == null) {
-                log.info( "Mixin type not declared on Entity type: " + entityClass.getName() );
-                compositeInfo = new CompositeInfoImpl( entityClass );
+                log.debug( "Mixin type not declared on Entity type: " + entityClass.getName() );
+                compositeInfo = CompositeInfoImpl.undeclared( entityClass );
             }
             assert compositeInfo != null : "No info for Composite type: " + entityClass.getName();
+            InstancePlan plan = ((CompositeInfoImpl)compositeInfo).plan();
 
-            // create instance
-            Constructor<?> ctor = entityClass.getConstructor( new Class[] {} );
-            T instance = (T)ctor.newInstance( new Object[] {} );
-            
-            // set context
-            InstanceBuilder.contextField.set( instance, new TemplateEntityRuntimeContext() );
+            // create instance, set context
+            T instance = plan.newInstance( new TemplateEntityRuntimeContext() );
             
             // properties
-            initProperties( instance );
+            initProperties( instance, plan );
             
             return instance;
         }
@@ -91,55 +86,27 @@ public final class TemplateInstanceBuilder {
     
     
     /**
-     * Initializes all properties of the given Composite, including all super classes.
-     * Composite properties are init with {@link CompositePropertyImpl} which comes back to 
-     * {@link TemplateInstanceBuilder} when the value is accessed.
+     * Initializes all properties of the given Composite, including all super classes,
+     * as defined by the slots of the given {@link InstancePlan}.
      */
-    protected void initProperties( Composite instance ) throws Exception {
-        Class superClass = instance.getClass();
-        while (superClass != null) {
-            // XXX cache fields
-            for (Field field : superClass.getDeclaredFields()) {
-                if (PropertyBase.class.isAssignableFrom( field.getType() )) {
-                    field.setAccessible( true );
-
-                    PropertyInfo info = compositeInfo.getProperty( field.getName() );
-                    PropertyBase prop = null;
-
-                    // single property
-                    if (Property.class.isAssignableFrom( field.getType() )) {
-                        // Computed
-                        if (info.isComputed()) {
-                            prop = new NotQueryableProperty( info );
-                        }
-                        // primitive or Composite
-                        else {
-                            prop = new PropertyImpl( info );
-                        }
-                    }
-
-                    // Collection
-                    else if (CollectionProperty.class.isAssignableFrom( field.getType() )) {
-                        // primitive or Composite
-                        prop = new CollectionPropertyImpl( info );
-                    }
-
-                    // Association
-                    else if (Association.class.isAssignableFrom( field.getType() )) {
-                        prop = new AssociationImpl( info );
-                    }
-
-                    // ManyAssociation
-                    else if (ManyAssociation.class.isAssignableFrom( field.getType() )) {
-                        prop = new ManyAssociationImpl( info );
-                    }
-
-                    // set field
-                    //assert prop != null : "Unable to build property instance for: " + field;
-                    field.set( instance, prop );                    
-                }
+    protected void initProperties( Composite instance, InstancePlan plan ) throws Exception {
+        for (Slot slot : plan.slots()) {
+            PropertyBase prop = null;
+            switch (slot.kind) {
+                // Computed
+                case COMPUTED_PROPERTY: prop = new NotQueryableProperty( slot.info ); break;
+                // primitive or Composite
+                case PROPERTY: 
+                case COMPOSITE_PROPERTY: prop = new PropertyImpl( slot.info ); break;
+                // primitive or Composite
+                case COLLECTION:
+                case COMPOSITE_COLLECTION: prop = new CollectionPropertyImpl( slot.info ); break;
+                // Association
+                case ASSOCIATION: prop = new AssociationImpl( slot.info ); break;
+                // ManyAssociation
+                case MANY_ASSOCIATION: prop = new ManyAssociationImpl( slot.info ); break;
             }
-            superClass = superClass.getSuperclass();
+            slot.set( instance, prop );
         }
     }
 
@@ -204,7 +171,7 @@ public final class TemplateInstanceBuilder {
         @Override
         public T get() {
             Class<T> type = info.getType();
-            return new TemplateInstanceBuilder( repo ).newComposite( type );
+            return ((EntityRepositoryImpl)repo).template( type );
         }
     }
 
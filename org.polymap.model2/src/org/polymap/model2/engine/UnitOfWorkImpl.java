@@ -18,11 +18,24 @@ import static org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus.CREAT
 import static org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus.MODIFIED;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -31,18 +44,27 @@ import java.io.IOException;
 
 import javax.cache.Cache.Entry;
 import javax.cache.CacheManager;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
 import javax.cache.configuration.MutableConfiguration;
+import javax.cache.event.CacheEntryRemovedListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Iterators;
 
 import org.polymap.model2.Composite;
 import org.polymap.model2.Entity;
+import org.polymap.model2.engine.EntityRepositoryImpl.EntityRuntimeContextImpl;
 import org.polymap.model2.engine.LoadingCache.Loader;
+import org.polymap.model2.query.Assignment;
 import org.polymap.model2.query.Query;
+import org.polymap.model2.query.Query.StreamMode;
 import org.polymap.model2.query.ResultSet;
 import org.polymap.model2.query.grammar.BooleanExpression;
 import org.polymap.model2.runtime.ConcurrentEntityModificationException;
+import org.polymap.model2.runtime.EntityRepository;
 import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
 import org.polymap.model2.runtime.CommitLockStrategy;
 import org.polymap.model2.runtime.ModelRuntimeException;
@@ -50,6 +72,8 @@ import org.polymap.model2.runtime.UnitOfWork;
 import org.polymap.model2.runtime.ValueInitializer;
 import org.polymap.model2.store.CloneCompositeStateSupport;
 import org.polymap.model2.store.CompositeState;
+import org.polymap.model2.store.CompositeStateReference;
+import org.polymap.model2.store.EntityChangeSet;
 import org.polymap.model2.store.StoreResultSet;
 import org.polymap.model2.store.StoreUnitOfWork;
 
@@ -61,6 +85,8 @@ import org.polymap.model2.store.StoreUnitOfWork;
 public class UnitOfWorkImpl
         implements UnitOfWork {
 
+    private static Log log = LogFactory.getLog( UnitOfWorkImpl.class );
+
     protected static final Exception        PREPARED = new Exception( "Successfully prepared for commit." );
     
     private static AtomicInteger            idCount = new AtomicInteger( (int)Math.abs( System.currentTimeMillis() ) );
@@ -70,46 +96,89 @@ public class UnitOfWorkImpl
     /** Only set if this is the root UnitOfwork, or null if this is a nested instance. */
     protected StoreUnitOfWork               storeUow;
     
+    /** Might evict Entities, depending on the CacheManager; see {@link #onEviction(Entity)}. */
     protected LoadingCache<Object,Entity>   loaded;
     
     protected LoadingCache<String,Composite> loadedMixins;
     
-    /** Strong reference to Entities that must not be GCed from {@link #loaded} cache. */
+    /**
+     * Strong reference to Entities that must not be GCed from {@link #loaded} cache.
+     * Modified Entities that were evicted from {@link #loaded} are found here.
+     */
     protected ConcurrentMap<Object,Entity>  modified;
     
     protected volatile Exception            prepareResult;
     
+    /** The {@link Query#delete()}/update operations to be prepared by {@link #prepare()}. */
+    protected List<BulkOperation>           bulkOperations = new ArrayList();
+    
+    /** Null if this is {@link #readOnly}. */
     protected CommitLockStrategy            commitLock;
 
+    /** The last {@link #commitAsync(Executor)}, or null. */
+    protected volatile CompletableFuture<UnitOfWork> pendingCommit;
+
+    protected boolean                       readOnly;
+
+    private static AtomicLong               cacheCount = new AtomicLong();
+
+    /** Null if {@link EntityRepository.Configuration#cacheStatistics} is not set. */
+    protected RepositoryCacheStatistics     stats;
+
     
     protected UnitOfWorkImpl( EntityRepositoryImpl repo, StoreUnitOfWork suow ) {
+        this( repo, suow, false );
+    }
+
+    
+    /**
+     * 
+     * @param readOnly True if this UnitOfWork does not support modifications. No
+     *        modifications are tracked and no commit lock is needed.
+     */
+    protected UnitOfWorkImpl( EntityRepositoryImpl repo, StoreUnitOfWork suow, boolean readOnly ) {
         this.repo = repo;
         this.storeUow = suow;
+        this.readOnly = readOnly;
         assert repo != null : "repo must not be null.";
         assert suow != null : "suow must not be null.";
 
-        MutableConfiguration cacheConfig = new MutableConfiguration();
+        this.stats = repo.cacheStatistics();
         CacheManager cacheManager = repo.getConfig().cacheManager.get();
-        this.loaded = LoadingCache.create( cacheManager, cacheConfig );
-        this.loadedMixins = LoadingCache.create( cacheManager, cacheConfig );
-        this.modified = new ConcurrentHashMap( 1024, 0.75f, 4 );
+        String cacheName = "UnitOfWork-" + cacheCount.incrementAndGet();
+        MutableConfiguration loadedConfig = new MutableConfiguration();
+        loadedConfig.setStatisticsEnabled( stats != null );
+        loadedConfig.addCacheEntryListenerConfiguration( new MutableCacheEntryListenerConfiguration( 
+                () -> (CacheEntryRemovedListener<Object,Entity>)events -> 
+                        events.forEach( ev -> onEviction( ev.getValue() ) ),
+                null, true, true ) );
+        this.loaded = LoadingCache.create( cacheManager, cacheName + ".entities", loadedConfig );
+        this.loadedMixins = LoadingCache.create( cacheManager, cacheName + ".mixins", 
+                new MutableConfiguration().setStatisticsEnabled( stats != null ) );
+        if (readOnly) {
+            // always empty; just to make query() work
+            this.modified = new ConcurrentHashMap( 1, 0.75f, 1 );
+        }
+        else {
+            this.modified = new ConcurrentHashMap( 1024, 0.75f, 4 );
+            this.commitLock = repo.getConfig().commitLockStrategy.get().get();
+        }
+    }
 
-        commitLock = repo.getConfig().commitLockStrategy.get().get();
-        
-//        // check evicted entries and re-insert if modified
-//        this.loaded.addEvictionListener( new CacheEvictionListener<Object,Entity>() {
-//            public void onEviction( Object key, Entity entity ) {
-//                // re-insert if modified
-//                if (entity.status() != EntityStatus.LOADED) {
-//                    loaded.putIfAbsent( key, entity );
-//                }
-//                // mark entity as evicted otherwise
-//                else {
-//                    EntityRuntimeContext entityContext = UnitOfWorkImpl.this.repo.contextOfEntity( entity );
-//                    entityContext.raiseStatus( EntityStatus.EVICTED );
-//                }
-//            }
-//        });
+    
+    /**
+     * Marks an Entity that was evicted from the {@link #loaded} cache, so that
+     * subsequent access of stale references fails. Modified Entities are not
+     * touched; they are kept in {@link #modified} and are put back in the cache
+     * on next access.
+     */
+    protected void onEviction( Entity entity ) {
+        if (entity != null && isOpen()) {
+            repo.contextOfEntity( entity ).evicted();
+            if (stats != null) {
+                stats.recordEviction( entity.getClass() );
+            }
+        }
     }
 
     
@@ -118,6 +187,7 @@ public class UnitOfWorkImpl
      */
     protected void raiseStatus( Entity entity) {
         checkOpen();
+        checkNoPendingCommit();
         if (entity.status() == EntityStatus.MODIFIED
                 || entity.status() == EntityStatus.REMOVED) {
             modified.putIfAbsent( entity.id(), entity );
@@ -125,11 +195,20 @@ public class UnitOfWorkImpl
     }
 
 
+    /**
+     * Builds a new, unique id for a newly created Entity of the given type.
+     */
+    protected static String newId( Class<? extends Entity> entityClass ) {
+        return entityClass.getSimpleName() + "." + idCount.getAndIncrement();
+    }
+
+
     @Override
     public <T extends Entity> T createEntity( Class<T> entityClass, Object id, ValueInitializer<T>... initializers ) {
         checkOpen();
+        checkWritable();
         // build id; don't depend on store's ability to deliver id for newly created state
-        id = id != null ? id : entityClass.getSimpleName() + "." + idCount.getAndIncrement();
+        id = id != null ? id : newId( entityClass );
 
         CompositeState state = storeUow.newEntityState( id, entityClass );
         assert id == null || state.id().equals( id );
@@ -137,11 +216,14 @@ public class UnitOfWorkImpl
         T result = repo.buildEntity( state, entityClass, this );
         repo.contextOfEntity( result ).raiseStatus( EntityStatus.CREATED );
 
-        boolean ok = loaded.putIfAbsent( id, result );
+        boolean ok = !modified.containsKey( id ) && loaded.putIfAbsent( id, result );
         if (!ok) {
             throw new ModelRuntimeException( "ID of newly created Entity already exists: " + id );
         }
         modified.put( id, result );
+        if (stats != null) {
+            stats.recordPut( entityClass );
+        }
         
         // initializer
         try {
@@ -187,20 +269,144 @@ public class UnitOfWorkImpl
         assert entityClass != null;
         assert id != null;
         checkOpen();
-        T result = (T)loaded.get( id, new Loader<Object,Entity>() {
+        // no Loader instance for cache hits
+        T result = (T)loaded.get( id );
+        if (result == null) {
+            if (stats != null) {
+                stats.recordMiss( entityClass, 1 );
+            }
+            result = (T)loaded.get( id, new Loader<Object,Entity>() {
+                public Entity load( Object key ) throws RuntimeException {
+                    long start = stats != null ? System.nanoTime() : 0;
+                    Entity entity = loadEntity( entityClass, id, preloaded );
+                    recordLoad( entityClass, entity != null ? 1 : 0, start );
+                    return entity;
+                }
+            });
+        }
+        else if (stats != null) {
+            stats.recordHit( entityClass, 1 );
+        }
+        return result != null && result.status() != EntityStatus.REMOVED ? result : null;
+    }
+
+
+    @Override
+    public <T extends Entity> List<T> entities( final Class<T> entityClass, Collection<?> ids ) {
+        assert entityClass != null;
+        assert ids != null;
+        checkOpen();
+        Set<Object> keys = new HashSet( ids );
+        int[] missed = {0};
+        Map<Object,Entity> found = loaded.getAll( keys, new Loader<Object,Entity>() {
             public Entity load( Object key ) throws RuntimeException {
-                // get preloaded if provided
-                CompositeState state = preloaded != null ? preloaded.get() : null;
-                // no preloaded or it returned null?
-                state = state != null ? state : storeUow.loadEntityState( id, entityClass );
-                
-//                        .map( supplier -> supplier.get() )
-//                        .orElse( storeUow.loadEntityState( id, entityClass ) );
-                
-                return state != null ? repo.buildEntity( state, entityClass, UnitOfWorkImpl.this ) : null;
+                return loadEntity( entityClass, key, null );
+            }
+            public Map<Object,Entity> loadAll( Iterable<? extends Object> missingKeys ) {
+                long start = stats != null ? System.nanoTime() : 0;
+                Map<Object,Entity> result = new HashMap();
+                List<Object> missing = new ArrayList();
+                for (Object key : missingKeys) {
+                    missed[0] ++;
+                    Entity entity = modified.get( key );
+                    if (entity != null) {
+                        result.put( key, entity );
+                    }
+                    else {
+                        missing.add( key );
+                    }
+                }
+                // one request to the store
+                if (!missing.isEmpty()) {
+                    Map<Object,CompositeState> states = storeUow.loadEntityStates( missing, entityClass );
+                    for (Map.Entry<Object,CompositeState> entry : states.entrySet()) {
+                        result.put( entry.getKey(), loadEntity( entityClass, entry.getKey(), () -> entry.getValue() ) );
+                    }
+                }
+                recordLoad( entityClass, result.size(), start );
+                return result;
             }
         });
-        return result != null && result.status() != EntityStatus.REMOVED ? result : null;
+        if (stats != null) {
+            stats.recordHit( entityClass, keys.size() - missed[0] );
+            stats.recordMiss( entityClass, missed[0] );
+        }
+        List<T> result = new ArrayList( ids.size() );
+        for (Object id : ids) {
+            T entity = (T)found.get( id );
+            if (entity != null && entity.status() != EntityStatus.REMOVED) {
+                result.add( entity );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Builds the Entity for the given id, called by the loaders of {@link #loaded}.
+     *
+     * @param preloaded Optional supplier of an already loaded CompositeState.
+     * @return Newly built Entity, the modified Entity if it was evicted from cache,
+     *         or null if no Entity exists for the given id.
+     */
+    protected Entity loadEntity( Class<? extends Entity> entityClass, Object id, Supplier<CompositeState> preloaded ) {
+        // modified but evicted from cache
+        Entity entity = modified.get( id );
+        if (entity != null) {
+            return entity;
+        }
+        CompositeState state = null;
+        // shared snapshot, loaded from preloaded or store
+        if (repo.snapshots() != null) {
+            boolean[] loadedHere = {false};
+            state = repo.snapshots().state( id, entityClass, 
+                    () -> {
+                        loadedHere[0] = true;
+                        return loadEntityState( id, entityClass, preloaded );
+                    },
+                    () -> storeUow.forkEntityState( id, entityClass ) );
+            // the store has not seen the snapshot yet
+            if (state != null && !loadedHere[0]) {
+                storeUow.snapshotRead( id, entityClass );
+            }
+        }
+        else {
+            state = loadEntityState( id, entityClass, preloaded );
+        }
+        return state != null ? repo.buildEntity( state, entityClass, UnitOfWorkImpl.this ) : null;
+    }
+
+
+    /**
+     * Records the given number of Entities loaded into {@link #loaded} since
+     * <code>start</code>.
+     */
+    protected void recordLoad( Class<? extends Entity> entityClass, int count, long start ) {
+        if (stats != null) {
+            stats.recordLoad( entityClass, count, System.nanoTime() - start );
+        }
+    }
+
+
+    /**
+     * Discards all Entities of the {@link #loaded} cache.
+     */
+    protected void clearLoaded() {
+        if (stats != null) {
+            for (Entry<Object,Entity> entry : loaded) {
+                stats.recordSize( entry.getValue().getClass(), -1 );
+            }
+        }
+        loaded.clear();
+    }
+
+
+    protected CompositeState loadEntityState( Object id, Class<? extends Entity> entityClass,
+            Supplier<CompositeState> preloaded ) {
+        // get preloaded if provided
+        CompositeState state = preloaded != null ? preloaded.get() : null;
+        // no preloaded or it returned null?
+        return state != null ? state : storeUow.loadEntityState( id, entityClass );
     }
 
 
@@ -218,7 +424,14 @@ public class UnitOfWorkImpl
         // build Entity instance
         return (T)loaded.get( id, new Loader<Object,Entity>() {
             public Entity load( Object key ) throws RuntimeException {
-                return repo.buildEntity( compositeState, entityClass, UnitOfWorkImpl.this );
+                long start = stats != null ? System.nanoTime() : 0;
+                if (stats != null) {
+                    stats.recordMiss( entityClass, 1 );
+                }
+                Entity entity = modified.get( id );
+                entity = entity != null ? entity : repo.buildEntity( compositeState, entityClass, UnitOfWorkImpl.this );
+                recordLoad( entityClass, 1, start );
+                return entity;
             }
         });
     }
@@ -230,11 +443,23 @@ public class UnitOfWorkImpl
         checkOpen();
         
         String key = Joiner.on( '_' ).join( entity.id().toString(), mixinClass.getName() );
-        return (T)loadedMixins.get( key, new Loader<String,Composite>() {
+        Loader<String,Composite> loader = new Loader<String,Composite>() {
             public Composite load( String _key ) throws RuntimeException {
                 return repo.buildMixin( entity, mixinClass, UnitOfWorkImpl.this );
             }
-        });
+        };
+        Composite result = loadedMixins.get( key, loader );
+        // mixin of an evicted instance of the Entity
+        if (contextOf( result ) != repo.contextOfEntity( entity )) {
+            loadedMixins.remove( key );
+            result = loadedMixins.get( key, loader );
+        }
+        return (T)result;
+    }
+    
+    
+    protected static Object contextOf( Composite composite ) {
+        return InstancePlan.contextOf( composite );
     }
 
 
@@ -242,6 +467,7 @@ public class UnitOfWorkImpl
     public void removeEntity( Entity entity ) {
         assert entity != null : "entity must not be null.";
         checkOpen();
+        checkWritable();
         repo.contextOfEntity( entity ).raiseStatus( EntityStatus.REMOVED );
     }
 
@@ -272,22 +498,7 @@ public class UnitOfWorkImpl
                 
                 // modified
                 // XXX not cached, done for every call to iterator()
-                IteratorBuilder<T> modifiedResults = (IteratorBuilder<T>)IteratorBuilder.on( modified.values() )
-                        .filter( entity -> {
-                            if (entity.getClass().equals( entityClass ) 
-                                    && (entity.status() == CREATED || entity.status() == MODIFIED )) {
-                                if (expression == null) {
-                                    return true;
-                                }
-                                else if (expression instanceof BooleanExpression) {
-                                    return expression.evaluate( entity );
-                                }
-                                else {
-                                    return storeUow.evaluate( entity.state(), expression );
-                                }
-                            }
-                            return false;
-                        });
+                Iterator<T> modifiedResults = modifiedResults( entityClass, expression );
 
                 // ResultSet, caching the ids for subsequent runs
                 return new ResultSet<T>() {
@@ -354,13 +565,105 @@ public class UnitOfWorkImpl
                     }
                 };
             }
+
+            @Override
+            public void delete() {
+                new BulkOperation( UnitOfWorkImpl.this, this ).delete();
+            }
+
+            @Override
+            public void update( Assignment... assignments ) {
+                new BulkOperation( UnitOfWorkImpl.this, this ).update( assignments );
+            }
+
+            @Override
+            public void update( Consumer updater ) {
+                new BulkOperation( UnitOfWorkImpl.this, this ).update( updater );
+            }
+
+            @Override
+            public Stream<T> stream( StreamMode mode ) {
+                if (mode != StreamMode.TRANSIENT) {
+                    return super.stream( mode );
+                }
+                final StoreResultSet rs = storeUow.executeQuery( this );
+                Iterator<T> results = IteratorBuilder.on( rs )
+                        .map( ref -> transientEntity( entityClass, ref ) )
+                        .filter( entity -> entity != null )
+                        .concat( modifiedResults( entityClass, expression ) );
+                // no references to results or states; close store result when done
+                Iterator<T> closing = new Iterator<T>() {
+                    @Override
+                    public boolean hasNext() {
+                        if (results.hasNext()) {
+                            return true;
+                        }
+                        rs.close();
+                        return false;
+                    }
+                    @Override
+                    public T next() {
+                        return results.next();
+                    }
+                };
+                return StreamSupport.stream( Spliterators.spliteratorUnknownSize( closing, 
+                        Spliterator.ORDERED | Spliterator.NONNULL ), false )
+                        .onClose( () -> rs.close() );
+            }
         };
     }
 
 
+    /**
+     * The created and modified Entities of the given type that match the given
+     * query expression.
+     */
+    protected <T extends Entity> Iterator<T> modifiedResults( Class<T> entityClass, BooleanExpression expression ) {
+        return (IteratorBuilder<T>)IteratorBuilder.on( modified.values() )
+                .filter( entity -> {
+                    if (entity.getClass().equals( entityClass ) 
+                            && (entity.status() == CREATED || entity.status() == MODIFIED )) {
+                        if (expression == null) {
+                            return true;
+                        }
+                        else if (expression instanceof BooleanExpression) {
+                            return expression.evaluate( entity );
+                        }
+                        else {
+                            return storeUow.evaluate( entity.state(), expression );
+                        }
+                    }
+                    return false;
+                });
+    }
+
+
+    /**
+     * Builds an Entity of a {@link StreamMode#TRANSIENT} query result without
+     * registering it in {@link #loaded}. 
+     *
+     * @return The already loaded Entity, the newly built Entity, or null if the
+     *         Entity is modified or removed in this UnitOfWork.
+     */
+    protected <T extends Entity> T transientEntity( Class<T> entityClass, CompositeStateReference ref ) {
+        Object id = ref.id();
+        // returned by modifiedResults(), or removed
+        if (modified.containsKey( id )) {
+            return null;
+        }
+        Entity result = loaded.get( id );
+        if (result != null) {
+            return (T)result;
+        }
+        CompositeState state = loadEntityState( id, entityClass, ref );
+        return state != null ? repo.buildEntity( state, entityClass, this ) : null;
+    }
+
+
     @Override
     public UnitOfWork newUnitOfWork() {
         checkOpen();
+        checkWritable();
         if (storeUow instanceof CloneCompositeStateSupport) {
             return new UnitOfWorkNested( repo, (CloneCompositeStateSupport)storeUow, this );
         }
@@ -373,10 +676,34 @@ public class UnitOfWorkImpl
     @Override
     public void prepare() throws IOException, ConcurrentEntityModificationException {
         checkOpen();
-        commitLock.lock();
+        checkWritable();
+        awaitPendingCommit();
+        if (bulkOperations.isEmpty()) {
+            commitLock.lock( modified.keySet() );
+        }
+        else {
+            // the ids of the bulk changed Entities are not known
+            commitLock.lock();
+        }
         try {
             prepareResult = null;
-            storeUow.prepareCommit( modified.values() );
+            for (BulkOperation bulkOperation : bulkOperations) {
+                bulkOperation.prepare();
+            }
+            List<Entity> toCommit = new ArrayList( modified.size() );
+            Map<Object,EntityChangeSet> changes = new HashMap();
+            for (Entity entity : modified.values()) {
+                EntityChangeSet changeSet = repo.contextOfEntity( entity ).changesIfModified();
+                // set back to original values
+                if (changeSet != null && changeSet.isEmpty()) {
+                    continue;
+                }
+                if (changeSet != null) {
+                    changes.put( entity.id(), changeSet );
+                }
+                toCommit.add( entity );
+            }
+            storeUow.prepareCommit( toCommit, changes );
             prepareResult = PREPARED;
         }
         catch (ModelRuntimeException e) {
@@ -397,6 +724,97 @@ public class UnitOfWorkImpl
     @Override
     public void commit() throws ModelRuntimeException {
         checkOpen();
+        checkWritable();
+        awaitPendingCommit();
+        checkPrepared();
+
+        // commit store
+        storeUow.commit();
+        prepareResult = null;
+        
+        afterCommit();
+        commitLock.unlock( true );
+    }
+
+
+    /**
+     * Prepares and then commits the store asynchronously. The store commits of all
+     * UnitOfWorks of the repository are chained, so that they are executed one
+     * after the other in the order of this method calls; see
+     * {@link EntityRepositoryImpl#commitAsync(Runnable, Executor)}. The commit
+     * lock is held until the store commit is completed. Entities of this
+     * UnitOfWork cannot be modified until then.
+     * <p/>
+     * A {@link CommitLockStrategy#isThreadBound() thread bound} commit lock
+     * cannot be released by the executor. This method waits for the store commit
+     * then.
+     */
+    @Override
+    public CompletableFuture<UnitOfWork> commitAsync( Executor executor ) throws ModelRuntimeException {
+        checkOpen();
+        checkWritable();
+        awaitPendingCommit();
+        checkPrepared();
+        prepareResult = null;
+
+        boolean threadBound = commitLock.isThreadBound();
+        CompletableFuture<UnitOfWork> result = repo.commitAsync( () -> storeUow.commit(), executor ).handle( (r, e) -> {
+            try {
+                if (e != null) {
+                    try {
+                        storeUow.rollback();
+                        modified.clear();
+                        bulkOperations.clear();
+                        clearLoaded();
+                    }
+                    catch (Exception rollbackException) {
+                        log.warn( "Rollback after failed commit failed.", rollbackException );
+                    }
+                    throw e instanceof CompletionException ? (CompletionException)e : new CompletionException( e );
+                }
+                afterCommit();
+                return this;
+            }
+            finally {
+                if (!threadBound) {
+                    commitLock.unlock( true );
+                }
+            }
+        });
+        pendingCommit = result;
+        if (threadBound) {
+            awaitPendingCommit();
+            commitLock.unlock( true );
+        }
+        return result;
+    }
+
+
+    /**
+     * Waits for the last {@link #commitAsync(Executor)} to complete. A failure was
+     * signaled by the returned future already and is ignored here.
+     */
+    protected void awaitPendingCommit() {
+        CompletableFuture<UnitOfWork> pending = pendingCommit;
+        if (pending != null) {
+            try {
+                pending.join();
+            }
+            catch (CompletionException|CancellationException e) {
+                // signaled by the future
+            }
+            pendingCommit = null;
+        }
+    }
+
+
+    /**
+     * Prepares this UnitOfWork if not yet done. Rolls back if prepare fails.
+     *
+     * @throws ModelRuntimeException If this UnitOfWork is not prepared
+     *         successfully.
+     */
+    protected void checkPrepared() throws ModelRuntimeException {
         // prepare if not yet done
         if (prepareResult == null) {
             try {
@@ -417,39 +835,82 @@ public class UnitOfWorkImpl
         if (prepareResult != PREPARED) {
             throw new ModelRuntimeException( "UnitOfWork is not prepared successfully for commit." );
         }
-        // commit store
-        storeUow.commit();
-        prepareResult = null;
-        
-        // reset Entity status
-        for (Entry<Object,Entity> entry : loaded) {
-            repo.contextOfEntity( entry.getValue() ).resetStatus( EntityStatus.LOADED );
+    }
+
+
+    /**
+     * Updates caches and status of the modified Entities after the store was
+     * committed.
+     */
+    protected void afterCommit() {
+        // invalidate shared snapshots
+        if (repo.snapshots() != null) {
+            modified.keySet().forEach( id -> repo.snapshots().invalidate( id ) );
         }
+        bulkOperations.forEach( bulkOperation -> bulkOperation.afterCommit() );
+        bulkOperations.clear();
+        
+        resetStatus();
         modified.clear();
-        commitLock.unlock( true );
+    }
+
+    
+    /**
+     * Resets the status of the modified Entities after commit. All other loaded
+     * Entities are {@link EntityStatus#LOADED} already, as every change of the
+     * status puts the Entity in {@link #modified}. Modified Entities that were
+     * evicted from the cache are put back, so that references of the client
+     * stay valid. Removed Entities are marked as evicted.
+     */
+    protected void resetStatus() {
+        for (Entity entity : modified.values()) {
+            EntityRuntimeContextImpl context = repo.contextOfEntity( entity );
+            boolean removed = entity.status() == EntityStatus.REMOVED;
+            context.resetStatus( EntityStatus.LOADED );
+            if (!loaded.containsKey( entity.id() )) {
+                if (removed || !loaded.putIfAbsent( entity.id(), entity )) {
+                    context.evicted();
+                }
+                else if (stats != null) {
+                    stats.recordPut( entity.getClass() );
+                }
+            }
+        }
     }
 
 
     @Override
     public void rollback() throws ModelRuntimeException {
         checkOpen();
+        awaitPendingCommit();
+        // just discard loaded Entities
+        if (readOnly) {
+            clearLoaded();
+            return;
+        }
         // rollback store
         storeUow.rollback();
         prepareResult = null;
         
         // discard modified Entities
         modified.clear();
-        loaded.clear();
+        bulkOperations.clear();
+        clearLoaded();
         commitLock.unlock( true );
     }
 
 
     public void close() {
         if (isOpen()) {
-            commitLock.unlock( false );
+            awaitPendingCommit();
+            if (commitLock != null) {
+                commitLock.unlock( false );
+            }
             storeUow.close();
+            clearLoaded();
+            loaded.close();
+            loadedMixins.close();
             repo = null;
-            loaded.clear();
             loaded = null;
             modified.clear();
             modified = null;
@@ -467,10 +928,34 @@ public class UnitOfWorkImpl
     }
 
     
+    @Override
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    
     protected final void checkOpen() throws ModelRuntimeException {
         if (!isOpen()) {
             throw new IllegalStateException( "UnitOfWork is closed." );
         }
     }
     
+    
+    protected final void checkWritable() throws ModelRuntimeException {
+        if (readOnly) {
+            throw new ModelRuntimeException( "UnitOfWork is read-only." );
+        }
+    }
+
+
+    /**
+     * Entities must not be modified while the store commits them asynchronously.
+     */
+    protected final void checkNoPendingCommit() throws ModelRuntimeException {
+        CompletableFuture<UnitOfWork> pending = pendingCommit;
+        if (pending != null && !pending.isDone()) {
+            throw new ModelRuntimeException( "UnitOfWork has a pending commit. Entities cannot be modified until it is completed." );
+        }
+    }
+    
 }
\ No newline at end of file
@@ -15,19 +15,21 @@
 package org.polymap.model2.engine;
 
 import static java.util.Collections.singletonList;
-import static org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus.CREATED;
-import static org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus.MODIFIED;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import java.io.IOException;
 
-import javax.cache.Cache.Entry;
-
 import com.google.common.base.Throwables;
 import com.google.common.collect.Iterators;
 
@@ -35,13 +37,13 @@ import org.polymap.model2.Entity;
 import org.polymap.model2.engine.LoadingCache.Loader;
 import org.polymap.model2.query.Query;
 import org.polymap.model2.query.ResultSet;
-import org.polymap.model2.query.grammar.BooleanExpression;
 import org.polymap.model2.runtime.ConcurrentEntityModificationException;
 import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
 import org.polymap.model2.runtime.ModelRuntimeException;
 import org.polymap.model2.runtime.UnitOfWork;
 import org.polymap.model2.store.CloneCompositeStateSupport;
 import org.polymap.model2.store.CompositeState;
+import org.polymap.model2.store.StoreResultSet;
 
 /**
  * 
@@ -68,30 +70,130 @@ public class UnitOfWorkNested
     
     
     @Override
-    public <T extends Entity> T entity( final Class<T> entityClass, final Object id ) {
+    protected <T extends Entity> T entity( 
+            final Class<T> entityClass, 
+            final Object id, 
+            final Supplier<CompositeState> preloaded ) {
         assert entityClass != null;
         assert id != null;
         checkOpen();
-        T result = (T)loaded.get( id, new Loader<Object,Entity>() {
-            public Entity load( Object key ) throws RuntimeException {
-                // just clone the entire Entity and its state; copy-on-write would probably
-                // be faster and less memory consuming but also would introduce a lot more complexity;
-                // maybe I will later investigate a global copy-on-write cache for Entities
-                T parentEntity = parent.entity( entityClass, id );
-                if (parentEntity == null) {
-                    return null;
-                }
-                else {
-                    CompositeState parentState = repo.contextOfEntity( parentEntity ).getState();
-                    CompositeState state = storeUow().cloneEntityState( parentState );
-                    return repo.buildEntity( state, entityClass, UnitOfWorkNested.this );
-                }
+        // no Loader instance for cache hits
+        T result = (T)loaded.get( id );
+        if (result == null) {
+            if (stats != null) {
+                stats.recordMiss( entityClass, 1 );
             }
-        });
+            result = (T)loaded.get( id, new Loader<Object,Entity>() {
+                public Entity load( Object key ) throws RuntimeException {
+                    long start = stats != null ? System.nanoTime() : 0;
+                    Entity entity = loadClone( entityClass, id, preloaded );
+                    recordLoad( entityClass, entity != null ? 1 : 0, start );
+                    return entity;
+                }
+            });
+        }
+        else if (stats != null) {
+            stats.recordHit( entityClass, 1 );
+        }
         return result != null && result.status() != EntityStatus.REMOVED ? result : null;
     }
 
 
+    /**
+     * Clones the Entity with the given id from the parent UnitOfWork. The state is
+     * created by {@link CloneCompositeStateSupport#overlayEntityState(CompositeState)},
+     * so the store may just record the modifications of this UnitOfWork.
+     * <p/>
+     * If no parent has loaded the Entity, then the state is loaded from the store
+     * without loading the Entity into the parents.
+     *
+     * @param preloaded Optional supplier of an already loaded CompositeState.
+     */
+    protected Entity loadClone( Class<? extends Entity> entityClass, Object id, Supplier<CompositeState> preloaded ) {
+        // modified but evicted from cache
+        Entity entity = modified.get( id );
+        if (entity != null) {
+            return entity;
+        }
+        // the parents would load the same state from the store
+        if (!isLoadedByParents( id )) {
+            CompositeState state = loadEntityState( id, entityClass, preloaded );
+            return state != null 
+                    ? repo.buildEntity( storeUow().overlayEntityState( state ), entityClass, this ) 
+                    : null;
+        }
+        Entity parentEntity = parent.entity( entityClass, id );
+        if (parentEntity == null) {
+            return null;
+        }
+        else {
+            CompositeState parentState = repo.contextOfEntity( parentEntity ).getState();
+            CompositeState state = storeUow().overlayEntityState( CopyOnWriteState.unwrap( parentState ) );
+            return repo.buildEntity( state, entityClass, UnitOfWorkNested.this );
+        }
+    }
+
+
+    /**
+     * True if the Entity with the given id is loaded or modified by the parent or
+     * any of its parents.
+     */
+    protected boolean isLoadedByParents( Object id ) {
+        for (UnitOfWorkImpl uow : parents()) {
+            if (uow.modified.containsKey( id ) || uow.loaded.get( id ) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * True if one of the first <code>level</code> UnitOfWorks of the given chain
+     * has modified the Entity with the given id.
+     */
+    protected static boolean isModified( List<UnitOfWorkImpl> chain, int level, Object id ) {
+        for (int i=0; i<level; i++) {
+            if (chain.get( i ).modified.containsKey( id )) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * The parent, its parent and so on, up to the root UnitOfWork.
+     */
+    protected List<UnitOfWorkImpl> parents() {
+        List<UnitOfWorkImpl> result = new ArrayList( 4 );
+        for (UnitOfWorkImpl uow = parent; uow != null; ) {
+            result.add( uow );
+            uow = uow instanceof UnitOfWorkNested ? ((UnitOfWorkNested)uow).parent : null;
+        }
+        return result;
+    }
+
+
+    /**
+     * Loads the Entities in bulk into the parent UnitOfWork and clones them from
+     * there.
+     */
+    @Override
+    public <T extends Entity> List<T> entities( Class<T> entityClass, Collection<?> ids ) {
+        checkOpen();
+        parent.entities( entityClass, ids );
+        List<T> result = new ArrayList( ids.size() );
+        for (Object id : ids) {
+            T entity = entity( entityClass, id );
+            if (entity != null) {
+                result.add( entity );
+            }
+        }
+        return result;
+    }
+
+
     @Override
     public <T extends Entity> T entityForState( final Class<T> entityClass, Object state ) {
         throw new RuntimeException( "not yet implemented." );
@@ -116,48 +218,71 @@ public class UnitOfWorkNested
     }
 
 
+    /**
+     * Queries the store directly, without loading the results into the parents.
+     * Results that are modified by this UnitOfWork or a parent are replaced by
+     * their modified versions. The nearest modification wins. Paging is applied
+     * to the merged result.
+     */
     @Override
     public <T extends Entity> Query<T> query( final Class<T> entityClass ) {
+        checkOpen();
         return new Query<T>( entityClass ) {
             public ResultSet<T> execute() {
-                final ResultSet<T> parentRs = parent.query( entityClass )
-                        .where( expression )
-                        .maxResults( maxResults )
-                        .firstResult( firstResult )
-                        .execute();
-
-                // unmodified
-                IteratorBuilder<T> unmodifiedResults = IteratorBuilder.on( parentRs )
-                        .map( entity -> entity( entityClass, entity.id() ) )
-                        .filter( entity -> {
-                            EntityStatus status = entity.status();
-                            assert status != EntityStatus.CREATED; 
-                            return status == EntityStatus.LOADED;                            
-                        });
-                
-                // new/updated states -> pre-process
-                IteratorBuilder<T> modifiedResults = (IteratorBuilder<T>)IteratorBuilder.on( modified.values() )
-                        .filter( entity -> {
-                            if (entity.getClass().equals( entityClass ) 
-                                    && (entity.status() == CREATED || entity.status() == MODIFIED )) {
-                                if (expression == null) {
-                                    return true;
-                                }
-                                else if (expression instanceof BooleanExpression) {
-                                    return expression.evaluate( entity );
-                                }
-                                else {
-                                    return storeUow.evaluate( entity.state(), expression );
-                                }
-                            }
-                            return false;
-                        });
-                
+                List<UnitOfWorkImpl> chain = new ArrayList( parents() );
+                chain.add( 0, UnitOfWorkNested.this );
+
+                // the store results of modified Entities are outdated
+                int count = 0;
+                for (UnitOfWorkImpl uow : chain) {
+                    for (Entity entity : uow.modified.values()) {
+                        count += entity.getClass().equals( entityClass ) ? 1 : 0;
+                    }
+                }
+                final int modifiedCount = count;
+                // no modifications: the store can do the paging
+                Query<T> storeQuery = new Query<T>( entityClass ) {
+                    public ResultSet<T> execute() {
+                        throw new UnsupportedOperationException( "Query for the store only." );
+                    }
+                };
+                storeQuery.where( expression );
+                if (modifiedCount == 0) {
+                    storeQuery.firstResult( firstResult ).maxResults( maxResults );
+                }
+                else {
+                    // at most modifiedCount store results are skipped
+                    long max = (long)firstResult + maxResults + modifiedCount;
+                    storeQuery.maxResults( (int)Math.min( max, Integer.MAX_VALUE ) );
+                }
+                final StoreResultSet rs = storeUow.executeQuery( storeQuery );
+
+                // unmodified: Entities are built when they are actually requested
+                Iterator<T> unmodified = IteratorBuilder.on( rs )
+                        .filter( ref -> !isModified( chain, chain.size(), ref.id() ) )
+                        .map( ref -> entity( entityClass, ref.id(), ref ) )
+                        .filter( entity -> entity != null );
+
+                // modified by this or a parent UnitOfWork
+                IteratorBuilder<T> merged = IteratorBuilder.on( unmodified );
+                for (int i=0; i<chain.size(); i++) {
+                    UnitOfWorkImpl uow = chain.get( i );
+                    int level = i;
+                    merged = merged.concat( IteratorBuilder.on( uow.modifiedResults( entityClass, expression ) )
+                            .filter( entity -> !isModified( chain, level, entity.id() ) )
+                            .map( entity -> uow == UnitOfWorkNested.this ? entity : entity( entityClass, entity.id() ) ) );
+                }
+
+                Iterator<T> paged = modifiedCount == 0
+                        ? merged
+                        : StreamSupport.stream( Spliterators.spliteratorUnknownSize( merged, Spliterator.ORDERED ), false )
+                                .skip( firstResult ).limit( maxResults ).iterator();
+
                 // ResultSet, caching the ids for subsequent runs
                 return new ResultSet<T>() {
 
                     /** null after one full run */
-                    private Iterator<T>     results = unmodifiedResults.concat( modifiedResults );
+                    private Iterator<T>     results = paged;
                     private List<Object>    cachedIds = new ArrayList( 1024 );
                     /** The cached cachedSize; not synchronized */
                     private int             cachedSize = -1;
@@ -172,7 +297,7 @@ public class UnitOfWorkNested
                                     return true;
                                 }
                                 else {
-                                    parentRs.close();
+                                    rs.close();
                                     results = null;
                                     return false;
                                 }
@@ -197,8 +322,8 @@ public class UnitOfWorkNested
                         if (cachedSize == -1) {
                             cachedSize = results == null
                                     ? cachedIds.size()
-                                    : modified.isEmpty() 
-                                            ? parentRs.size()
+                                    : modifiedCount == 0 
+                                            ? rs.size()
                                             : Iterators.size( iterator() );
                         }
                         return cachedSize;
@@ -212,7 +337,7 @@ public class UnitOfWorkNested
 
                     @Override
                     public void close() {
-                        parentRs.close();
+                        rs.close();
                         results = null;
                         cachedIds = null;
                     }
@@ -231,7 +356,7 @@ public class UnitOfWorkNested
     @Override
     public void prepare() throws IOException, ConcurrentEntityModificationException {
         checkOpen();
-        commitLock.lock();
+        commitLock.lock( modified.keySet() );
         prepareResult = null;
         for (Entity entity : modified.values()) {
             // created
@@ -256,7 +381,7 @@ public class UnitOfWorkNested
 
                 repo.contextOfEntity( parentEntity ).raiseStatus( entity.status() );
 
-                CompositeState parentState = repo.contextOfEntity( parentEntity ).getState();
+                CompositeState parentState = CopyOnWriteState.forWrite( repo.contextOfEntity( parentEntity ).getState() );
                 CompositeState clonedState = repo.contextOfEntity( entity ).getState();
                 storeUow().reincorparateEntityState( parentState, clonedState );
             }
@@ -281,20 +406,28 @@ public class UnitOfWorkNested
         }
         prepareResult = null;
         
-        // reset Entity status
-        for (Entry<Object,Entity> entry : loaded) {
-            repo.contextOfEntity( entry.getValue() ).resetStatus( EntityStatus.LOADED );
-        }
+        resetStatus();
         modified.clear();
         commitLock.unlock( true );
     }
 
 
+    /**
+     * Commits synchronously, as a nested UnitOfWork just writes down its
+     * modifications to the parent.
+     */
+    @Override
+    public CompletableFuture<UnitOfWork> commitAsync( Executor executor ) throws ModelRuntimeException {
+        commit();
+        return CompletableFuture.completedFuture( this );
+    }
+
+
     @Override
     public void rollback() throws ModelRuntimeException {
         checkOpen();
         prepareResult = null;
-        loaded.clear();
+        clearLoaded();
         modified.clear();
         commitLock.unlock( true );
     }
@@ -303,6 +436,9 @@ public class UnitOfWorkNested
     public void close() {
         if (isOpen()) {
             commitLock.unlock( false );
+            clearLoaded();
+            loaded.close();
+            loadedMixins.close();
             parent = null;
             repo = null;
             loaded = null;
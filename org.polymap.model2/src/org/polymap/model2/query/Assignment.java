@@ -0,0 +1,61 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.query;
+
+import org.polymap.model2.Composite;
+import org.polymap.model2.Property;
+import org.polymap.model2.engine.TemplateProperty;
+import org.polymap.model2.runtime.PropertyInfo;
+
+/**
+ * Sets a {@link Property} to a constant value. Used by
+ * {@link Query#update(Assignment...)}. Use {@link Expressions#set(Property, Object)}
+ * to build an Assignment.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class Assignment<T> {
+
+    public TemplateProperty<T>      prop;
+    
+    public T                        value;
+
+    
+    public Assignment( TemplateProperty<T> prop, T value ) {
+        this.prop = prop;
+        this.value = value;
+    }
+
+    
+    public PropertyInfo<T> info() {
+        return prop.info();
+    }
+    
+    
+    /**
+     * Sets the value of the property of the given target.
+     */
+    public void apply( Composite target ) {
+        PropertyInfo propInfo = target.info().getProperty( prop.info().getName() );
+        ((Property<T>)propInfo.get( target )).set( value );
+    }
+
+    
+    @Override
+    public String toString() {
+        return "Assignment[" + prop.info().getName() + "=" + value + "]";
+    }
+    
+}
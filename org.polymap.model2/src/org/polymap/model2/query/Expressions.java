@@ -22,7 +22,7 @@ import org.polymap.model2.Composite;
 import org.polymap.model2.Entity;
 import org.polymap.model2.ManyAssociation;
 import org.polymap.model2.Property;
-import org.polymap.model2.engine.TemplateInstanceBuilder;
+import org.polymap.model2.engine.EntityRepositoryImpl;
 import org.polymap.model2.engine.TemplateProperty;
 import org.polymap.model2.query.grammar.AssociationEquals;
 import org.polymap.model2.query.grammar.BooleanExpression;
@@ -79,6 +79,14 @@ public class Expressions {
         return new PropertyNotEquals( (TemplateProperty)prop, value );
     }
     
+    /**
+     * Sets the given property to the given value, used by
+     * {@link Query#update(Assignment...)}.
+     */
+    public static <T> Assignment<T> set( Property<T> prop, T value ) {
+        return new Assignment( (TemplateProperty)prop, value );
+    }
+    
     public static <T> Negation not( BooleanExpression expression ) {
         return new Negation( expression );
     }
@@ -179,10 +187,10 @@ public class Expressions {
      *
      * @param type
      * @param repo
-     * @return Newly created query template instance.
+     * @return The query template instance, shared by all callers.
      */
     public static <T extends Composite> T template( Class<T> type, EntityRepository repo ) {
-        return new TemplateInstanceBuilder( repo ).newComposite( type );
+        return ((EntityRepositoryImpl)repo).template( type );
     }
 
 }
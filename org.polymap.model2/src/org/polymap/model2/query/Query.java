@@ -14,8 +14,12 @@
  */
 package org.polymap.model2.query;
 
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
 import org.polymap.model2.Entity;
 import org.polymap.model2.query.grammar.BooleanExpression;
+import org.polymap.model2.runtime.ModelRuntimeException;
 import org.polymap.model2.runtime.UnitOfWork;
 
 /**
@@ -25,6 +29,27 @@ import org.polymap.model2.runtime.UnitOfWork;
  */
 public abstract class Query<T extends Entity> {
 
+    /**
+     * How {@link Query#stream(StreamMode)} handles the resulting Entities.
+     */
+    public enum StreamMode {
+        /**
+         * Same as {@link ResultSet#stream()} of {@link Query#execute()}: the
+         * resulting Entities are kept in the {@link UnitOfWork}.
+         */
+        CACHED,
+        /**
+         * Forward-only stream of Entities that are not kept in the
+         * {@link UnitOfWork}, no ids are cached; memory consumption does not depend
+         * on the size of the result. Entities that are loaded or modified in the
+         * UnitOfWork already are returned as is. Transient Entities are meant to
+         * be read; in order to modify, re-fetch them via
+         * {@link UnitOfWork#entity(Entity)}.
+         */
+        TRANSIENT
+    }
+
+
     public Class<T>             resultType;
 
     public BooleanExpression    expression;
@@ -52,6 +77,85 @@ public abstract class Query<T extends Entity> {
     public abstract ResultSet<T> execute();
     
     
+    /**
+     * Executes the query and streams the resulting Entities. The underlying
+     * result of the store is closed when the stream is exhausted or closed.
+     * <p/>
+     * This default implementation does not support {@link StreamMode#TRANSIENT}
+     * and always works {@link StreamMode#CACHED}.
+     * 
+     * @see StreamMode
+     */
+    public Stream<T> stream( StreamMode mode ) {
+        ResultSet<T> rs = execute();
+        return rs.stream().onClose( () -> rs.close() );
+    }
+    
+    
+    /**
+     * Removes all Entities that match this query. The Entities are removed by
+     * the store without loading them, if the store supports this. Otherwise they
+     * are loaded and removed in chunks.
+     * <p/>
+     * Entities that are created, modified or removed in the {@link UnitOfWork}
+     * are removed in the UnitOfWork immediately, if they match. All other
+     * Entities are removed by the next {@link UnitOfWork#prepare()} and
+     * {@link UnitOfWork#commit()}, within the same store transaction and commit
+     * lock as the modified Entities. {@link UnitOfWork#rollback()} discards the
+     * operation. The store part does not see the store part of previous
+     * operations of the same UnitOfWork. After commit, unmodified Entities of
+     * the type are evicted from the UnitOfWork and have to be re-fetched;
+     * references to them fail on access.
+     * <p/>
+     * {@link #firstResult(int)} and {@link #maxResults(int)} must not be set.
+     * 
+     * @throws ModelRuntimeException If firstResult or maxResults is set.
+     * @throws UnsupportedOperationException If the UnitOfWork does not support
+     *         this, for example a nested UnitOfWork.
+     */
+    public void delete() {
+        throw new UnsupportedOperationException( "Delete by query is not supported by this UnitOfWork." );
+    }
+    
+    
+    /**
+     * Sets the given properties of all Entities that match this query to
+     * constant values. The Entities are changed by the store without loading
+     * them, if the store supports this. Otherwise they are loaded and changed in
+     * chunks. Entities of the {@link UnitOfWork} are handled as described in
+     * {@link #delete()}.
+     * <p/>
+     * <b>Example:</b>
+     * <pre>
+     * Employee wanted = Expressions.template( Employee.class, repo );
+     * uow.query( Employee.class )
+     *         .where( eq( wanted.name, "Ulli" ) )
+     *         .update( set( wanted.jap, 10 ) );
+     * </pre>
+     * 
+     * @see Expressions#set(org.polymap.model2.Property, Object)
+     * @throws UnsupportedOperationException If the UnitOfWork does not support
+     *         this, for example a nested UnitOfWork.
+     */
+    public void update( Assignment<?>... assignments ) {
+        throw new UnsupportedOperationException( "Update by query is not supported by this UnitOfWork." );
+    }
+    
+    
+    /**
+     * Calls the given updater for all Entities that match this query. This always
+     * loads the Entities, in chunks. Entities of the {@link UnitOfWork} are
+     * handled as described in {@link #delete()}. Prefer
+     * {@link #update(Assignment...)} when the new values are constant.
+     * 
+     * @throws UnsupportedOperationException If the UnitOfWork does not support
+     *         this, for example a nested UnitOfWork.
+     */
+    public void update( Consumer<T> updater ) {
+        throw new UnsupportedOperationException( "Update by query is not supported by this UnitOfWork." );
+    }
+    
+    
     /**
      * Set the filter expression. Use the {@link Expressions} static factory to build
      * a {@link BooleanExpression}.
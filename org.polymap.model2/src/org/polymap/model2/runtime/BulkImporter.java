@@ -0,0 +1,136 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.runtime;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.polymap.model2.Entity;
+
+/**
+ * Creates a large number of Entities of one type with bounded memory. The
+ * Entities are built directly on new store states, without being kept in a
+ * {@link UnitOfWork}. Every {@link #batchSize(int)} Entities the batch is
+ * written to the store in one prepare/commit and the references to the Entities
+ * are released.
+ * <pre>
+ * repo.bulkImporter( Employee.class )
+ *         .batchSize( 10000 )
+ *         .onProgress( p -&gt; log.info( p ) )
+ *         .importAll( records.map( r -&gt; (Employee proto) -&gt; {
+ *             proto.name.set( r.name );
+ *             return proto;
+ *         }));
+ * </pre>
+ * Batches that were committed before a failure stay committed.
+ *
+ * @see EntityRepository#bulkImporter(Class)
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public interface BulkImporter<T extends Entity> {
+
+    public static final int         DEFAULT_BATCH_SIZE = 10000;
+
+    /**
+     * The number of Entities written to the store in one commit. Defaults to
+     * {@link #DEFAULT_BATCH_SIZE}.
+     *
+     * @return this
+     */
+    public BulkImporter<T> batchSize( int batchSize );
+
+    /**
+     * Sets a callback that is called after every committed batch.
+     *
+     * @return this
+     */
+    public BulkImporter<T> onProgress( Consumer<Progress> callback );
+
+    /**
+     * Creates one Entity for every element of the given stream, initialized by
+     * this element. The stream is consumed in the calling thread. It is not
+     * closed by this method.
+     *
+     * @return The total number of created Entities.
+     * @throws ModelRuntimeException If an initializer or the store failed. The
+     *         Entities of the current batch are discarded.
+     */
+    public long importAll( Stream<? extends ValueInitializer<T>> initializers ) throws ModelRuntimeException;
+
+
+    /**
+     * The progress of an import, passed to {@link BulkImporter#onProgress(Consumer)}.
+     */
+    public static class Progress {
+
+        private long        count;
+
+        private long        batches;
+
+        private long        elapsedNanos;
+
+        private long        batchNanos;
+
+        public Progress( long count, long batches, long elapsedNanos, long batchNanos ) {
+            this.count = count;
+            this.batches = batches;
+            this.elapsedNanos = elapsedNanos;
+            this.batchNanos = batchNanos;
+        }
+
+        /**
+         * The number of created and committed Entities so far.
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * The number of committed batches so far.
+         */
+        public long batches() {
+            return batches;
+        }
+
+        /**
+         * The time since the start of the import.
+         */
+        public long elapsedTime( TimeUnit unit ) {
+            return unit.convert( elapsedNanos, TimeUnit.NANOSECONDS );
+        }
+
+        /**
+         * The time to build and commit the last batch.
+         */
+        public long batchTime( TimeUnit unit ) {
+            return unit.convert( batchNanos, TimeUnit.NANOSECONDS );
+        }
+
+        /**
+         * The average number of Entities per second.
+         */
+        public double throughput() {
+            return elapsedNanos > 0 ? count * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format( "Progress[count=%d, batches=%d, elapsed=%dms, throughput=%.0f/s]",
+                    count, batches, elapsedTime( TimeUnit.MILLISECONDS ), throughput() );
+        }
+    }
+
+}
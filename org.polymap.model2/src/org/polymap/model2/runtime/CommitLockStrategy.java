@@ -14,15 +14,22 @@
  */
 package org.polymap.model2.runtime;
 
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * 
+ * The strategy to handle concurrent attempts to prepare/commit. An instance is
+ * created for every {@link UnitOfWork}, see
+ * {@link EntityRepository.Configuration#commitLockStrategy}.
  *
  * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
  */
@@ -32,7 +39,27 @@ public abstract class CommitLockStrategy {
     
     public abstract void lock();
 
+    /**
+     * Locks before prepare of a UnitOfWork with the given modified Entities. The
+     * default implementation calls {@link #lock()}.
+     *
+     * @param ids The ids of the created, modified and removed Entities.
+     */
+    public void lock( Collection<?> ids ) {
+        lock();
+    }
+
     public abstract void unlock( boolean check );
+
+
+    /**
+     * True if {@link #unlock(boolean)} has to be called by the thread that
+     * locked. {@link UnitOfWork#commitAsync(java.util.concurrent.Executor)} cannot
+     * hand over such a lock to the executor. Default: false.
+     */
+    public boolean isThreadBound() {
+        return false;
+    }
     
     
     /**
@@ -99,7 +126,9 @@ public abstract class CommitLockStrategy {
             }
             else {
                 try {
-                    lock.tryLock( timeout, timeUnit );
+                    if (!lock.tryLock( timeout, timeUnit )) {
+                        throw new RuntimeException( "Timeout while waiting for commit lock." );
+                    }
                 }
                 catch (InterruptedException e) {
                     throw new RuntimeException( e );
@@ -113,9 +142,216 @@ public abstract class CommitLockStrategy {
                 lock.unlock();
             }
         }
+
+        @Override
+        public boolean isThreadBound() {
+            return true;
+        }
     }
     
     
+    /**
+     * Locks just the ids of the modified Entities of a UnitOfWork, so that
+     * UnitOfWorks modifying disjoint Entities prepare and commit concurrently. The
+     * ids are mapped to a fixed number of {@link Stripes}, shared by all
+     * UnitOfWorks of a repository:
+     * <pre>
+     * Stripes stripes = new Stripes( 256 );
+     * EntityRepository.newConfiguration()
+     *         .commitLockStrategy.set( () -> new Striped( stripes ) )
+     *         ...
+     * </pre>
+     * The stripes are acquired in ascending order, so UnitOfWorks with overlapping
+     * ids cannot deadlock. The stripes are not bound to a thread; prepare and
+     * commit may be called by different threads.
+     */
+    public static class Striped
+            extends CommitLockStrategy {
+
+        private Stripes             stripes;
+
+        /** The currently held stripes, or null. */
+        private BitSet              held;
+
+        public Striped( Stripes stripes ) {
+            this.stripes = stripes;
+        }
+
+        /**
+         * Locks all stripes.
+         */
+        @Override
+        public void lock() {
+            BitSet all = new BitSet( stripes.count() );
+            all.set( 0, stripes.count() );
+            acquire( all );
+        }
+
+        @Override
+        public void lock( Collection<?> ids ) {
+            BitSet indices = new BitSet( stripes.count() );
+            for (Object id : ids) {
+                indices.set( stripes.indexOf( id ) );
+            }
+            acquire( indices );
+        }
+
+        protected void acquire( BitSet indices ) {
+            // prepare again without commit/rollback
+            if (held != null) {
+                unlock( false );
+            }
+            stripes.acquire( indices );
+            held = indices;
+        }
+
+        @Override
+        public void unlock( boolean check ) {
+            if (held != null) {
+                stripes.release( held );
+                held = null;
+            }
+        }
+    }
+
+
+    /**
+     * The locks of {@link Striped} commit locking, shared by all UnitOfWorks of a
+     * repository. Provides metrics of lock waits and contention.
+     */
+    public static class Stripes {
+
+        private Semaphore[]         locks;
+
+        private long                timeoutNanos;
+
+        private LongAdder           acquired = new LongAdder();
+
+        private LongAdder           contended = new LongAdder();
+
+        private LongAdder           waitNanos = new LongAdder();
+
+        private LongAccumulator     maxWaitNanos = new LongAccumulator( Math::max, 0 );
+
+        /**
+         * Creates stripes that wait without timeout.
+         *
+         * @param count The number of stripes.
+         */
+        public Stripes( int count ) {
+            this( count, 0, TimeUnit.MILLISECONDS );
+        }
+
+        /**
+         * Creates stripes that throw a {@link RuntimeException} if a stripe is not
+         * acquired within the given time.
+         *
+         * @param count The number of stripes.
+         * @param timeout The max time to wait for one stripe; 0 waits forever.
+         * @param unit The unit of timeout.
+         */
+        public Stripes( int count, long timeout, TimeUnit unit ) {
+            this.locks = new Semaphore[count];
+            for (int i=0; i<count; i++) {
+                locks[i] = new Semaphore( 1 );
+            }
+            this.timeoutNanos = unit.toNanos( timeout );
+        }
+
+        public int count() {
+            return locks.length;
+        }
+
+        /**
+         * The index of the stripe of the given id.
+         */
+        public int indexOf( Object id ) {
+            int h = id.hashCode();
+            return ((h ^ (h >>> 16)) & 0x7fffffff) % locks.length;
+        }
+
+        protected void acquire( BitSet indices ) {
+            for (int i=indices.nextSetBit( 0 ); i >= 0; i=indices.nextSetBit( i+1 )) {
+                try {
+                    acquire( locks[i] );
+                }
+                catch (RuntimeException e) {
+                    // release the stripes acquired so far
+                    BitSet acquiredSoFar = indices.get( 0, i );
+                    release( acquiredSoFar );
+                    throw e;
+                }
+            }
+        }
+
+        protected void acquire( Semaphore lock ) {
+            acquired.increment();
+            if (lock.tryAcquire()) {
+                return;
+            }
+            contended.increment();
+            long start = System.nanoTime();
+            try {
+                if (timeoutNanos == 0) {
+                    lock.acquire();
+                }
+                else if (!lock.tryAcquire( timeoutNanos, TimeUnit.NANOSECONDS )) {
+                    throw new RuntimeException( "Timeout while waiting for commit lock." );
+                }
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException( e );
+            }
+            finally {
+                long waited = System.nanoTime() - start;
+                waitNanos.add( waited );
+                maxWaitNanos.accumulate( waited );
+            }
+        }
+
+        protected void release( BitSet indices ) {
+            for (int i=indices.nextSetBit( 0 ); i >= 0; i=indices.nextSetBit( i+1 )) {
+                locks[i].release();
+            }
+        }
+
+        /**
+         * The number of acquired stripes.
+         */
+        public long lockCount() {
+            return acquired.sum();
+        }
+
+        /**
+         * The number of stripes that were locked by another UnitOfWork when
+         * acquired.
+         */
+        public long contentionCount() {
+            return contended.sum();
+        }
+
+        /**
+         * The total time spent waiting for contended stripes.
+         */
+        public long waitTime( TimeUnit unit ) {
+            return unit.convert( waitNanos.sum(), TimeUnit.NANOSECONDS );
+        }
+
+        /**
+         * The longest time spent waiting for one stripe.
+         */
+        public long maxWaitTime( TimeUnit unit ) {
+            return unit.convert( maxWaitNanos.get(), TimeUnit.NANOSECONDS );
+        }
+
+        @Override
+        public String toString() {
+            return "Stripes[count=" + count() + ", locks=" + lockCount() + ", contended=" + contentionCount()
+                    + ", wait=" + waitTime( TimeUnit.MILLISECONDS ) + "ms, maxWait=" + maxWaitTime( TimeUnit.MILLISECONDS ) + "ms]";
+        }
+    }
+
+
     /**
      * Do nothing ans ignore locking altogether. Save cycles and memory.
      */
@@ -65,10 +65,21 @@ public interface CompositeInfo<T extends Composite> {
      */
     public boolean isImmutable();
 
+    /**
+     * All properties, ordered by {@link PropertyInfo#getOrdinal()}.
+     */
     public Collection<PropertyInfo> getProperties();
 
     public PropertyInfo getProperty( String name );
 
+    /**
+     * The property with the given ordinal.
+     *
+     * @see PropertyInfo#getOrdinal()
+     * @param ordinal The ordinal of the property: 0 &lt;= ordinal &lt; {@link #getProperties()}.size()
+     */
+    public PropertyInfo getProperty( int ordinal );
+
 //    /**
 //     * Provides information of the underlying store.
 //     *
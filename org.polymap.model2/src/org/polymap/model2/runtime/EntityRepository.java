@@ -14,6 +14,8 @@
  */
 package org.polymap.model2.runtime;
 
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Supplier;
 
 import javax.cache.CacheManager;
@@ -22,12 +24,18 @@ import org.apache.commons.logging.LogFactory;import org.apache.commons.logging.L
 
 import org.polymap.model2.Composite;
 import org.polymap.model2.Entity;
+import org.polymap.model2.engine.BoundedCache;
 import org.polymap.model2.engine.EntityRepositoryImpl;
+import org.polymap.model2.engine.RepositoryCacheStatistics;
+import org.polymap.model2.engine.SharedSnapshots;
 import org.polymap.model2.engine.SimpleCache;
 import org.polymap.model2.engine.SimpleCacheManager;
 import org.polymap.model2.runtime.config.ConfigurationFactory;
+import org.polymap.model2.runtime.config.DefaultBoolean;
+import org.polymap.model2.runtime.config.DefaultInt;
 import org.polymap.model2.runtime.config.Mandatory;
 import org.polymap.model2.runtime.config.Property;
+import org.polymap.model2.store.CompositeStateCache;
 import org.polymap.model2.store.StoreSPI;
 
 /**
@@ -78,6 +86,7 @@ public abstract class EntityRepository
          * 
          * @see CommitLockStrategy.FailOnConcurrentCommit
          * @see CommitLockStrategy.Serialize
+         * @see CommitLockStrategy.Striped
          */
         public Property<Configuration,Supplier<CommitLockStrategy>> commitLockStrategy;
         
@@ -86,9 +95,72 @@ public abstract class EntityRepository
          */
         public Property<Configuration,NameInStoreMapper> nameInStoreMapper;
         
+        /**
+         * Build the property instances of an {@link Entity} on first access rather
+         * than when the Entity is loaded. Loading still sets one small placeholder
+         * per property, as properties are plain fields. The store property,
+         * constraints and concerns are not built until the property is accessed.
+         * This speeds up loading of Entities that have many properties of which
+         * just a few are actually used. Defaults to false.
+         */
+        @DefaultBoolean( false )
+        public Property<Configuration,Boolean>      lazyProperties;
+        
+        /**
+         * Share the states of loaded Entities between all UnitOfWork instances of
+         * the repository. A UnitOfWork gets its private copy of an Entity state not
+         * until the Entity is modified. This saves memory if many UnitOfWork
+         * instances read the same Entities. Defaults to false.
+         * 
+         * @see SharedSnapshots
+         */
+        @DefaultBoolean( false )
+        public Property<Configuration,Boolean>      sharedSnapshots;
+        
+        /**
+         * The pool to bootstrap the repository in. Metadata and query templates of
+         * the Composite types are built in parallel, the store may do its schema
+         * work concurrently. Defaults to {@link ForkJoinPool#commonPool()}.
+         *
+         * @see EntityRepository#startupReport()
+         */
+        public Property<Configuration,ForkJoinPool> bootstrapPool;
+        
+        /**
+         * The maximum number of Entities a {@link UnitOfWork} keeps in memory.
+         * Least recently used Entities are evicted if this size is exceeded.
+         * Modified Entities are never evicted. Handles of evicted Entities become
+         * invalid; accessing them fails with an {@link IllegalStateException}. The
+         * Entity has to be re-fetched from the UnitOfWork then. Defaults to 0,
+         * which means that the cache is unbounded.
+         * <p/>
+         * This is used only if no {@link #cacheManager} is specified.
+         *
+         * @see BoundedCache
+         */
+        @DefaultInt( 0 )
+        public Property<Configuration,Integer>      unitOfWorkCacheSize;
+        
+        /**
+         * The cache policies of the Entity types, used if the {@link #store} is
+         * decorated by a {@link CompositeStateCache}. Entity types without a policy
+         * use {@link CompositeStateCache.Policy#DEFAULT}.
+         */
+        public Property<Configuration,Map<Class<? extends Entity>,CompositeStateCache.Policy>> stateCachePolicies;
+        
+        /**
+         * Record statistics of the Entity caches of all {@link UnitOfWork}
+         * instances and register them as MXBeans. Defaults to false.
+         *
+         * @see EntityRepository#cacheStatistics()
+         * @see RepositoryCacheStatistics
+         */
+        @DefaultBoolean( false )
+        public Property<Configuration,Boolean>      cacheStatistics;
+        
         public EntityRepository create() {
             if (cacheManager.get() == null) {
-                cacheManager.set( new SimpleCacheManager() );
+                cacheManager.set( new SimpleCacheManager( unitOfWorkCacheSize.get() ) );
             }
             if (commitLockStrategy.get() == null) {
                 commitLockStrategy.set( () -> new CommitLockStrategy.FailOnConcurrentCommit() );
@@ -96,6 +168,9 @@ public abstract class EntityRepository
             if (nameInStoreMapper.get() == null) {
                 nameInStoreMapper.set( new DefaultNameInStoreMapper() );
             }
+            if (bootstrapPool.get() == null) {
+                bootstrapPool.set( ForkJoinPool.commonPool() );
+            }
             return new EntityRepositoryImpl( this );
         }
     }
@@ -121,9 +196,44 @@ public abstract class EntityRepository
     public abstract <T extends Composite> CompositeInfo<T> infoOf( Class<T> compositeClass );
     
     
+    /**
+     * The timings of the startup of this repository.
+     */
+    public abstract StartupReport startupReport();
+    
+    
     /**
      * Creates a new {@link UnitOfWork} for this repository.
      */
     public abstract UnitOfWork newUnitOfWork();
+
+    
+    /**
+     * Creates a new {@link UnitOfWork} for this repository that is used for
+     * reading only. It does not track modifications and does not acquire a commit
+     * lock. Any attempt to modify, create or remove an Entity fails with a
+     * {@link ModelRuntimeException}. The store is told to create a
+     * {@link StoreSPI#createReadOnlyUnitOfWork() read-only} backend.
+     */
+    public abstract UnitOfWork newReadOnlyUnitOfWork();
+    
+    
+    /**
+     * Creates a new {@link BulkImporter} that creates a large number of Entities of
+     * the given type with bounded memory, committing every
+     * {@link BulkImporter#batchSize(int)} Entities.
+     */
+    public abstract <T extends Entity> BulkImporter<T> bulkImporter( Class<T> entityClass );
+    
+    
+    /**
+     * The statistics of the Entity caches of the {@link UnitOfWork} instances of
+     * this repository, in total and per Entity type.
+     * 
+     * @return The live statistics, or null if
+     *         {@link Configuration#cacheStatistics} is not set.
+     * @see RepositoryCacheStatistics#snapshot()
+     */
+    public abstract RepositoryCacheStatistics cacheStatistics();
     
 }
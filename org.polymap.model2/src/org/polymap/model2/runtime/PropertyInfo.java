@@ -57,7 +57,22 @@ public interface PropertyInfo<T> {
 
     public boolean isAssociation();
 
-    //public CompositeInfo getDeclaringComposite();
+    /**
+     * The {@link CompositeInfo} this property belongs to.
+     *
+     * @return The declaring composite, or null if this info was created outside
+     *         a repository.
+     */
+    public CompositeInfo getDeclaringComposite();
+
+    /**
+     * The dense index of this property in its {@link #getDeclaringComposite()}.
+     * Stores may use this to build array based per-property lookup tables.
+     *
+     * @see CompositeInfo#getProperty(int)
+     * @return The ordinal, or -1 if this info was created outside a repository.
+     */
+    public int getOrdinal();
 
     public T getDefaultValue();
 
@@ -0,0 +1,108 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.runtime;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.polymap.model2.store.StoreRuntimeContext;
+
+/**
+ * Timings of the startup of an {@link EntityRepository}, per phase and per type.
+ * The engine records the phases of the bootstrap. Stores may add their own
+ * timings via {@link StoreRuntimeContext#getStartupReport()}.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @see EntityRepository#startupReport()
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class StartupReport {
+
+    /** Phase name -> overall nanos; in the order the phases were recorded. */
+    private Map<String,Long>                            phases = new LinkedHashMap();
+
+    /** Phase name -> type -> nanos. */
+    private ConcurrentMap<String,ConcurrentMap<Class,Long>> types = new ConcurrentHashMap();
+
+
+    /**
+     * Records the overall time of the given phase.
+     */
+    public void phase( String phase, long nanos ) {
+        synchronized (phases) {
+            phases.merge( phase, nanos, Long::sum );
+        }
+    }
+
+
+    /**
+     * Records the time spent for the given type in the given phase.
+     */
+    public void type( String phase, Class type, long nanos ) {
+        types.computeIfAbsent( phase, k -> new ConcurrentHashMap<>() ).merge( type, nanos, Long::sum );
+    }
+
+
+    /**
+     * The overall times in nanoseconds of the recorded phases, in the order the
+     * phases were recorded.
+     */
+    public Map<String,Long> phases() {
+        Map<String,Long> result = new LinkedHashMap();
+        synchronized (phases) {
+            result.putAll( phases );
+        }
+        return result;
+    }
+
+
+    /**
+     * The times in nanoseconds of the types recorded for the given phase, the
+     * most expensive first.
+     *
+     * @return The per type times, or an empty map if there are no timings for
+     *         this phase.
+     */
+    public Map<Class,Long> types( String phase ) {
+        Map<Class,Long> result = new LinkedHashMap();
+        types.getOrDefault( phase, new ConcurrentHashMap<>() ).entrySet().stream()
+                .sorted( (e1,e2) -> e2.getValue().compareTo( e1.getValue() ) )
+                .forEach( e -> result.put( e.getKey(), e.getValue() ) );
+        return Collections.unmodifiableMap( result );
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder( 1024 ).append( "StartupReport:" );
+        phases().forEach( (phase,nanos) -> {
+            result.append( "\n    " ).append( phase ).append( ": " ).append( millis( nanos ) );
+            types( phase ).forEach( (type,typeNanos) -> {
+                result.append( "\n        " ).append( type.getSimpleName() ).append( ": " ).append( millis( typeNanos ) );
+            });
+        });
+        return result.toString();
+    }
+
+
+    protected String millis( long nanos ) {
+        return String.format( "%.2fms", nanos / 1000000d );
+    }
+
+}
@@ -14,6 +14,11 @@
  */
 package org.polymap.model2.runtime;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 import java.io.IOException;
 
 import org.polymap.model2.Entity;
@@ -23,6 +28,7 @@ import org.polymap.model2.runtime.EntityRepository.Configuration;
 import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
 import org.polymap.model2.store.CompositeState;
 import org.polymap.model2.store.StoreSPI;
+import org.polymap.model2.store.StoreUnitOfWork;
 
 /**
  * A UnitOfWork is the only way to actually <b>access</b> Entities and to work with
@@ -81,6 +87,22 @@ public interface UnitOfWork
      */
     public <T extends Entity> T entity( T entity );
 
+    /**
+     * Finds the {@link Entity} instances with the given identifiers and type.
+     * Entities that are not yet loaded are fetched from the underlying store with
+     * as few requests as possible (see {@link StoreUnitOfWork#loadEntityStates}).
+     * If the cache of the UnitOfWork is bounded, then the number of ids should not
+     * exceed {@link Configuration#unitOfWorkCacheSize}.
+     * 
+     * @param entityClass The type of the entities to find.
+     * @param ids The identifiers of the entities to find.
+     * @param <T> The type of the entities to build.
+     * @return The Entities in the order of the given ids. Ids with no Entity, or
+     *         whose Entity was {@link #removeEntity(Entity) removed} for this
+     *         UnitOfWork, are skipped.
+     */
+    public <T extends Entity> List<T> entities( Class<T> entityClass, Collection<?> ids );
+
 //    public <T extends Composite> T mixin( Class<T> entityClass, Entity entity );
 
 
@@ -148,6 +170,41 @@ public interface UnitOfWork
      */
     public void commit() throws ModelRuntimeException;
 
+
+    /**
+     * Stores all modifications that were made within this UnitOfWork, like
+     * {@link #commit()}, without waiting for the underlying store to commit. The
+     * {@link #prepare()} is done synchronously by this method. The commit of the
+     * store is then executed by the given executor.
+     * <p/>
+     * <b>Ordering:</b> the store commits of all UnitOfWorks of one
+     * {@link EntityRepository} are executed one after the other, in the order of
+     * the calls of this method. Other UnitOfWorks can prepare while a store commit
+     * is in progress, as long as the {@link CommitLockStrategy} does not lock
+     * them out; the commit lock of this UnitOfWork is held until its store commit
+     * is completed. A synchronous {@link #commit()} of another UnitOfWork does not
+     * wait for pending asynchronous commits.
+     * <p/>
+     * <b>Durability:</b> when the returned future completes normally, the
+     * modifications are stored just like after {@link #commit()}. Before that other
+     * UnitOfWorks may not see the modifications yet.
+     * <p/>
+     * <b>Failure:</b> if the store commit fails, this UnitOfWork is rolled back like
+     * by {@link #rollback()} and the future completes exceptionally with the cause.
+     * <p/>
+     * This UnitOfWork must not be modified until the future completes; modifying
+     * an Entity throws a {@link ModelRuntimeException} until then.
+     * {@link #prepare()}, {@link #commit()}, {@link #rollback()} and
+     * {@link #close()} wait for the pending commit.
+     *
+     * @param executor The executor to run the commit of the store, usually a
+     *        dedicated writer executor.
+     * @return The future of the commit, completing with this UnitOfWork.
+     * @throws ModelRuntimeException If {@link #prepare()} was called by this method
+     *         and an exception occured. This UnitOfWork is rolled back then.
+     */
+    public CompletableFuture<UnitOfWork> commitAsync( Executor executor ) throws ModelRuntimeException;
+
     
     /**
      * Discards any uncommitted modifications but does not close this UnitOfWork.
@@ -168,6 +225,12 @@ public interface UnitOfWork
     public void close();
     
     public boolean isOpen();
+    
+    /**
+     * True if this UnitOfWork was created by
+     * {@link EntityRepository#newReadOnlyUnitOfWork()}.
+     */
+    public boolean isReadOnly();
 
     
     /**
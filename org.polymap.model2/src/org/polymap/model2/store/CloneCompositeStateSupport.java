@@ -34,4 +34,17 @@ public interface CloneCompositeStateSupport
      */
     public void reincorparateEntityState( CompositeState state, CompositeState clonedState );
 
+    /**
+     * Creates the state of an Entity loaded by a nested UnitOfWork from the given
+     * state of the parent. An implementation may return an overlay that reads
+     * through to the given state and records just the modifications, so that
+     * {@link #reincorparateEntityState(CompositeState, CompositeState)} has to
+     * merge just those. The given state must not be modified.
+     * <p/>
+     * The default implementation returns {@link #cloneEntityState(CompositeState)}.
+     */
+    public default CompositeState overlayEntityState( CompositeState state ) {
+        return cloneEntityState( state );
+    }
+
 }
@@ -0,0 +1,495 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.event.CacheEntryRemovedListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.polymap.model2.Entity;
+import org.polymap.model2.engine.BoundedCache;
+import org.polymap.model2.query.Query;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.PropertyInfo;
+import org.polymap.model2.runtime.UnitOfWork;
+
+/**
+ * This {@link StoreDecorator} provides a second-level cache of Entity states
+ * shared by all {@link UnitOfWork} instances of the repository. A fresh
+ * UnitOfWork gets a copy of the cached state instead of loading it from the
+ * underlying store. The cached states are never modified; a read-only UnitOfWork
+ * gets the cached state itself.
+ * <p/>
+ * Cached states are invalidated when modifications of the Entity are committed
+ * via this store. This implementation does not detect modifications of the
+ * underlying store by a second party; those have to be signaled via
+ * {@link #invalidate(Object)} or {@link #invalidate(Class)}.
+ * <p/>
+ * The underlying store has to support {@link CloneCompositeStateSupport}, states
+ * are not cached otherwise. The {@link Policy} of every Entity type is configured
+ * via {@link EntityRepository.Configuration#stateCachePolicies}.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class CompositeStateCache
+        extends StoreDecorator
+        implements StoreSPI {
+
+    private static Log log = LogFactory.getLog( CompositeStateCache.class );
+
+    /**
+     * The cache policy of an Entity type.
+     */
+    public static class Policy {
+
+        /** States of the Entity type are not cached. */
+        public static final Policy  DISABLED = new Policy( 0, 0 );
+
+        /** The policy of Entity types that have no policy configured. */
+        public static final Policy  DEFAULT = size( 10000 );
+
+        /**
+         * Caches up to the given number of states of the Entity type.
+         */
+        public static Policy size( int maxSize ) {
+            assert maxSize > 0 : "maxSize must be > 0";
+            return new Policy( maxSize, 0 );
+        }
+
+        // instance ***
+
+        public final int        maxSize;
+
+        /** Time to live in milliseconds, or 0 if states do not expire. */
+        public final long       ttl;
+
+        protected Policy( int maxSize, long ttl ) {
+            this.maxSize = maxSize;
+            this.ttl = ttl;
+        }
+
+        /**
+         * Returns a new policy with the given time to live of the cached states.
+         */
+        public Policy ttl( long duration, TimeUnit unit ) {
+            return new Policy( maxSize, unit.toMillis( duration ) );
+        }
+
+        public boolean isEnabled() {
+            return maxSize > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Policy[maxSize=" + maxSize + ",ttl=" + ttl + "ms]";
+        }
+    }
+
+
+    /**
+     * Hit/miss statistics of the cache.
+     */
+    public static class Statistics {
+
+        protected LongAdder     hits = new LongAdder();
+
+        protected LongAdder     misses = new LongAdder();
+
+        protected LongAdder     evictions = new LongAdder();
+
+        public long hits() {
+            return hits.sum();
+        }
+
+        public long misses() {
+            return misses.sum();
+        }
+
+        public long evictions() {
+            return evictions.sum();
+        }
+
+        public double hitRatio() {
+            long requests = hits() + misses();
+            return requests > 0 ? (double)hits() / requests : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics[hits=" + hits() + ",misses=" + misses() + ",evictions=" + evictions() + "]";
+        }
+    }
+
+
+    /**
+     * A cached state and the time it was loaded.
+     */
+    protected static final class Entry {
+
+        public final CompositeState     state;
+
+        public final long               loaded;
+
+        public Entry( CompositeState state, long loaded ) {
+            this.state = state;
+            this.loaded = loaded;
+        }
+    }
+
+
+    /**
+     * The cache of one Entity type.
+     */
+    protected class TypeCache {
+
+        public final Policy                     policy;
+
+        public final Statistics                 stats = new Statistics();
+
+        public final BoundedCache<Object,Entry> entries;
+
+        public TypeCache( Policy policy ) {
+            this.policy = policy;
+            if (policy.isEnabled()) {
+                MutableConfiguration config = new MutableConfiguration();
+                config.addCacheEntryListenerConfiguration( new MutableCacheEntryListenerConfiguration(
+                        () -> (CacheEntryRemovedListener)events -> events.forEach( ev -> stats.evictions.increment() ),
+                        null, false, true ) );
+                entries = new BoundedCache( config, policy.maxSize );
+            }
+            else {
+                entries = null;
+            }
+        }
+
+        public CompositeState get( Object id ) {
+            Entry entry = entries.get( id );
+            if (entry != null && policy.ttl > 0 && System.currentTimeMillis() - entry.loaded > policy.ttl) {
+                entries.remove( id );
+                entry = null;
+            }
+            if (entry != null) {
+                stats.hits.increment();
+                return entry.state;
+            }
+            stats.misses.increment();
+            return null;
+        }
+    }
+
+
+    // instance *******************************************
+
+    private StoreRuntimeContext                 context;
+
+    private ConcurrentMap<Class,TypeCache>      caches = new ConcurrentHashMap( 32 );
+
+    /**
+     * Incremented on every invalidation. States loaded while an invalidation
+     * happened are not cached, as they might be loaded before the corresponding
+     * commit.
+     */
+    private AtomicLong                          invalidations = new AtomicLong();
+
+    /**
+     * Loaders check {@link #invalidations} and put their state under the read
+     * lock; invalidations increment and remove under the write lock. So no state
+     * that was loaded before an invalidation is put after it.
+     */
+    private ReadWriteLock                       invalidationLock = new ReentrantReadWriteLock();
+
+
+    public CompositeStateCache( StoreSPI store ) {
+        super( store );
+    }
+
+
+    @Override
+    public void init( @SuppressWarnings("hiding") StoreRuntimeContext context ) {
+        store.init( context );
+        this.context = context;
+    }
+
+
+    @Override
+    public StoreUnitOfWork createUnitOfWork() {
+        StoreUnitOfWork suow = store.createUnitOfWork();
+        return suow instanceof CloneCompositeStateSupport ? new CachingUnitOfWork( suow, false ) : suow;
+    }
+
+
+    @Override
+    public StoreUnitOfWork createReadOnlyUnitOfWork() {
+        StoreUnitOfWork suow = store.createReadOnlyUnitOfWork();
+        return suow instanceof CloneCompositeStateSupport ? new CachingUnitOfWork( suow, true ) : suow;
+    }
+
+
+    /**
+     * The policy of the given Entity type.
+     */
+    public Policy policy( Class<? extends Entity> entityClass ) {
+        return typeCache( entityClass ).policy;
+    }
+
+
+    /**
+     * The statistics of the given Entity type.
+     */
+    public Statistics statistics( Class<? extends Entity> entityClass ) {
+        return typeCache( entityClass ).stats;
+    }
+
+
+    /**
+     * The accumulated statistics of all Entity types.
+     */
+    public Statistics statistics() {
+        Statistics result = new Statistics();
+        for (TypeCache cache : caches.values()) {
+            result.hits.add( cache.stats.hits() );
+            result.misses.add( cache.stats.misses() );
+            result.evictions.add( cache.stats.evictions() );
+        }
+        return result;
+    }
+
+
+    /**
+     * Invalidates the cached state of the Entity with the given id.
+     */
+    public void invalidate( Object id ) {
+        invalidate( Collections.singletonList( id ) );
+    }
+
+
+    /**
+     * Invalidates the cached states of the Entities with the given ids.
+     */
+    public void invalidate( Collection<?> ids ) {
+        invalidationLock.writeLock().lock();
+        try {
+            invalidations.incrementAndGet();
+            for (TypeCache cache : caches.values()) {
+                if (cache.entries != null) {
+                    ids.forEach( id -> cache.entries.remove( id ) );
+                }
+            }
+        }
+        finally {
+            invalidationLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Invalidates the cached states of all Entities of the given type.
+     */
+    public void invalidate( Class<? extends Entity> entityClass ) {
+        invalidationLock.writeLock().lock();
+        try {
+            invalidations.incrementAndGet();
+            TypeCache cache = caches.get( entityClass );
+            if (cache != null && cache.entries != null) {
+                cache.entries.clear();
+            }
+        }
+        finally {
+            invalidationLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Puts the given loaded states into the cache, if no invalidation happened
+     * since the given generation.
+     *
+     * @param generation The {@link #invalidations} before the states were loaded.
+     */
+    protected void putLoaded( TypeCache cache, long generation, Map<Object,CompositeState> loaded, 
+            CloneCompositeStateSupport suow ) {
+        invalidationLock.readLock().lock();
+        try {
+            if (generation == invalidations.get()) {
+                long now = System.currentTimeMillis();
+                for (Map.Entry<Object,CompositeState> entry : loaded.entrySet()) {
+                    // the UnitOfWork may modify its state; cache a private copy
+                    cache.entries.putIfAbsent( entry.getKey(), new Entry( suow.cloneEntityState( entry.getValue() ), now ) );
+                }
+            }
+        }
+        finally {
+            invalidationLock.readLock().unlock();
+        }
+    }
+
+
+    protected TypeCache typeCache( Class<? extends Entity> entityClass ) {
+        TypeCache result = caches.get( entityClass );
+        if (result == null) {
+            result = caches.computeIfAbsent( entityClass, cl -> new TypeCache( configuredPolicy( entityClass ) ) );
+        }
+        return result;
+    }
+
+
+    protected Policy configuredPolicy( Class<? extends Entity> entityClass ) {
+        Map<Class<? extends Entity>,Policy> policies = context != null
+                ? context.getRepository().getConfig().stateCachePolicies.get()
+                : null;
+        Policy result = policies != null ? policies.get( entityClass ) : null;
+        return result != null ? result : Policy.DEFAULT;
+    }
+
+
+    /**
+     *
+     */
+    protected class CachingUnitOfWork
+            extends UnitOfWorkDecorator2 {
+
+        private boolean             readOnly;
+
+        private List<Entity>        prepared = Collections.EMPTY_LIST;
+
+        /** The types changed by {@link #prepareDelete(Query, Set)}/update. */
+        private Set<Class>          preparedTypes = new HashSet();
+
+        public CachingUnitOfWork( StoreUnitOfWork suow, boolean readOnly ) {
+            super( suow );
+            this.readOnly = readOnly;
+        }
+
+        @Override
+        public <T extends Entity> CompositeState loadEntityState( Object id, Class<T> entityClass ) {
+            TypeCache cache = typeCache( entityClass );
+            if (cache.entries == null) {
+                return suow.loadEntityState( id, entityClass );
+            }
+            CompositeState cached = cache.get( id );
+            if (cached != null) {
+                return readOnly ? cached : suow().cloneEntityState( cached );
+            }
+            long generation = invalidations.get();
+            CompositeState state = suow.loadEntityState( id, entityClass );
+            if (state != null) {
+                putLoaded( cache, generation, Collections.singletonMap( id, state ), suow() );
+            }
+            return state;
+        }
+
+        @Override
+        public <T extends Entity> Map<Object,CompositeState> loadEntityStates( Collection<?> ids, Class<T> entityClass ) {
+            TypeCache cache = typeCache( entityClass );
+            if (cache.entries == null) {
+                return suow.loadEntityStates( ids, entityClass );
+            }
+            Map<Object,CompositeState> result = new HashMap( ids.size() * 2 );
+            List<Object> missing = new ArrayList();
+            for (Object id : ids) {
+                CompositeState cached = cache.get( id );
+                if (cached != null) {
+                    result.put( id, readOnly ? cached : suow().cloneEntityState( cached ) );
+                }
+                else {
+                    missing.add( id );
+                }
+            }
+            if (!missing.isEmpty()) {
+                long generation = invalidations.get();
+                Map<Object,CompositeState> loaded = suow.loadEntityStates( missing, entityClass );
+                putLoaded( cache, generation, loaded, suow() );
+                result.putAll( loaded );
+            }
+            return result;
+        }
+
+        /**
+         * The cached states of the type are invalidated by {@link #commit()},
+         * after the store has changed them.
+         */
+        @Override
+        public boolean prepareDelete( Query query, Set<Object> excluded ) throws Exception {
+            boolean result = suow.prepareDelete( query, excluded );
+            if (result) {
+                preparedTypes.add( query.resultType() );
+            }
+            return result;
+        }
+
+        @Override
+        public boolean prepareUpdate( Query query, Map<PropertyInfo,Object> values, Set<Object> excluded ) throws Exception {
+            boolean result = suow.prepareUpdate( query, values, excluded );
+            if (result) {
+                preparedTypes.add( query.resultType() );
+            }
+            return result;
+        }
+
+        @Override
+        public void prepareCommit( Iterable<Entity> loaded, Map<Object,EntityChangeSet> changes ) throws Exception {
+            suow.prepareCommit( loaded, changes );
+            prepared = new ArrayList( 128 );
+            for (Entity entity : loaded) {
+                if (entity.status() == EntityStatus.MODIFIED || entity.status() == EntityStatus.REMOVED) {
+                    prepared.add( entity );
+                }
+            }
+        }
+
+        /**
+         * Invalidates the prepared Entities after the store has committed them,
+         * so that no state loaded before the commit is cached afterwards.
+         */
+        @Override
+        public void commit() {
+            suow.commit();
+            List<Object> ids = new ArrayList( prepared.size() );
+            prepared.forEach( entity -> ids.add( entity.id() ) );
+            invalidate( ids );
+            preparedTypes.forEach( type -> invalidate( type ) );
+            prepared = Collections.EMPTY_LIST;
+            preparedTypes.clear();
+        }
+
+        @Override
+        public void rollback() {
+            super.rollback();
+            prepared = Collections.EMPTY_LIST;
+            preparedTypes.clear();
+        }
+    }
+
+}
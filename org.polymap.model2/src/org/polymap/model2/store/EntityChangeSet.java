@@ -0,0 +1,276 @@
+/*
+ * polymap.org
+ * Copyright (C) 2016, Falko Bräutigam. All rights reserved.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+package org.polymap.model2.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.polymap.model2.Composite;
+import org.polymap.model2.Entity;
+import org.polymap.model2.runtime.CompositeInfo;
+import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.PropertyInfo;
+
+/**
+ * The changes of the properties of a {@link EntityStatus#MODIFIED} Entity since it
+ * was loaded or last committed. Recorded by the engine as properties are set and
+ * passed to the store via
+ * {@link StoreUnitOfWork#prepareCommit(Iterable, java.util.Map)}.
+ * <p/>
+ * Values are the values of the {@link StoreProperty}: for associations these are
+ * the ids of the associated Entities. Changes of nested Composite properties,
+ * Composite collections and bulk operations like
+ * {@link java.util.Collection#retainAll(java.util.Collection)} are not recorded in
+ * detail; the change set is not {@link #isComplete() complete} then and the store
+ * has to write the entire state.
+ *
+ * @author <a href="http://www.polymap.de">Falko Bräutigam</a>
+ */
+public class EntityChangeSet {
+
+    /**
+     * The change of one property.
+     */
+    public static class PropertyChange {
+
+        protected PropertyInfo      info;
+
+        protected boolean           set;
+
+        protected Object            oldValue;
+
+        protected Object            newValue;
+
+        protected List<Object>      added;
+
+        protected List<Object>      removed;
+
+        protected PropertyChange( PropertyInfo info ) {
+            this.info = info;
+        }
+
+        public PropertyInfo info() {
+            return info;
+        }
+
+        /**
+         * True if the value of the property was set; false if elements of a
+         * collection property were added or removed.
+         */
+        public boolean isSet() {
+            return set;
+        }
+
+        /**
+         * The value of the property when the Entity was loaded.
+         */
+        public Object oldValue() {
+            return oldValue;
+        }
+
+        /**
+         * The current value of the property.
+         */
+        public Object newValue() {
+            return newValue;
+        }
+
+        /**
+         * The elements added to the collection.
+         */
+        public List<Object> added() {
+            return added != null ? added : Collections.EMPTY_LIST;
+        }
+
+        /**
+         * The elements removed from the collection.
+         */
+        public List<Object> removed() {
+            return removed != null ? removed : Collections.EMPTY_LIST;
+        }
+
+        /**
+         * True if the property has its original value again.
+         */
+        public boolean isNoop() {
+            return set
+                    ? Objects.equals( oldValue, newValue )
+                    : added().isEmpty() && removed().isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "PropertyChange[" + info.getName() + ": " + (set
+                    ? oldValue + " -> " + newValue
+                    : "+" + added() + " -" + removed()) + "]";
+        }
+    }
+
+
+    // instance *******************************************
+
+    private Entity              entity;
+
+    private CompositeInfo       info;
+
+    /** The changes by ordinal of their property. */
+    private PropertyChange[]    changes;
+
+    private boolean             complete = true;
+
+
+    public EntityChangeSet( Entity entity, CompositeInfo info ) {
+        this.entity = entity;
+        this.info = info;
+        this.changes = new PropertyChange[info.getProperties().size()];
+    }
+
+
+    public Entity entity() {
+        return entity;
+    }
+
+
+    /**
+     * True if all modifications of the Entity are recorded in this change set. If
+     * false, then the store has to write the entire state of the Entity.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+
+    /**
+     * True if this change set is {@link #isComplete() complete} and all properties
+     * have their original value again. The Entity does not need to be written
+     * then.
+     */
+    public boolean isEmpty() {
+        return complete && changes().isEmpty();
+    }
+
+
+    /**
+     * The changes of the properties that do not have their original value,
+     * ordered by ordinal of the property.
+     */
+    public List<PropertyChange> changes() {
+        List<PropertyChange> result = new ArrayList( changes.length );
+        for (PropertyChange change : changes) {
+            if (change != null && !change.isNoop()) {
+                result.add( change );
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * The change of the given property, or null if it was not changed.
+     */
+    public PropertyChange change( PropertyInfo prop ) {
+        return isTracked( prop ) ? changes[prop.getOrdinal()] : null;
+    }
+
+
+    /**
+     * Marks this change set as not {@link #isComplete() complete}. Called by the
+     * engine if a modification cannot be recorded.
+     */
+    public void incomplete() {
+        complete = false;
+    }
+
+
+    /**
+     * Records that the given property was set. Called by the engine.
+     *
+     * @param oldValue The value before the property was set.
+     */
+    public void recordSet( PropertyInfo prop, Object oldValue, Object newValue ) {
+        PropertyChange change = trackedChange( prop );
+        if (change != null) {
+            if (!change.set) {
+                change.set = true;
+                change.oldValue = oldValue;
+            }
+            change.newValue = newValue;
+        }
+    }
+
+
+    /**
+     * Records that the given element was added to a collection property. Called by
+     * the engine.
+     */
+    public void recordAdd( PropertyInfo prop, Object element ) {
+        PropertyChange change = trackedChange( prop );
+        if (change != null) {
+            if (change.removed == null || !change.removed.remove( element )) {
+                change.added = change.added != null ? change.added : new ArrayList( 4 );
+                change.added.add( element );
+            }
+        }
+    }
+
+
+    /**
+     * Records that the given element was removed from a collection property.
+     * Called by the engine.
+     */
+    public void recordRemove( PropertyInfo prop, Object element ) {
+        PropertyChange change = trackedChange( prop );
+        if (change != null) {
+            if (change.added == null || !change.added.remove( element )) {
+                change.removed = change.removed != null ? change.removed : new ArrayList( 4 );
+                change.removed.add( element );
+            }
+        }
+    }
+
+
+    /**
+     * True if changes of the given property can be recorded. Properties of nested
+     * Composites and Composite values cannot be recorded.
+     */
+    protected boolean isTracked( PropertyInfo prop ) {
+        return prop.getDeclaringComposite() == info
+                && prop.getOrdinal() >= 0
+                && prop.getOrdinal() < changes.length
+                && (prop.isAssociation() || !Composite.class.isAssignableFrom( prop.getType() ));
+    }
+
+
+    protected PropertyChange trackedChange( PropertyInfo prop ) {
+        if (!isTracked( prop )) {
+            incomplete();
+            return null;
+        }
+        PropertyChange result = changes[prop.getOrdinal()];
+        if (result == null) {
+            result = changes[prop.getOrdinal()] = new PropertyChange( prop );
+        }
+        return result;
+    }
+
+
+    @Override
+    public String toString() {
+        return "EntityChangeSet[" + entity.id() + ",complete=" + complete + ": " + changes() + "]";
+    }
+
+}
@@ -17,20 +17,26 @@ package org.polymap.model2.store;
 import static java.util.Collections.singletonList;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.LogFactory;import org.apache.commons.logging.Log;
 
 import org.polymap.model2.Entity;
+import org.polymap.model2.query.Query;
 import org.polymap.model2.runtime.ConcurrentEntityModificationException;
 import org.polymap.model2.runtime.EntityRuntimeContext.EntityStatus;
+import org.polymap.model2.runtime.PropertyInfo;
 
 /**
  * This {@link StoreDecorator} provides a simple check for concurrent modifications
  * from different UnitOfWork instances in this JVM. The check fails on
- * {@link StoreUnitOfWork#prepareCommit(Iterable)}.
+ * {@link StoreUnitOfWork#prepareCommit(Iterable, Map)}.
  * <p/>
  * This implementation holds all versions in memory and never checks the underlying
  * store for concurrent modifications. So the check is fast but the table of versions
@@ -87,7 +93,7 @@ public class OptimisticLocking
 
         
         @Override
-        public void prepareCommit( Iterable<Entity> loaded ) throws Exception {
+        public void prepareCommit( Iterable<Entity> loaded, Map<Object,EntityChangeSet> changes ) throws Exception {
             // check only versions
             prepared = new ArrayList( loadedVersions.size() );
             for (Entity entity : loaded) {
@@ -104,7 +110,7 @@ public class OptimisticLocking
             }
 
             // delegate
-            suow.prepareCommit( loaded );
+            suow.prepareCommit( loaded, changes );
         }
 
         
@@ -143,6 +149,22 @@ public class OptimisticLocking
         }
 
 
+        /**
+         * Not supported: the versions of the Entities are not known. The caller
+         * falls back to check and write the Entities one by one.
+         */
+        @Override
+        public boolean prepareDelete( Query query, Set<Object> excluded ) throws Exception {
+            return false;
+        }
+
+
+        @Override
+        public boolean prepareUpdate( Query query, Map<PropertyInfo,Object> values, Set<Object> excluded ) throws Exception {
+            return false;
+        }
+
+
         @Override
         public <T extends Entity> CompositeState loadEntityState( Object id, Class<T> entityClass ) {
             CompositeState result = suow.loadEntityState( id, entityClass );
@@ -154,6 +176,54 @@ public class OptimisticLocking
         }
 
         
+        @Override
+        public <T extends Entity> Map<Object,CompositeState> loadEntityStates( Collection<?> ids, Class<T> entityClass ) {
+            Map<Object,CompositeState> result = suow.loadEntityStates( ids, entityClass );
+            for (Object id : result.keySet()) {
+                Integer version = storeVersions.get( id );
+                if (version != null) {
+                    loadedVersions.put( id, version );
+                }
+            }
+            return result;
+        }
+
+        
+        /**
+         * The version of the snapshot is the current store version, as snapshots
+         * are invalidated on commit.
+         */
+        @Override
+        public <T extends Entity> void snapshotRead( Object id, Class<T> entityClass ) {
+            Integer version = storeVersions.get( id );
+            if (version != null) {
+                loadedVersions.put( id, version );
+            }
+            else {
+                loadedVersions.remove( id );
+            }
+            suow.snapshotRead( id, entityClass );
+        }
+
+
+        /**
+         * Fails if the Entity was modified since its snapshot was read. Does not
+         * record the current version, so that {@link #prepareCommit(Iterable, Map)}
+         * checks against the version that was read.
+         */
+        @Override
+        public <T extends Entity> CompositeState forkEntityState( Object id, Class<T> entityClass ) {
+            Integer loadedVersion = loadedVersions.get( id );
+            Integer storeVersion = storeVersions.get( id );
+            if (storeVersion != loadedVersion) {
+                throw new ConcurrentEntityModificationException( 
+                        "Entity has been modified by another UnitOfWork since it was read. (loadedVersion=" + loadedVersion + ", storedVersion=" + storeVersion + ")", 
+                        Collections.EMPTY_LIST );
+            }
+            return suow.forkEntityState( id, entityClass );
+        }
+
+
         @Override
         public <T extends Entity> CompositeState adoptEntityState( Object state, Class<T> entityClass ) {
             CompositeState result = suow.adoptEntityState( state, entityClass );
@@ -187,6 +257,11 @@ public class OptimisticLocking
             return suow().cloneEntityState( state ); 
         }
 
+        @Override
+        public CompositeState overlayEntityState( CompositeState state ) {
+            return suow().overlayEntityState( state ); 
+        }
+
         @Override
         public void reincorparateEntityState( CompositeState state, CompositeState clonedState ) {
             suow().reincorparateEntityState( state, clonedState );
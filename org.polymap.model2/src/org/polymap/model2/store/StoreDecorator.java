@@ -14,10 +14,16 @@
  */
 package org.polymap.model2.store;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
 import org.apache.commons.logging.LogFactory;import org.apache.commons.logging.Log;
 
 import org.polymap.model2.Entity;
 import org.polymap.model2.query.Query;
+import org.polymap.model2.runtime.PropertyInfo;
 
 /**
  * Provides a no-op decorator for an underlying store.
@@ -59,6 +65,11 @@ public abstract class StoreDecorator
         return store.createUnitOfWork();
     }
 
+    @Override
+    public StoreUnitOfWork createReadOnlyUnitOfWork() {
+        return store.createReadOnlyUnitOfWork();
+    }
+
 
     /**
      * 
@@ -68,18 +79,59 @@ public abstract class StoreDecorator
         
         protected StoreUnitOfWork       suow;
 
+        /** The changes of the current {@link #prepareCommit(Iterable, Map)}. */
+        private Map<Object,EntityChangeSet> changes = Collections.EMPTY_MAP;
+
         public UnitOfWorkDecorator( StoreUnitOfWork suow ) {
             this.suow = suow;
         }
 
+        /**
+         * Forwards to the underlying UnitOfWork, together with the changes of the
+         * current {@link #prepareCommit(Iterable, Map)}.
+         */
         public void prepareCommit( Iterable<Entity> loaded ) throws Exception {
-            suow.prepareCommit( loaded );
+            suow.prepareCommit( loaded, changes );
+        }
+
+        /**
+         * Calls {@link #prepareCommit(Iterable)}, so that decorators that override
+         * just this method are still called by the engine.
+         */
+        public void prepareCommit( Iterable<Entity> loaded, @SuppressWarnings("hiding") Map<Object,EntityChangeSet> changes ) throws Exception {
+            this.changes = changes;
+            try {
+                prepareCommit( loaded );
+            }
+            finally {
+                this.changes = Collections.EMPTY_MAP;
+            }
+        }
+
+        public boolean prepareDelete( Query query, Set<Object> excluded ) throws Exception {
+            return suow.prepareDelete( query, excluded );
+        }
+
+        public boolean prepareUpdate( Query query, Map<PropertyInfo,Object> values, Set<Object> excluded ) throws Exception {
+            return suow.prepareUpdate( query, values, excluded );
         }
 
         public <T extends Entity> CompositeState loadEntityState( Object id, Class<T> entityClass ) {
             return suow.loadEntityState( id, entityClass );
         }
 
+        public <T extends Entity> Map<Object,CompositeState> loadEntityStates( Collection<?> ids, Class<T> entityClass ) {
+            return suow.loadEntityStates( ids, entityClass );
+        }
+
+        public <T extends Entity> void snapshotRead( Object id, Class<T> entityClass ) {
+            suow.snapshotRead( id, entityClass );
+        }
+
+        public <T extends Entity> CompositeState forkEntityState( Object id, Class<T> entityClass ) {
+            return suow.forkEntityState( id, entityClass );
+        }
+
         public <T extends Entity> CompositeState adoptEntityState( Object state, Class<T> entityClass ) {
             return suow.adoptEntityState( state, entityClass );
         }
@@ -131,6 +183,11 @@ public abstract class StoreDecorator
             return suow().cloneEntityState( state ); 
         }
 
+        @Override
+        public CompositeState overlayEntityState( CompositeState state ) {
+            return suow().overlayEntityState( state ); 
+        }
+
         @Override
         public void reincorparateEntityState( CompositeState state, CompositeState clonedState ) {
             suow().reincorparateEntityState( state, clonedState );
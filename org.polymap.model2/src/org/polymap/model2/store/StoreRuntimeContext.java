@@ -14,9 +14,12 @@
  */
 package org.polymap.model2.store;
 
+import java.util.concurrent.ForkJoinPool;
+
 import org.polymap.model2.Entity;
 import org.polymap.model2.runtime.EntityRepository;
 import org.polymap.model2.runtime.EntityRuntimeContext;
+import org.polymap.model2.runtime.StartupReport;
 
 /**
  * 
@@ -29,4 +32,15 @@ public interface StoreRuntimeContext {
     
     public EntityRuntimeContext contextOfEntity( Entity entity );
 
+    /**
+     * The pool the repository is bootstrapped in. {@link StoreSPI#init} may use it
+     * to do schema work for several types concurrently.
+     */
+    public ForkJoinPool getBootstrapPool();
+
+    /**
+     * The report to record the timings of the {@link StoreSPI#init} into.
+     */
+    public StartupReport getStartupReport();
+
 }
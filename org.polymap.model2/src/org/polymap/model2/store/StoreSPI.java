@@ -21,6 +21,12 @@ package org.polymap.model2.store;
  */
 public interface StoreSPI {
 
+    /**
+     * Initializes this store. Called once when the repository is created.
+     * Expensive work per type (checking/creating schemas for example) can be done
+     * concurrently in the {@link StoreRuntimeContext#getBootstrapPool()}. This
+     * method must not return before all this work is done.
+     */
     public void init( StoreRuntimeContext context );
     
     public void close();
@@ -43,4 +49,14 @@ public interface StoreSPI {
 
     public StoreUnitOfWork createUnitOfWork();
 
+    /**
+     * Creates a {@link StoreUnitOfWork} for a read-only UnitOfWork. Neither
+     * {@link StoreUnitOfWork#prepareCommit(Iterable)} nor commit/rollback is ever
+     * called on it, so the store may skip transaction handling and other write
+     * bookkeeping. Defaults to {@link #createUnitOfWork()}.
+     */
+    public default StoreUnitOfWork createReadOnlyUnitOfWork() {
+        return createUnitOfWork();
+    }
+
 }
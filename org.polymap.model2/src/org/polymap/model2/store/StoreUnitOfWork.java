@@ -14,9 +14,16 @@
  */
 package org.polymap.model2.store;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
 import org.polymap.model2.Entity;
 import org.polymap.model2.engine.UnitOfWorkImpl;
 import org.polymap.model2.query.Query;
+import org.polymap.model2.runtime.EntityRepository;
+import org.polymap.model2.runtime.PropertyInfo;
 import org.polymap.model2.runtime.UnitOfWork;
 
 /**
@@ -35,6 +42,56 @@ public interface StoreUnitOfWork {
      */
     public <T extends Entity> CompositeState loadEntityState( Object id, Class<T> entityClass );
 
+    /**
+     * Loads the states of several Entities at once. Stores should override this
+     * in order to fetch all states with one request to the backend. The default
+     * implementation calls {@link #loadEntityState(Object, Class)} for every id.
+     *
+     * @param ids The identifiers of the Entities.
+     * @param entityClass
+     * @return The {@link CompositeState}s mapped by their id. Ids without entity
+     *         are not contained.
+     */
+    public default <T extends Entity> Map<Object,CompositeState> loadEntityStates( Collection<?> ids, Class<T> entityClass ) {
+        Map<Object,CompositeState> result = new HashMap( ids.size() * 2 );
+        for (Object id : ids) {
+            CompositeState state = loadEntityState( id, entityClass );
+            if (state != null) {
+                result.put( id, state );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Signals that the front-end UnitOfWork uses the shared snapshot of the
+     * given Entity, which was not loaded via this StoreUnitOfWork. Decorators
+     * that check versions should record the current version of the Entity as
+     * the version that was read. The default implementation does nothing.
+     *
+     * @see EntityRepository.Configuration#sharedSnapshots
+     * @param id The identifier of the Entity.
+     * @param entityClass
+     */
+    public default <T extends Entity> void snapshotRead( Object id, Class<T> entityClass ) {
+    }
+
+    /**
+     * Loads the private state of an Entity that was read from a shared snapshot
+     * so far and is about to be modified. Decorators that check versions should
+     * fail if the Entity was modified since it was read. The default
+     * implementation calls {@link #loadEntityState(Object, Class)}.
+     *
+     * @see #snapshotRead(Object, Class)
+     * @param id The identifier of the Entity.
+     * @param entityClass
+     * @return The {@link CompositeState}, or null if no entity exists for the
+     *         given identifier.
+     */
+    public default <T extends Entity> CompositeState forkEntityState( Object id, Class<T> entityClass ) {
+        return loadEntityState( id, entityClass );
+    }
+
     public <T extends Entity> CompositeState adoptEntityState( Object state, Class<T> entityClass );
 
     /**
@@ -64,7 +121,64 @@ public interface StoreUnitOfWork {
     public boolean evaluate( Object entityState, Object expression );
 
     public void prepareCommit( Iterable<Entity> loaded ) throws Exception;
+
+    /**
+     * Prepares the commit of the given modified Entities. Besides the Entities
+     * this gets the {@link EntityChangeSet}s of the modified Entities that have
+     * one. Stores should override this in order to write just the changed
+     * properties. Entities that are created or removed, and Entities whose change
+     * set is not {@link EntityChangeSet#isComplete() complete}, have to be written
+     * entirely. The default implementation calls {@link #prepareCommit(Iterable)}.
+     *
+     * @param modified The created, modified and removed Entities.
+     * @param changes The change sets of modified Entities mapped by their id.
+     */
+    public default void prepareCommit( Iterable<Entity> modified, Map<Object,EntityChangeSet> changes ) throws Exception {
+        prepareCommit( modified );
+    }
+    
+    /**
+     * Prepares the removal of all Entities that match the given query, without
+     * building states or Entities. This is called before
+     * {@link #prepareCommit(Iterable)} of the same UnitOfWork, and
+     * {@link #commit()} applies the removal together with the prepared
+     * Entities. Stores should override this in order to remove the Entities
+     * inside the backend. The default implementation does nothing and returns
+     * false.
+     *
+     * @param query The query, without firstResult and maxResults.
+     * @param excluded The ids of Entities that must not be removed.
+     * @return False if this store does not support removal by query. The caller
+     *         then removes the Entities via {@link #prepareCommit(Iterable)}.
+     */
+    public default boolean prepareDelete( Query query, Set<Object> excluded ) throws Exception {
+        return false;
+    }
+
+    /**
+     * Prepares setting the given values of all Entities that match the given
+     * query. This is called before {@link #prepareCommit(Iterable)} of the same
+     * UnitOfWork, and {@link #commit()} applies the changes together with the
+     * prepared Entities. Stores should override this in order to change the
+     * Entities inside the backend. The default implementation does nothing and
+     * returns false.
+     *
+     * @param query The query, without firstResult and maxResults.
+     * @param values The new values mapped by the info of a simple, top-level
+     *        property.
+     * @param excluded The ids of Entities that must not be changed.
+     * @return False if this store does not support update by query. The caller
+     *         then changes the Entities via {@link #prepareCommit(Iterable)}.
+     */
+    public default boolean prepareUpdate( Query query, Map<PropertyInfo,Object> values, Set<Object> excluded ) throws Exception {
+        return false;
+    }
     
+    /**
+     * Commits the changes prepared by {@link #prepareCommit(Iterable)}. For
+     * {@link UnitOfWork#commitAsync(java.util.concurrent.Executor)} this is called
+     * by a thread of the given executor, not by the thread that called prepare.
+     */
     public void commit();
     
     public void close();